@@ -19,6 +19,8 @@
 
 package org.apache.samza.checkpoint;
 
+import java.util.Map;
+
 import org.apache.samza.container.TaskName;
 
 /**
@@ -41,6 +43,15 @@ public interface CheckpointManager {
    */
   void writeCheckpoint(TaskName taskName, Checkpoint checkpoint);
 
+  /**
+   * Writes checkpoints for several Samza stream partitions at once, such as all
+   * the tasks in a container that commit together. Implementations should write
+   * the whole batch with as few round trips to their storage as they can, and
+   * return once every checkpoint in it has been written.
+   * @param checkpoints The checkpoint to write for each taskName.
+   */
+  void writeCheckpoints(Map<TaskName, Checkpoint> checkpoints);
+
   /**
    * Returns the last recorded checkpoint for a specified taskName.
    * @param taskName Specific Samza taskName for which to get the last checkpoint of.
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.serializers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Deserializer} that can read directly from a {@link ByteBuffer}. When a system consumer hands out
+ * zero-copy envelopes, whose key and message are read-only buffers over the fetched data, Samza gives the buffers
+ * to deserializers that implement this interface, instead of copying them into a byte array first.
+ *
+ * @param <T> The type of serialized object implementations can read
+ */
+public interface ByteBufferDeserializer<T> extends Deserializer<T> {
+  /**
+   * Deserializes the given buffer's remaining bytes to their original form. The buffer is read-only, and is only
+   * valid until the envelope it came from has been processed, so implementations that return the buffer itself, or
+   * a view of it, leave it to the task not to hold on to the result past that point.
+   * @param buffer The bytes representing the serialized object, from the buffer's position to its limit.
+   * @return Original deserialized object.
+   */
+  T fromByteBuffer(ByteBuffer buffer);
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system;
+
+/**
+ * Implemented by {@link SystemConsumer}s that know how far the head of each
+ * of their {@link SystemStreamPartition}s is. Choosers such as the lag-aware
+ * chooser use it to work out how many messages a partition is behind.
+ */
+public interface HighWatermarkProvider {
+  /**
+   * @param systemStreamPartition
+   *          A SystemStreamPartition that was registered with the consumer.
+   * @return The offset that the next message written to the
+   *         SystemStreamPartition will have, or -1 if it is not known (yet).
+   *         Only meaningful for systems with numeric offsets.
+   */
+  long getHighWatermark(SystemStreamPartition systemStreamPartition);
+}
@@ -24,11 +24,17 @@ package org.apache.samza.system;
  * partition of a specific input stream.
  */
 public class IncomingMessageEnvelope {
+  /**
+   * The timestamp of envelopes whose event time is not known.
+   */
+  public static final long NO_TIMESTAMP = -1L;
+
   private final SystemStreamPartition systemStreamPartition;
   private final String offset;
   private final Object key;
   private final Object message;
   private final int size;
+  private final long timestamp;
 
   /**
    * Constructs a new IncomingMessageEnvelope from specified components.
@@ -52,11 +58,26 @@ public class IncomingMessageEnvelope {
    * @param size size of the message and key in bytes.
    */
   public IncomingMessageEnvelope(SystemStreamPartition systemStreamPartition, String offset, Object key, Object message, int size) {
+    this(systemStreamPartition, offset, key, message, size, NO_TIMESTAMP);
+  }
+
+  /**
+   * Constructs a new IncomingMessageEnvelope from specified components.
+   * @param systemStreamPartition The aggregate object representing the incoming stream name, the name of the cluster
+   * from which the stream came, and the partition of the stream from which the message was received.
+   * @param offset The offset in the partition that the message was received from.
+   * @param key A deserialized key received from the partition offset.
+   * @param message A deserialized message received from the partition offset.
+   * @param size size of the message and key in bytes.
+   * @param timestamp The event time of the message in milliseconds since the epoch, or {@link #NO_TIMESTAMP}.
+   */
+  public IncomingMessageEnvelope(SystemStreamPartition systemStreamPartition, String offset, Object key, Object message, int size, long timestamp) {
     this.systemStreamPartition = systemStreamPartition;
     this.offset = offset;
     this.key = key;
     this.message = message;
     this.size = size;
+    this.timestamp = timestamp;
   }
 
   public SystemStreamPartition getSystemStreamPartition() {
@@ -79,6 +100,15 @@ public class IncomingMessageEnvelope {
     return size;
   }
 
+  /**
+   * @return The event time of the message in milliseconds since the epoch, as
+   * set by the system consumer or a {@link TimestampExtractor}, or
+   * {@link #NO_TIMESTAMP} if it is not known.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system;
+
+import java.util.Arrays;
+
+import org.apache.samza.serializers.Deserializer;
+
+/**
+ * An {@link org.apache.samza.system.IncomingMessageEnvelope} that holds on to the serialized key and message, and
+ * deserializes each of them the first time it is asked for. Tasks that look at the key alone, and skip most messages,
+ * never pay for deserializing the messages they skip.
+ * <p>
+ * A key or message without a deserializer is returned as it was received. Since deserialization happens on first
+ * access, a deserialization error is thrown from {@link #getKey()} or {@link #getMessage()}, rather than when the
+ * message is received. Deserializing is idempotent, so the envelope may be read from several threads, although a
+ * value may then be deserialized more than once.
+ * <p>
+ * {@link #equals(Object)}, {@link #hashCode()} and {@link #toString()} only look at the serialized key and message, so
+ * logging or hashing an envelope never deserializes it. A lazy envelope is therefore never equal to an eagerly
+ * deserialized one.
+ */
+public class LazyIncomingMessageEnvelope extends IncomingMessageEnvelope {
+  private static final Object NOT_DECODED = new Object();
+
+  private final Deserializer<Object> keyDeserializer;
+  private final Deserializer<Object> messageDeserializer;
+  private volatile Object key = NOT_DECODED;
+  private volatile Object message = NOT_DECODED;
+
+  /**
+   * Constructs a new LazyIncomingMessageEnvelope.
+   * @param systemStreamPartition The stream partition that the message was received from.
+   * @param offset The offset in the partition that the message was received from.
+   * @param rawKey The key, as it was received from the partition.
+   * @param rawMessage The message, as it was received from the partition.
+   * @param size size of the message and key in bytes.
+   * @param keyDeserializer Deserializes the key, or null if the key is used as it was received.
+   * @param messageDeserializer Deserializes the message, or null if the message is used as it was received.
+   */
+  public LazyIncomingMessageEnvelope(SystemStreamPartition systemStreamPartition, String offset, Object rawKey, Object rawMessage,
+      int size, Deserializer<Object> keyDeserializer, Deserializer<Object> messageDeserializer) {
+    this(systemStreamPartition, offset, rawKey, rawMessage, size, NO_TIMESTAMP, keyDeserializer, messageDeserializer);
+  }
+
+  /**
+   * Constructs a new LazyIncomingMessageEnvelope.
+   * @param systemStreamPartition The stream partition that the message was received from.
+   * @param offset The offset in the partition that the message was received from.
+   * @param rawKey The key, as it was received from the partition.
+   * @param rawMessage The message, as it was received from the partition.
+   * @param size size of the message and key in bytes.
+   * @param timestamp The event time of the message in milliseconds since the epoch, or {@link #NO_TIMESTAMP}.
+   * @param keyDeserializer Deserializes the key, or null if the key is used as it was received.
+   * @param messageDeserializer Deserializes the message, or null if the message is used as it was received.
+   */
+  public LazyIncomingMessageEnvelope(SystemStreamPartition systemStreamPartition, String offset, Object rawKey, Object rawMessage,
+      int size, long timestamp, Deserializer<Object> keyDeserializer, Deserializer<Object> messageDeserializer) {
+    super(systemStreamPartition, offset, rawKey, rawMessage, size, timestamp);
+    this.keyDeserializer = keyDeserializer;
+    this.messageDeserializer = messageDeserializer;
+  }
+
+  @Override
+  public Object getKey() {
+    Object decoded = key;
+    if (decoded == NOT_DECODED) {
+      decoded = decode(keyDeserializer, getRawKey());
+      key = decoded;
+    }
+    return decoded;
+  }
+
+  @Override
+  public Object getMessage() {
+    Object decoded = message;
+    if (decoded == NOT_DECODED) {
+      decoded = decode(messageDeserializer, getRawMessage());
+      message = decoded;
+    }
+    return decoded;
+  }
+
+  /**
+   * @return The key, as it was received from the partition.
+   */
+  public Object getRawKey() {
+    return super.getKey();
+  }
+
+  /**
+   * @return The message, as it was received from the partition.
+   */
+  public Object getRawMessage() {
+    return super.getMessage();
+  }
+
+  /**
+   * @return True if the key has been deserialized.
+   */
+  public boolean isKeyDecoded() {
+    return key != NOT_DECODED;
+  }
+
+  /**
+   * @return True if the message has been deserialized.
+   */
+  public boolean isMessageDecoded() {
+    return message != NOT_DECODED;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + rawHashCode(getRawKey());
+    result = prime * result + rawHashCode(getRawMessage());
+    result = prime * result + ((getOffset() == null) ? 0 : getOffset().hashCode());
+    result = prime * result + ((getSystemStreamPartition() == null) ? 0 : getSystemStreamPartition().hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    LazyIncomingMessageEnvelope other = (LazyIncomingMessageEnvelope) obj;
+    if (!rawEquals(getRawKey(), other.getRawKey()))
+      return false;
+    if (!rawEquals(getRawMessage(), other.getRawMessage()))
+      return false;
+    if (getOffset() == null) {
+      if (other.getOffset() != null)
+        return false;
+    } else if (!getOffset().equals(other.getOffset()))
+      return false;
+    if (getSystemStreamPartition() == null) {
+      if (other.getSystemStreamPartition() != null)
+        return false;
+    } else if (!getSystemStreamPartition().equals(other.getSystemStreamPartition()))
+      return false;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "LazyIncomingMessageEnvelope [systemStreamPartition=" + getSystemStreamPartition() + ", offset=" + getOffset()
+        + ", key=" + rawToString(getRawKey()) + ", message=" + rawToString(getRawMessage()) + "]";
+  }
+
+  private static int rawHashCode(Object raw) {
+    if (raw instanceof byte[]) {
+      return Arrays.hashCode((byte[]) raw);
+    }
+    return (raw == null) ? 0 : raw.hashCode();
+  }
+
+  private static boolean rawEquals(Object raw, Object otherRaw) {
+    if (raw instanceof byte[] && otherRaw instanceof byte[]) {
+      return Arrays.equals((byte[]) raw, (byte[]) otherRaw);
+    }
+    return (raw == null) ? otherRaw == null : raw.equals(otherRaw);
+  }
+
+  private static String rawToString(Object raw) {
+    if (raw instanceof byte[]) {
+      return "byte[" + ((byte[]) raw).length + "]";
+    }
+    return String.valueOf(raw);
+  }
+
+  private static Object decode(Deserializer<Object> deserializer, Object raw) {
+    if (deserializer == null) {
+      return raw;
+    }
+    return deserializer.fromBytes((byte[]) raw);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system;
+
+/**
+ * Extracts the event time of incoming messages, for systems that don't supply
+ * it with the message. A stream's extractor is configured with
+ * systems.&lt;system&gt;.streams.&lt;stream&gt;.samza.timestamp.extractor.factory,
+ * and is applied to every envelope after it has been deserialized.
+ */
+public interface TimestampExtractor {
+  /**
+   * @param envelope A deserialized envelope.
+   * @return The event time of the envelope's message in milliseconds since the
+   *         epoch, or {@link IncomingMessageEnvelope#NO_TIMESTAMP} if it has
+   *         none.
+   */
+  long getTimestamp(IncomingMessageEnvelope envelope);
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.apache.samza.util.ReferenceCounted;
+
+/**
+ * An {@link IncomingMessageEnvelope} whose key and message were not copied out of the buffer that the system
+ * consumer received them in. As received, the key and message are read-only {@link java.nio.ByteBuffer} slices of
+ * that buffer, which every envelope sliced from it holds a reference to.
+ * <p>
+ * Samza calls {@link #release()} once the task has processed the envelope, or once it decides to skip it, and the
+ * buffer is released when all of its envelopes have been. Tasks must not hold on to a ByteBuffer key or message
+ * after processing the envelope.
+ */
+public class ZeroCopyIncomingMessageEnvelope extends IncomingMessageEnvelope {
+  private static final AtomicIntegerFieldUpdater<ZeroCopyIncomingMessageEnvelope> RELEASED =
+      AtomicIntegerFieldUpdater.newUpdater(ZeroCopyIncomingMessageEnvelope.class, "released");
+
+  private final ReferenceCounted buffer;
+  private volatile int released = 0;
+
+  /**
+   * Constructs a new ZeroCopyIncomingMessageEnvelope. The envelope takes over one reference to the buffer, which the
+   * caller must have retained for it.
+   * @param systemStreamPartition The stream partition that the message was received from.
+   * @param offset The offset in the partition that the message was received from.
+   * @param key The key, usually a read-only slice of the buffer.
+   * @param message The message, usually a read-only slice of the buffer.
+   * @param size size of the message and key in bytes.
+   * @param timestamp The event time of the message in milliseconds since the epoch, or {@link #NO_TIMESTAMP}.
+   * @param buffer The buffer that the key and message were sliced from.
+   */
+  public ZeroCopyIncomingMessageEnvelope(SystemStreamPartition systemStreamPartition, String offset, Object key, Object message,
+      int size, long timestamp, ReferenceCounted buffer) {
+    super(systemStreamPartition, offset, key, message, size, timestamp);
+    this.buffer = buffer;
+  }
+
+  /**
+   * @return The buffer that the key and message were sliced from.
+   */
+  public ReferenceCounted getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Gives up this envelope's reference to the buffer. Only the first call has any effect.
+   */
+  public void release() {
+    if (RELEASED.compareAndSet(this, 0, 1)) {
+      buffer.release();
+    }
+  }
+}
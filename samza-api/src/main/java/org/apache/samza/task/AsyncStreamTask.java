@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.task;
+
+import org.apache.samza.system.IncomingMessageEnvelope;
+
+/**
+ * An AsyncStreamTask is the asynchronous counterpart of {@link org.apache.samza.task.StreamTask}. It is intended
+ * for jobs that spend most of their time waiting on remote calls, such as lookups against an external database or
+ * service. Instead of blocking until a message has been handled, processAsync starts the work and returns, and the
+ * task signals later, through the {@link org.apache.samza.task.TaskCallback}, that the message is done. This lets a
+ * task have several messages in flight at once. The maximum number of in-flight messages per task is set with the
+ * task.max.concurrency configuration.
+ * <p>
+ * A message's offset is only checkpointed once the callback for that message, and the callbacks for all earlier
+ * messages from the same {@link org.apache.samza.system.SystemStreamPartition}, have completed. A commit waits for
+ * all in-flight messages of the task to complete before writing a checkpoint.
+ * <p>
+ * Calls to processAsync, as well as to the methods of {@link org.apache.samza.task.InitableTask},
+ * {@link org.apache.samza.task.WindowableTask} and {@link org.apache.samza.task.ClosableTask}, are made one at a
+ * time. The callback, however, may be invoked from any thread, so any state that is touched both by processAsync and
+ * by the code that completes the callback must be thread-safe. The {@link org.apache.samza.task.TaskCoordinator}
+ * may be used until the callback is invoked; requests made through it take effect once the callback has completed.
+ */
+public interface AsyncStreamTask {
+  /**
+   * Called once for each message that this AsyncStreamTask receives.
+   * @param envelope Contains the received deserialized message and key, and also information regarding the stream and
+   * partition of which the message was received from.
+   * @param collector Contains the means of sending message envelopes to the output stream. The collector may be used
+   * until the callback for this message is invoked.
+   * @param coordinator Manages execution of tasks.
+   * @param callback Must be invoked exactly once, either with {@link org.apache.samza.task.TaskCallback#complete()}
+   * when the message has been handled, or with {@link org.apache.samza.task.TaskCallback#failure(Throwable)} if it
+   * could not be.
+   */
+  void processAsync(IncomingMessageEnvelope envelope, MessageCollector collector, TaskCoordinator coordinator, TaskCallback callback);
+}
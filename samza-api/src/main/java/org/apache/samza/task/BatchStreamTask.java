@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.task;
+
+import java.util.List;
+
+import org.apache.samza.system.IncomingMessageEnvelope;
+
+/**
+ * A BatchStreamTask is an alternative to {@link org.apache.samza.task.StreamTask} for tasks that receive their messages
+ * in batches, rather than one at a time. It does not extend StreamTask: a task class implements BatchStreamTask in
+ * place of StreamTask, and if it implements both, only processBatch is called. Each batch holds consecutive messages
+ * from a single {@link org.apache.samza.system.SystemStreamPartition}, in offset order. Handling many messages per call
+ * lets a task amortize per-call work, such as a remote write or a store update, over the whole batch, and lets the
+ * framework update the task's offsets once per batch rather than once per message.
+ * <p>
+ * A batch holds at most task.process.batch.size messages. If task.process.batch.linger.ms is set, a smaller batch is
+ * held back for up to that long, waiting for more messages from the same SystemStreamPartition. Messages from bootstrap
+ * streams are always handed to the task one per batch.
+ * <p>
+ * Once processBatch returns, the offset of the last message in the batch is the next one to be checkpointed. The same
+ * threading guarantees as for StreamTask apply, and the list must not be held onto between calls.
+ */
+public interface BatchStreamTask {
+  /**
+   * Called once for each batch of messages that this BatchStreamTask receives.
+   * @param envelopes The received deserialized messages, all from the same stream partition, in offset order. Never
+   * empty.
+   * @param collector Contains the means of sending message envelopes to the output stream. The collector must only
+   * be used during the current call to the processBatch method.
+   * @param coordinator Manages execution of tasks.
+   * @throws Exception Any exception types encountered during the execution of the processing task.
+   */
+  void processBatch(List<IncomingMessageEnvelope> envelopes, MessageCollector collector, TaskCoordinator coordinator) throws Exception;
+}
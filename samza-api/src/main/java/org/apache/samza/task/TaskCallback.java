@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.task;
+
+/**
+ * Used by an {@link org.apache.samza.task.AsyncStreamTask} to signal that it has finished with a message. Exactly
+ * one of the methods must be called, exactly once, for each call to
+ * {@link org.apache.samza.task.AsyncStreamTask#processAsync}. Both methods may be called from any thread.
+ */
+public interface TaskCallback {
+  /**
+   * Signals that the message was processed successfully. Its offset may now be checkpointed once all earlier
+   * messages from the same SystemStreamPartition have completed too.
+   */
+  void complete();
+
+  /**
+   * Signals that the message could not be processed. The failure is handled in the same way as an exception
+   * thrown from {@link org.apache.samza.task.StreamTask#process}: unless it is listed in task.ignored.exceptions,
+   * the container shuts down.
+   *
+   * @param t The cause of the failure.
+   */
+  void failure(Throwable t);
+}
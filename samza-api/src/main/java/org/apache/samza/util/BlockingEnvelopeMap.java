@@ -20,10 +20,10 @@
 package org.apache.samza.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -64,11 +64,13 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public abstract class BlockingEnvelopeMap implements SystemConsumer {
   private final BlockingEnvelopeMapMetrics metrics;
-  private final ConcurrentHashMap<SystemStreamPartition, BlockingQueue<IncomingMessageEnvelope>> bufferedMessages;
+  private final ConcurrentHashMap<SystemStreamPartition, EnvelopeQueue> bufferedMessages;
   private final ConcurrentHashMap<SystemStreamPartition, AtomicLong> bufferedMessagesSize;  // size in bytes per SystemStreamPartition
   private final Map<SystemStreamPartition, Boolean> noMoreMessage;
   private final Clock clock;
   protected final boolean fetchLimitByBytesEnabled;
+  private volatile IdleStrategy idleStrategy;
+  private volatile BufferMemoryBudget bufferMemoryBudget;
 
   public BlockingEnvelopeMap() {
     this(new NoOpMetricsRegistry());
@@ -89,7 +91,7 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
   public BlockingEnvelopeMap(MetricsRegistry metricsRegistry, Clock clock, String metricsGroupName, boolean fetchLimitByBytesEnabled) {
     metricsGroupName = (metricsGroupName == null) ? this.getClass().getName() : metricsGroupName;
     this.metrics = new BlockingEnvelopeMapMetrics(metricsGroupName, metricsRegistry);
-    this.bufferedMessages = new ConcurrentHashMap<SystemStreamPartition, BlockingQueue<IncomingMessageEnvelope>>();
+    this.bufferedMessages = new ConcurrentHashMap<SystemStreamPartition, EnvelopeQueue>();
     this.noMoreMessage = new ConcurrentHashMap<SystemStreamPartition, Boolean>();
     this.clock = clock;
     this.fetchLimitByBytesEnabled = fetchLimitByBytesEnabled;
@@ -102,11 +104,52 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
    */
   public void register(SystemStreamPartition systemStreamPartition, String offset) {
     metrics.initMetrics(systemStreamPartition);
-    bufferedMessages.putIfAbsent(systemStreamPartition, newBlockingQueue());
+    bufferedMessages.putIfAbsent(systemStreamPartition, newEnvelopeQueue());
     // Created when size is disabled for code simplification, and the overhead is negligible.
     bufferedMessagesSize.putIfAbsent(systemStreamPartition, new AtomicLong(0));
   }
 
+  /**
+   * Sets the {@link org.apache.samza.util.IdleStrategy} of the run loop that
+   * polls this consumer. Whenever a SystemStreamPartition's buffer goes from
+   * empty to non-empty, the strategy is signalled, so that an idle run loop
+   * picks up the new messages right away instead of at its next poll.
+   *
+   * @param idleStrategy The strategy to signal, or null to stop signalling.
+   */
+  public void setIdleStrategy(IdleStrategy idleStrategy) {
+    this.idleStrategy = idleStrategy;
+  }
+
+  /**
+   * Sets a {@link org.apache.samza.util.BufferMemoryBudget} that is shared
+   * with the container's other consumers. Every buffered message reserves
+   * its size in the budget until it is polled, and
+   * {@link #hasBufferBudget(org.apache.samza.system.SystemStreamPartition)}
+   * tells fetchers whether they may buffer more. Must be called before any
+   * SystemStreamPartition is registered.
+   *
+   * @param bufferMemoryBudget The budget to reserve space in, or null for none.
+   */
+  public void setBufferMemoryBudget(BufferMemoryBudget bufferMemoryBudget) {
+    this.bufferMemoryBudget = bufferMemoryBudget;
+  }
+
+  /**
+   * Creates the queue that buffers messages for a SystemStreamPartition. The
+   * default wraps the queue from {@link #newBlockingQueue()}, which allows any
+   * number of threads to put messages. Consumers that fill each queue from a
+   * single thread can return a
+   * {@link org.apache.samza.util.SpscEnvelopeRingBuffer} instead, which
+   * neither allocates nor locks per message, and keeps track of the buffered
+   * bytes itself.
+   *
+   * @return A new, empty queue.
+   */
+  protected EnvelopeQueue newEnvelopeQueue() {
+    return new BlockingQueueEnvelopeQueue(newBlockingQueue());
+  }
+
   protected BlockingQueue<IncomingMessageEnvelope> newBlockingQueue() {
     return new LinkedBlockingQueue<IncomingMessageEnvelope>();
   }
@@ -121,7 +164,7 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
     metrics.incPoll();
 
     for (SystemStreamPartition systemStreamPartition : systemStreamPartitions) {
-      BlockingQueue<IncomingMessageEnvelope> queue = bufferedMessages.get(systemStreamPartition);
+      EnvelopeQueue queue = bufferedMessages.get(systemStreamPartition);
       List<IncomingMessageEnvelope> outgoingList = new ArrayList<IncomingMessageEnvelope>(queue.size());
 
       if (queue.size() > 0) {
@@ -155,8 +198,8 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
 
       if (outgoingList.size() > 0) {
         messagesToReturn.put(systemStreamPartition, outgoingList);
-        if (fetchLimitByBytesEnabled) {
-          subtractSizeOnQDrain(systemStreamPartition, outgoingList);
+        if (isBufferSizeTracked()) {
+          subtractSizeOnQDrain(systemStreamPartition, queue, outgoingList);
         }
       }
     }
@@ -164,13 +207,64 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
     return messagesToReturn;
   }
 
-  private void subtractSizeOnQDrain(SystemStreamPartition systemStreamPartition, List<IncomingMessageEnvelope> outgoingList) {
+  private void subtractSizeOnQDrain(SystemStreamPartition systemStreamPartition, EnvelopeQueue queue, List<IncomingMessageEnvelope> outgoingList) {
     long outgoingListBytes = 0;
     for (IncomingMessageEnvelope envelope : outgoingList) {
       outgoingListBytes += envelope.getSize();
     }
     // subtract the size of the messages dequeued.
-    bufferedMessagesSize.get(systemStreamPartition).addAndGet(-1 * outgoingListBytes);
+    if (!(queue instanceof SpscEnvelopeRingBuffer)) {
+      bufferedMessagesSize.get(systemStreamPartition).addAndGet(-1 * outgoingListBytes);
+    }
+
+    BufferMemoryBudget bufferMemoryBudget = this.bufferMemoryBudget;
+    if (bufferMemoryBudget != null) {
+      bufferMemoryBudget.release(outgoingListBytes);
+    }
+  }
+
+  private void addSizeOnPut(SystemStreamPartition systemStreamPartition, EnvelopeQueue queue, long bytes) {
+    if (!(queue instanceof SpscEnvelopeRingBuffer)) {
+      bufferedMessagesSize.get(systemStreamPartition).addAndGet(bytes);
+    }
+
+    BufferMemoryBudget bufferMemoryBudget = this.bufferMemoryBudget;
+    if (bufferMemoryBudget != null) {
+      bufferMemoryBudget.reserve(bytes);
+    }
+  }
+
+  /**
+   * @return True if a buffer memory budget has been set.
+   */
+  protected boolean isBufferMemoryBudgetEnabled() {
+    return bufferMemoryBudget != null;
+  }
+
+  /**
+   * @return True if the sizes of buffered messages are counted, either
+   *         because fetches are limited by bytes, or because there is a
+   *         buffer memory budget.
+   */
+  protected boolean isBufferSizeTracked() {
+    return fetchLimitByBytesEnabled || bufferMemoryBudget != null;
+  }
+
+  /**
+   * Tells a fetcher whether it may buffer more messages for a
+   * SystemStreamPartition under the buffer memory budget. This is always
+   * the case while the budget is not exhausted. Once it is, only
+   * SystemStreamPartitions with empty buffers may fetch, so that a
+   * SystemStreamPartition that the run loop is waiting on is never starved
+   * by others that have filled up the budget.
+   *
+   * @param systemStreamPartition The SystemStreamPartition to fetch for.
+   * @return True if there is no budget, or if the fetch fits in it.
+   */
+  protected boolean hasBufferBudget(SystemStreamPartition systemStreamPartition) {
+    BufferMemoryBudget bufferMemoryBudget = this.bufferMemoryBudget;
+
+    return bufferMemoryBudget == null || !bufferMemoryBudget.isExhausted() || getNumMessagesInQueue(systemStreamPartition) == 0;
   }
 
   /**
@@ -182,9 +276,17 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
    * @throws InterruptedException from underlying concurrent collection
    */
   protected void put(SystemStreamPartition systemStreamPartition, IncomingMessageEnvelope envelope) throws InterruptedException {
-    bufferedMessages.get(systemStreamPartition).put(envelope);
-    if (fetchLimitByBytesEnabled) {
-      bufferedMessagesSize.get(systemStreamPartition).addAndGet(envelope.getSize());
+    EnvelopeQueue queue = bufferedMessages.get(systemStreamPartition);
+
+    queue.put(envelope);
+    if (isBufferSizeTracked()) {
+      addSizeOnPut(systemStreamPartition, queue, envelope.getSize());
+    }
+
+    // Only the first message in an empty buffer can be one that the run loop
+    // is waiting for. Later ones will be drained along with it.
+    if (queue.size() == 1) {
+      signalIdleStrategy();
     }
   }
 
@@ -201,15 +303,34 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
    * @throws InterruptedException from underlying concurrent collection
    */
   protected void putAll(SystemStreamPartition systemStreamPartition, List<IncomingMessageEnvelope> envelopes) throws InterruptedException {
-    BlockingQueue<IncomingMessageEnvelope> queue = bufferedMessages.get(systemStreamPartition);
+    EnvelopeQueue queue = bufferedMessages.get(systemStreamPartition);
+
+    long bytes = 0;
 
     for (IncomingMessageEnvelope envelope : envelopes) {
       queue.put(envelope);
+      bytes += envelope.getSize();
+    }
+
+    if (isBufferSizeTracked()) {
+      addSizeOnPut(systemStreamPartition, queue, bytes);
+    }
+
+    if (envelopes.size() > 0) {
+      signalIdleStrategy();
+    }
+  }
+
+  private void signalIdleStrategy() {
+    IdleStrategy idleStrategy = this.idleStrategy;
+
+    if (idleStrategy != null) {
+      idleStrategy.signal();
     }
   }
 
   public int getNumMessagesInQueue(SystemStreamPartition systemStreamPartition) {
-    BlockingQueue<IncomingMessageEnvelope> queue = bufferedMessages.get(systemStreamPartition);
+    EnvelopeQueue queue = bufferedMessages.get(systemStreamPartition);
 
     if (queue == null) {
       throw new NullPointerException("Attempting to get queue for " + systemStreamPartition + ", but the system/stream/partition was never registered.");
@@ -219,6 +340,13 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
   }
 
   public long getMessagesSizeInQueue(SystemStreamPartition systemStreamPartition) {
+    EnvelopeQueue queue = bufferedMessages.get(systemStreamPartition);
+
+    // The ring buffer keeps track of its bytes itself.
+    if (queue instanceof SpscEnvelopeRingBuffer) {
+      return ((SpscEnvelopeRingBuffer) queue).getBufferedBytes();
+    }
+
     AtomicLong sizeInBytes = bufferedMessagesSize.get(systemStreamPartition);
 
     if (sizeInBytes == null) {
@@ -262,7 +390,7 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
       this.blockingPollTimeoutCountMap.putIfAbsent(systemStreamPartition, metricsRegistry.newCounter(group, "blocking-poll-timeout-count-" + systemStreamPartition));
 
       metricsRegistry.<Integer>newGauge(group, new BufferGauge(systemStreamPartition, "buffered-message-count-" + systemStreamPartition));
-      if (fetchLimitByBytesEnabled) {
+      if (isBufferSizeTracked()) {
         metricsRegistry.<Long>newGauge(group, new BufferSizeGauge(systemStreamPartition, "buffered-message-size-" + systemStreamPartition));
       }
     }
@@ -295,7 +423,7 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
 
     @Override
     public Integer getValue() {
-      Queue<IncomingMessageEnvelope> envelopes = bufferedMessages.get(systemStreamPartition);
+      EnvelopeQueue envelopes = bufferedMessages.get(systemStreamPartition);
 
       if (envelopes == null) {
         return 0;
@@ -316,6 +444,10 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
 
     @Override
     public Long getValue() {
+      if (bufferedMessages.get(systemStreamPartition) instanceof SpscEnvelopeRingBuffer) {
+        return getMessagesSizeInQueue(systemStreamPartition);
+      }
+
       AtomicLong sizeInBytes = bufferedMessagesSize.get(systemStreamPartition);
 
       if (sizeInBytes == null) {
@@ -325,4 +457,36 @@ public abstract class BlockingEnvelopeMap implements SystemConsumer {
       return sizeInBytes.get();
     }
   }
+
+  /**
+   * Adapts a {@link java.util.concurrent.BlockingQueue} from
+   * {@link #newBlockingQueue()} to an {@link EnvelopeQueue}.
+   */
+  private static class BlockingQueueEnvelopeQueue implements EnvelopeQueue {
+    private final BlockingQueue<IncomingMessageEnvelope> queue;
+
+    BlockingQueueEnvelopeQueue(BlockingQueue<IncomingMessageEnvelope> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void put(IncomingMessageEnvelope envelope) throws InterruptedException {
+      queue.put(envelope);
+    }
+
+    @Override
+    public IncomingMessageEnvelope poll(long timeout, TimeUnit unit) throws InterruptedException {
+      return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public int drainTo(Collection<? super IncomingMessageEnvelope> collection) {
+      return queue.drainTo(collection);
+    }
+
+    @Override
+    public int size() {
+      return queue.size();
+    }
+  }
 }
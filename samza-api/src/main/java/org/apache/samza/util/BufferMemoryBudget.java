@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A budget for the number of bytes of incoming messages that all of a
+ * container's {@link org.apache.samza.util.BlockingEnvelopeMap}s may buffer
+ * together. Space is not split up among SystemStreamPartitions ahead of time.
+ * Instead, each buffered message reserves its size when it is put, and
+ * releases it when it is polled, so the SystemStreamPartitions that are
+ * drained the fastest end up with the most of the budget.
+ * </p>
+ *
+ * <p>
+ * The budget is a soft limit: reserving space always succeeds, and it is up
+ * to fetchers to check {@link #isExhausted()} before they fetch more
+ * messages. The buffered bytes can therefore exceed the capacity by the size
+ * of the fetches that were in flight when it was reached.
+ * </p>
+ */
+public class BufferMemoryBudget {
+  private final long capacityBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  public BufferMemoryBudget(long capacityBytes) {
+    if (capacityBytes <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, but was " + capacityBytes + ".");
+    }
+
+    this.capacityBytes = capacityBytes;
+  }
+
+  public void reserve(long bytes) {
+    usedBytes.addAndGet(bytes);
+  }
+
+  public void release(long bytes) {
+    usedBytes.addAndGet(-bytes);
+  }
+
+  public boolean isExhausted() {
+    return usedBytes.get() >= capacityBytes;
+  }
+
+  public long getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferMemoryBudget [capacityBytes=" + capacityBytes + ", usedBytes=" + usedBytes.get() + "]";
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.samza.system.IncomingMessageEnvelope;
+
+/**
+ * A queue that {@link org.apache.samza.util.BlockingEnvelopeMap} buffers the
+ * envelopes of a single SystemStreamPartition in. It only has the operations
+ * that BlockingEnvelopeMap uses, so that queues that can't support the whole
+ * {@link java.util.concurrent.BlockingQueue} contract, such as
+ * {@link org.apache.samza.util.SpscEnvelopeRingBuffer}, can be used as well.
+ */
+public interface EnvelopeQueue {
+  /**
+   * Adds an envelope, blocking while the queue is full.
+   */
+  void put(IncomingMessageEnvelope envelope) throws InterruptedException;
+
+  /**
+   * Removes the next envelope, waiting up to the timeout for one to arrive.
+   *
+   * @return The next envelope, or null if none arrived in time.
+   */
+  IncomingMessageEnvelope poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * Moves all buffered envelopes to the collection, without blocking.
+   *
+   * @return The number of envelopes that were moved.
+   */
+  int drainTo(Collection<? super IncomingMessageEnvelope> collection);
+
+  /**
+   * @return The number of buffered envelopes.
+   */
+  int size();
+}
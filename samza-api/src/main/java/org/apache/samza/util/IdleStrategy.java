@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+/**
+ * Decides what the container's run loop thread does when it has no messages
+ * to process. Implementations trade CPU usage for latency: spinning reacts to
+ * new messages immediately but keeps a core busy, while parking frees the core
+ * but adds delay before the next message is picked up.
+ * <p>
+ * {@link #idle()} and {@link #reset()} are only called from the run loop
+ * thread. {@link #signal()} may be called from any thread, typically by a
+ * {@link org.apache.samza.system.SystemConsumer}'s fetch thread when new
+ * messages arrive.
+ */
+public interface IdleStrategy {
+  /**
+   * Called each time the run loop finds no message to process. Consecutive
+   * calls without an intervening {@link #reset()} mean the run loop has been
+   * idle for longer, and may wait for longer.
+   */
+  void idle();
+
+  /**
+   * Called when the run loop has found a message to process again.
+   */
+  void reset();
+
+  /**
+   * Signals that new messages may be available. An {@link #idle()} call that
+   * is waiting, or the next one, should return as soon as possible.
+   */
+  void signal();
+}
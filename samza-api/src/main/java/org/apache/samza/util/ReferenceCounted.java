@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A resource that is shared by several owners, and released once the last of them is done with it. A new instance
+ * has a count of one, which belongs to whoever created it. Each additional owner calls {@link #retain()}, and every
+ * owner calls {@link #release()} exactly once. {@link #deallocate()} is called when the count drops to zero.
+ */
+public abstract class ReferenceCounted {
+  private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+  /**
+   * Adds an owner.
+   */
+  public void retain() {
+    if (referenceCount.getAndIncrement() <= 0) {
+      throw new IllegalStateException("Cannot retain a resource that has already been released.");
+    }
+  }
+
+  /**
+   * Removes an owner, and deallocates the resource if it was the last one.
+   * @return True if the resource was deallocated.
+   */
+  public boolean release() {
+    int remaining = referenceCount.decrementAndGet();
+    if (remaining == 0) {
+      deallocate();
+      return true;
+    } else if (remaining < 0) {
+      throw new IllegalStateException("Released a resource more times than it was retained.");
+    }
+    return false;
+  }
+
+  /**
+   * @return The number of owners that have not yet released the resource.
+   */
+  public int getReferenceCount() {
+    return referenceCount.get();
+  }
+
+  /**
+   * Frees the resource. Called once, by the thread that releases the last reference.
+   */
+  protected abstract void deallocate();
+}
@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.samza.system.IncomingMessageEnvelope;
+
+/**
+ * <p>
+ * A single-producer, single-consumer queue of
+ * {@link org.apache.samza.system.IncomingMessageEnvelope}s, backed by an array
+ * that is used as a ring buffer. It is meant to sit behind
+ * {@link org.apache.samza.util.BlockingEnvelopeMap#newEnvelopeQueue()} for
+ * consumers that fill each SystemStreamPartition's queue from a single fetcher
+ * thread, while the run loop drains it.
+ * </p>
+ *
+ * <p>
+ * Unlike {@link java.util.concurrent.LinkedBlockingQueue}, putting an envelope
+ * allocates nothing and takes no locks. If the ring is full, and the queue's
+ * capacity has not been reached, the producer moves on to a new ring of twice
+ * the size, and the consumer follows once it has drained the old one. Once
+ * the queue has been drained, the producer moves back to a ring of the
+ * initial size, so that a burst doesn't pin a large ring for good. The
+ * number of buffered envelopes, and the sum of their sizes in bytes, are kept
+ * by the queue itself. A consumer waiting for an envelope, or a producer
+ * waiting for space in a bounded queue, is parked, and unparked by the other
+ * side.
+ * </p>
+ *
+ * <p>
+ * At most one thread may add envelopes, and at most one thread may remove
+ * them, at any point in time. The producer or consumer thread may change, as
+ * long as the hand-over is synchronized. Since only the consumer may read
+ * the ring, this is not a {@link java.util.Collection}: there is no
+ * iteration, and envelopes can't be looked up or removed out of order.
+ * </p>
+ */
+public class SpscEnvelopeRingBuffer implements EnvelopeQueue {
+  public static final int DEFAULT_INITIAL_RING_SIZE = 1024;
+
+  /**
+   * The longest that a waiting thread parks before checking the queue again.
+   * Counters are published without a full fence, so a wake-up can be missed
+   * in a narrow race, and this bounds the delay that causes.
+   */
+  private static final long MAX_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * Written by the producer in place of an envelope when it moves on to a
+   * larger ring.
+   */
+  private static final Object JUMP = new Object();
+
+  /**
+   * Positions of the counters in the counters array. The producer's and the
+   * consumer's counters are 128 bytes apart, so that they don't share a cache
+   * line.
+   */
+  private static final int PUT_COUNT = 0;
+  private static final int PUT_BYTES = 1;
+  private static final int TAKE_COUNT = 16;
+  private static final int TAKE_BYTES = 17;
+
+  private final int capacity;
+  private final int initialRingSize;
+
+  // Only touched by the producer.
+  private Ring producerRing;
+  private long producerIndex;
+  private long cachedTakeCount;
+
+  // Only touched by the consumer.
+  private Ring consumerRing;
+  private long consumerIndex;
+
+  // Each counter has a single writer, so they are updated with lazySet.
+  private final AtomicLongArray counters = new AtomicLongArray(TAKE_BYTES + 1);
+
+  private final AtomicReference<Thread> waitingConsumer = new AtomicReference<Thread>();
+  private final AtomicReference<Thread> waitingProducer = new AtomicReference<Thread>();
+
+  /**
+   * Creates an unbounded queue.
+   */
+  public SpscEnvelopeRingBuffer() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a queue that holds at most capacity envelopes. A put to a full
+   * queue blocks until the consumer has removed an envelope.
+   */
+  public SpscEnvelopeRingBuffer(int capacity) {
+    this(capacity, DEFAULT_INITIAL_RING_SIZE);
+  }
+
+  public SpscEnvelopeRingBuffer(int capacity, int initialRingSize) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, but was " + capacity + ".");
+    }
+
+    // Round up to a power of two, so that offsets can be masked.
+    int ringSize = Integer.highestOneBit(Math.max(2, Math.min(initialRingSize, capacity)) - 1) << 1;
+
+    this.capacity = capacity;
+    this.initialRingSize = ringSize;
+    this.producerRing = new Ring(ringSize, 0);
+    this.consumerRing = producerRing;
+  }
+
+  /**
+   * @return The sum of {@link org.apache.samza.system.IncomingMessageEnvelope#getSize()}
+   * over all buffered envelopes.
+   */
+  public long getBufferedBytes() {
+    long taken = counters.get(TAKE_BYTES);
+    return counters.get(PUT_BYTES) - taken;
+  }
+
+  @Override
+  public int size() {
+    long taken = counters.get(TAKE_COUNT);
+    return (int) Math.min(counters.get(PUT_COUNT) - taken, Integer.MAX_VALUE);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int remainingCapacity() {
+    return capacity - size();
+  }
+
+  /**
+   * Adds an envelope without blocking. Returns false if the queue is at
+   * capacity. Must only be called by the producer.
+   */
+  public boolean offer(IncomingMessageEnvelope envelope) {
+    if (envelope == null) {
+      throw new NullPointerException();
+    }
+
+    // The volatile read also picks up the producer state of a previous
+    // producer thread.
+    long puts = counters.get(PUT_COUNT);
+
+    // The consumer's count is only re-read when the cached one says that
+    // the queue, or the current ring, might be full.
+    if (puts - cachedTakeCount >= capacity) {
+      cachedTakeCount = counters.get(TAKE_COUNT);
+
+      if (puts - cachedTakeCount >= capacity) {
+        return false;
+      }
+    }
+
+    Ring ring = producerRing;
+    long index = producerIndex;
+    int offset = ring.offset(index);
+
+    if (!ring.isFree(index + 1, cachedTakeCount) && !ring.isFree(index + 1, cachedTakeCount = counters.get(TAKE_COUNT))) {
+      // Only the current slot is free. Hand the consumer over to a larger
+      // ring, so that the ring never fills up completely. A bounded queue
+      // stops growing once the ring can hold all of its envelopes.
+      jump(ring, index, ring.slots.length() << 1, envelope);
+    } else if (ring.slots.length() > initialRingSize && (index & (initialRingSize - 1)) == 0
+        && (cachedTakeCount = counters.get(TAKE_COUNT)) == puts) {
+      // Every so often, a producer on a grown ring checks whether the queue
+      // has been drained, and if so, moves back to a ring of the initial size.
+      jump(ring, index, initialRingSize, envelope);
+    } else {
+      ring.slots.lazySet(offset, envelope);
+    }
+
+    producerIndex = index + 1;
+    counters.lazySet(PUT_BYTES, counters.get(PUT_BYTES) + envelope.getSize());
+    counters.lazySet(PUT_COUNT, puts + 1);
+    signal(waitingConsumer);
+
+    return true;
+  }
+
+  @Override
+  public void put(IncomingMessageEnvelope envelope) throws InterruptedException {
+    while (!offer(envelope)) {
+      awaitSpace(Long.MAX_VALUE);
+    }
+  }
+
+  public boolean offer(IncomingMessageEnvelope envelope, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+
+    while (!offer(envelope)) {
+      long remainingNs = deadlineNs - System.nanoTime();
+
+      if (remainingNs <= 0) {
+        return false;
+      }
+
+      awaitSpace(remainingNs);
+    }
+
+    return true;
+  }
+
+  /**
+   * Removes the next envelope without blocking. Returns null if the queue is
+   * empty. Must only be called by the consumer.
+   */
+  public IncomingMessageEnvelope poll() {
+    IncomingMessageEnvelope envelope = next();
+
+    if (envelope != null) {
+      counters.lazySet(TAKE_BYTES, counters.get(TAKE_BYTES) + envelope.getSize());
+      counters.lazySet(TAKE_COUNT, consumerIndex);
+      signal(waitingProducer);
+    }
+
+    return envelope;
+  }
+
+  public IncomingMessageEnvelope take() throws InterruptedException {
+    IncomingMessageEnvelope envelope = poll();
+
+    while (envelope == null) {
+      awaitEnvelope(Long.MAX_VALUE);
+      envelope = poll();
+    }
+
+    return envelope;
+  }
+
+  @Override
+  public IncomingMessageEnvelope poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+    IncomingMessageEnvelope envelope = poll();
+
+    while (envelope == null) {
+      long remainingNs = deadlineNs - System.nanoTime();
+
+      if (remainingNs <= 0) {
+        return null;
+      }
+
+      awaitEnvelope(remainingNs);
+      envelope = poll();
+    }
+
+    return envelope;
+  }
+
+  public IncomingMessageEnvelope peek() {
+    Ring ring = consumerRing;
+    Object slot = ring.slots.get(ring.offset(consumerIndex));
+
+    if (slot == JUMP) {
+      ring = ring.next;
+      slot = ring.slots.get(ring.offset(consumerIndex));
+    }
+
+    return (IncomingMessageEnvelope) slot;
+  }
+
+  @Override
+  public int drainTo(Collection<? super IncomingMessageEnvelope> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Moves up to maxElements envelopes to the collection. The queue's counters
+   * are only updated once for the whole batch.
+   */
+  public int drainTo(Collection<? super IncomingMessageEnvelope> collection, int maxElements) {
+    int drained = 0;
+    long bytes = 0;
+    IncomingMessageEnvelope envelope;
+
+    while (drained < maxElements && (envelope = next()) != null) {
+      collection.add(envelope);
+      bytes += envelope.getSize();
+      drained++;
+    }
+
+    if (drained > 0) {
+      counters.lazySet(TAKE_BYTES, counters.get(TAKE_BYTES) + bytes);
+      counters.lazySet(TAKE_COUNT, consumerIndex);
+      signal(waitingProducer);
+    }
+
+    return drained;
+  }
+
+  @Override
+  public String toString() {
+    return "SpscEnvelopeRingBuffer [size=" + size() + ", bufferedBytes=" + getBufferedBytes() + "]";
+  }
+
+  /**
+   * Moves the producer on to a new ring of the supplied size, which starts
+   * with the envelope for the supplied index. The consumer follows once it
+   * reaches the jump that is left in the current ring.
+   */
+  private void jump(Ring ring, long index, int size, IncomingMessageEnvelope envelope) {
+    Ring next = new Ring(size, index);
+    next.slots.lazySet(next.offset(index), envelope);
+    ring.next = next;
+    ring.slots.lazySet(ring.offset(index), JUMP);
+    producerRing = next;
+  }
+
+  /**
+   * @return The number of slots in the ring that the producer is writing to.
+   */
+  int getRingSize() {
+    return producerRing.slots.length();
+  }
+
+  /**
+   * Takes the next envelope out of the ring, without updating the counters.
+   */
+  private IncomingMessageEnvelope next() {
+    Ring ring = consumerRing;
+    int offset = ring.offset(consumerIndex);
+    Object slot = ring.slots.get(offset);
+
+    if (slot == null) {
+      return null;
+    }
+
+    if (slot == JUMP) {
+      // The producer links the next ring before it writes the jump, and
+      // writes the envelope into the next ring before that.
+      ring.slots.lazySet(offset, null);
+      ring = ring.next;
+      consumerRing = ring;
+      offset = ring.offset(consumerIndex);
+      slot = ring.slots.get(offset);
+    }
+
+    ring.slots.lazySet(offset, null);
+    consumerIndex++;
+
+    return (IncomingMessageEnvelope) slot;
+  }
+
+  /**
+   * Unparks the thread that is waiting on the other side, if any. Only the
+   * first signal after the thread started waiting unparks it.
+   */
+  private static void signal(AtomicReference<Thread> waiting) {
+    Thread thread = waiting.get();
+
+    if (thread != null && waiting.compareAndSet(thread, null)) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void awaitEnvelope(long timeoutNs) throws InterruptedException {
+    waitingConsumer.set(Thread.currentThread());
+
+    try {
+      // Re-check after publishing the waiter, so that an envelope that was
+      // put in between isn't missed.
+      if (counters.get(PUT_COUNT) == consumerIndex) {
+        LockSupport.parkNanos(this, Math.min(timeoutNs, MAX_PARK_NS));
+      }
+    } finally {
+      waitingConsumer.lazySet(null);
+    }
+
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  private void awaitSpace(long timeoutNs) throws InterruptedException {
+    waitingProducer.set(Thread.currentThread());
+
+    try {
+      if (counters.get(PUT_COUNT) - counters.get(TAKE_COUNT) >= capacity) {
+        LockSupport.parkNanos(this, Math.min(timeoutNs, MAX_PARK_NS));
+      }
+    } finally {
+      waitingProducer.lazySet(null);
+    }
+
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  private static final class Ring {
+    final AtomicReferenceArray<Object> slots;
+    final int mask;
+    final long firstIndex;
+    volatile Ring next;
+
+    Ring(int size, long firstIndex) {
+      this.slots = new AtomicReferenceArray<Object>(size);
+      this.mask = size - 1;
+      this.firstIndex = firstIndex;
+    }
+
+    int offset(long index) {
+      return (int) index & mask;
+    }
+
+    /**
+     * The slot for an index is free if it was never written in this ring, or
+     * if the envelope that was last written to it has been taken. The
+     * consumer clears a slot before it counts the envelope as taken.
+     */
+    boolean isFree(long index, long takeCount) {
+      long previous = index - slots.length();
+      return previous < firstIndex || previous < takeCount;
+    }
+  }
+}
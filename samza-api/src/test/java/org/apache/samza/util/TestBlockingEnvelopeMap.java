@@ -23,6 +23,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +32,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.samza.Partition;
 import org.apache.samza.system.IncomingMessageEnvelope;
@@ -89,6 +91,30 @@ public class TestBlockingEnvelopeMap {
     assertEquals(0, map.getMessagesSizeInQueue(SSP));
   }
 
+  @Test
+  public void testShouldSignalIdleStrategyWhenBufferBecomesNonEmpty() throws InterruptedException {
+    BlockingEnvelopeMap map = new MockBlockingEnvelopeMap();
+    final AtomicInteger signals = new AtomicInteger();
+    map.setIdleStrategy(new IdleStrategy() {
+      public void idle() {
+      }
+
+      public void reset() {
+      }
+
+      public void signal() {
+        signals.incrementAndGet();
+      }
+    });
+    map.register(SSP, "0");
+    map.put(SSP, ENVELOPE);
+    map.put(SSP, ENVELOPE);
+    assertEquals(1, signals.get());
+    map.poll(FETCH, 0);
+    map.put(SSP, ENVELOPE);
+    assertEquals(2, signals.get());
+  }
+
   @Test
   public void testNoSizeComputation() throws InterruptedException {
     BlockingEnvelopeMap map = new MockBlockingEnvelopeMap();
@@ -115,6 +141,60 @@ public class TestBlockingEnvelopeMap {
     assertEquals(0, map.getMessagesSizeInQueue(SSP));
   }
 
+  @Test
+  public void testSizeComputationWithRingBuffer() throws InterruptedException {
+    BlockingEnvelopeMap map = new MockBlockingEnvelopeMap(new SpscEnvelopeRingBuffer(), true);
+    map.register(SSP, "0");
+    map.put(SSP, ENVELOPE_WITH_SIZE);
+    map.put(SSP, ENVELOPE_WITH_SIZE);
+
+    // Size info.
+    assertEquals(200, map.getMessagesSizeInQueue(SSP));
+
+    Map<SystemStreamPartition, List<IncomingMessageEnvelope>> envelopes = map.poll(FETCH, 0);
+    assertEquals(2, envelopes.get(SSP).size());
+    assertEquals(0, map.getMessagesSizeInQueue(SSP));
+  }
+
+  @Test
+  public void testBufferMemoryBudgetIsSharedAcrossMaps() throws InterruptedException {
+    SystemStreamPartition otherSsp = new SystemStreamPartition("test", "test", new Partition(1));
+    Set<SystemStreamPartition> otherFetch = new HashSet<SystemStreamPartition>();
+    otherFetch.add(otherSsp);
+    BufferMemoryBudget budget = new BufferMemoryBudget(200);
+    BlockingEnvelopeMap map = new MockBlockingEnvelopeMap(new SpscEnvelopeRingBuffer(), false);
+    BlockingEnvelopeMap otherMap = new MockBlockingEnvelopeMap(new SpscEnvelopeRingBuffer(), false);
+    map.setBufferMemoryBudget(budget);
+    otherMap.setBufferMemoryBudget(budget);
+    map.register(SSP, "0");
+    otherMap.register(otherSsp, "0");
+
+    map.put(SSP, ENVELOPE_WITH_SIZE);
+    assertTrue(map.hasBufferBudget(SSP));
+    map.put(SSP, ENVELOPE_WITH_SIZE);
+
+    // The budget is used up, but a partition with an empty buffer may still
+    // fetch, so that it can't be starved.
+    assertEquals(200, budget.getUsedBytes());
+    assertEquals(200, map.getMessagesSizeInQueue(SSP));
+    assertFalse(map.hasBufferBudget(SSP));
+    assertTrue(otherMap.hasBufferBudget(otherSsp));
+
+    List<IncomingMessageEnvelope> otherEnvelopes = new ArrayList<IncomingMessageEnvelope>();
+    otherEnvelopes.add(new IncomingMessageEnvelope(otherSsp, null, null, null, 50));
+    otherMap.putAll(otherSsp, otherEnvelopes);
+    assertEquals(250, budget.getUsedBytes());
+    assertFalse(otherMap.hasBufferBudget(otherSsp));
+
+    map.poll(FETCH, 0);
+    assertEquals(50, budget.getUsedBytes());
+    assertTrue(map.hasBufferBudget(SSP));
+    assertTrue(otherMap.hasBufferBudget(otherSsp));
+
+    otherMap.poll(otherFetch, 0);
+    assertEquals(0, budget.getUsedBytes());
+  }
+
   @Test
   public void testShouldBlockWhenNotAtHead() throws InterruptedException {
     MockQueue q = new MockQueue();
@@ -207,6 +287,7 @@ public class TestBlockingEnvelopeMap {
 
   public class MockBlockingEnvelopeMap extends BlockingEnvelopeMap {
     private final BlockingQueue<IncomingMessageEnvelope> injectedQueue;
+    private final EnvelopeQueue injectedEnvelopeQueue;
 
     public MockBlockingEnvelopeMap() {
       this(null);
@@ -215,6 +296,13 @@ public class TestBlockingEnvelopeMap {
     public MockBlockingEnvelopeMap(boolean fetchLimitByBytesEnabled) {
       super(new NoOpMetricsRegistry(), CLOCK, null, fetchLimitByBytesEnabled);
       injectedQueue = new MockQueue();
+      injectedEnvelopeQueue = null;
+    }
+
+    public MockBlockingEnvelopeMap(EnvelopeQueue injectedEnvelopeQueue, boolean fetchLimitByBytesEnabled) {
+      super(new NoOpMetricsRegistry(), CLOCK, null, fetchLimitByBytesEnabled);
+      this.injectedQueue = null;
+      this.injectedEnvelopeQueue = injectedEnvelopeQueue;
     }
 
     public MockBlockingEnvelopeMap(BlockingQueue<IncomingMessageEnvelope> injectedQueue) {
@@ -225,6 +313,7 @@ public class TestBlockingEnvelopeMap {
       super(new NoOpMetricsRegistry(), clock);
 
       this.injectedQueue = injectedQueue;
+      this.injectedEnvelopeQueue = null;
     }
 
     @Override
@@ -235,6 +324,14 @@ public class TestBlockingEnvelopeMap {
     public void stop() {
     }
 
+    protected EnvelopeQueue newEnvelopeQueue() {
+      if (injectedEnvelopeQueue != null) {
+        return injectedEnvelopeQueue;
+      } else {
+        return super.newEnvelopeQueue();
+      }
+    }
+
     protected BlockingQueue<IncomingMessageEnvelope> newBlockingQueue() {
       if (injectedQueue != null) {
         return injectedQueue;
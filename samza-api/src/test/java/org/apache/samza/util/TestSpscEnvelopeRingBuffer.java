@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.samza.Partition;
+import org.apache.samza.system.IncomingMessageEnvelope;
+import org.apache.samza.system.SystemStreamPartition;
+import org.junit.Test;
+
+public class TestSpscEnvelopeRingBuffer {
+  private static final SystemStreamPartition SSP = new SystemStreamPartition("test", "test", new Partition(0));
+
+  private static IncomingMessageEnvelope envelope(int i) {
+    return new IncomingMessageEnvelope(SSP, Integer.toString(i), null, i, 10);
+  }
+
+  @Test
+  public void testEnvelopesAreReturnedInOrderAcrossRingGrowth() {
+    SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer(Integer.MAX_VALUE, 2);
+
+    // Interleave puts and polls, so that the consumer is part way through a
+    // ring when the producer moves on to a larger one.
+    int next = 0;
+    for (int i = 0; i < 100; i++) {
+      for (int j = 0; j < 3; j++) {
+        assertTrue(queue.offer(envelope(i * 3 + j)));
+      }
+      assertEquals(next++, queue.poll().getMessage());
+    }
+
+    assertEquals(200, queue.size());
+    assertEquals(next, queue.peek().getMessage());
+
+    while (!queue.isEmpty()) {
+      assertEquals(next++, queue.poll().getMessage());
+    }
+
+    assertEquals(300, next);
+    assertNull(queue.poll());
+    assertNull(queue.peek());
+  }
+
+  @Test
+  public void testRingShrinksOnceDrained() {
+    SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer(Integer.MAX_VALUE, 4);
+
+    for (int i = 0; i < 200; i++) {
+      assertTrue(queue.offer(envelope(i)));
+    }
+
+    assertEquals(128, queue.getRingSize());
+
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i, queue.poll().getMessage());
+    }
+
+    // The producer checks for a drained queue every initial ring size puts.
+    for (int i = 200; i < 204; i++) {
+      assertTrue(queue.offer(envelope(i)));
+      assertEquals(i, queue.poll().getMessage());
+    }
+
+    assertEquals(4, queue.getRingSize());
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.getBufferedBytes());
+  }
+
+  @Test
+  public void testBoundedQueueStopsGrowingAtCapacity() {
+    SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer(5, 2);
+
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 5; i++) {
+        assertTrue(queue.offer(envelope(i)));
+      }
+
+      assertFalse(queue.offer(envelope(5)));
+
+      for (int i = 0; i < 5; i++) {
+        assertEquals(i, queue.poll().getMessage());
+      }
+    }
+
+    assertEquals(8, queue.getRingSize());
+  }
+
+  @Test
+  public void testBufferedBytes() {
+    SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer();
+    List<IncomingMessageEnvelope> drained = new ArrayList<IncomingMessageEnvelope>();
+
+    for (int i = 0; i < 5; i++) {
+      queue.offer(envelope(i));
+    }
+
+    assertEquals(50, queue.getBufferedBytes());
+    queue.poll();
+    assertEquals(40, queue.getBufferedBytes());
+    assertEquals(3, queue.drainTo(drained, 3));
+    assertEquals(10, queue.getBufferedBytes());
+    assertEquals(1, queue.drainTo(drained));
+    assertEquals(0, queue.getBufferedBytes());
+    assertEquals(4, drained.size());
+    assertEquals(1, drained.get(0).getMessage());
+  }
+
+  @Test
+  public void testBoundedQueueBlocksProducerUntilDrained() throws InterruptedException {
+    final SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer(3);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(queue.offer(envelope(i)));
+    }
+
+    assertEquals(0, queue.remainingCapacity());
+    assertFalse(queue.offer(envelope(3)));
+    assertFalse(queue.offer(envelope(3), 10, TimeUnit.MILLISECONDS));
+
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.put(envelope(3));
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+
+    producer.setDaemon(true);
+    producer.start();
+    producer.join(100);
+    assertTrue(producer.isAlive());
+
+    assertEquals(0, queue.poll().getMessage());
+    producer.join(60000);
+
+    assertFalse(producer.isAlive());
+    assertNull(failure.get());
+    assertEquals(3, queue.size());
+  }
+
+  @Test
+  public void testPollTimesOutWhenEmpty() throws InterruptedException {
+    SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer();
+    long startNs = System.nanoTime();
+
+    assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+    assertTrue(System.nanoTime() - startNs >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testConcurrentProducerAndConsumerKeepOrder() throws InterruptedException {
+    final int count = 200000;
+    final SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer(100, 4);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < count; i++) {
+            queue.put(envelope(i));
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+
+    producer.setDaemon(true);
+    producer.start();
+
+    List<IncomingMessageEnvelope> batch = new ArrayList<IncomingMessageEnvelope>();
+    int next = 0;
+
+    while (next < count) {
+      IncomingMessageEnvelope envelope = queue.take();
+      assertEquals(next++, envelope.getMessage());
+      queue.drainTo(batch, 7);
+
+      for (IncomingMessageEnvelope drained : batch) {
+        assertEquals(next++, drained.getMessage());
+      }
+
+      batch.clear();
+    }
+
+    producer.join(60000);
+    assertNull(failure.get());
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.getBufferedBytes());
+  }
+
+  @Test
+  public void testTakeReturnsEnvelopePutByAnotherThread() throws InterruptedException {
+    final SpscEnvelopeRingBuffer queue = new SpscEnvelopeRingBuffer();
+    final IncomingMessageEnvelope envelope = envelope(0);
+
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+          queue.put(envelope);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    producer.setDaemon(true);
+    producer.start();
+
+    assertSame(envelope, queue.take());
+    producer.join(60000);
+  }
+}
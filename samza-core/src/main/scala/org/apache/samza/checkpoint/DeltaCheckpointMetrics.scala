@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.checkpoint
+
+import org.apache.samza.metrics.{MetricsHelper, MetricsRegistry, MetricsRegistryMap}
+
+class DeltaCheckpointMetrics(val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
+  /* The number of SystemStreamPartition offsets that were written to checkpoints */
+  val offsetsWritten = newCounter("checkpoint-offsets-written")
+  /* The number of SystemStreamPartition offsets that were left out of delta checkpoints, because they hadn't changed */
+  val offsetsSkipped = newCounter("checkpoint-offsets-skipped")
+  /* The number of task checkpoints that were written in full */
+  val fullCheckpoints = newCounter("full-checkpoints")
+  /* The number of task checkpoints that were written as deltas */
+  val deltaCheckpoints = newCounter("delta-checkpoints")
+
+  /**
+   * Records that a task's checkpoint of total offsets was written with only
+   * written of them.
+   */
+  def update(total: Int, written: Int, full: Boolean) {
+    offsetsWritten.inc(written)
+    offsetsSkipped.inc(total - written)
+    if (full) fullCheckpoints.inc else deltaCheckpoints.inc
+  }
+}
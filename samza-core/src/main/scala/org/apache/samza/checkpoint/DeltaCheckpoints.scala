@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.checkpoint
+
+import java.util
+
+import org.apache.samza.system.SystemStreamPartition
+
+import scala.collection.JavaConversions._
+
+/**
+ * Helpers for checkpoint managers that write delta checkpoints: checkpoints
+ * that only hold the offsets that changed since an earlier checkpoint of the
+ * same task. A task's checkpoint is rebuilt by merging its deltas, in the
+ * order they were written, into the full checkpoint that came before them.
+ */
+object DeltaCheckpoints {
+  /**
+   * Returns the offsets in checkpoint that are new or different from those
+   * in base, or null if base is null or has an SystemStreamPartition that
+   * checkpoint doesn't. A delta can't remove an offset, so such checkpoints
+   * must be written in full.
+   */
+  def changedOffsets(base: Checkpoint, checkpoint: Checkpoint): util.Map[SystemStreamPartition, String] = {
+    if (base == null) {
+      return null
+    }
+
+    val baseOffsets = base.getOffsets
+    val offsets = checkpoint.getOffsets
+
+    if (!baseOffsets.keySet.forall(offsets.containsKey)) {
+      return null
+    }
+
+    val changed = new util.HashMap[SystemStreamPartition, String]
+    offsets.foreach {
+      case (ssp, offset) =>
+        if (offset != baseOffsets.get(ssp)) {
+          changed.put(ssp, offset)
+        }
+    }
+    changed
+  }
+
+  /**
+   * Applies a delta to a checkpoint. If there is no checkpoint to apply it
+   * to, the delta is all that is known about the task.
+   */
+  def merge(checkpoint: Checkpoint, delta: Checkpoint): Checkpoint = {
+    if (checkpoint == null) {
+      delta
+    } else if (delta.getOffsets.isEmpty) {
+      checkpoint
+    } else {
+      val offsets = new util.HashMap[SystemStreamPartition, String](checkpoint.getOffsets)
+      offsets.putAll(delta.getOffsets)
+      new Checkpoint(offsets)
+    }
+  }
+}
@@ -19,6 +19,9 @@
 
 package org.apache.samza.checkpoint
 
+import java.util
+import java.util.concurrent.ConcurrentHashMap
+
 import org.apache.samza.system.SystemStream
 import org.apache.samza.system.SystemStreamPartition
 import org.apache.samza.system.SystemStreamMetadata
@@ -144,9 +147,12 @@ class OffsetManager(
   val offsetManagerMetrics: OffsetManagerMetrics = new OffsetManagerMetrics) extends Logging {
 
   /**
-   * Last offsets processed for each SystemStreamPartition.
+   * Last offsets processed for each SystemStreamPartition, in one table per
+   * taskName. A concurrent map is used because TaskInstances may process
+   * messages on different threads. A taskName's table is never replaced, and
+   * grows in place when SystemStreamPartitions are added to it.
    */
-  var lastProcessedOffsets = Map[TaskName, Map[SystemStreamPartition, String]]()
+  val lastProcessedOffsets = new ConcurrentHashMap[TaskName, TaskOffsets]()
 
   /**
    * Offsets to start reading from for each SystemStreamPartition. This
@@ -161,8 +167,22 @@ class OffsetManager(
    */
   val systemStreamPartitions = mutable.Map[TaskName, mutable.Set[SystemStreamPartition]]()
 
+  /**
+   * Checkpoints that are held back, so that they can be written together,
+   * while the current thread is in batchCheckpoints. Checkpoints from other
+   * threads are written as usual.
+   */
+  private val checkpointBatch = new ThreadLocal[mutable.LinkedHashMap[TaskName, Checkpoint]]
+
+  /**
+   * Held while checkpoints are written. Checkpoint managers are not required
+   * to be thread-safe, but tasks on a worker pool commit on several threads.
+   */
+  private val checkpointLock = new Object
+
   def register(taskName: TaskName, systemStreamPartitionsToRegister: Set[SystemStreamPartition]) {
     systemStreamPartitions.getOrElseUpdate(taskName, mutable.Set[SystemStreamPartition]()).addAll(systemStreamPartitionsToRegister)
+    addSystemStreamPartitions(taskName, systemStreamPartitionsToRegister)
     // register metrics
     systemStreamPartitions.foreach { case (taskName, ssp) => ssp.foreach (ssp => offsetManagerMetrics.addCheckpointedOffset(ssp, "")) }
   }
@@ -182,19 +202,36 @@ class OffsetManager(
    * Set the last processed offset for a given SystemStreamPartition.
    */
   def update(taskName: TaskName, systemStreamPartition: SystemStreamPartition, offset: String) {
-    lastProcessedOffsets.get(taskName) match {
-      case Some(sspToOffsets) => lastProcessedOffsets += taskName -> (sspToOffsets + (systemStreamPartition -> offset))
-      case None => lastProcessedOffsets += (taskName -> Map(systemStreamPartition -> offset))
+    val offsets = lastProcessedOffsets.get(taskName)
+    val index = if (offsets != null) offsets.indexOf(systemStreamPartition) else -1
+
+    if (index >= 0) {
+      offsets.update(index, offset)
+    } else {
+      val grownOffsets = addSystemStreamPartitions(taskName, Set(systemStreamPartition))
+      grownOffsets.update(grownOffsets.indexOf(systemStreamPartition), offset)
     }
   }
 
+  /**
+   * Get the table of last processed offsets for a given TaskName. A
+   * TaskInstance can update its offsets in the table directly, by index,
+   * rather than calling update for every message. The table stays the same
+   * for the life of the OffsetManager, so it can be kept.
+   */
+  def getTaskOffsets(taskName: TaskName) = {
+    val offsets = lastProcessedOffsets.get(taskName)
+
+    if (offsets != null) offsets else addSystemStreamPartitions(taskName, Set())
+  }
+
   /**
    * Get the last processed offset for a SystemStreamPartition.
    */
   def getLastProcessedOffset(taskName: TaskName, systemStreamPartition: SystemStreamPartition) = {
     lastProcessedOffsets.get(taskName) match {
-      case Some(sspToOffsets) => sspToOffsets.get(systemStreamPartition)
-      case None => None
+      case null => None
+      case offsets => Option(offsets.get(systemStreamPartition))
     }
   }
 
@@ -214,27 +251,96 @@ class OffsetManager(
    */
   def checkpoint(taskName: TaskName) {
     if (checkpointManager != null) {
-      debug("Checkpointing offsets for taskName %s." format taskName)
+      writeCheckpoint(taskName, getCheckpoint(taskName))
+    } else {
+      debug("Skipping checkpointing for taskName %s because no checkpoint manager is defined." format taskName)
+    }
+  }
 
-      val sspsForTaskName = systemStreamPartitions.getOrElse(taskName, throw new SamzaException("No such SystemStreamPartition set " + taskName + " registered for this checkpointmanager")).toSet
-      val partitionOffsets = lastProcessedOffsets.get(taskName) match {
-        case Some(sspToOffsets) => sspToOffsets.filterKeys(sspsForTaskName.contains(_))
-        case None => {
-          warn(taskName + " is not found... ")
-          Map[SystemStreamPartition, String]()
-        }
+  /**
+   * Take a snapshot of the last processed offsets for a given TaskName, to
+   * be written later with writeCheckpoint.
+   */
+  def getCheckpoint(taskName: TaskName) = {
+    val sspsForTaskName = systemStreamPartitions.getOrElse(taskName, throw new SamzaException("No such SystemStreamPartition set " + taskName + " registered for this checkpointmanager"))
+    // Take a snapshot, since other threads may keep updating offsets while we checkpoint.
+    val partitionOffsets = lastProcessedOffsets.get(taskName) match {
+      case null => {
+        warn(taskName + " is not found... ")
+        new util.HashMap[SystemStreamPartition, String]()
       }
+      case offsets => offsets.snapshot(sspsForTaskName.contains)
+    }
 
-      checkpointManager.writeCheckpoint(taskName, new Checkpoint(partitionOffsets))
-      lastProcessedOffsets.get(taskName) match {
-        case Some(sspToOffsets) => sspToOffsets.foreach { case (ssp, checkpoint) => offsetManagerMetrics.checkpointedOffsets(ssp).set(checkpoint) }
-        case None =>
+    new Checkpoint(partitionOffsets)
+  }
+
+  /**
+   * Write a checkpoint for a given TaskName using the CheckpointManager. Safe
+   * to call from several threads, as checkpoints are written one at a time.
+   */
+  def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
+    val batch = checkpointBatch.get
+
+    if (batch != null) {
+      trace("Adding checkpoint for taskName %s to the batch." format taskName)
+
+      batch.put(taskName, checkpoint)
+    } else if (checkpointManager != null) {
+      debug("Checkpointing offsets for taskName %s." format taskName)
+
+      checkpointLock.synchronized {
+        checkpointManager.writeCheckpoint(taskName, checkpoint)
       }
+      checkpoint.getOffsets.foreach { case (ssp, offset) => offsetManagerMetrics.checkpointedOffsets(ssp).set(offset) }
     } else {
       debug("Skipping checkpointing for taskName %s because no checkpoint manager is defined." format taskName)
     }
   }
 
+  /**
+   * Runs the commits of several tasks, and then writes all of the
+   * checkpoints that they made with a single writeCheckpoints call. If a
+   * commit throws, none of the checkpoints are written.
+   */
+  def batchCheckpoints(commits: => Unit) {
+    if (checkpointBatch.get != null) {
+      commits
+    } else {
+      val batch = mutable.LinkedHashMap[TaskName, Checkpoint]()
+
+      checkpointBatch.set(batch)
+
+      try {
+        commits
+      } finally {
+        checkpointBatch.remove
+      }
+
+      if (!batch.isEmpty) {
+        offsetManagerMetrics.checkpointBatchSize.set(batch.size)
+        writeCheckpoints(batch)
+      }
+    }
+  }
+
+  /**
+   * Write checkpoints for several TaskNames at once using the
+   * CheckpointManager, which can write the whole batch in one go.
+   */
+  def writeCheckpoints(checkpoints: Map[TaskName, Checkpoint]) {
+    if (checkpointManager != null) {
+      debug("Checkpointing offsets for taskNames %s." format checkpoints.keys)
+
+      checkpointLock.synchronized {
+        checkpointManager.writeCheckpoints(checkpoints)
+      }
+      checkpoints.values.foreach(_.getOffsets.foreach { case (ssp, offset) => offsetManagerMetrics.checkpointedOffsets(ssp).set(offset) })
+    } else {
+      debug("Skipping checkpointing for taskNames %s because no checkpoint manager is defined." format checkpoints.keys)
+    }
+  }
+
   def stop {
     if (checkpointManager != null) {
       debug("Shutting down checkpoint manager.")
@@ -245,6 +351,22 @@ class OffsetManager(
     }
   }
 
+  /**
+   * Adds SystemStreamPartitions to a taskName's table of last processed
+   * offsets, creating the table if needed, and returns the table.
+   */
+  private def addSystemStreamPartitions(taskName: TaskName, systemStreamPartitionsToAdd: Iterable[SystemStreamPartition]) = {
+    lastProcessedOffsets.synchronized {
+      lastProcessedOffsets.get(taskName) match {
+        case null =>
+          val offsets = new TaskOffsets(systemStreamPartitionsToAdd.toSeq)
+          lastProcessedOffsets.put(taskName, offsets)
+          offsets
+        case offsets => offsets.add(systemStreamPartitionsToAdd)
+      }
+    }
+  }
+
   /**
    * Register all partitions with the CheckpointManager.
    */
@@ -270,9 +392,9 @@ class OffsetManager(
         .keys
         .flatMap(restoreOffsetsFromCheckpoint(_))
         .toMap
-      lastProcessedOffsets ++= result.map {
+      result.foreach {
         case (taskName, sspToOffset) => {
-          taskName -> sspToOffset.filter {
+          val offsets = sspToOffset.filter {
             case (systemStreamPartition, offset) =>
               val shouldKeep = offsetSettings.contains(systemStreamPartition.getSystemStream)
               if (!shouldKeep) {
@@ -281,6 +403,8 @@ class OffsetManager(
               info("Checkpointed offset is currently %s for %s" format (offset, systemStreamPartition))
               shouldKeep
           }
+          val taskOffsets = addSystemStreamPartitions(taskName, offsets.keys)
+          offsets.foreach { case (systemStreamPartition, offset) => taskOffsets.update(taskOffsets.indexOf(systemStreamPartition), offset) }
         }
       }
     } else {
@@ -310,25 +434,19 @@ class OffsetManager(
    * reset using resetOffsets.
    */
   private def stripResetStreams {
-    val systemStreamPartitionsToReset = getSystemStreamPartitionsToReset(lastProcessedOffsets)
+    val systemStreamPartitionsToReset = getSystemStreamPartitionsToReset(lastProcessedOffsets.mapValues(_.snapshot().toMap))
 
     systemStreamPartitionsToReset.foreach {
       case (taskName, systemStreamPartitions) => {
         systemStreamPartitions.foreach {
           systemStreamPartition =>
             {
-              val offset = lastProcessedOffsets(taskName).get(systemStreamPartition)
+              val offset = lastProcessedOffsets.get(taskName).remove(systemStreamPartition)
               info("Got offset %s for %s, but ignoring, since stream was configured to reset offsets." format (offset, systemStreamPartition))
             }
         }
       }
     }
-
-    lastProcessedOffsets = lastProcessedOffsets.map {
-      case (taskName, sspToOffsets) => {
-        taskName -> (sspToOffsets -- systemStreamPartitionsToReset(taskName))
-      }
-    }
   }
 
   /**
@@ -354,10 +472,10 @@ class OffsetManager(
    * SystemStreamPartition, and populate startingOffsets.
    */
   private def loadStartingOffsets {
-    startingOffsets = lastProcessedOffsets.map {
-      case (taskName, sspToOffsets) => {
+    startingOffsets = lastProcessedOffsets.toMap.map {
+      case (taskName, offsets) => {
         taskName -> {
-          sspToOffsets.groupBy(_._1.getSystem).flatMap {
+          offsets.snapshot().toMap.groupBy(_._1.getSystem).flatMap {
             case (systemName, systemStreamPartitionOffsets) =>
               systemAdmins
                 .getOrElse(systemName, throw new SamzaException("Missing system admin for %s. Need system admin to load starting offsets." format systemName))
@@ -28,6 +28,9 @@ class OffsetManagerMetrics(val registry: MetricsRegistry = new MetricsRegistryMa
 
   val checkpointedOffsets = new ConcurrentHashMap[SystemStreamPartition, Gauge[String]]
 
+  /* The number of tasks whose checkpoints were written together in the latest batch */
+  val checkpointBatchSize = newGauge("checkpoint-batch-size", 0)
+
   def addCheckpointedOffset(systemStreamPartition: SystemStreamPartition, checkpointedOffset: String) {
     checkpointedOffsets.put(systemStreamPartition, newGauge("%s-%s-%d-checkpointed-offset" format (systemStreamPartition.getSystem, systemStreamPartition.getStream, systemStreamPartition.getPartition.getPartitionId), checkpointedOffset))
   }
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.checkpoint
+
+import java.util
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+import org.apache.samza.system.SystemStreamPartition
+
+object TaskOffsets {
+  /**
+   * The number of offsets in each segment of a table.
+   */
+  val SEGMENT_SIZE = 64
+}
+
+/**
+ * The last processed offset of each of a task's SystemStreamPartitions.
+ * Every SystemStreamPartition gets a fixed index into an array of offsets
+ * when it is added to the table, so that updating an offset is an array
+ * store that neither allocates nor takes a lock.
+ *
+ * <p>SystemStreamPartitions can be added at any time, and they keep their
+ * indexes as the table grows. The offsets are kept in fixed-size segments,
+ * and growing the table only adds segments, so an update made while the
+ * table grows is never lost.</p>
+ *
+ * <p>Offsets may be updated and read on different threads. Updates are lazy
+ * stores: a snapshot on another thread sees them once that thread has
+ * synchronized with the updating one, as the commit hand-off does.</p>
+ */
+class TaskOffsets(systemStreamPartitions: Seq[SystemStreamPartition] = Seq()) {
+  import TaskOffsets._
+
+  // These are replaced rather than modified when SystemStreamPartitions are
+  // added, so that they can be read without a lock. Segments are published
+  // first, so that every index that can be looked up has a segment.
+  @volatile private var segments = new Array[AtomicReferenceArray[String]](0)
+  @volatile private var systemStreamPartitionsByIndex = new Array[SystemStreamPartition](0)
+  @volatile private var indexes = new util.HashMap[SystemStreamPartition, Integer]
+
+  add(systemStreamPartitions)
+
+  def getSystemStreamPartitions = systemStreamPartitionsByIndex.toSeq
+
+  def size = systemStreamPartitionsByIndex.length
+
+  def contains(systemStreamPartition: SystemStreamPartition) = indexes.containsKey(systemStreamPartition)
+
+  /**
+   * Returns the index of a SystemStreamPartition, or -1 if it isn't tracked
+   * by this table.
+   */
+  def indexOf(systemStreamPartition: SystemStreamPartition) = {
+    val index = indexes.get(systemStreamPartition)
+
+    if (index == null) -1 else index.intValue
+  }
+
+  def get(index: Int) = segments(index / SEGMENT_SIZE).get(index % SEGMENT_SIZE)
+
+  def get(systemStreamPartition: SystemStreamPartition): String = {
+    val index = indexOf(systemStreamPartition)
+
+    if (index < 0) null else get(index)
+  }
+
+  def update(index: Int, offset: String) {
+    segments(index / SEGMENT_SIZE).lazySet(index % SEGMENT_SIZE, offset)
+  }
+
+  /**
+   * Clears the offset of a SystemStreamPartition, and returns the offset
+   * that it had, or null.
+   */
+  def remove(systemStreamPartition: SystemStreamPartition) = {
+    val index = indexOf(systemStreamPartition)
+
+    if (index < 0) null else segments(index / SEGMENT_SIZE).getAndSet(index % SEGMENT_SIZE, null)
+  }
+
+  /**
+   * Copies the offsets that have been set for the SystemStreamPartitions
+   * that pass the filter.
+   */
+  def snapshot(filter: SystemStreamPartition => Boolean = _ => true) = {
+    val systemStreamPartitions = systemStreamPartitionsByIndex
+    val snapshot = new util.HashMap[SystemStreamPartition, String](systemStreamPartitions.length * 2)
+    var index = 0
+
+    while (index < systemStreamPartitions.length) {
+      val offset = get(index)
+
+      if (offset != null && filter(systemStreamPartitions(index))) {
+        snapshot.put(systemStreamPartitions(index), offset)
+      }
+
+      index += 1
+    }
+
+    snapshot
+  }
+
+  /**
+   * Starts tracking the given SystemStreamPartitions, after the ones that
+   * this table already tracks, and returns this table.
+   */
+  def add(more: Iterable[SystemStreamPartition]) = synchronized {
+    val added = more.filterNot(contains).toSeq.distinct
+
+    if (!added.isEmpty) {
+      val newSize = systemStreamPartitionsByIndex.length + added.size
+      val segmentCount = (newSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE
+      val newIndexes = new util.HashMap[SystemStreamPartition, Integer](indexes)
+
+      added.zipWithIndex.foreach { case (ssp, i) => newIndexes.put(ssp, systemStreamPartitionsByIndex.length + i) }
+
+      if (segmentCount > segments.length) {
+        segments = segments ++ Array.fill(segmentCount - segments.length)(new AtomicReferenceArray[String](SEGMENT_SIZE))
+      }
+      systemStreamPartitionsByIndex = systemStreamPartitionsByIndex ++ added
+      indexes = newIndexes
+    }
+
+    this
+  }
+
+  override def toString = snapshot().toString
+}
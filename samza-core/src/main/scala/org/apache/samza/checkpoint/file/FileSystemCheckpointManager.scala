@@ -19,40 +19,168 @@
 
 package org.apache.samza.checkpoint.file
 
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.FileOutputStream
+import java.io.RandomAccessFile
 import java.util
 import org.apache.samza.SamzaException
 import org.apache.samza.checkpoint.Checkpoint
 import org.apache.samza.checkpoint.CheckpointManager
 import org.apache.samza.checkpoint.CheckpointManagerFactory
+import org.apache.samza.checkpoint.DeltaCheckpointMetrics
+import org.apache.samza.checkpoint.DeltaCheckpoints
 import org.apache.samza.config.Config
 import org.apache.samza.config.FileSystemCheckpointManagerConfig.Config2FSCP
 import org.apache.samza.config.JobConfig.Config2Job
+import org.apache.samza.config.TaskConfig.Config2Task
 import org.apache.samza.container.TaskName
 import org.apache.samza.metrics.MetricsRegistry
 import org.apache.samza.serializers.CheckpointSerde
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.Logging
+import scala.collection.JavaConversions._
 import scala.io.Source
 
+object FileSystemCheckpointManager {
+  /**
+   * The version of the file that holds the checkpoints of all of a job's
+   * tasks. Version 2 adds the file's generation, which is followed by the
+   * number of checkpoints, and then each taskName and its serialized
+   * checkpoint.
+   */
+  val CHECKPOINTS_FILE_VERSION = 2
+
+  /**
+   * The version of the file to which delta checkpoints are appended. It is
+   * followed by the generation of the checkpoints file that the deltas
+   * apply to, and then the deltas of each write, as a length and the number
+   * of deltas, followed by each taskName and its serialized delta.
+   */
+  val CHECKPOINTS_LOG_VERSION = 1
+
+  private val CHECKPOINTS_LOG_HEADER_SIZE = 12
+}
+
+/**
+ * Stores the checkpoints of all of a job's tasks in a single file in the
+ * root directory. Each write replaces the file with a new one that has been
+ * synced to disk, so a batch of checkpoints costs one fsync. Containers that
+ * share the root directory take turns to update the file under a file lock.
+ *
+ * <p>If fullInterval is greater than one, only the offsets that changed are
+ * appended to a log next to the checkpoints file, and the file is only
+ * rewritten, with the log merged into it, on every fullInterval-th write.
+ * Reads apply the log to the checkpoints file.</p>
+ *
+ * <p>Checkpoints that earlier versions wrote to one file per task are still
+ * read, until the task's checkpoint is next written.</p>
+ */
 class FileSystemCheckpointManager(
                                    jobName: String,
                                    root: File,
-                                   serde: CheckpointSerde = new CheckpointSerde) extends CheckpointManager {
+                                   serde: CheckpointSerde = new CheckpointSerde,
+                                   fullInterval: Int = 1,
+                                   metrics: DeltaCheckpointMetrics = new DeltaCheckpointMetrics) extends CheckpointManager with Logging {
+  import FileSystemCheckpointManager._
+
+  if (fullInterval < 1) {
+    throw new SamzaException("Full checkpoint interval must be positive, but was %s." format fullInterval)
+  }
+
+  /**
+   * The contents of the checkpoints file and log, as of the last time this
+   * manager read or wrote them, so that reading each task's checkpoint at
+   * startup doesn't re-read the whole file. Guarded by this manager's
+   * monitor, like deltaWrites.
+   */
+  private var checkpointsFileContents: Map[TaskName, Checkpoint] = null
+
+  /**
+   * The number of writes since this manager last rewrote the checkpoints
+   * file.
+   */
+  private var deltaWrites = 0
+
+  /**
+   * What was read from the checkpoints file and log: the file's generation,
+   * the checkpoints with the log applied, and the length of the log up to
+   * the last complete write.
+   */
+  private case class Contents(generation: Long, checkpoints: Map[TaskName, Checkpoint], logLength: Long)
 
   override def register(taskName: TaskName):Unit = Unit
 
   def getCheckpointFile(taskName: TaskName) = getFile(jobName, taskName, "checkpoints")
 
+  def getCheckpointsFile = new File(root, "%s-checkpoints" format jobName)
+
+  def getCheckpointsLogFile = new File(root, "%s-checkpoints.log" format jobName)
+
   def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
-    val bytes = serde.toBytes(checkpoint)
-    val fos = new FileOutputStream(getCheckpointFile(taskName))
+    writeCheckpoints(util.Collections.singletonMap(taskName, checkpoint))
+  }
+
+  def writeCheckpoints(checkpoints: util.Map[TaskName, Checkpoint]) {
+    withLock {
+      val contents = readContents
+      val deltas = if (deltaWrites + 1 < fullInterval) {
+        checkpoints.map { case (taskName, checkpoint) => taskName -> DeltaCheckpoints.changedOffsets(contents.checkpoints.getOrElse(taskName, null), checkpoint) }
+      } else {
+        Map[TaskName, util.Map[SystemStreamPartition, String]]()
+      }
+      val merged = contents.checkpoints ++ checkpoints
 
-    fos.write(bytes)
-    fos.close
+      if (!deltas.isEmpty && deltas.values.forall(_ != null)) {
+        val changed = deltas.filter(!_._2.isEmpty).map { case (taskName, delta) => taskName -> new Checkpoint(delta) }.toMap
+
+        // If no offsets have changed, there's nothing to write.
+        if (!changed.isEmpty) {
+          appendToLog(contents, changed)
+        }
+        deltaWrites += 1
+        checkpoints.foreach { case (taskName, checkpoint) => metrics.update(checkpoint.getOffsets.size, deltas(taskName).size, false) }
+      } else {
+        writeCheckpointsFile(contents.generation + 1, merged)
+        deltaWrites = 0
+        checkpoints.values.foreach(checkpoint => metrics.update(checkpoint.getOffsets.size, checkpoint.getOffsets.size, true))
+      }
+
+      checkpointsFileContents = merged
+    }
+
+    // The per-task files of earlier versions are stale now.
+    checkpoints.keys.map(getCheckpointFile).filter(_.exists).foreach(_.delete)
   }
 
   def readLastCheckpoint(taskName: TaskName): Checkpoint = {
+    val checkpoints = this.synchronized {
+      if (checkpointsFileContents == null) {
+        withLock {
+          checkpointsFileContents = readContents.checkpoints
+        }
+      }
+
+      checkpointsFileContents
+    }
+
+    checkpoints.getOrElse(taskName, readTaskCheckpointFile(taskName))
+  }
+
+  def start {
+    if (!root.exists) {
+      throw new SamzaException("Root directory for file system checkpoint manager does not exist: %s" format root)
+    }
+  }
+
+  def stop {}
+
+  private def readTaskCheckpointFile(taskName: TaskName): Checkpoint = {
     try {
       val bytes = Source.fromFile(getCheckpointFile(taskName)).map(_.toByte).toArray
 
@@ -62,13 +190,185 @@ class FileSystemCheckpointManager(
     }
   }
 
-  def start {
-    if (!root.exists) {
-      throw new SamzaException("Root directory for file system checkpoint manager does not exist: %s" format root)
+  /**
+   * Reads the checkpoints file, and applies the deltas in the log to it, if
+   * the log belongs to the file's generation. A write that is cut short by
+   * a crash leaves an incomplete entry at the end of the log, which is
+   * ignored.
+   */
+  private def readContents: Contents = {
+    val file = getCheckpointsFile
+    val (generation, checkpoints) = if (!file.exists) {
+      (0L, Map[TaskName, Checkpoint]())
+    } else {
+      val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+
+      try {
+        val version = in.readInt
+
+        if (version != 1 && version != CHECKPOINTS_FILE_VERSION) {
+          throw new SamzaException("Unsupported version %s of checkpoints file %s." format (version, file))
+        }
+
+        val generation = if (version == 1) 0L else in.readLong
+
+        (generation, readEntries(in))
+      } finally {
+        in.close
+      }
+    }
+
+    val logFile = getCheckpointsLogFile
+
+    if (!logFile.exists || logFile.length < CHECKPOINTS_LOG_HEADER_SIZE) {
+      return Contents(generation, checkpoints, 0L)
+    }
+
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))
+
+    try {
+      val version = in.readInt
+
+      if (version != CHECKPOINTS_LOG_VERSION) {
+        throw new SamzaException("Unsupported version %s of checkpoints log %s." format (version, logFile))
+      }
+
+      if (in.readLong != generation) {
+        // The log was written for an earlier checkpoints file, which already includes its deltas.
+        return Contents(generation, checkpoints, 0L)
+      }
+
+      var merged = checkpoints
+      var logLength = CHECKPOINTS_LOG_HEADER_SIZE.toLong
+      var remaining = logFile.length - logLength
+
+      while (remaining >= 4) {
+        val length = in.readInt
+
+        if (length > remaining - 4) {
+          warn("Ignoring incomplete entry at offset %s of checkpoints log %s." format (logLength, logFile))
+          return Contents(generation, merged, logLength)
+        }
+
+        readEntries(in).foreach {
+          case (taskName, delta) => merged += taskName -> DeltaCheckpoints.merge(merged.getOrElse(taskName, null), delta)
+        }
+        logLength += 4 + length
+        remaining -= 4 + length
+      }
+
+      Contents(generation, merged, logLength)
+    } finally {
+      in.close
     }
   }
 
-  def stop {}
+  private def readEntries(in: DataInputStream) = {
+    (0 until in.readInt).map(i => {
+      val taskName = new TaskName(in.readUTF)
+      val bytes = new Array[Byte](in.readInt)
+      in.readFully(bytes)
+      taskName -> serde.fromBytes(bytes)
+    }).toMap
+  }
+
+  private def writeCheckpointsFile(generation: Long, checkpoints: Map[TaskName, Checkpoint]) {
+    val file = getCheckpointsFile
+    val tmp = new File(root, file.getName + ".tmp")
+    val bytes = new ByteArrayOutputStream
+    val out = new DataOutputStream(bytes)
+
+    out.writeInt(CHECKPOINTS_FILE_VERSION)
+    out.writeLong(generation)
+    writeEntries(out, checkpoints)
+    out.close
+
+    val fos = new FileOutputStream(tmp)
+
+    try {
+      fos.write(bytes.toByteArray)
+      fos.getFD.sync
+    } finally {
+      fos.close
+    }
+
+    if (!tmp.renameTo(file)) {
+      throw new SamzaException("Unable to move %s to %s." format (tmp, file))
+    }
+
+    // The deltas are part of the new file, and the log's generation no
+    // longer matches it, so the log can go.
+    getCheckpointsLogFile.delete
+  }
+
+  /**
+   * Appends the deltas to the log, after the last complete write, and syncs
+   * the log to disk.
+   */
+  private def appendToLog(contents: Contents, deltas: Map[TaskName, Checkpoint]) {
+    val bytes = new ByteArrayOutputStream
+    val out = new DataOutputStream(bytes)
+    val entry = new ByteArrayOutputStream
+
+    writeEntries(new DataOutputStream(entry), deltas)
+
+    if (contents.logLength == 0) {
+      out.writeInt(CHECKPOINTS_LOG_VERSION)
+      out.writeLong(contents.generation)
+    }
+    out.writeInt(entry.size)
+    entry.writeTo(out)
+    out.close
+
+    val log = new RandomAccessFile(getCheckpointsLogFile, "rw")
+
+    try {
+      log.setLength(contents.logLength)
+      log.seek(contents.logLength)
+      log.write(bytes.toByteArray)
+      log.getFD.sync
+    } finally {
+      log.close
+    }
+  }
+
+  private def writeEntries(out: DataOutputStream, checkpoints: Map[TaskName, Checkpoint]) {
+    out.writeInt(checkpoints.size)
+    checkpoints.foreach {
+      case (taskName, checkpoint) =>
+        val checkpointBytes = serde.toBytes(checkpoint)
+        out.writeUTF(taskName.getTaskName)
+        out.writeInt(checkpointBytes.length)
+        out.write(checkpointBytes)
+    }
+    out.flush
+  }
+
+  /**
+   * Runs a read or an update of the checkpoints file and log while holding
+   * an exclusive lock, so that concurrent writers don't lose each other's
+   * checkpoints, and readers don't see a half-finished update. The file lock
+   * keeps other processes out. It is taken while holding this manager's
+   * monitor, because a JVM can only hold one lock on a file, and a second
+   * thread asking for it would get an OverlappingFileLockException.
+   */
+  private def withLock(update: => Unit) {
+    this.synchronized {
+      val lockFile = new RandomAccessFile(new File(root, "%s-checkpoints.lock" format jobName), "rw")
+
+      try {
+        val lock = lockFile.getChannel.lock
+
+        try {
+          update
+        } finally {
+          lock.release
+        }
+      } finally {
+        lockFile.close
+      }
+    }
+  }
 
   private def getFile(jobName: String, taskName: TaskName, fileType:String) =
     new File(root, "%s-%s-%s" format (jobName, taskName, fileType))
@@ -82,6 +382,11 @@ class FileSystemCheckpointManagerFactory extends CheckpointManagerFactory {
     val root = config
       .getFileSystemCheckpointRoot
       .getOrElse(throw new SamzaException("Missing checkpoint root in configs"))
-    new FileSystemCheckpointManager(name, new File(root))
+    new FileSystemCheckpointManager(
+      name,
+      new File(root),
+      new CheckpointSerde(config.getCheckpointFormat),
+      config.getCheckpointFullInterval,
+      new DeltaCheckpointMetrics(registry))
   }
 }
\ No newline at end of file
@@ -20,12 +20,18 @@
 package org.apache.samza.config
 
 import org.apache.samza.system.SystemStream
+import org.apache.samza.system.chooser.LagAwareChooser
+import org.apache.samza.system.chooser.TimeAlignedChooser
 import TaskConfig._
 
 object DefaultChooserConfig {
   val BOOTSTRAP = StreamConfig.STREAM_PREFIX + "samza.bootstrap"
   val PRIORITY = StreamConfig.STREAM_PREFIX + "samza.priority"
   val BATCH_SIZE = "task.consumer.batch.size"
+  val INDEXED = "task.chooser.indexed" // whether to use IndexedPriorityChooser in place of the wrapped choosers
+  val LAG_FAIRNESS_FLOOR = "task.chooser.lag.fairness.floor" // fraction of LagAwareChooser choices made in arrival order
+  val LAG_STARVATION_THRESHOLD = "task.chooser.lag.starvation.threshold" // choices an envelope may wait in the LagAwareChooser
+  val TIME_ALIGNED_MAX_WAIT_MS = "task.chooser.time.aligned.max.wait.ms" // how long the TimeAlignedChooser waits for empty partitions
 
   implicit def Config2DefaultChooser(config: Config) = new DefaultChooserConfig(config)
 }
@@ -35,6 +41,14 @@ class DefaultChooserConfig(config: Config) extends ScalaMapConfig(config) {
 
   def getChooserBatchSize = getOption(BATCH_SIZE)
 
+  def getChooserIndexed = getBoolean(INDEXED, false)
+
+  def getChooserLagFairnessFloor = getDouble(LAG_FAIRNESS_FLOOR, LagAwareChooser.DEFAULT_FAIRNESS_FLOOR)
+
+  def getChooserLagStarvationThreshold = getInt(LAG_STARVATION_THRESHOLD, LagAwareChooser.DEFAULT_STARVATION_THRESHOLD)
+
+  def getChooserTimeAlignedMaxWaitMs = getLong(TIME_ALIGNED_MAX_WAIT_MS, TimeAlignedChooser.DEFAULT_MAX_WAIT_MS)
+
   def getBootstrapStreams = config
     .getInputStreams
     .map(systemStream => (systemStream, getOrElse(BOOTSTRAP format (systemStream.getSystem, systemStream.getStream), "false").equals("true")))
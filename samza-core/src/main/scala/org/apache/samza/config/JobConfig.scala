@@ -22,6 +22,7 @@ package org.apache.samza.config
 
 import java.io.File
 
+import org.apache.samza.container.TaskWorkerPool
 import org.apache.samza.container.grouper.stream.GroupByPartitionFactory
 import org.apache.samza.util.Logging
 
@@ -43,6 +44,11 @@ object JobConfig {
   val SAMZA_FWK_VERSION = "samza.fwk.version"
   val JOB_COORDINATOR_SYSTEM = "job.coordinator.system"
   val JOB_CONTAINER_COUNT = "job.container.count"
+  val JOB_CONTAINER_THREAD_POOL_SIZE = "job.container.thread.pool.size" // number of threads that run task callbacks, 0 to use the run loop thread
+  val JOB_CONTAINER_TASK_QUEUE_SIZE = "job.container.task.queue.size" // max pending callbacks per task when using a thread pool
+  val JOB_CONTAINER_RESTORE_THREAD_POOL_SIZE = "job.container.restore.thread.pool.size" // number of stores to restore at once
+  val JOB_CONTAINER_RESTORE_MAX_BYTES_PER_SECOND = "job.container.restore.max.bytes.per.second" // combined store restore rate, 0 for no limit
+  val JOB_CONTAINER_BUFFER_MAX_BYTES = "job.container.buffer.max.bytes" // combined bytes of input messages that consumers may buffer, 0 for no limit
   val JOB_REPLICATION_FACTOR = "job.coordinator.replication.factor"
   val JOB_SEGMENT_BYTES = "job.coordinator.segment.bytes"
   val SSP_GROUPER_FACTORY = "job.systemstreampartition.grouper.factory"
@@ -97,6 +103,16 @@ class JobConfig(config: Config) extends ScalaMapConfig(config) with Logging {
     }
   }
 
+  def getThreadPoolSize = getInt(JobConfig.JOB_CONTAINER_THREAD_POOL_SIZE, 0)
+
+  def getTaskQueueSize = getInt(JobConfig.JOB_CONTAINER_TASK_QUEUE_SIZE, TaskWorkerPool.DEFAULT_TASK_QUEUE_SIZE)
+
+  def getRestoreThreadPoolSize = getInt(JobConfig.JOB_CONTAINER_RESTORE_THREAD_POOL_SIZE, 1)
+
+  def getRestoreMaxBytesPerSecond = getLong(JobConfig.JOB_CONTAINER_RESTORE_MAX_BYTES_PER_SECOND, 0L)
+
+  def getBufferMaxBytes = getLong(JobConfig.JOB_CONTAINER_BUFFER_MAX_BYTES, 0L)
+
   def getMonitorPartitionChange = getBoolean(JobConfig.MONITOR_PARTITION_CHANGE, false)
 
   def getMonitorPartitionChangeFrequency = getInt(
@@ -30,6 +30,8 @@ object StreamConfig {
   val KEY_SERDE = STREAM_PREFIX + "samza.key.serde"
   val CONSUMER_RESET_OFFSET = STREAM_PREFIX + "samza.reset.offset"
   val CONSUMER_OFFSET_DEFAULT = STREAM_PREFIX + "samza.offset.default"
+  val LAZY_DESERIALIZATION = STREAM_PREFIX + "samza.lazy.deserialization"
+  val TIMESTAMP_EXTRACTOR_FACTORY = STREAM_PREFIX + "samza.timestamp.extractor.factory"
 
   implicit def Config2Stream(config: Config) = new StreamConfig(config)
 }
@@ -41,6 +43,12 @@ class StreamConfig(config: Config) extends ScalaMapConfig(config) with Logging {
   def getStreamKeySerde(systemStream: SystemStream) =
     getOption(StreamConfig.KEY_SERDE format (systemStream.getSystem, systemStream.getStream))
 
+  def isLazyDeserializationEnabled(systemStream: SystemStream) =
+    getBoolean(StreamConfig.LAZY_DESERIALIZATION format (systemStream.getSystem, systemStream.getStream), false)
+
+  def getTimestampExtractorFactory(systemStream: SystemStream) =
+    getOption(StreamConfig.TIMESTAMP_EXTRACTOR_FACTORY format (systemStream.getSystem, systemStream.getStream))
+
   def getResetOffsetMap(systemName: String) = {
     val subConf = config.subset("systems.%s.streams." format systemName, true)
     subConf
@@ -19,6 +19,7 @@
 
 package org.apache.samza.config
 
+import org.apache.samza.serializers.CheckpointSerde
 import org.apache.samza.system.SystemStream
 import org.apache.samza.util.{Logging, Util}
 
@@ -33,11 +34,25 @@ object TaskConfig {
   val LIFECYCLE_LISTENERS = "task.lifecycle.listeners" // li-generator,foo
   val LIFECYCLE_LISTENER = "task.lifecycle.listener.%s.class" // task.lifecycle.listener.li-generator.class
   val CHECKPOINT_MANAGER_FACTORY = "task.checkpoint.factory" // class name to use when sending offset checkpoints
+  val CHECKPOINT_FORMAT = "task.checkpoint.format" // json or binary, the format that checkpoints are written in
+  val CHECKPOINT_FULL_INTERVAL = "task.checkpoint.full.interval" // how many of a task's checkpoints are written per full checkpoint
   val MESSAGE_CHOOSER_CLASS_NAME = "task.chooser.class"
   val DROP_DESERIALIZATION_ERROR = "task.drop.deserialization.errors" // define whether drop the messages or not when deserialization fails
   val DROP_SERIALIZATION_ERROR = "task.drop.serialization.errors" // define whether drop the messages or not when serialization fails
   val IGNORED_EXCEPTIONS = "task.ignored.exceptions" // exceptions to ignore in process and window
   val GROUPER_FACTORY = "task.name.grouper.factory" // class name for task grouper
+  val MAX_CONCURRENCY = "task.max.concurrency" // max number of in-flight messages per AsyncStreamTask
+  val CALLBACK_TIMEOUT_MS = "task.callback.timeout.ms" // how long a commit waits for an AsyncStreamTask's in-flight messages
+  val DESERIALIZATION_THREAD_POOL_SIZE = "task.deserialization.thread.pool.size" // threads that deserialize input ahead of the run loop
+  val PROCESS_BATCH_SIZE = "task.process.batch.size" // max number of messages per BatchStreamTask.processBatch call
+  val PROCESS_BATCH_LINGER_MS = "task.process.batch.linger.ms" // how long a partial batch may wait for more messages
+  val STAGGERED_SCHEDULE = "task.schedule.staggered" // whether each task gets its own window and commit deadlines
+  val ASYNC_COMMIT = "task.commit.async" // whether to write checkpoints off the run loop thread
+  val IDLE_STRATEGY_FACTORY = "task.idle.strategy.factory" // class name of the run loop's IdleStrategyFactory
+  val IDLE_MAX_SPINS = "task.idle.spins" // idle calls that busy spin before yielding
+  val IDLE_MAX_YIELDS = "task.idle.yields" // idle calls that yield before parking
+  val IDLE_MIN_PARK_NS = "task.idle.park.min.ns" // first park time in nanoseconds
+  val IDLE_MAX_PARK_NS = "task.idle.park.max.ns" // maximum park time in nanoseconds
 
   /**
    * Samza's container polls for more messages under two conditions. The first
@@ -98,6 +113,10 @@ class TaskConfig(config: Config) extends ScalaMapConfig(config) with Logging {
 
   def getCheckpointManagerFactory() = getOption(TaskConfig.CHECKPOINT_MANAGER_FACTORY)
 
+  def getCheckpointFormat = getOrElse(TaskConfig.CHECKPOINT_FORMAT, CheckpointSerde.JSON_FORMAT)
+
+  def getCheckpointFullInterval = getInt(TaskConfig.CHECKPOINT_FULL_INTERVAL, 1)
+
   def getMessageChooserClass = getOption(TaskConfig.MESSAGE_CHOOSER_CLASS_NAME)
 
   def getDropDeserialization = getOption(TaskConfig.DROP_DESERIALIZATION_ERROR)
@@ -108,6 +127,22 @@ class TaskConfig(config: Config) extends ScalaMapConfig(config) with Logging {
 
   def getIgnoredExceptions = getOption(TaskConfig.IGNORED_EXCEPTIONS)
 
+  def getMaxConcurrency = getInt(TaskConfig.MAX_CONCURRENCY, 1)
+
+  def getCallbackTimeoutMs = getLong(TaskConfig.CALLBACK_TIMEOUT_MS, 60000L)
+
+  def getDeserializationThreadPoolSize = getInt(TaskConfig.DESERIALIZATION_THREAD_POOL_SIZE, 0)
+
+  def getProcessBatchSize = getInt(TaskConfig.PROCESS_BATCH_SIZE, 100)
+
+  def getProcessBatchLingerMs = getLong(TaskConfig.PROCESS_BATCH_LINGER_MS, 0L)
+
+  def isStaggeredSchedule = getBoolean(TaskConfig.STAGGERED_SCHEDULE, false)
+
+  def isAsyncCommitEnabled = getBoolean(TaskConfig.ASYNC_COMMIT, false)
+
+  def getIdleStrategyFactory = getOption(TaskConfig.IDLE_STRATEGY_FACTORY)
+
   def getTaskNameGrouperFactory = {
     getOption(TaskConfig.GROUPER_FACTORY) match {
       case Some(grouperFactory) => grouperFactory
@@ -19,7 +19,13 @@
 
 package org.apache.samza.container
 
-import org.apache.samza.system.{SystemConsumers, SystemStreamPartition}
+import java.util
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.LockSupport
+
+import org.apache.samza.SamzaException
+import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemConsumers, SystemStreamPartition}
 import org.apache.samza.task.ReadableCoordinator
 import org.apache.samza.util.{Logging, TimerUtils}
 
@@ -31,6 +37,40 @@ import org.apache.samza.util.{Logging, TimerUtils}
  *
  * <p>This class manages the execution of that run loop, determining what needs to
  * be done when.
+ *
+ * <p>If a {@link TaskWorkerPool} is supplied, the run loop thread still chooses
+ * messages and decides when to window and commit, but the task callbacks are
+ * handed to the pool. Each task's callbacks run one at a time and in the order
+ * they were dispatched, so per-SystemStreamPartition ordering is preserved, and
+ * commit and window are still coordinated per task. Coordinator requests made by
+ * tasks are handed back to the run loop thread before they take effect.
+ *
+ * <p>Messages for an {@link org.apache.samza.task.AsyncStreamTask} are dispatched
+ * without waiting for the task to complete them, up to task.max.concurrency
+ * messages per task. Once a task has that many messages in flight, its
+ * messages are held back, and its input SystemStreamPartitions are paused, so
+ * that the run loop keeps processing messages for the other tasks. The held
+ * back messages are dispatched as the task's callbacks complete. The task's
+ * coordinator requests take effect once the message's callback has completed,
+ * and a commit waits until all of the task's in-flight messages have
+ * completed.
+ *
+ * <p>If a {@link TaskCommitter} is supplied, a commit only flushes the task's
+ * stores and producers and snapshots its offsets on the thread that runs the
+ * task. The checkpoint is written in the background, while the run loop keeps
+ * processing messages.
+ *
+ * <p>When several tasks commit at once on the run loop thread, their
+ * checkpoints are written in a single batch, after every task has flushed.
+ *
+ * <p>Messages for a {@link org.apache.samza.task.BatchStreamTask} are handed over
+ * in the batches that {@link SystemConsumers} drains from a single
+ * SystemStreamPartition. Batches that linger waiting for more messages are
+ * processed by the run loop once their linger time has passed.
+ *
+ * <p>If staggered is set, each task gets its own window and commit deadlines,
+ * spread evenly across the interval, so that tasks window and commit a few at
+ * a time rather than all at once.
  */
 class RunLoop(
   val taskInstances: Map[TaskName, TaskInstance],
@@ -39,15 +79,55 @@ class RunLoop(
   val windowMs: Long = -1,
   val commitMs: Long = 60000,
   val clock: () => Long = { System.nanoTime },
-  val shutdownMs: Long = 5000) extends Runnable with TimerUtils with Logging {
+  val shutdownMs: Long = 5000,
+  val workerPool: TaskWorkerPool = null,
+  val committer: TaskCommitter = null,
+  val staggered: Boolean = false,
+
+  /**
+   * If set, the checkpoints of tasks that commit together on the run loop
+   * thread are written in one batch.
+   */
+  val offsetManager: OffsetManager = null) extends Runnable with TimerUtils with Logging {
 
   private val metricsMsOffset = 1000000L
   private var lastWindowNs = clock()
   private var lastCommitNs = clock()
+
+  // Per-task deadlines, only used if windows and commits are staggered.
+  private val windowSchedule = if (staggered && windowMs >= 0) {
+    new TaskSchedule(taskInstances.keys, windowMs * metricsMsOffset, lastWindowNs, windowTask)
+  } else {
+    null
+  }
+  private val commitSchedule = if (staggered && commitMs >= 0) {
+    new TaskSchedule(taskInstances.keys, commitMs * metricsMsOffset, lastCommitNs, commitTask)
+  } else {
+    null
+  }
   private var activeNs = 0L
+  private var loopStartNs = 0L
   private var taskShutdownRequests: Set[TaskName] = Set()
   private var taskCommitRequests: Set[TaskName] = Set()
   @volatile private var shutdownNow = false
+  @volatile private var runLoopThread: Thread = null
+
+  // AsyncStreamTasks that had no free slot for a message, and the messages
+  // held back for each of them, in the order they were chosen. The input
+  // SystemStreamPartitions of a blocked task stay paused until its held back
+  // messages have all been dispatched.
+  private val heldBackEnvelopes = taskInstances.values.filter(_.isAsyncTask).map(_ -> new util.ArrayDeque[IncomingMessageEnvelope]).toMap
+  private var blockedTaskInstances = List[TaskInstance]()
+  @volatile private var waitingForCallbacks = false
+  private var choseEnvelope = false
+
+  // How long the run loop waits for a callback to complete, if every task it
+  // could have processed a message for is blocked.
+  private val callbackWaitNs = 1000000L
+
+  // Coordinators with pending requests from tasks that ran on the worker pool,
+  // or from AsyncStreamTask callbacks.
+  private val completedCoordinators = new ConcurrentLinkedQueue[ReadableCoordinator]
 
   // Messages come from the chooser with no connection to the TaskInstance they're bound for.
   // Keep a mapping of SystemStreamPartition to TaskInstance to efficiently route them.
@@ -62,21 +142,65 @@ class RunLoop(
     }
   }
 
+  // Routing state for dispatch, which runs once per message and must not
+  // allocate. Each SystemStreamPartition gets a dense index up front, and its
+  // TaskInstances and their reusable coordinators are kept in arrays.
+  private val sspIndexes = new util.HashMap[SystemStreamPartition, Integer]
+  private val sspTaskInstances = new Array[Array[TaskInstance]](systemStreamPartitionToTaskInstances.size)
+  private val sspCoordinators = new Array[Array[ReadableCoordinator]](systemStreamPartitionToTaskInstances.size)
+  private val taskCoordinators = taskInstances.map { case (taskName, taskInstance) => taskInstance -> new ReadableCoordinator(taskName) }
+
+  systemStreamPartitionToTaskInstances.zipWithIndex.foreach {
+    case ((ssp, sspTaskInstanceList), index) =>
+      sspIndexes.put(ssp, index)
+      sspTaskInstances(index) = sspTaskInstanceList.toArray
+      sspCoordinators(index) = sspTaskInstanceList.map(taskCoordinators).toArray
+  }
+
+  // BatchStreamTasks, and the batch deadline for which each was last asked
+  // to flush, so that a flush is only requested once per deadline.
+  private val batchTaskInstances = taskInstances.values.filter(_.isBatchTask).toArray
+  private val batchFlushRequestedNs = new Array[Long](batchTaskInstances.length)
+
   /**
    * Starts the run loop. Blocks until either the tasks request shutdown, or an
    * unhandled exception is thrown.
    */
   def run {
     addShutdownHook(Thread.currentThread())
+    runLoopThread = Thread.currentThread
+
+    try {
+      while (!shutdownNow) {
+        loopStartNs = clock()
+        process
+        checkWorkers
+        dispatchHeldBack
+        flushBatches
+        window
+        commit
+        val totalNs = clock() - loopStartNs
+        metrics.utilization.set(activeNs.toFloat/totalNs)
+        activeNs = 0L
+      }
+    } finally {
+      if (workerPool != null) {
+        info("Waiting for in-flight task work to complete.")
+        workerPool.stop(shutdownMs)
+      }
+
+      if (committer != null) {
+        info("Waiting for in-progress commits to complete.")
+        committer.stop(shutdownMs)
+      }
+    }
 
-    while (!shutdownNow) {
-      val loopStartTime = clock()
-      process
-      window
-      commit
-      val totalNs = clock() - loopStartTime
-      metrics.utilization.set(activeNs.toFloat/totalNs)
-      activeNs = 0L
+    if (workerPool != null) {
+      workerPool.checkFailure
+    }
+
+    if (committer != null) {
+      committer.checkFailure
     }
   }
 
@@ -108,20 +232,20 @@ class RunLoop(
         consumerMultiplexer.choose
       }
 
+      choseEnvelope = envelope != null
+
       if (envelope != null) {
-        val ssp = envelope.getSystemStreamPartition
+        trace("Processing incoming message envelope for SSP %s." format envelope.getSystemStreamPartition)
 
-        trace("Processing incoming message envelope for SSP %s." format ssp)
-        metrics.envelopes.inc
+        // A batch of one is dispatched like any other single envelope.
+        val batch = consumerMultiplexer.getChosenBatch
 
-        val taskInstances = systemStreamPartitionToTaskInstances(ssp)
-        taskInstances.foreach {
-          taskInstance =>
-            {
-              val coordinator = new ReadableCoordinator(taskInstance.taskName)
-              taskInstance.process(envelope, coordinator)
-              checkCoordinator(coordinator)
-            }
+        if (batch == null || batch.size <= 1) {
+          metrics.envelopes.inc
+          dispatch(envelope)
+        } else {
+          metrics.envelopes.inc(batch.size)
+          dispatchBatch(batch)
         }
       } else {
         trace("No incoming message envelope was available.")
@@ -130,21 +254,204 @@ class RunLoop(
     })
   }
 
+  /**
+   * Hands a message to every TaskInstance that consumes its
+   * SystemStreamPartition. When a StreamTask is processed inline on the run
+   * loop thread, this allocates nothing: the task's coordinator is reused and
+   * reset for each message. Tasks that run on the worker pool, and
+   * AsyncStreamTasks, still get a new coordinator per message, because the
+   * coordinator outlives the call.
+   */
+  private[samza] def dispatch(envelope: IncomingMessageEnvelope) {
+    val sspIndex = getSspIndex(envelope.getSystemStreamPartition)
+    val taskInstances = sspTaskInstances(sspIndex)
+    var i = 0
+
+    while (i < taskInstances.length) {
+      if (taskInstances(i).isBatchTask) {
+        dispatchBatch(sspIndex, i, util.Collections.singletonList(envelope))
+      } else {
+        dispatch(sspIndex, i, envelope)
+      }
+
+      i += 1
+    }
+  }
+
+  /**
+   * Hands a batch of messages from one SystemStreamPartition to every
+   * TaskInstance that consumes it. BatchStreamTasks get the whole batch in
+   * one call, and all other tasks get the messages one at a time.
+   */
+  private[samza] def dispatchBatch(batch: util.List[IncomingMessageEnvelope]) {
+    val sspIndex = getSspIndex(batch.get(0).getSystemStreamPartition)
+    val taskInstances = sspTaskInstances(sspIndex)
+    var i = 0
+
+    while (i < taskInstances.length) {
+      if (taskInstances(i).isBatchTask) {
+        dispatchBatch(sspIndex, i, batch)
+      } else {
+        var j = 0
+
+        while (j < batch.size) {
+          dispatch(sspIndex, i, batch.get(j))
+          j += 1
+        }
+      }
+
+      i += 1
+    }
+  }
+
+  private def getSspIndex(systemStreamPartition: SystemStreamPartition) = {
+    val sspIndex = sspIndexes.get(systemStreamPartition)
+
+    if (sspIndex == null) {
+      throw new SamzaException("No TaskInstance for SystemStreamPartition: %s" format systemStreamPartition)
+    }
+
+    sspIndex.intValue
+  }
+
+  private def dispatch(sspIndex: Int, i: Int, envelope: IncomingMessageEnvelope) {
+    val taskInstance = sspTaskInstances(sspIndex)(i)
+
+    if (taskInstance.isAsyncTask) {
+      val envelopes = heldBackEnvelopes(taskInstance)
+
+      if (envelopes.isEmpty && taskInstance.tryReserveCallback) {
+        dispatchAsync(taskInstance, envelope)
+      } else {
+        if (envelopes.isEmpty) {
+          block(taskInstance)
+        }
+
+        envelopes.add(envelope)
+      }
+    } else if (workerPool != null) {
+      execute(taskInstance.taskName, coordinator => taskInstance.process(envelope, coordinator))
+    } else {
+      val coordinator = sspCoordinators(sspIndex)(i)
+      coordinator.reset
+      taskInstance.process(envelope, coordinator)
+      checkCoordinator(coordinator)
+    }
+  }
+
+  /**
+   * Hands a message to an AsyncStreamTask that a slot has been reserved for.
+   */
+  private def dispatchAsync(taskInstance: TaskInstance, envelope: IncomingMessageEnvelope) {
+    execute(taskInstance.taskName, coordinator => {
+      taskInstance.processAsync(envelope, coordinator, () => completed(coordinator))
+    }, completesLater = true)
+  }
+
+  /**
+   * Starts holding back messages for an AsyncStreamTask that has no free
+   * slot, and stops choosing messages from its input SystemStreamPartitions.
+   */
+  private def block(taskInstance: TaskInstance) {
+    debug("Holding back messages for taskName: %s" format taskInstance.taskName)
+
+    blockedTaskInstances = taskInstance :: blockedTaskInstances
+    waitingForCallbacks = true
+    taskInstance.systemStreamPartitions.foreach(consumerMultiplexer.pause)
+  }
+
+  /**
+   * Resumes the input SystemStreamPartitions of a task whose held back
+   * messages have all been dispatched, unless another blocked task still
+   * consumes them.
+   */
+  private def unblock(taskInstance: TaskInstance) {
+    debug("Resuming messages for taskName: %s" format taskInstance.taskName)
+
+    blockedTaskInstances = blockedTaskInstances.filterNot(_ eq taskInstance)
+    waitingForCallbacks = !blockedTaskInstances.isEmpty
+    taskInstance.systemStreamPartitions
+      .filterNot(ssp => blockedTaskInstances.exists(_.systemStreamPartitions.contains(ssp)))
+      .foreach(consumerMultiplexer.resume)
+  }
+
+  /**
+   * Dispatches the messages that were held back for blocked AsyncStreamTasks,
+   * as far as they have free slots. If no message was chosen either, waits
+   * briefly for a callback to complete, rather than spinning.
+   */
+  private def dispatchHeldBack {
+    if (!blockedTaskInstances.isEmpty) {
+      blockedTaskInstances.foreach(taskInstance => {
+        val envelopes = heldBackEnvelopes(taskInstance)
+
+        while (!envelopes.isEmpty && taskInstance.tryReserveCallback) {
+          dispatchAsync(taskInstance, envelopes.poll)
+        }
+
+        if (envelopes.isEmpty) {
+          unblock(taskInstance)
+        }
+      })
+
+      if (!blockedTaskInstances.isEmpty && !choseEnvelope) {
+        LockSupport.parkNanos(this, callbackWaitNs)
+      }
+    }
+  }
+
+  private def dispatchBatch(sspIndex: Int, i: Int, batch: util.List[IncomingMessageEnvelope]) {
+    val taskInstance = sspTaskInstances(sspIndex)(i)
+
+    if (workerPool != null) {
+      val nowNs = loopStartNs
+      execute(taskInstance.taskName, coordinator => taskInstance.processBatch(batch, nowNs, coordinator))
+    } else {
+      val coordinator = sspCoordinators(sspIndex)(i)
+      coordinator.reset
+      taskInstance.processBatch(batch, loopStartNs, coordinator)
+      checkCoordinator(coordinator)
+    }
+  }
+
+  /**
+   * Processes the pending batches of BatchStreamTasks whose linger time has
+   * passed. Batch deadlines are kept in the run loop's clock.
+   */
+  private def flushBatches {
+    if (batchTaskInstances.length > 0) {
+      val nowNs = clock()
+      var i = 0
+
+      while (i < batchTaskInstances.length) {
+        val taskInstance = batchTaskInstances(i)
+        val deadlineNs = taskInstance.getBatchDeadlineNs
+
+        if (deadlineNs <= nowNs && deadlineNs != batchFlushRequestedNs(i)) {
+          batchFlushRequestedNs(i) = deadlineNs
+          execute(taskInstance.taskName, coordinator => taskInstance.flushBatches(nowNs, coordinator))
+        }
+
+        i += 1
+      }
+    }
+  }
+
   /**
    * Invokes WindowableTask.window on all tasks if it's time to do so.
    */
   private def window {
     activeNs += updateTimerAndGetDuration(metrics.windowNs) ((currentTimeNs: Long) => {
-      if (windowMs >= 0 && lastWindowNs + windowMs * metricsMsOffset < currentTimeNs) {
+      if (windowSchedule != null) {
+        windowSchedule.runDue(currentTimeNs)
+      } else if (windowMs >= 0 && lastWindowNs + windowMs * metricsMsOffset < currentTimeNs) {
         trace("Windowing stream tasks.")
         lastWindowNs = currentTimeNs
         metrics.windows.inc
 
         taskInstances.foreach {
           case (taskName, task) =>
-            val coordinator = new ReadableCoordinator(taskName)
-            task.window(coordinator)
-            checkCoordinator(coordinator)
+            execute(taskName, coordinator => task.window(coordinator))
         }
       }
     })
@@ -155,23 +462,140 @@ class RunLoop(
    */
   private def commit {
     activeNs += updateTimerAndGetDuration(metrics.commitNs) ((currentTimeNs: Long) => {
-      if (commitMs >= 0 && lastCommitNs + commitMs * metricsMsOffset < currentTimeNs) {
+      if (commitSchedule != null) {
+        commitSchedule.runDue(currentTimeNs)
+
+        if (!taskCommitRequests.isEmpty) {
+          trace("Committing due to explicit commit request.")
+          metrics.commits.inc
+          taskCommitRequests.foreach(commitSchedule.reschedule(_, currentTimeNs))
+          commit(taskCommitRequests.map(taskInstances))
+        }
+      } else if (commitMs >= 0 && lastCommitNs + commitMs * metricsMsOffset < currentTimeNs) {
         trace("Committing task instances because the commit interval has elapsed.")
         lastCommitNs = currentTimeNs
         metrics.commits.inc
-        taskInstances.values.foreach(_.commit)
+        commit(taskInstances.values)
       } else if (!taskCommitRequests.isEmpty) {
         trace("Committing due to explicit commit request.")
         metrics.commits.inc
-        taskCommitRequests.foreach(taskName => {
-          taskInstances(taskName).commit
-        })
+        commit(taskCommitRequests.map(taskInstances))
       }
 
       taskCommitRequests = Set()
     })
   }
 
+  /**
+   * Windows a single task whose deadline has passed.
+   */
+  private def windowTask(taskName: TaskName) {
+    trace("Windowing stream task: %s" format taskName)
+    metrics.windows.inc
+
+    val taskInstance = taskInstances(taskName)
+    execute(taskName, coordinator => taskInstance.window(coordinator))
+  }
+
+  /**
+   * Commits a single task whose deadline has passed.
+   */
+  private def commitTask(taskName: TaskName) {
+    trace("Committing task instance: %s" format taskName)
+    metrics.commits.inc
+
+    commit(taskInstances(taskName))
+  }
+
+  private def commit(taskInstance: TaskInstance) {
+    if (workerPool != null) {
+      workerPool.submit(taskInstance.taskName, () => taskInstance.commit)
+    } else {
+      taskInstance.commit
+    }
+  }
+
+  /**
+   * Commits several tasks. If they commit on this thread, every task flushes
+   * before any of their checkpoints are written, and the checkpoints are
+   * written together. Tasks on the worker pool commit independently, so that
+   * a busy task doesn't hold back the checkpoints of the others.
+   */
+  private def commit(instances: Iterable[TaskInstance]) {
+    if (offsetManager != null && workerPool == null && committer == null && instances.size > 1) {
+      offsetManager.batchCheckpoints {
+        instances.foreach(commit(_))
+      }
+    } else {
+      instances.foreach(commit(_))
+    }
+  }
+
+  /**
+   * Runs a task callback with a new coordinator. Without a worker pool, the
+   * callback runs right away and the coordinator is checked afterwards.
+   * Otherwise, the callback is queued for the task, and its coordinator is
+   * handed back to the run loop thread once the callback has completed. If
+   * completesLater is set, the callback itself is responsible for calling
+   * completed with the coordinator.
+   */
+  private def execute(taskName: TaskName, callback: ReadableCoordinator => Unit, completesLater: Boolean = false) {
+    if (workerPool != null) {
+      workerPool.submit(taskName, () => {
+        val coordinator = new ReadableCoordinator(taskName)
+        callback(coordinator)
+        if (!completesLater) {
+          completed(coordinator)
+        }
+      })
+    } else {
+      val coordinator = new ReadableCoordinator(taskName)
+      callback(coordinator)
+      if (!completesLater) {
+        checkCoordinator(coordinator)
+      }
+    }
+  }
+
+  /**
+   * Hands a coordinator back to the run loop thread if the task made any
+   * requests through it. May be called from any thread.
+   */
+  private def completed(coordinator: ReadableCoordinator) {
+    if (coordinator.commitRequest.isDefined || coordinator.shutdownRequest.isDefined) {
+      completedCoordinators.add(coordinator)
+    }
+
+    if (waitingForCallbacks) {
+      val thread = runLoopThread
+
+      if (thread != null) {
+        LockSupport.unpark(thread)
+      }
+    }
+  }
+
+  /**
+   * Surfaces failures from the worker pool, and applies any coordinator
+   * requests made by tasks that ran on it, or by AsyncStreamTask callbacks.
+   */
+  private def checkWorkers {
+    if (workerPool != null) {
+      workerPool.checkFailure
+      workerPool.updateUtilization
+    }
+
+    if (committer != null) {
+      committer.checkFailure
+    }
+
+    var coordinator = completedCoordinators.poll
+    while (coordinator != null) {
+      checkCoordinator(coordinator)
+      coordinator = completedCoordinators.poll
+    }
+  }
+
   /**
    * A new TaskCoordinator object is passed to a task on every call to StreamTask.process
    * and WindowableTask.window. This method checks whether the task requested that we
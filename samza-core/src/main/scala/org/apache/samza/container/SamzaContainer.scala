@@ -43,6 +43,7 @@ import org.apache.samza.serializers.SerdeFactory
 import org.apache.samza.serializers.SerdeManager
 import org.apache.samza.storage.StorageEngineFactory
 import org.apache.samza.storage.TaskStorageManager
+import org.apache.samza.storage.StoreRestoreCoordinator
 import org.apache.samza.system.StreamMetadataCache
 import org.apache.samza.system.SystemConsumers
 import org.apache.samza.system.SystemConsumersMetrics
@@ -51,12 +52,13 @@ import org.apache.samza.system.SystemProducers
 import org.apache.samza.system.SystemProducersMetrics
 import org.apache.samza.system.SystemStream
 import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.system.TimestampExtractorFactory
 import org.apache.samza.system.chooser.DefaultChooser
 import org.apache.samza.system.chooser.MessageChooserFactory
 import org.apache.samza.system.chooser.RoundRobinChooserFactory
-import org.apache.samza.task.StreamTask
+import org.apache.samza.system.chooser.SystemConsumersHighWatermarkProvider
 import org.apache.samza.task.TaskInstanceCollector
-import org.apache.samza.util.{ExponentialSleepStrategy, Logging, Util}
+import org.apache.samza.util.{BufferMemoryBudget, ExponentialSleepStrategy, IdleStrategyFactory, Logging, Util}
 import scala.collection.JavaConversions._
 import java.net.{UnknownHostException, InetAddress, URL}
 import org.apache.samza.job.model.{TaskModel, ContainerModel, JobModel}
@@ -277,13 +279,24 @@ object SamzaContainer extends Logging {
 
     info("Got change log system streams: %s" format changeLogSystemStreams)
 
+    val timestampExtractors = inputSystemStreams
+      .filter(config.getTimestampExtractorFactory(_).isDefined)
+      .map(systemStream => {
+        val timestampExtractorFactory = Util.getObj[TimestampExtractorFactory](config.getTimestampExtractorFactory(systemStream).get)
+        (systemStream, timestampExtractorFactory.getTimestampExtractor(config))
+      }).toMap
+
+    info("Got timestamp extractors: %s" format timestampExtractors)
+
     val serdeManager = new SerdeManager(
       serdes = serdes,
       systemKeySerdes = systemKeySerdes,
       systemMessageSerdes = systemMessageSerdes,
       systemStreamKeySerdes = systemStreamKeySerdes,
       systemStreamMessageSerdes = systemStreamMessageSerdes,
-      changeLogSystemStreams = changeLogSystemStreams.values.toSet)
+      changeLogSystemStreams = changeLogSystemStreams.values.toSet,
+      lazySystemStreams = inputSystemStreams.filter(config.isLazyDeserializationEnabled),
+      timestampExtractors = timestampExtractors)
 
     info("Setting up JVM metrics.")
 
@@ -295,7 +308,7 @@ object SamzaContainer extends Logging {
 
     val chooserFactory = Util.getObj[MessageChooserFactory](chooserFactoryClassName)
 
-    val chooser = DefaultChooser(inputStreamMetadata, chooserFactory, config, samzaContainerMetrics.registry)
+    val chooser = DefaultChooser(inputStreamMetadata, chooserFactory, config, samzaContainerMetrics.registry, new SystemConsumersHighWatermarkProvider(consumers))
 
     info("Setting up metrics reporters.")
 
@@ -343,13 +356,35 @@ object SamzaContainer extends Logging {
       .getOrElse(SystemConsumers.DEFAULT_POLL_INTERVAL_MS.toString)
       .toInt
 
+    val idleStrategy = config.getIdleStrategyFactory match {
+      case Some(idleStrategyFactoryClassName) if (!idleStrategyFactoryClassName.isEmpty) =>
+        Util
+          .getObj[IdleStrategyFactory](idleStrategyFactoryClassName)
+          .getIdleStrategy(config)
+      case _ => null
+    }
+
+    info("Got idle strategy: %s" format idleStrategy)
+
+    val bufferMemoryBudget = if (config.getBufferMaxBytes > 0) {
+      new BufferMemoryBudget(config.getBufferMaxBytes)
+    } else {
+      null
+    }
+
+    info("Got buffer memory budget: %s" format bufferMemoryBudget)
+
     val consumerMultiplexer = new SystemConsumers(
       chooser = chooser,
       consumers = consumers,
       serdeManager = serdeManager,
       metrics = systemConsumersMetrics,
       dropDeserializationError = dropDeserializationError,
-      pollIntervalMs = pollIntervalMs)
+      pollIntervalMs = pollIntervalMs,
+      idleStrategy = idleStrategy,
+      maxBatchSize = config.getProcessBatchSize,
+      deserializationThreads = config.getDeserializationThreadPoolSize,
+      bufferMemoryBudget = bufferMemoryBudget)
 
     val producerMultiplexer = new SystemProducers(
       producers = producers,
@@ -386,6 +421,13 @@ object SamzaContainer extends Logging {
 
     info("Got shutdown timeout milliseconds: %s" format taskShutdownMs)
 
+    val committer = if (config.isAsyncCommitEnabled) {
+      info("Async commit is enabled. Checkpoints will be written off the run loop thread.")
+      new TaskCommitter(samzaContainerMetrics, offsetManager)
+    } else {
+      null
+    }
+
     // Wire up all task-instance-level (unshared) objects.
 
     val taskNames = containerModel
@@ -408,7 +450,7 @@ object SamzaContainer extends Logging {
 
       val taskName = taskModel.getTaskName
 
-      val task = Util.getObj[StreamTask](taskClassName)
+      val task = Util.getObj[Object](taskClassName)
 
       val taskInstanceMetrics = new TaskInstanceMetrics("TaskName-%s" format taskName)
 
@@ -508,7 +550,8 @@ object SamzaContainer extends Logging {
         storageManager = storageManager,
         reporters = reporters,
         systemStreamPartitions = systemStreamPartitions,
-        exceptionHandler = TaskInstanceExceptionHandler(taskInstanceMetrics, config))
+        exceptionHandler = TaskInstanceExceptionHandler(taskInstanceMetrics, config),
+        committer = committer)
 
       (taskName, taskInstance)
     }).toMap
@@ -527,13 +570,45 @@ object SamzaContainer extends Logging {
       info("Initialized disk space monitor watch paths to: %s" format storeWatchPaths)
     }
 
+    val threadPoolSize = config.getThreadPoolSize
+    val workerPool = if (threadPoolSize > 0) {
+      val taskQueueSize = config.getTaskQueueSize
+      info("Got thread pool size: %s, task queue size: %s" format (threadPoolSize, taskQueueSize))
+      new TaskWorkerPool(taskInstances.keySet, threadPoolSize, taskQueueSize, samzaContainerMetrics)
+    } else {
+      info("No thread pool configured. Task callbacks will run on the run loop thread.")
+      null
+    }
+
+    val restoreThreadPoolSize = config.getRestoreThreadPoolSize
+    val restoreMaxBytesPerSecond = config.getRestoreMaxBytesPerSecond
+    val storeRestoreCoordinator = if (restoreThreadPoolSize > 1 || restoreMaxBytesPerSecond > 0) {
+      info("Got store restore thread pool size: %s, max bytes per second: %s" format (restoreThreadPoolSize, restoreMaxBytesPerSecond))
+      val storageManagers = taskInstances
+        .filter { case (taskName, taskInstance) => taskInstance.storageManager != null }
+        .mapValues(_.storageManager)
+        .toMap
+      new StoreRestoreCoordinator(
+        storageManagers,
+        restoreThreadPoolSize,
+        restoreMaxBytesPerSecond,
+        (taskName, timeToRestore) => samzaContainerMetrics.setTaskStoreRestorationTime(taskName, timeToRestore))
+    } else {
+      info("No store restore thread pool configured. Stores will be restored one at a time.")
+      null
+    }
+
     val runLoop = new RunLoop(
       taskInstances = taskInstances,
       consumerMultiplexer = consumerMultiplexer,
       metrics = samzaContainerMetrics,
       windowMs = taskWindowMs,
       commitMs = taskCommitMs,
-      shutdownMs = taskShutdownMs)
+      shutdownMs = taskShutdownMs,
+      workerPool = workerPool,
+      committer = committer,
+      staggered = config.isStaggeredSchedule,
+      offsetManager = offsetManager)
 
     info("Samza container setup complete.")
 
@@ -549,7 +624,8 @@ object SamzaContainer extends Logging {
       reporters = reporters,
       jvm = jvm,
       jmxServer = jmxServer,
-      diskSpaceMonitor = diskSpaceMonitor)
+      diskSpaceMonitor = diskSpaceMonitor,
+      storeRestoreCoordinator = storeRestoreCoordinator)
   }
 }
 
@@ -565,7 +641,8 @@ class SamzaContainer(
   offsetManager: OffsetManager = new OffsetManager,
   localityManager: LocalityManager = null,
   reporters: Map[String, MetricsReporter] = Map(),
-  jvm: JvmMetrics = null) extends Runnable with Logging {
+  jvm: JvmMetrics = null,
+  storeRestoreCoordinator: StoreRestoreCoordinator = null) extends Runnable with Logging {
 
   def run {
     try {
@@ -661,16 +738,17 @@ class SamzaContainer(
 
   def startStores {
     info("Starting task instance stores.")
-    taskInstances.values.foreach(taskInstance => {
-      val startTime = System.currentTimeMillis()
-      taskInstance.startStores
-      // Measuring the time to restore the stores
-      val timeToRestore = System.currentTimeMillis() - startTime
-      val taskGauge = metrics.taskStoreRestorationMetrics.getOrElse(taskInstance.taskName, null)
-      if (taskGauge != null) {
-        taskGauge.set(timeToRestore)
-      }
-    })
+    if (storeRestoreCoordinator != null) {
+      storeRestoreCoordinator.restore
+    } else {
+      taskInstances.values.foreach(taskInstance => {
+        val startTime = System.currentTimeMillis()
+        taskInstance.startStores
+        // Measuring the time to restore the stores
+        val timeToRestore = System.currentTimeMillis() - startTime
+        metrics.setTaskStoreRestorationTime(taskInstance.taskName, timeToRestore)
+      })
+    }
   }
 
   def startTask {
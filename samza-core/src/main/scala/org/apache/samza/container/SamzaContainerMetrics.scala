@@ -38,13 +38,31 @@ class SamzaContainerMetrics(
   val processNs = newTimer("process-ns")
   val commitNs = newTimer("commit-ns")
   val utilization = newGauge("event-loop-utilization", 0.0F)
+  val taskThreadUtilization = newGauge("task-thread-utilization", 0.0F)
+  val taskQueueFull = newCounter("task-queue-full")
+  val asyncCommitNs = newTimer("async-commit-ns")
 
   val taskStoreRestorationMetrics: util.Map[TaskName, Gauge[Long]] = new util.HashMap[TaskName, Gauge[Long]]()
 
+  def setTaskQueueDepth(getValue: () => Int) {
+    newGauge("task-queue-depth", getValue)
+  }
+
+  def setAsyncCommitsInProgress(getValue: () => Int) {
+    newGauge("async-commits-in-progress", getValue)
+  }
+
   def addStoreRestorationGauge(taskName: TaskName, storeName: String) {
     taskStoreRestorationMetrics.put(taskName, newGauge("%s-%s-restore-time" format(taskName.toString, storeName), -1L))
   }
 
+  def setTaskStoreRestorationTime(taskName: TaskName, timeToRestore: Long) {
+    val taskGauge = taskStoreRestorationMetrics.get(taskName)
+    if (taskGauge != null) {
+      taskGauge.set(timeToRestore)
+    }
+  }
+
   /**
    * Creates or gets the disk usage gauge for the container and returns it.
    */
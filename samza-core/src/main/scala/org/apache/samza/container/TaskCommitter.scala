@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, Executors, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.util.{DaemonThreadFactory, Logging}
+
+/**
+ * Runs the slow part of {@link TaskInstance} commits, writing changelog
+ * offset files and checkpoints, on a background thread, so that the run loop
+ * can keep processing messages while a commit is in progress.
+ *
+ * <p>The caller captures everything that must be consistent with the
+ * messages processed so far, such as the offsets to checkpoint, and flushes
+ * anything the run loop keeps using, such as producers, before it submits
+ * the commit. Each task can have at most one commit outstanding, so
+ * callers should skip a task's commit while isCommitting returns true.</p>
+ *
+ * <p>Commits run on a single thread, one at a time, in the order they were
+ * submitted, because checkpoint managers are not required to be thread-safe.
+ * If a commit throws, no further commits are run, and the exception is
+ * re-thrown to the run loop from the next call to submit or checkFailure.</p>
+ *
+ * <p>If an offsetManager is given, commits that are waiting when the
+ * committer thread becomes free are run together, and their checkpoints are
+ * written in one batch.</p>
+ */
+class TaskCommitter(
+  metrics: SamzaContainerMetrics = new SamzaContainerMetrics,
+  offsetManager: OffsetManager = null) extends Logging {
+
+  private val executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("task-committer"))
+  private val committing = Collections.newSetFromMap(new ConcurrentHashMap[TaskName, java.lang.Boolean])
+  private val failure = new AtomicReference[Throwable]
+  private val pending = new ConcurrentLinkedQueue[PendingCommit]
+
+  private case class PendingCommit(taskName: TaskName, commit: () => Unit, submitNs: Long)
+
+  /**
+   * Runs every commit that is pending when it starts. Executed once per
+   * submit, so a run that finds the queue empty has nothing to do.
+   */
+  private val drain = new Runnable {
+    def run {
+      val commits = Iterator.continually(pending.poll).takeWhile(_ != null).toList
+
+      if (!commits.isEmpty) {
+        try {
+          if (offsetManager != null && commits.size > 1) {
+            offsetManager.batchCheckpoints {
+              commits.foreach(runCommit)
+            }
+          } else {
+            commits.foreach(runCommit)
+          }
+        } catch {
+          case t: Throwable =>
+            error("Failed to commit taskNames %s." format commits.map(_.taskName).mkString(", "), t)
+            failure.compareAndSet(null, t)
+        } finally {
+          commits.foreach(c => committing.remove(c.taskName))
+        }
+      }
+    }
+  }
+
+  metrics.setAsyncCommitsInProgress(() => committing.size)
+
+  /**
+   * Returns true if a commit for the task has been submitted, but has not
+   * completed yet.
+   */
+  def isCommitting(taskName: TaskName) = committing.contains(taskName)
+
+  /**
+   * Queue a commit for a task. The task must not have a commit outstanding.
+   */
+  def submit(taskName: TaskName, commit: () => Unit) {
+    checkFailure
+
+    if (!committing.add(taskName)) {
+      throw new SamzaException("A commit for taskName %s is already in progress." format taskName)
+    }
+
+    pending.add(PendingCommit(taskName, commit, System.nanoTime))
+    executor.execute(drain)
+  }
+
+  private def runCommit(pendingCommit: PendingCommit) {
+    if (failure.get == null) {
+      pendingCommit.commit()
+      metrics.asyncCommitNs.update(System.nanoTime - pendingCommit.submitNs)
+    }
+  }
+
+  /**
+   * Re-throws the first exception that was thrown by a commit, if any.
+   */
+  def checkFailure {
+    val t = failure.get
+
+    if (t != null) {
+      throw t
+    }
+  }
+
+  /**
+   * Waits up to timeoutMs for outstanding commits to finish, and then stops
+   * the committer thread. Returns true if all commits completed in time.
+   */
+  def stop(timeoutMs: Long) = {
+    executor.shutdown
+
+    val completed = executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)
+
+    if (!completed) {
+      warn("Commits did not complete within %s ms. Stopping the committer thread anyway." format timeoutMs)
+
+      executor.shutdownNow
+    }
+
+    completed
+  }
+}
@@ -19,28 +19,37 @@
 
 package org.apache.samza.container
 
+import java.util
+
 import org.apache.samza.SamzaException
 import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.checkpoint.TaskOffsets
 import org.apache.samza.config.Config
+import org.apache.samza.config.DefaultChooserConfig.Config2DefaultChooser
 import org.apache.samza.config.TaskConfig.Config2Task
 import org.apache.samza.metrics.MetricsReporter
 import org.apache.samza.storage.TaskStorageManager
 import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.LazyIncomingMessageEnvelope
 import org.apache.samza.system.SystemStreamPartition
 import org.apache.samza.system.SystemConsumers
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
 import org.apache.samza.task.TaskContext
+import org.apache.samza.task.AsyncStreamTask
+import org.apache.samza.task.BatchStreamTask
 import org.apache.samza.task.ClosableTask
 import org.apache.samza.task.InitableTask
 import org.apache.samza.task.WindowableTask
 import org.apache.samza.task.StreamTask
 import org.apache.samza.task.ReadableCoordinator
+import org.apache.samza.task.TaskCallbackManager
 import org.apache.samza.task.TaskInstanceCollector
 import org.apache.samza.util.Logging
 import scala.collection.JavaConversions._
 import org.apache.samza.system.SystemAdmin
 
 class TaskInstance(
-  task: StreamTask,
+  task: Any,
   val taskName: TaskName,
   config: Config,
   metrics: TaskInstanceMetrics,
@@ -49,13 +58,42 @@ class TaskInstance(
   collector: TaskInstanceCollector,
   containerContext: SamzaContainerContext,
   offsetManager: OffsetManager = new OffsetManager,
-  storageManager: TaskStorageManager = null,
+  val storageManager: TaskStorageManager = null,
   reporters: Map[String, MetricsReporter] = Map(),
   val systemStreamPartitions: Set[SystemStreamPartition] = Set(),
-  val exceptionHandler: TaskInstanceExceptionHandler = new TaskInstanceExceptionHandler) extends Logging {
+  val exceptionHandler: TaskInstanceExceptionHandler = new TaskInstanceExceptionHandler,
+  committer: TaskCommitter = null) extends Logging {
+  val isAsyncTask = task.isInstanceOf[AsyncStreamTask]
+  val isBatchTask = task.isInstanceOf[BatchStreamTask]
   val isInitableTask = task.isInstanceOf[InitableTask]
   val isWindowableTask = task.isInstanceOf[WindowableTask]
   val isClosableTask = task.isInstanceOf[ClosableTask]
+
+  if (!task.isInstanceOf[StreamTask] && !isAsyncTask && !isBatchTask) {
+    throw new SamzaException("Task class %s must implement StreamTask, AsyncStreamTask or BatchStreamTask." format task.getClass.getName)
+  }
+
+  if (isAsyncTask && isBatchTask) {
+    throw new SamzaException("Task class %s must not implement both AsyncStreamTask and BatchStreamTask." format task.getClass.getName)
+  }
+
+  // Only used for AsyncStreamTasks. Hands offsets to the offset manager in
+  // the order that messages were dispatched.
+  val callbackManager = if (isAsyncTask) {
+    new TaskCallbackManager(
+      taskName,
+      config.getMaxConcurrency,
+      (ssp, offset) => updateOffset(getSspIndex(ssp), ssp, offset),
+      exceptionHandler.maybeIgnore,
+      config.getCallbackTimeoutMs)
+  } else {
+    null
+  }
+
+  if (isAsyncTask) {
+    metrics.setMessagesInFlight(() => callbackManager.inFlight)
+  }
+
   val context = new TaskContext {
     def getMetricsRegistry = metrics.registry
     def getSystemStreamPartitions = systemStreamPartitions
@@ -74,11 +112,37 @@ class TaskInstance(
       offsetManager.startingOffsets += taskName -> (startingOffsets(taskName) + (ssp -> offset))
     }
   }
-  // store the (ssp -> if this ssp is catched up) mapping. "catched up"
+  // Each SystemStreamPartition gets a dense index, so that per-message state
+  // can be kept in arrays and looked up without allocating.
+  private val sspIndexes = new util.HashMap[SystemStreamPartition, Integer]
+  systemStreamPartitions.zipWithIndex.foreach { case (ssp, index) => sspIndexes.put(ssp, index) }
+
+  // store whether each ssp is catched up, by ssp index. "catched up"
   // means the same ssp in other taskInstances have the same offset as
   // the one here.
-  var ssp2catchedupMapping: scala.collection.mutable.Map[SystemStreamPartition, Boolean] = scala.collection.mutable.Map[SystemStreamPartition, Boolean]()
-  systemStreamPartitions.foreach(ssp2catchedupMapping += _ -> false)
+  private val sspCaughtUp = new Array[Boolean](systemStreamPartitions.size)
+
+  // Starting offsets by ssp index, looked up once while an ssp catches up.
+  private val sspStartingOffsets = new Array[String](systemStreamPartitions.size)
+
+  // The offset manager's table of last processed offsets for this task, and
+  // each ssp's index in it, by ssp index. Set in registerConsumers, once the
+  // offset manager has started. Until then, offsets are handed to the offset
+  // manager by SSP. The table grows in place, so it never goes stale.
+  private var offsets: TaskOffsets = null
+  private var offsetIndexes: Array[Int] = null
+
+  // Only used for BatchStreamTasks. Messages that have been received, but not
+  // yet handed to the task, by SSP index. A batch is handed over once it is
+  // full, or once it has lingered for batchLingerNs.
+  private val batchSize = if (isBatchTask) math.max(config.getProcessBatchSize, 1) else 1
+  private val batchLingerNs = if (isBatchTask) config.getProcessBatchLingerMs * 1000000L else 0L
+  private val pendingBatches = new Array[util.ArrayList[IncomingMessageEnvelope]](systemStreamPartitions.size)
+  private val pendingBatchDeadlineNs = new Array[Long](systemStreamPartitions.size)
+
+  // The earliest deadline of any pending batch. Read by the run loop thread
+  // to decide when to call flushBatches.
+  @volatile private var batchDeadlineNs = Long.MaxValue
 
   def registerMetrics {
     debug("Registering metrics for taskName: %s" format taskName)
@@ -121,10 +185,28 @@ class TaskInstance(
   def registerConsumers {
     debug("Registering consumers for taskName: %s" format taskName)
 
+    val taskOffsets = offsetManager.getTaskOffsets(taskName)
+    offsetIndexes = new Array[Int](sspIndexes.size)
+    sspIndexes.foreach { case (ssp, index) =>
+      offsetIndexes(index) = taskOffsets.indexOf(ssp)
+
+      if (offsetIndexes(index) < 0) {
+        throw new SamzaException("SystemStreamPartition %s of taskName %s is not registered with the offset manager. Call registerOffsets first." format (ssp, taskName))
+      }
+    }
+    offsets = taskOffsets
+
+    val bootstrapStreams = if (isBatchTask) config.getBootstrapStreams else Set()
+
     systemStreamPartitions.foreach(systemStreamPartition => {
       val offset = offsetManager.getStartingOffset(taskName, systemStreamPartition)
       .getOrElse(throw new SamzaException("No offset defined for SystemStreamPartition: %s" format systemStreamPartition))
       consumerMultiplexer.register(systemStreamPartition, offset)
+      // The bootstrapping chooser must see every message of a bootstrap
+      // stream, so those are not drained in batches.
+      if (isBatchTask && !bootstrapStreams.contains(systemStreamPartition.getSystemStream)) {
+        consumerMultiplexer.enableBatching(systemStreamPartition)
+      }
       metrics.addOffsetGauge(systemStreamPartition, () => {
         offsetManager
           .getLastProcessedOffset(taskName, systemStreamPartition)
@@ -136,28 +218,199 @@ class TaskInstance(
   def process(envelope: IncomingMessageEnvelope, coordinator: ReadableCoordinator) {
     metrics.processes.inc
 
-    if (!ssp2catchedupMapping.getOrElse(envelope.getSystemStreamPartition,
-      throw new SamzaException(envelope.getSystemStreamPartition + " is not registered!"))) {
-      checkCaughtUp(envelope)
+    val sspIndex = getSspIndex(envelope.getSystemStreamPartition)
+
+    if (isCaughtUp(sspIndex, envelope)) {
+      metrics.messagesActuallyProcessed.inc
+
+      // Avoid building the by-name trace messages for every message.
+      if (logger.isTraceEnabled) {
+        trace("Processing incoming message envelope for taskName and SSP: %s, %s" format (taskName, envelope.getSystemStreamPartition))
+      }
+
+      // Not maybeHandle, which would allocate a closure for every message.
+      try {
+        task.asInstanceOf[StreamTask].process(envelope, collector, coordinator)
+      } catch {
+        case e: Exception => exceptionHandler.handle(e)
+      }
+
+      countNotDecoded(envelope)
+      release(envelope)
+
+      if (logger.isTraceEnabled) {
+        trace("Updating offset map for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset))
+      }
+
+      updateOffset(sspIndex, envelope.getSystemStreamPartition, envelope.getOffset)
+    } else {
+      release(envelope)
     }
+  }
+
+  /**
+   * Reserves a slot for a message that is about to be handed to
+   * processAsync. Returns false, without blocking, if the AsyncStreamTask
+   * already has task.max.concurrency messages in flight, in which case the
+   * message must be held back until a slot is free.
+   */
+  def tryReserveCallback = callbackManager.tryReserve
+
+  /**
+   * Dispatches a message to an AsyncStreamTask. The caller must have reserved
+   * a slot for it with tryReserveCallback. callbackCompleted is invoked,
+   * possibly from another thread, once the task has completed the message; it
+   * is invoked right away if the message is skipped. A zero-copy envelope is
+   * released just before callbackCompleted is invoked.
+   */
+  def processAsync(envelope: IncomingMessageEnvelope, coordinator: ReadableCoordinator, callbackCompleted: () => Unit) {
+    metrics.processes.inc
+
+    callbackManager.checkFailure
 
-    if (ssp2catchedupMapping(envelope.getSystemStreamPartition)) {
+    if (isCaughtUp(getSspIndex(envelope.getSystemStreamPartition), envelope)) {
       metrics.messagesActuallyProcessed.inc
 
-      trace("Processing incoming message envelope for taskName and SSP: %s, %s" format (taskName, envelope.getSystemStreamPartition))
+      // Avoid building the by-name trace message for every message.
+      if (logger.isTraceEnabled) {
+        trace("Dispatching incoming message envelope for taskName and SSP: %s, %s" format (taskName, envelope.getSystemStreamPartition))
+      }
 
-      exceptionHandler.maybeHandle {
-        task.process(envelope, collector, coordinator)
+      val completed = envelope match {
+        case zeroCopyEnvelope: ZeroCopyIncomingMessageEnvelope => () => {
+          zeroCopyEnvelope.release
+          callbackCompleted()
+        }
+        case _ => callbackCompleted
+      }
+      val callback = callbackManager.newCallback(envelope, completed)
+
+      try {
+        task.asInstanceOf[AsyncStreamTask].processAsync(envelope, collector, coordinator, callback)
+      } catch {
+        case e: Exception => callback.failure(e)
+      }
+
+      countNotDecoded(envelope)
+    } else {
+      callbackManager.cancelReservation
+      release(envelope)
+      callbackCompleted()
+    }
+  }
+
+  /**
+   * Hands messages from a single SystemStreamPartition to a BatchStreamTask.
+   * The messages are added to the SSP's pending batch, which is processed
+   * once it holds task.process.batch.size messages. If no linger time is
+   * configured, whatever is pending is processed right away. Otherwise, a
+   * partial batch waits until flushBatches finds that it has expired. The
+   * offset of the last message in a batch is recorded once the batch has been
+   * processed. nowNs is the run loop's current time, from which a new partial
+   * batch's linger time is counted.
+   */
+  def processBatch(envelopes: util.List[IncomingMessageEnvelope], nowNs: Long, coordinator: ReadableCoordinator) {
+    metrics.processes.inc(envelopes.size)
+
+    val sspIndex = getSspIndex(envelopes.get(0).getSystemStreamPartition)
+    var i = 0
+
+    while (i < envelopes.size) {
+      val envelope = envelopes.get(i)
+
+      if (isCaughtUp(sspIndex, envelope)) {
+        var pending = pendingBatches(sspIndex)
+
+        if (pending == null) {
+          pending = new util.ArrayList[IncomingMessageEnvelope](batchSize)
+          pendingBatches(sspIndex) = pending
+        }
+
+        pending.add(envelope)
+
+        if (pending.size >= batchSize) {
+          processPendingBatch(sspIndex, coordinator)
+        }
+      } else {
+        release(envelope)
+      }
+
+      i += 1
+    }
+
+    if (pendingBatches(sspIndex) != null) {
+      if (batchLingerNs <= 0) {
+        processPendingBatch(sspIndex, coordinator)
+      } else if (pendingBatchDeadlineNs(sspIndex) == 0) {
+        pendingBatchDeadlineNs(sspIndex) = nowNs + batchLingerNs
+        batchDeadlineNs = math.min(batchDeadlineNs, pendingBatchDeadlineNs(sspIndex))
+      }
+    }
+  }
+
+  /**
+   * Returns the time, in the run loop's clock, at which the first pending batch
+   * expires, or Long.MaxValue if no batch is pending.
+   */
+  def getBatchDeadlineNs = batchDeadlineNs
+
+  /**
+   * Processes all pending batches that have lingered until nowNs.
+   */
+  def flushBatches(nowNs: Long, coordinator: ReadableCoordinator) {
+    var nextDeadlineNs = Long.MaxValue
+    var sspIndex = 0
+
+    while (sspIndex < pendingBatches.length) {
+      if (pendingBatches(sspIndex) != null) {
+        if (pendingBatchDeadlineNs(sspIndex) <= nowNs) {
+          processPendingBatch(sspIndex, coordinator)
+        } else {
+          nextDeadlineNs = math.min(nextDeadlineNs, pendingBatchDeadlineNs(sspIndex))
+        }
       }
 
-      trace("Updating offset map for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset))
+      sspIndex += 1
+    }
+
+    batchDeadlineNs = nextDeadlineNs
+  }
+
+  private def processPendingBatch(sspIndex: Int, coordinator: ReadableCoordinator) {
+    val batch = pendingBatches(sspIndex)
+    val lastEnvelope = batch.get(batch.size - 1)
+
+    pendingBatches(sspIndex) = null
+    pendingBatchDeadlineNs(sspIndex) = 0
+    metrics.batches.inc
+    metrics.messagesActuallyProcessed.inc(batch.size)
+
+    if (logger.isTraceEnabled) {
+      trace("Processing batch of %s messages for taskName and SSP: %s, %s" format (batch.size, taskName, lastEnvelope.getSystemStreamPartition))
+    }
+
+    try {
+      task.asInstanceOf[BatchStreamTask].processBatch(batch, collector, coordinator)
+    } catch {
+      case e: Exception => exceptionHandler.handle(e)
+    }
 
-      offsetManager.update(taskName, envelope.getSystemStreamPartition, envelope.getOffset)
+    var i = 0
+    while (i < batch.size) {
+      countNotDecoded(batch.get(i))
+      release(batch.get(i))
+      i += 1
     }
+
+    updateOffset(sspIndex, lastEnvelope.getSystemStreamPartition, lastEnvelope.getOffset)
   }
 
   def window(coordinator: ReadableCoordinator) {
     if (isWindowableTask) {
+      if (isAsyncTask) {
+        callbackManager.checkFailure
+      }
+
       trace("Windowing for taskName: %s" format taskName)
 
       metrics.windows.inc
@@ -169,21 +422,80 @@ class TaskInstance(
   }
 
   def commit {
-    trace("Flushing state stores for taskName: %s" format taskName)
-
     metrics.commits.inc
 
+    val startNs = System.nanoTime
+
+    // The outstanding commit will be followed by the next regular one, which
+    // picks up everything that this one would have.
+    if (committer != null && committer.isCommitting(taskName)) {
+      debug("Skipping commit for taskName %s because its previous commit is still in progress." format taskName)
+
+      metrics.asyncCommitsSkipped.inc
+    } else {
+      flushAndCheckpoint
+    }
+
+    metrics.commitNs.update(System.nanoTime - startNs)
+  }
+
+  private def flushAndCheckpoint {
+    if (isAsyncTask) {
+      trace("Waiting for in-flight messages to complete for taskName: %s" format taskName)
+
+      callbackManager.awaitCompletion
+      callbackManager.checkFailure
+    }
+
+    if (committer == null) {
+      trace("Flushing state stores for taskName: %s" format taskName)
+
+      if (storageManager != null) {
+        storageManager.flush
+      }
+
+      trace("Flushing producers for taskName: %s" format taskName)
+
+      collector.flush
+
+      trace("Committing offset manager for taskName: %s" format taskName)
+
+      offsetManager.checkpoint(taskName)
+    } else {
+      commitAsync
+    }
+  }
+
+  /**
+   * Flushes the stores and producers and snapshots the offsets on the
+   * calling thread, and leaves writing the checkpoint to the committer.
+   * Producers are flushed here because the run loop keeps calling send on
+   * them, and producers are not required to be thread-safe.
+   */
+  private def commitAsync {
+    trace("Flushing state stores for taskName: %s" format taskName)
+
     if (storageManager != null) {
-      storageManager.flush
+      storageManager.flushStores
     }
 
+    val checkpoint = offsetManager.getCheckpoint(taskName)
+
     trace("Flushing producers for taskName: %s" format taskName)
 
     collector.flush
 
-    trace("Committing offset manager for taskName: %s" format taskName)
+    trace("Submitting commit for taskName: %s" format taskName)
+
+    committer.submit(taskName, () => {
+      if (storageManager != null) {
+        storageManager.flushChangelogOffsetFiles
+      }
+
+      trace("Committing offset manager for taskName: %s" format taskName)
 
-    offsetManager.checkpoint(taskName)
+      offsetManager.writeCheckpoint(taskName, checkpoint)
+    })
   }
 
   def shutdownTask {
@@ -208,33 +520,86 @@ class TaskInstance(
 
   override def toString() = "TaskInstance for class %s and taskName %s." format (task.getClass.getName, taskName)
 
-  def toDetailedString() = "TaskInstance [taskName = %s, windowable=%s, closable=%s]" format (taskName, isWindowableTask, isClosableTask)
+  def toDetailedString() = "TaskInstance [taskName = %s, async=%s, windowable=%s, closable=%s]" format (taskName, isAsyncTask, isWindowableTask, isClosableTask)
+
+  /**
+   * Counts lazily deserialized messages that the task returned from without
+   * having looked at. For AsyncStreamTasks, this is checked when
+   * processAsync returns.
+   */
+  private def countNotDecoded(envelope: IncomingMessageEnvelope) {
+    envelope match {
+      case lazyEnvelope: LazyIncomingMessageEnvelope if !lazyEnvelope.isMessageDecoded => metrics.messagesNotDecoded.inc
+      case _ =>
+    }
+  }
+
+  /**
+   * Gives up a zero-copy envelope's reference to its fetch buffer, once the
+   * task is done with the envelope.
+   */
+  private def release(envelope: IncomingMessageEnvelope) {
+    envelope match {
+      case zeroCopyEnvelope: ZeroCopyIncomingMessageEnvelope => zeroCopyEnvelope.release
+      case _ =>
+    }
+  }
+
+  private def getSspIndex(systemStreamPartition: SystemStreamPartition) = {
+    val sspIndex = sspIndexes.get(systemStreamPartition)
+
+    if (sspIndex == null) {
+      throw new SamzaException(systemStreamPartition + " is not registered!")
+    }
+
+    sspIndex.intValue
+  }
+
+  private def updateOffset(sspIndex: Int, systemStreamPartition: SystemStreamPartition, offset: String) {
+    if (offsets != null) {
+      offsets.update(offsetIndexes(sspIndex), offset)
+    } else {
+      offsetManager.update(taskName, systemStreamPartition, offset)
+    }
+  }
+
+  private def isCaughtUp(sspIndex: Int, envelope: IncomingMessageEnvelope) = {
+    if (!sspCaughtUp(sspIndex)) {
+      sspCaughtUp(sspIndex) = checkCaughtUp(sspIndex, envelope)
+    }
+
+    sspCaughtUp(sspIndex)
+  }
 
   /**
    * From the envelope, check if this SSP has catched up with the starting offset of the SSP
    * in this TaskInstance. If the offsets are not comparable, default to true, which means
    * it's already catched-up.
    */
-  private def checkCaughtUp(envelope: IncomingMessageEnvelope) = {
+  private def checkCaughtUp(sspIndex: Int, envelope: IncomingMessageEnvelope) = {
     systemAdmins match {
       case null => {
         warn("systemAdmin is null. Set all SystemStreamPartitions to catched-up")
-        ssp2catchedupMapping(envelope.getSystemStreamPartition) = true
+        true
       }
       case others => {
-        val startingOffset = offsetManager.getStartingOffset(taskName, envelope.getSystemStreamPartition)
+        if (sspStartingOffsets(sspIndex) == null) {
+          sspStartingOffsets(sspIndex) = offsetManager.getStartingOffset(taskName, envelope.getSystemStreamPartition)
             .getOrElse(throw new SamzaException("No offset defined for SystemStreamPartition: %s" format envelope.getSystemStreamPartition))
+        }
+        val startingOffset = sspStartingOffsets(sspIndex)
         val system = envelope.getSystemStreamPartition.getSystem
         others(system).offsetComparator(envelope.getOffset, startingOffset) match {
           case null => {
             info("offsets in " + system + " is not comparable. Set all SystemStreamPartitions to catched-up")
-            ssp2catchedupMapping(envelope.getSystemStreamPartition) = true // not comparable
+            true // not comparable
           }
           case result => {
             if (result >= 0) {
               info(envelope.getSystemStreamPartition.toString + " is catched up.")
-              ssp2catchedupMapping(envelope.getSystemStreamPartition) = true
             }
+
+            result >= 0
           }
         }
       }
@@ -65,20 +65,36 @@ class TaskInstanceExceptionHandler(
    * @param exception The exception to handle.
    */
   def handle(exception: Exception) {
-    val className = exception.getClass.getName
-    if (!ignoreAll && !ignoredExceptions.contains(className)) {
+    if (!maybeIgnore(exception)) {
       throw exception
     }
+  }
+
+  /**
+   * Counts the exception and returns true if it is in the set of exceptions
+   * to ignore, or if the wildcard is used to ignore all exceptions. Returns
+   * false otherwise. Errors are never ignored. Safe to call from any thread.
+   *
+   * @param exception The exception to check.
+   */
+  def maybeIgnore(exception: Throwable): Boolean = synchronized {
+    val className = exception.getClass.getName
 
-    debug("Counting exception " + className)
+    if (exception.isInstanceOf[Exception] && (ignoreAll || ignoredExceptions.contains(className))) {
+      debug("Counting exception " + className)
 
-    counters.get(className) match {
-      case Some(counter) => counter.inc()
-      case _ => {
-        val counter = metrics.newCounter("exception-ignored-" + className)
-        counter.inc()
-        counters += className -> counter
+      counters.get(className) match {
+        case Some(counter) => counter.inc()
+        case _ => {
+          val counter = metrics.newCounter("exception-ignored-" + className)
+          counter.inc()
+          counters += className -> counter
+        }
       }
+
+      true
+    } else {
+      false
     }
   }
 }
@@ -31,10 +31,18 @@ class TaskInstanceMetrics(
   val commits = newCounter("commit-calls")
   val windows = newCounter("window-calls")
   val processes = newCounter("process-calls")
+  val batches = newCounter("process-batch-calls")
   val messagesActuallyProcessed = newCounter("messages-actually-processed")
+  val messagesNotDecoded = newCounter("messages-not-decoded")
   val sends = newCounter("send-calls")
   val flushes = newCounter("flush-calls")
   val messagesSent = newCounter("messages-sent")
+  val asyncCommitsSkipped = newCounter("async-commits-skipped")
+  val commitNs = newTimer("commit-ns")
+
+  def setMessagesInFlight(getValue: () => Int) {
+    newGauge("messages-in-flight", getValue)
+  }
 
   def addOffsetGauge(systemStreamPartition: SystemStreamPartition, getValue: () => String) {
     newGauge("%s-%s-%d-offset" format (systemStreamPartition.getSystem, systemStreamPartition.getStream, systemStreamPartition.getPartition.getPartitionId), getValue)
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import java.util.{Comparator, PriorityQueue}
+
+import scala.collection.mutable
+
+/**
+ * Runs a periodic per-task action, such as commit or window, with each task
+ * on its own deadline. The first deadlines are spread evenly across one
+ * interval, so that the action runs for a few tasks at a time instead of for
+ * all tasks at once.
+ *
+ * <p>Deadlines are kept in a priority queue, so checking whether anything is
+ * due costs a single peek, and the schedule does not allocate once it has
+ * been built. A task whose deadline was missed by more than one interval
+ * skips the missed runs, and keeps its place in the schedule.</p>
+ *
+ * @param taskNames The tasks to schedule.
+ * @param intervalNs Time in nanoseconds between two runs for a task.
+ * @param startNs The time that the first interval starts at.
+ * @param action Called with the name of each task that is due.
+ */
+class TaskSchedule(
+  taskNames: Iterable[TaskName],
+  intervalNs: Long,
+  startNs: Long,
+  action: TaskName => Unit) {
+
+  private class Deadline(val taskName: TaskName, var ns: Long)
+
+  private val deadlines = new PriorityQueue[Deadline](math.max(taskNames.size, 1), new Comparator[Deadline] {
+    def compare(d1: Deadline, d2: Deadline) = java.lang.Long.compare(d1.ns, d2.ns)
+  })
+
+  private val deadlinesByTaskName = mutable.Map[TaskName, Deadline]()
+
+  {
+    val sortedTaskNames = taskNames.toSeq.sorted
+    val taskCount = sortedTaskNames.size
+
+    sortedTaskNames.zipWithIndex.foreach {
+      case (taskName, index) =>
+        val deadline = new Deadline(taskName, startNs + intervalNs * (index + 1) / taskCount)
+        deadlinesByTaskName += taskName -> deadline
+        deadlines.add(deadline)
+    }
+  }
+
+  /**
+   * Runs the action for every task whose deadline is before nowNs, and
+   * moves those tasks' deadlines to their next interval. Returns the number
+   * of tasks that the action ran for.
+   */
+  def runDue(nowNs: Long): Int = {
+    var count = 0
+
+    while (!deadlines.isEmpty && deadlines.peek.ns < nowNs) {
+      val deadline = deadlines.poll
+      deadline.ns = nextDeadlineNs(deadline.ns, nowNs)
+      deadlines.add(deadline)
+      action(deadline.taskName)
+      count += 1
+    }
+
+    count
+  }
+
+  /**
+   * Starts a new interval for a task at nowNs. Used when the action was run
+   * for the task outside of the schedule.
+   */
+  def reschedule(taskName: TaskName, nowNs: Long) {
+    deadlinesByTaskName.get(taskName) match {
+      case Some(deadline) =>
+        deadlines.remove(deadline)
+        deadline.ns = nowNs + intervalNs
+        deadlines.add(deadline)
+      case None =>
+    }
+  }
+
+  /**
+   * The earliest deadline of any task, or Long.MaxValue if there are no tasks.
+   */
+  def getNextDeadlineNs = if (deadlines.isEmpty) Long.MaxValue else deadlines.peek.ns
+
+  private def nextDeadlineNs(deadlineNs: Long, nowNs: Long) = {
+    if (intervalNs <= 0) {
+      nowNs
+    } else if (deadlineNs + intervalNs >= nowNs) {
+      deadlineNs + intervalNs
+    } else {
+      deadlineNs + ((nowNs - deadlineNs) / intervalNs + 1) * intervalNs
+    }
+  }
+}
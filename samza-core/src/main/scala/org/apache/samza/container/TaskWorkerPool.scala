@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong, AtomicReference}
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, Semaphore, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.apache.samza.util.{DaemonThreadFactory, Logging}
+
+object TaskWorkerPool {
+  val DEFAULT_TASK_QUEUE_SIZE = 1000
+
+  /**
+   * The maximum number of work items that a pool thread runs for one task
+   * before handing the thread over to other tasks.
+   */
+  val MAX_WORK_ITEMS_PER_RUN = 100
+
+  /**
+   * How often the utilization gauge is recomputed.
+   */
+  val UTILIZATION_SAMPLE_NS = 1000000000L
+
+  /**
+   * How long a blocked submit waits before checking for a failed task.
+   */
+  val FAILURE_CHECK_MS = 10L
+}
+
+/**
+ * Runs the work of {@link TaskInstance}s on a bounded pool of threads, so that
+ * a single container can use more than one core for task callbacks.
+ *
+ * <p>Work submitted for a task is executed one item at a time, in the order
+ * it was submitted. A TaskInstance is therefore never invoked concurrently,
+ * messages from a SystemStreamPartition are processed in the order they were
+ * chosen, and window and commit calls are ordered with respect to the
+ * messages that the run loop dispatched before them.</p>
+ *
+ * <p>Each task can have at most taskQueueSize pending work items. When a
+ * task's queue is full, submit blocks the caller until the task catches up.
+ * This bounds the number of envelopes that are held in memory, and applies
+ * back pressure to the run loop.</p>
+ *
+ * <p>If a work item throws, the pool stops running work and the exception is
+ * re-thrown to the run loop from the next call to submit or checkFailure.</p>
+ */
+class TaskWorkerPool(
+  taskNames: Set[TaskName],
+  val poolSize: Int,
+  taskQueueSize: Int = TaskWorkerPool.DEFAULT_TASK_QUEUE_SIZE,
+  metrics: SamzaContainerMetrics = new SamzaContainerMetrics) extends Logging {
+
+  if (poolSize <= 0) {
+    throw new SamzaException("Thread pool size must be positive, but was %s." format poolSize)
+  }
+
+  if (taskQueueSize <= 0) {
+    throw new SamzaException("Task queue size must be positive, but was %s." format taskQueueSize)
+  }
+
+  private val executor = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("task-worker"))
+  private val workers = taskNames.map(taskName => (taskName, new TaskWorker(taskName))).toMap
+  private val failure = new AtomicReference[Throwable]
+  private val busyNs = new AtomicLong
+  private var lastSampleNs = System.nanoTime
+  private var lastSampleBusyNs = 0L
+
+  metrics.setTaskQueueDepth(() => workers.values.foldLeft(0)(_ + _.pending.get))
+
+  /**
+   * Queue a piece of work for a task. Blocks while the task's queue is full.
+   */
+  def submit(taskName: TaskName, work: () => Unit) {
+    checkFailure
+
+    workers
+      .getOrElse(taskName, throw new SamzaException("No worker for taskName: %s" format taskName))
+      .submit(work)
+  }
+
+  /**
+   * Re-throws the first exception that was thrown by a work item, if any.
+   */
+  def checkFailure {
+    val t = failure.get
+
+    if (t != null) {
+      throw t
+    }
+  }
+
+  /**
+   * Blocks until every task's queue is empty, or the timeout elapses.
+   * Returns true if all work completed in time.
+   */
+  def awaitIdle(timeoutMs: Long): Boolean = {
+    val deadlineNs = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+
+    workers.values.forall(_.awaitIdle(deadlineNs))
+  }
+
+  /**
+   * Recompute the thread utilization gauge: the fraction of pool thread time
+   * spent running task work since the last sample.
+   */
+  def updateUtilization {
+    val now = System.nanoTime
+    val elapsedNs = now - lastSampleNs
+
+    if (elapsedNs >= TaskWorkerPool.UTILIZATION_SAMPLE_NS) {
+      val currentBusyNs = busyNs.get
+      val utilization = (currentBusyNs - lastSampleBusyNs).toFloat / (elapsedNs * poolSize)
+      metrics.taskThreadUtilization.set(math.min(utilization, 1.0F))
+      lastSampleNs = now
+      lastSampleBusyNs = currentBusyNs
+    }
+  }
+
+  /**
+   * Waits up to timeoutMs for pending work to finish, and then stops the pool.
+   */
+  def stop(timeoutMs: Long) {
+    if (!awaitIdle(timeoutMs)) {
+      warn("Task work did not complete within %s ms. Stopping task threads anyway." format timeoutMs)
+    }
+
+    executor.shutdownNow
+  }
+
+  private class TaskWorker(taskName: TaskName) extends Runnable {
+    val queue = new ConcurrentLinkedQueue[() => Unit]
+    val pending = new AtomicInteger
+    val permits = new Semaphore(taskQueueSize)
+    val scheduled = new AtomicBoolean(false)
+
+    def submit(work: () => Unit) {
+      if (!permits.tryAcquire) {
+        trace("Queue for taskName %s is full. Waiting for the task to catch up." format taskName)
+
+        metrics.taskQueueFull.inc
+
+        while (!permits.tryAcquire(TaskWorkerPool.FAILURE_CHECK_MS, TimeUnit.MILLISECONDS)) {
+          checkFailure
+        }
+      }
+
+      pending.incrementAndGet
+      queue.add(work)
+      schedule
+    }
+
+    def awaitIdle(deadlineNs: Long) = {
+      val remainingNs = math.max(deadlineNs - System.nanoTime, 0L)
+
+      if (permits.tryAcquire(taskQueueSize, remainingNs, TimeUnit.NANOSECONDS)) {
+        permits.release(taskQueueSize)
+        true
+      } else {
+        false
+      }
+    }
+
+    def run {
+      val startNs = System.nanoTime
+
+      try {
+        var remaining = TaskWorkerPool.MAX_WORK_ITEMS_PER_RUN
+        var work: () => Unit = queue.poll()
+
+        while (work != null) {
+          try {
+            // Once any task has failed, drop outstanding work so the run loop
+            // can shut the container down.
+            if (failure.get == null) {
+              work()
+            }
+          } catch {
+            case t: Throwable =>
+              error("Failed to run work for taskName %s." format taskName, t)
+              failure.compareAndSet(null, t)
+          } finally {
+            pending.decrementAndGet
+            permits.release
+          }
+
+          remaining -= 1
+          work = if (remaining > 0) queue.poll() else null
+        }
+      } finally {
+        busyNs.addAndGet(System.nanoTime - startNs)
+        scheduled.set(false)
+
+        // Work may have been queued after the last poll, but before the
+        // scheduled flag was cleared.
+        if (!queue.isEmpty) {
+          schedule
+        }
+      }
+    }
+
+    private def schedule {
+      if (!executor.isShutdown && scheduled.compareAndSet(false, true)) {
+        executor.execute(this)
+      }
+    }
+  }
+}
@@ -24,13 +24,14 @@ import java.nio.ByteBuffer
 
 /**
  * A serializer for bytes that is effectively a no-op but can be useful for
- * binary messages.
+ * binary messages. Zero-copy envelopes' buffers are passed through as they
+ * are, without copying them.
  */
 class ByteBufferSerdeFactory extends SerdeFactory[ByteBuffer] {
   def getSerde(name: String, config: Config): Serde[ByteBuffer] = new ByteBufferSerde
 }
 
-class ByteBufferSerde extends Serde[ByteBuffer] {
+class ByteBufferSerde extends Serde[ByteBuffer] with ByteBufferDeserializer[ByteBuffer] {
   def toBytes(byteBuffer: ByteBuffer) = {
     if (byteBuffer != null) {
       val bytes = new Array[Byte](byteBuffer.remaining())
@@ -46,4 +47,6 @@ class ByteBufferSerde extends Serde[ByteBuffer] {
   } else {
     null
   }
+
+  def fromByteBuffer(buffer: ByteBuffer) = buffer
 }
@@ -20,6 +20,7 @@
 package org.apache.samza.serializers
 
 import org.apache.samza.util.Logging
+import java.nio.ByteBuffer
 import java.util
 import org.apache.samza.checkpoint.Checkpoint
 import org.apache.samza.container.TaskName
@@ -30,13 +31,31 @@ import scala.collection.JavaConversions._
 import org.codehaus.jackson.`type`.TypeReference
 
 /**
- * Write out the Checkpoint object in JSON.  The underlying map of SSP => Offset cannot be stored directly because
+ * Write out the Checkpoint object in JSON or in a compact binary format.
+ *
+ * <p>In JSON, the underlying map of SSP => Offset cannot be stored directly because
  * JSON only allows strings as map types, so we would need to separately serialize the SSP to a string that doesn't
  * then interfere with JSON's decoding of the overall map.  We'll sidestep the whole issue by turning the
- * map into a list[String] of (System, Stream, Partition, Offset) serializing that.
+ * map into a list[String] of (System, Stream, Partition, Offset) serializing that.</p>
+ *
+ * <p>The binary format starts with a version byte, which can't be the first byte of a JSON document. It is
+ * followed by a dictionary of the system and stream names in the checkpoint, and then each SSP as the
+ * dictionary indexes of its system and stream, its partition and its offset. Integers are written as
+ * varints, and offsets that are decimal longs, like Kafka's, are written as varints too.</p>
+ *
+ * <p>fromBytes reads either format, whichever format toBytes writes. To migrate a job, first deploy the
+ * version of Samza that reads both formats, and then switch task.checkpoint.format to binary. Each task's
+ * checkpoint is rewritten in the binary format at its next commit.</p>
  */
-class CheckpointSerde extends Serde[Checkpoint] with Logging {
+class CheckpointSerde(format: String) extends Serde[Checkpoint] with Logging {
   import CheckpointSerde._
+
+  def this() = this(CheckpointSerde.JSON_FORMAT)
+
+  if (format != JSON_FORMAT && format != BINARY_FORMAT) {
+    throw new SamzaException("Unknown checkpoint format: %s. Valid formats are: %s, %s." format (format, JSON_FORMAT, BINARY_FORMAT))
+  }
+
   // TODO: Elucidate the CheckpointSerde relationshiop to Serde. Should Serde also have keyTo/FromBytes? Should
   // we just take CheckpointSerde here as interface and have this be JSONCheckpointSerde?
   // TODO: Add more tests.  This class currently only has direct test and is mainly tested by the other checkpoint managers
@@ -52,6 +71,10 @@ class CheckpointSerde extends Serde[Checkpoint] with Logging {
 
   def fromBytes(bytes: Array[Byte]): Checkpoint = {
     try {
+      if (bytes.length > 0 && bytes(0) == BINARY_FORMAT_VERSION) {
+        return binaryFromBytes(bytes)
+      }
+
       val jMap = jsonMapper.readValue(bytes, classOf[util.HashMap[String, util.HashMap[String, String]]])
 
       def deserializeJSONMap(m:util.HashMap[String, String]) = {
@@ -80,6 +103,10 @@ class CheckpointSerde extends Serde[Checkpoint] with Logging {
   }
 
   def toBytes(checkpoint: Checkpoint): Array[Byte] = {
+    if (format == BINARY_FORMAT) {
+      return binaryToBytes(checkpoint)
+    }
+
     val offsets = checkpoint.getOffsets
     val asMap = new util.HashMap[String, util.HashMap[String, String]](offsets.size())
 
@@ -109,8 +136,220 @@ class CheckpointSerde extends Serde[Checkpoint] with Logging {
   def changelogPartitionMappingToBytes(mapping: util.Map[TaskName, java.lang.Integer]) = {
     jsonMapper.writeValueAsBytes(new util.HashMap[TaskName, java.lang.Integer](mapping))
   }
+
+  private def binaryToBytes(checkpoint: Checkpoint) = {
+    val offsets = checkpoint.getOffsets
+    val names = new util.LinkedHashMap[String, Integer]
+    val out = new BinaryWriter(16 + offsets.size * 8)
+
+    def index(name: String) = {
+      val i = names.get(name)
+
+      if (i == null) {
+        names.put(name, names.size)
+        names.size - 1
+      } else {
+        i.intValue
+      }
+    }
+
+    // Index the names first, so that the dictionary can be written before the entries.
+    val indexes = new Array[Int](offsets.size * 2)
+    var i = 0
+    val entries = offsets.entrySet.iterator
+    while (entries.hasNext) {
+      val systemStream = entries.next.getKey.getSystemStream
+      indexes(i) = index(systemStream.getSystem)
+      indexes(i + 1) = index(systemStream.getStream)
+      i += 2
+    }
+
+    out.writeByte(BINARY_FORMAT_VERSION)
+    out.writeVarLong(names.size)
+    names.keySet.foreach(out.writeString)
+    out.writeVarLong(offsets.size)
+
+    i = 0
+    offsets.foreach {
+      case (ssp, offset) =>
+        out.writeVarLong(indexes(i))
+        out.writeVarLong(indexes(i + 1))
+        out.writeVarLong(ssp.getPartition.getPartitionId)
+
+        val numericOffset = parseOffset(offset)
+
+        if (numericOffset >= 0) {
+          out.writeByte(NUMERIC_OFFSET)
+          out.writeVarLong(numericOffset)
+        } else {
+          out.writeByte(STRING_OFFSET)
+          out.writeString(offset)
+        }
+
+        i += 2
+    }
+
+    out.toByteArray
+  }
+
+  private def binaryFromBytes(bytes: Array[Byte]) = {
+    val in = ByteBuffer.wrap(bytes)
+
+    in.get // version
+
+    val names = new Array[String](readVarInt(in))
+    var i = 0
+    while (i < names.length) {
+      names(i) = readString(in)
+      i += 1
+    }
+
+    val count = readVarInt(in)
+    val offsets = new util.HashMap[SystemStreamPartition, String](count * 2)
+    i = 0
+    while (i < count) {
+      val system = names(readVarInt(in))
+      val stream = names(readVarInt(in))
+      val partition = new Partition(readVarInt(in))
+      val offset = in.get match {
+        case NUMERIC_OFFSET => readVarLong(in).toString
+        case STRING_OFFSET => readString(in)
+        case tag => throw new SamzaException("Unknown offset encoding %s in binary checkpoint." format tag)
+      }
+
+      offsets.put(new SystemStreamPartition(system, stream, partition), offset)
+      i += 1
+    }
+
+    if (in.hasRemaining) {
+      throw new SamzaException("%s unexpected trailing bytes in binary checkpoint." format in.remaining)
+    }
+
+    new Checkpoint(offsets)
+  }
 }
 
 object CheckpointSerde {
   val PARTITION_MAPPING_TYPEREFERENCE = new TypeReference[util.HashMap[TaskName, java.lang.Integer]]() {}
+
+  val JSON_FORMAT = "json"
+  val BINARY_FORMAT = "binary"
+
+  /**
+   * The first byte of a checkpoint in the binary format. JSON documents
+   * start with a printable character, so the formats can't be confused.
+   */
+  val BINARY_FORMAT_VERSION: Byte = 1
+
+  private val NUMERIC_OFFSET: Byte = 0
+  private val STRING_OFFSET: Byte = 1
+
+  /**
+   * Returns the offset as a long, if it's a decimal number that reads back
+   * as the same string, or -1 if it must be kept as a string.
+   */
+  private def parseOffset(offset: String): Long = {
+    val length = offset.length
+
+    // Longer offsets could overflow, and leading zeros wouldn't read back.
+    if (length == 0 || length > 18 || (length > 1 && offset.charAt(0) == '0')) {
+      return -1
+    }
+
+    var value = 0L
+    var i = 0
+    while (i < length) {
+      val c = offset.charAt(i)
+
+      if (c < '0' || c > '9') {
+        return -1
+      }
+
+      value = value * 10 + (c - '0')
+      i += 1
+    }
+
+    value
+  }
+
+  private def readVarLong(in: ByteBuffer): Long = {
+    var value = 0L
+    var shift = 0
+    var b = 0
+
+    do {
+      if (shift > 63) {
+        throw new SamzaException("Malformed varint in binary checkpoint.")
+      }
+
+      b = in.get
+      value |= (b & 0x7F).toLong << shift
+      shift += 7
+    } while ((b & 0x80) != 0)
+
+    value
+  }
+
+  private def readVarInt(in: ByteBuffer): Int = {
+    val value = readVarLong(in)
+
+    if (value < 0 || value > Int.MaxValue) {
+      throw new SamzaException("Value %s in binary checkpoint is out of range." format value)
+    }
+
+    value.toInt
+  }
+
+  private def readString(in: ByteBuffer) = {
+    val length = readVarInt(in)
+    val s = new String(in.array, in.arrayOffset + in.position, length, "UTF-8")
+
+    in.position(in.position + length)
+    s
+  }
+
+  /**
+   * A growable byte array, which avoids the synchronization of
+   * ByteArrayOutputStream.
+   */
+  private class BinaryWriter(initialSize: Int) {
+    private var buffer = new Array[Byte](initialSize)
+    private var size = 0
+
+    def writeByte(b: Byte) {
+      ensureCapacity(1)
+      buffer(size) = b
+      size += 1
+    }
+
+    def writeVarLong(value: Long) {
+      ensureCapacity(10)
+
+      var v = value
+      while ((v & ~0x7FL) != 0) {
+        buffer(size) = ((v & 0x7F) | 0x80).toByte
+        size += 1
+        v >>>= 7
+      }
+      buffer(size) = v.toByte
+      size += 1
+    }
+
+    def writeString(s: String) {
+      val bytes = s.getBytes("UTF-8")
+
+      writeVarLong(bytes.length)
+      ensureCapacity(bytes.length)
+      System.arraycopy(bytes, 0, buffer, size, bytes.length)
+      size += bytes.length
+    }
+
+    def toByteArray = util.Arrays.copyOf(buffer, size)
+
+    private def ensureCapacity(n: Int) {
+      if (size + n > buffer.length) {
+        buffer = util.Arrays.copyOf(buffer, math.max(buffer.length * 2, size + n))
+      }
+    }
+  }
 }
@@ -19,11 +19,16 @@
 
 package org.apache.samza.serializers
 
+import java.nio.ByteBuffer
+
 import org.apache.samza.SamzaException
 import org.apache.samza.config.SerializerConfig
 import org.apache.samza.system.SystemStream
 import org.apache.samza.system.OutgoingMessageEnvelope
 import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.LazyIncomingMessageEnvelope
+import org.apache.samza.system.TimestampExtractor
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
 
 class SerdeManager(
   serdes: Map[String, Serde[Object]] = Map(),
@@ -31,7 +36,23 @@ class SerdeManager(
   systemMessageSerdes: Map[String, Serde[Object]] = Map(),
   systemStreamKeySerdes: Map[SystemStream, Serde[Object]] = Map(),
   systemStreamMessageSerdes: Map[SystemStream, Serde[Object]] = Map(),
-  changeLogSystemStreams: Set[SystemStream] = Set()) {
+  changeLogSystemStreams: Set[SystemStream] = Set(),
+
+  /**
+   * Input streams whose envelopes are deserialized lazily. fromBytes returns
+   * a LazyIncomingMessageEnvelope for them, which only deserializes its key
+   * or message when the task first asks for it. Zero-copy envelopes are
+   * always deserialized eagerly, so that their buffers can be released as
+   * soon as possible.
+   */
+  lazySystemStreams: Set[SystemStream] = Set(),
+
+  /**
+   * Extractors that fromBytes uses to set the timestamp of input envelopes
+   * that don't already have one. Extractors usually need the message, so
+   * their streams are never deserialized lazily.
+   */
+  timestampExtractors: Map[SystemStream, TimestampExtractor] = Map()) {
 
   def toBytes(obj: Object, serializerName: String) = serdes
     .getOrElse(serializerName, throw new SamzaException("No serde defined for %s" format serializerName))
@@ -90,42 +111,141 @@ class SerdeManager(
     .fromBytes(bytes)
 
   def fromBytes(envelope: IncomingMessageEnvelope) = {
-    val key = if (changeLogSystemStreams.contains(envelope.getSystemStreamPartition.getSystemStream)) {
+    val systemStream = envelope.getSystemStreamPartition.getSystemStream
+
+    if (changeLogSystemStreams.contains(systemStream)) {
       // If the stream is a change log stream, don't do any serde. It is up to storage engines to handle serde.
-      envelope.getKey
-    } else if (systemStreamKeySerdes.contains(envelope.getSystemStreamPartition)) {
+      envelope
+    } else {
+      val keySerde = getKeySerde(envelope)
+      val messageSerde = getMessageSerde(envelope)
+      val timestampExtractor = if (envelope.getTimestamp == IncomingMessageEnvelope.NO_TIMESTAMP) {
+        timestampExtractors.getOrElse(systemStream, null)
+      } else {
+        null
+      }
+
+      if (keySerde == null && messageSerde == null && timestampExtractor == null) {
+        // Just use the objects.
+        envelope
+      } else if (lazySystemStreams.contains(systemStream) && timestampExtractor == null && !envelope.isInstanceOf[ZeroCopyIncomingMessageEnvelope]) {
+        new LazyIncomingMessageEnvelope(
+          envelope.getSystemStreamPartition,
+          envelope.getOffset,
+          envelope.getKey,
+          envelope.getMessage,
+          envelope.getSize,
+          envelope.getTimestamp,
+          keySerde,
+          messageSerde)
+      } else {
+        val key = if (keySerde != null) deserialize(keySerde, envelope.getKey) else envelope.getKey
+        val message = if (messageSerde != null) deserialize(messageSerde, envelope.getMessage) else envelope.getMessage
+        val deserialized = if ((key eq envelope.getKey) && (message eq envelope.getMessage)) {
+          envelope
+        } else {
+          withContents(envelope, key, message, envelope.getTimestamp, keySerde, messageSerde)
+        }
+
+        if (timestampExtractor == null) {
+          deserialized
+        } else {
+          withContents(deserialized, key, message, timestampExtractor.getTimestamp(deserialized), keySerde, messageSerde)
+        }
+      }
+    }
+  }
+
+  /**
+   * Deserializes a key or message. A ByteBuffer, from a zero-copy envelope,
+   * is given as it is to serdes that can read ByteBuffers, and is copied into
+   * a byte array for all other serdes.
+   */
+  private def deserialize(serde: Serde[Object], raw: Object) = raw match {
+    case buffer: ByteBuffer => serde match {
+      case byteBufferDeserializer: ByteBufferDeserializer[_] => byteBufferDeserializer.fromByteBuffer(buffer).asInstanceOf[Object]
+      case _ =>
+        val bytes = new Array[Byte](buffer.remaining)
+        buffer.duplicate.get(bytes)
+        serde.fromBytes(bytes)
+    }
+    case _ => serde.fromBytes(raw.asInstanceOf[Array[Byte]])
+  }
+
+  /**
+   * Returns a new envelope like the given one, but with the given contents.
+   * A zero-copy envelope's reference to its buffer moves to the new envelope
+   * if the contents may still refer to the buffer, and is released if they
+   * were copied out of it.
+   */
+  private def withContents(
+    envelope: IncomingMessageEnvelope,
+    key: Object,
+    message: Object,
+    timestamp: Long,
+    keySerde: Serde[Object],
+    messageSerde: Serde[Object]) = envelope match {
+    case zeroCopyEnvelope: ZeroCopyIncomingMessageEnvelope if mayShareBuffer(keySerde, envelope.getKey) || mayShareBuffer(messageSerde, envelope.getMessage) =>
+      new ZeroCopyIncomingMessageEnvelope(
+        envelope.getSystemStreamPartition,
+        envelope.getOffset,
+        key,
+        message,
+        envelope.getSize,
+        timestamp,
+        zeroCopyEnvelope.getBuffer)
+    case _ =>
+      envelope match {
+        case zeroCopyEnvelope: ZeroCopyIncomingMessageEnvelope => zeroCopyEnvelope.release
+        case _ =>
+      }
+
+      new IncomingMessageEnvelope(
+        envelope.getSystemStreamPartition,
+        envelope.getOffset,
+        key,
+        message,
+        envelope.getSize,
+        timestamp)
+  }
+
+  /**
+   * True if a value that the serde read from a zero-copy envelope's raw key
+   * or message may still refer to the envelope's buffer.
+   */
+  private def mayShareBuffer(serde: Serde[Object], raw: Object) = {
+    raw != null && (serde == null || serde.isInstanceOf[ByteBufferDeserializer[_]])
+  }
+
+  /**
+   * Returns the serde for an incoming envelope's key, or null if the key
+   * should be used as it is.
+   */
+  private def getKeySerde(envelope: IncomingMessageEnvelope) = {
+    if (systemStreamKeySerdes.contains(envelope.getSystemStreamPartition)) {
       // If the stream has a serde defined, use it.
-      systemStreamKeySerdes(envelope.getSystemStreamPartition).fromBytes(envelope.getKey.asInstanceOf[Array[Byte]])
+      systemStreamKeySerdes(envelope.getSystemStreamPartition)
     } else if (systemKeySerdes.contains(envelope.getSystemStreamPartition.getSystem)) {
       // If the system has a serde defined, use it.
-      systemKeySerdes(envelope.getSystemStreamPartition.getSystem).fromBytes(envelope.getKey.asInstanceOf[Array[Byte]])
+      systemKeySerdes(envelope.getSystemStreamPartition.getSystem)
     } else {
-      // Just use the object.
-      envelope.getKey
+      null
     }
+  }
 
-    val message = if (changeLogSystemStreams.contains(envelope.getSystemStreamPartition.getSystemStream)) {
-      // If the stream is a change log stream, don't do any serde. It is up to storage engines to handle serde.
-      envelope.getMessage
-    } else if (systemStreamMessageSerdes.contains(envelope.getSystemStreamPartition)) {
+  /**
+   * Returns the serde for an incoming envelope's message, or null if the
+   * message should be used as it is.
+   */
+  private def getMessageSerde(envelope: IncomingMessageEnvelope) = {
+    if (systemStreamMessageSerdes.contains(envelope.getSystemStreamPartition)) {
       // If the stream has a serde defined, use it.
-      systemStreamMessageSerdes(envelope.getSystemStreamPartition).fromBytes(envelope.getMessage.asInstanceOf[Array[Byte]])
+      systemStreamMessageSerdes(envelope.getSystemStreamPartition)
     } else if (systemMessageSerdes.contains(envelope.getSystemStreamPartition.getSystem)) {
       // If the system has a serde defined, use it.
-      systemMessageSerdes(envelope.getSystemStreamPartition.getSystem).fromBytes(envelope.getMessage.asInstanceOf[Array[Byte]])
-    } else {
-      // Just use the object.
-      envelope.getMessage
-    }
-
-    if ((key eq envelope.getKey) && (message eq envelope.getMessage)) {
-      envelope
+      systemMessageSerdes(envelope.getSystemStreamPartition.getSystem)
     } else {
-      new IncomingMessageEnvelope(
-        envelope.getSystemStreamPartition,
-        envelope.getOffset,
-        key,
-        message)
+      null
     }
   }
 }
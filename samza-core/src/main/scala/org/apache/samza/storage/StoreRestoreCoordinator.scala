@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.storage
+
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException, Executors, Future, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.apache.samza.container.TaskName
+import org.apache.samza.util.{ByteRateLimiter, DaemonThreadFactory, Logging}
+
+object StoreRestoreCoordinator {
+  /**
+   * How long a failed restore waits for the restores that are still running
+   * before it stops them.
+   */
+  val STOP_TIMEOUT_MS = 60000L
+}
+
+/**
+ * Restores the stores of all tasks in a container on a bounded pool of
+ * threads. Every (task, store) pair is restored as a separate unit of work,
+ * so a container with many tasks, or tasks with many stores, can restore
+ * several changelogs at once.
+ *
+ * <p>All restores share a single byte rate limit, if one is set, so that
+ * restoring in parallel does not overwhelm the disk or the network.</p>
+ *
+ * @param storageManagers The storage manager of each task.
+ * @param poolSize The maximum number of stores to restore at once.
+ * @param maxBytesPerSecond The combined restore rate limit, or a value
+ *                          less than or equal to zero for no limit.
+ * @param onTaskRestored Called with each task's name and restore time in
+ *                       milliseconds, once all of its stores are restored.
+ */
+class StoreRestoreCoordinator(
+  storageManagers: Map[TaskName, TaskStorageManager],
+  poolSize: Int = 1,
+  maxBytesPerSecond: Long = 0,
+  onTaskRestored: (TaskName, Long) => Unit = (_, _) => ()) extends Logging {
+
+  if (poolSize <= 0) {
+    throw new SamzaException("Restore thread pool size must be positive, but was %s." format poolSize)
+  }
+
+  private val rateLimiter = if (maxBytesPerSecond > 0) new ByteRateLimiter(maxBytesPerSecond) else null
+
+  /**
+   * Restores all stores, and blocks until they are restored. If any store
+   * fails to restore, the first failure is re-thrown once no more restores
+   * are running. Either way, every task whose restore was started is
+   * stopped, so that its restore consumers are closed.
+   */
+  def restore {
+    val executor = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("store-restore"))
+    val startMs = System.currentTimeMillis
+
+    // Storage managers whose restore was started, but not stopped yet.
+    val started = Collections.newSetFromMap(new ConcurrentHashMap[TaskStorageManager, java.lang.Boolean])
+
+    def stopRestore(storageManager: TaskStorageManager) {
+      if (started.remove(storageManager)) {
+        storageManager.stopRestore
+      }
+    }
+
+    try {
+      info("Preparing stores for %s tasks." format storageManagers.size)
+
+      await(storageManagers.values.map(storageManager => executor.submit(new Callable[Unit] {
+        def call {
+          storageManager.startRestore
+          started.add(storageManager)
+        }
+      })).toList)
+
+      val restores = storageManagers.flatMap {
+        case (taskName, storageManager) =>
+          val storeNames = storageManager.getStoresToRestore
+          val remaining = new AtomicInteger(storeNames.size)
+
+          def storeRestored {
+            if (remaining.decrementAndGet == 0) {
+              stopRestore(storageManager)
+              onTaskRestored(taskName, System.currentTimeMillis - startMs)
+            }
+          }
+
+          if (storeNames.isEmpty) {
+            stopRestore(storageManager)
+            onTaskRestored(taskName, System.currentTimeMillis - startMs)
+          }
+
+          storeNames.map(storeName => executor.submit(new Callable[Unit] {
+            def call {
+              storageManager.restoreStore(storeName, rateLimiter)
+              storeRestored
+            }
+          }))
+      }.toList
+
+      info("Restoring %s stores on %s threads." format (restores.size, poolSize))
+
+      await(restores)
+
+      info("Restored all stores in %s ms." format (System.currentTimeMillis - startMs))
+    } finally {
+      executor.shutdownNow
+
+      if (!started.isEmpty) {
+        // Restores that are still running must finish before their task's
+        // restore is stopped.
+        if (!executor.awaitTermination(StoreRestoreCoordinator.STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          warn("Store restores did not stop within %s ms." format StoreRestoreCoordinator.STOP_TIMEOUT_MS)
+        }
+
+        info("Stopping the restores of %s tasks that did not finish restoring." format started.size)
+
+        started.toArray(new Array[TaskStorageManager](0)).foreach(storageManager => {
+          try {
+            stopRestore(storageManager)
+          } catch {
+            case e: Exception => warn("Failed to stop a store restore.", e)
+          }
+        })
+      }
+    }
+  }
+
+  /**
+   * Waits for all futures to complete, and re-throws the first failure.
+   */
+  private def await(futures: List[Future[Unit]]) {
+    var failure: Throwable = null
+
+    futures.foreach(future => {
+      try {
+        future.get
+      } catch {
+        case e: ExecutionException =>
+          if (failure == null) {
+            failure = e.getCause
+          } else {
+            warn("Another store restore failed.", e.getCause)
+          }
+      }
+    })
+
+    if (failure != null) {
+      throw failure
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.storage
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.util.ByteRateLimiter
+
+object StoreRestoreIterator {
+  /**
+   * How many bytes are restored between two calls to the rate limiter.
+   */
+  val RATE_LIMIT_CHUNK_BYTES = 64 * 1024
+}
+
+/**
+ * Wraps the changelog messages that a store is restored from, to limit the
+ * rate at which they are restored, and to track the restore's progress.
+ *
+ * <p>Progress is reported as the number of messages left to restore, and an
+ * estimate of how long that will take at the rate achieved so far. Both are
+ * only known if the changelog's offsets are numeric, as they are for Kafka,
+ * and are -1 otherwise. They may be read from any thread.</p>
+ *
+ * @param envelopes The changelog messages to restore.
+ * @param upcomingOffset The offset after the newest message in the changelog
+ *                       when the restore started, or null if not known.
+ * @param rateLimiter Limits the rate at which message bytes are restored,
+ *                    or null for no limit.
+ */
+class StoreRestoreIterator(
+  envelopes: java.util.Iterator[IncomingMessageEnvelope],
+  upcomingOffset: String,
+  rateLimiter: ByteRateLimiter = null,
+  clock: () => Long = () => System.nanoTime) extends java.util.Iterator[IncomingMessageEnvelope] {
+
+  private val upcoming = toLong(upcomingOffset)
+  private val startNs = clock()
+  private var unlimitedBytes = 0L
+  @volatile private var restoredBytes = 0L
+  @volatile private var restoredMessages = 0L
+  @volatile private var remainingLag = -1L
+  @volatile private var done = false
+
+  def hasNext = {
+    val hasNext = envelopes.hasNext
+
+    if (!hasNext) {
+      done = true
+    }
+
+    hasNext
+  }
+
+  def next = {
+    val envelope = envelopes.next
+    val bytes = sizeOf(envelope.getKey) + sizeOf(envelope.getMessage)
+
+    restoredBytes += bytes
+    restoredMessages += 1
+
+    // Without a numeric upcoming offset there is nothing to compare against.
+    if (upcoming >= 0) {
+      val offset = toLong(envelope.getOffset)
+
+      if (offset >= 0) {
+        remainingLag = math.max(upcoming - offset - 1, 0L)
+      }
+    }
+
+    if (rateLimiter != null) {
+      unlimitedBytes += bytes
+
+      if (unlimitedBytes >= StoreRestoreIterator.RATE_LIMIT_CHUNK_BYTES) {
+        rateLimiter.acquire(unlimitedBytes)
+        unlimitedBytes = 0
+      }
+    }
+
+    envelope
+  }
+
+  def remove = envelopes.remove
+
+  def getRestoredBytes = restoredBytes
+
+  /**
+   * The number of changelog messages that are left to restore, or -1 if not
+   * known.
+   */
+  def getRemainingLag = if (done) 0L else remainingLag
+
+  /**
+   * The estimated time in milliseconds until the restore completes, or -1 if
+   * not known.
+   */
+  def getEtaMs = {
+    val lag = getRemainingLag
+    val messages = restoredMessages
+    val elapsedNs = clock() - startNs
+
+    if (lag == 0) {
+      0L
+    } else if (lag < 0 || messages == 0 || elapsedNs <= 0) {
+      -1L
+    } else {
+      TimeUnit.NANOSECONDS.toMillis((lag * (elapsedNs.toDouble / messages)).toLong)
+    }
+  }
+
+  private def sizeOf(obj: Any) = obj match {
+    case bytes: Array[Byte] => bytes.length
+    case _ => 0
+  }
+
+  private def toLong(offset: String) = try {
+    if (offset == null) -1L else java.lang.Long.parseLong(offset)
+  } catch {
+    case e: NumberFormatException => -1L
+  }
+}
@@ -22,7 +22,7 @@ package org.apache.samza.storage
 import java.io._
 import java.util
 import scala.collection.{JavaConversions, Map}
-import org.apache.samza.util.Logging
+import org.apache.samza.util.{ByteRateLimiter, Logging}
 import org.apache.samza.Partition
 import org.apache.samza.system._
 import org.apache.samza.util.Util
@@ -57,17 +57,63 @@ class TaskStorageManager(
 
   var taskStoresToRestore = taskStores
   var changeLogOldestOffsets: Map[SystemStream, String] = Map()
+  var changeLogUpcomingOffsets: Map[SystemStream, String] = Map()
   val fileOffset: util.Map[SystemStreamPartition, String] = new util.HashMap[SystemStreamPartition, String]()
   val offsetFileName = "OFFSET"
 
   def apply(storageEngineName: String) = taskStores(storageEngineName)
 
   def init {
+    startRestore
+    restoreStores
+    stopRestore
+  }
+
+  /**
+   * Prepares the store directories, and starts the changelog consumers. Must
+   * be called before any store is restored.
+   */
+  def startRestore {
     cleanBaseDirs
     setupBaseDirs
     validateChangelogStreams
     startConsumers
-    restoreStores
+  }
+
+  /**
+   * The names of the stores that need to be restored from their changelog.
+   * Only known once startRestore has been called.
+   */
+  def getStoresToRestore: Seq[String] = taskStoresToRestore.keys.filter(changeLogSystemStreams.contains(_)).toSeq
+
+  /**
+   * Restores a single store from its changelog. Different stores may be
+   * restored concurrently, since each has its own changelog consumer.
+   *
+   * @param storeName The store to restore.
+   * @param rateLimiter Limits the rate at which the store is restored, or
+   *                    null for no limit.
+   */
+  def restoreStore(storeName: String, rateLimiter: ByteRateLimiter = null) {
+    val systemStream = changeLogSystemStreams(storeName)
+    val systemStreamPartition = new SystemStreamPartition(systemStream, partition)
+    val systemConsumer = storeConsumers(storeName)
+    val systemConsumerIterator = new StoreRestoreIterator(
+      new SystemStreamPartitionIterator(systemConsumer, systemStreamPartition),
+      changeLogUpcomingOffsets.getOrElse(systemStream, null),
+      rateLimiter)
+
+    info("Restoring store %s for taskName %s from %s." format (storeName, taskName, systemStreamPartition))
+
+    taskStores(storeName).restore(systemConsumerIterator)
+
+    info("Restored %s bytes to store %s for taskName %s." format (systemConsumerIterator.getRestoredBytes, storeName, taskName))
+  }
+
+  /**
+   * Stops the changelog consumers once all stores have been restored.
+   */
+  def stopRestore {
     stopConsumers
   }
 
@@ -145,6 +191,8 @@ class TaskStorageManager(
 
     changeLogOldestOffsets = getChangeLogOldestOffsetsForPartition(partition, changeLogMetadata)
     info("Assigning oldest change log offsets for taskName %s: %s" format (taskName, changeLogOldestOffsets))
+
+    changeLogUpcomingOffsets = getChangeLogUpcomingOffsetsForPartition(partition, changeLogMetadata)
   }
 
   private def startConsumers {
@@ -173,15 +221,7 @@ class TaskStorageManager(
   private def restoreStores {
     debug("Restoring stores.")
 
-    for ((storeName, store) <- taskStoresToRestore) {
-      if (changeLogSystemStreams.contains(storeName)) {
-        val systemStream = changeLogSystemStreams(storeName)
-        val systemStreamPartition = new SystemStreamPartition(systemStream, partition)
-        val systemConsumer = storeConsumers(storeName)
-        val systemConsumerIterator = new SystemStreamPartitionIterator(systemConsumer, systemStreamPartition)
-        store.restore(systemConsumerIterator)
-      }
-    }
+    getStoresToRestore.foreach(restoreStore(_))
   }
 
   private def stopConsumers {
@@ -191,10 +231,19 @@ class TaskStorageManager(
   }
 
   def flush() {
+    flushStores()
+    flushChangelogOffsetFiles()
+  }
+
+  /**
+   * Flushes the stores without writing the changelog offset files. The
+   * stores are not thread-safe, so this must be called from the thread that
+   * the task uses them on.
+   */
+  def flushStores() {
     debug("Flushing stores.")
 
     taskStores.values.foreach(_.flush)
-    flushChangelogOffsetFiles()
   }
 
   def stopStores() {
@@ -216,7 +265,7 @@ class TaskStorageManager(
     * e.g. This can happen if the job was run on this host, then another
     * host and back to this host.
     */
-  private def flushChangelogOffsetFiles() {
+  def flushChangelogOffsetFiles() {
     debug("Persisting logged key value stores")
     changeLogSystemStreams.foreach { case (store, systemStream) => {
       val streamToMetadata = systemAdmins(systemStream.getSystem)
@@ -253,4 +302,14 @@ class TaskStorageManager(
       .filter(_._2 != null)
       .mapValues(_.getOldestOffset)
   }
+
+  /**
+   * Builds a map from SystemStreamPartition to upcoming offset for changelogs.
+   */
+  private def getChangeLogUpcomingOffsetsForPartition(partition: Partition, inputStreamMetadata: Map[SystemStream, SystemStreamMetadata]): Map[SystemStream, String] = {
+    inputStreamMetadata
+      .mapValues(_.getSystemStreamPartitionMetadata.get(partition))
+      .filter(_._2 != null)
+      .mapValues(_.getUpcomingOffset)
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system
+
+import java.util.ArrayDeque
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.apache.samza.util.{DaemonThreadFactory, Logging}
+
+object DeserializationPool {
+  val SHUTDOWN_TIMEOUT_MS = 1000L
+}
+
+/**
+ * The result of deserializing one batch of envelopes that were polled for a
+ * SystemStreamPartition. Envelopes that could not be deserialized, and were
+ * dropped, are not included, but are counted in rawEnvelopes. If failure is
+ * set, deserialization of the batch was aborted.
+ */
+class DeserializedBatch(
+  val systemStreamPartition: SystemStreamPartition,
+  val rawEnvelopes: Int,
+  val envelopes: ArrayDeque[IncomingMessageEnvelope],
+  val failure: Throwable)
+
+/**
+ * Deserializes batches of polled envelopes on a pool of threads, so that
+ * {@link SystemConsumers} can hand already-deserialized envelopes to the
+ * chooser without spending run loop time on serdes.
+ *
+ * <p>Batches are deserialized independently of each other, so the caller is
+ * responsible for having at most one batch per SystemStreamPartition in
+ * flight, if it needs to keep per-SystemStreamPartition order. Completed
+ * batches are collected with poll, from any single thread. onCompleted is
+ * invoked from a pool thread whenever a batch completes.</p>
+ *
+ * <p>All serdes that are used by the deserialize function must be
+ * thread-safe.</p>
+ */
+class DeserializationPool(
+  poolSize: Int,
+  deserialize: (SystemStreamPartition, IncomingMessageEnvelope) => IncomingMessageEnvelope,
+  metrics: SystemConsumersMetrics = new SystemConsumersMetrics,
+  onCompleted: () => Unit = () => ()) extends Logging {
+
+  if (poolSize <= 0) {
+    throw new SamzaException("Deserialization thread pool size must be positive, but was %s." format poolSize)
+  }
+
+  private val executor = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("deserializer"))
+  private val completed = new ConcurrentLinkedQueue[DeserializedBatch]
+  private val queuedEnvelopes = new AtomicInteger
+  private val batchesInFlight = new AtomicInteger
+
+  metrics.setDeserializationQueueDepth(() => queuedEnvelopes.get)
+
+  /**
+   * Queue a batch of raw envelopes for deserialization.
+   */
+  def submit(systemStreamPartition: SystemStreamPartition, rawEnvelopes: java.util.List[IncomingMessageEnvelope]) {
+    val size = rawEnvelopes.size
+
+    queuedEnvelopes.addAndGet(size)
+    batchesInFlight.incrementAndGet
+    executor.execute(new Runnable {
+      def run {
+        val startNs = System.nanoTime
+        val envelopes = new ArrayDeque[IncomingMessageEnvelope](size)
+        var failure: Throwable = null
+
+        try {
+          val iterator = rawEnvelopes.iterator
+
+          while (iterator.hasNext) {
+            val envelope = deserialize(systemStreamPartition, iterator.next)
+
+            if (envelope != null) {
+              envelopes.add(envelope)
+            }
+          }
+        } catch {
+          case t: Throwable => failure = t
+        }
+
+        metrics.deserializeNs.update(System.nanoTime - startNs)
+        queuedEnvelopes.addAndGet(-size)
+        completed.add(new DeserializedBatch(systemStreamPartition, size, envelopes, failure))
+        onCompleted()
+      }
+    })
+  }
+
+  /**
+   * Returns the next deserialized batch, or null if no batch has completed
+   * since the last call.
+   */
+  def poll: DeserializedBatch = {
+    val batch = completed.poll()
+
+    if (batch != null) {
+      batchesInFlight.decrementAndGet
+    }
+
+    batch
+  }
+
+  /**
+   * The number of batches that have been submitted, but not yet returned by
+   * poll.
+   */
+  def getBatchesInFlight = batchesInFlight.get
+
+  def stop {
+    executor.shutdownNow
+
+    if (!executor.awaitTermination(DeserializationPool.SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      warn("Deserialization threads did not stop within %s ms." format DeserializationPool.SHUTDOWN_TIMEOUT_MS)
+    }
+  }
+}
@@ -21,19 +21,22 @@ package org.apache.samza.system
 
 import scala.collection.JavaConversions._
 import org.apache.samza.serializers.SerdeManager
-import org.apache.samza.util.Logging
+import org.apache.samza.util.{BlockingEnvelopeMap, BufferMemoryBudget, IdleStrategy, Logging}
 import org.apache.samza.system.chooser.MessageChooser
 import org.apache.samza.SamzaException
 import java.util.HashMap
 import java.util.ArrayDeque
+import java.util.ArrayList
 import java.util.Queue
 import java.util.Set
 import java.util.HashSet
+import java.util.concurrent.atomic.AtomicBoolean
 
 object SystemConsumers {
   val DEFAULT_POLL_INTERVAL_MS = 50
   val DEFAULT_NO_NEW_MESSAGES_TIMEOUT = 10
   val DEFAULT_DROP_SERIALIZATION_ERROR = false
+  val DEFAULT_MAX_BATCH_SIZE = 1
 }
 
 /**
@@ -98,6 +101,56 @@ class SystemConsumers(
    */
   pollIntervalMs: Int = SystemConsumers.DEFAULT_POLL_INTERVAL_MS,
 
+  /**
+   * <p>Defines how the run loop waits when there are no messages to process.
+   * If null, SystemConsumers blocks in each SystemConsumer's poll for up to
+   * noNewMessagesTimeout milliseconds.</p>
+   *
+   * <p>Otherwise, SystemConsumers never blocks in poll, and calls the
+   * strategy's idle method whenever a refresh finds no new messages.
+   * Consumers that extend {@link org.apache.samza.util.BlockingEnvelopeMap}
+   * signal the strategy as soon as new messages are buffered, which also
+   * causes SystemConsumers to refresh on its next choose.</p>
+   */
+  idleStrategy: IdleStrategy = null,
+
+  /**
+   * <p>The maximum number of envelopes that choose hands out at once for a
+   * SystemStreamPartition that has batching enabled. When the chooser picks
+   * an envelope from such a SystemStreamPartition, up to maxBatchSize - 1 of
+   * the envelopes that are already buffered behind it are deserialized
+   * directly, without going through the chooser, and are made available
+   * through getChosenBatch.</p>
+   *
+   * <p>SystemStreamPartitions that have not been registered with
+   * enableBatching are not affected.</p>
+   */
+  maxBatchSize: Int = SystemConsumers.DEFAULT_MAX_BATCH_SIZE,
+
+  /**
+   * <p>If positive, envelopes are deserialized on a pool of this many
+   * threads as soon as they have been polled, rather than on the run loop
+   * thread right before they are handed to the chooser. The chooser still
+   * only sees deserialized envelopes. A SystemStreamPartition is not polled
+   * again until its previous batch has been deserialized and processed, so
+   * per-SystemStreamPartition order is kept.</p>
+   *
+   * <p>All serdes of the input streams must be thread-safe.</p>
+   */
+  deserializationThreads: Int = 0,
+
+  /**
+   * <p>If not null, a byte budget that is shared by all consumers that
+   * extend {@link org.apache.samza.util.BlockingEnvelopeMap}, instead of
+   * each SystemStreamPartition getting a fixed share of its consumer's
+   * fetch threshold. Fetchers back off while the budget is exhausted.</p>
+   *
+   * <p>Consumers only release a message's bytes when it is polled, so the
+   * budget does not cover the one polled batch per SystemStreamPartition
+   * that SystemConsumers holds on to until it has been processed.</p>
+   */
+  bufferMemoryBudget: BufferMemoryBudget = null,
+
   /**
    * Clock can be used to inject a custom clock when mocking this class in
    * tests. The default implementation returns the current system clock time.
@@ -123,13 +176,73 @@ class SystemConsumers(
    * SystemConsumers receives no new incoming messages from the MessageChooser,
    * it sets timeout to noNewMessagesTimeout again.
    */
-  var timeout = noNewMessagesTimeout
+  var timeout = if (idleStrategy == null) noNewMessagesTimeout else 0
 
   /**
    * The last time that systems were polled for new messages.
    */
   var lastPollMs = 0L
 
+  /**
+   * Set when a consumer signals that new messages have been buffered, and
+   * cleared by the next refresh.
+   */
+  private val messagesArrived = new AtomicBoolean(false)
+
+  /**
+   * The strategy that is handed to consumers, so that their signals are
+   * also seen by SystemConsumers.
+   */
+  private val signallingIdleStrategy = if (idleStrategy != null) {
+    new IdleStrategy {
+      def idle = idleStrategy.idle
+      def reset = idleStrategy.reset
+      def signal {
+        messagesArrived.set(true)
+        idleStrategy.signal
+      }
+    }
+  } else {
+    null
+  }
+
+  /**
+   * SystemStreamPartitions whose envelopes are handed out in batches.
+   */
+  private val batchedSystemStreamPartitions = new HashSet[SystemStreamPartition]()
+
+  /**
+   * SystemStreamPartitions whose envelopes are not handed to the chooser
+   * until they are resumed.
+   */
+  private val pausedSystemStreamPartitions = new HashSet[SystemStreamPartition]()
+
+  /**
+   * Paused SystemStreamPartitions that the chooser was due to get a new
+   * envelope for while they were paused.
+   */
+  private val pausedUpdates = new HashSet[SystemStreamPartition]()
+
+  /**
+   * The batch that the envelope returned by the last call to choose belongs
+   * to, or null if that envelope was returned on its own.
+   */
+  private var chosenBatch: java.util.List[IncomingMessageEnvelope] = null
+
+  /**
+   * Deserializes polled envelopes ahead of time, if deserializationThreads
+   * is set. Completed batches also wake up the idle strategy.
+   */
+  private val deserializationPool = if (deserializationThreads > 0) {
+    new DeserializationPool(deserializationThreads, deserialize, metrics, () => {
+      if (signallingIdleStrategy != null) {
+        signallingIdleStrategy.signal
+      }
+    })
+  } else {
+    null
+  }
+
   /**
    * Total number of unprocessed messages in unprocessedMessagesBySSP.
    */
@@ -137,11 +250,25 @@ class SystemConsumers(
 
   debug("Got stream consumers: %s" format consumers)
   debug("Got no new message timeout: %s" format noNewMessagesTimeout)
+  debug("Got idle strategy: %s" format idleStrategy)
 
   metrics.setTimeout(() => timeout)
   metrics.setNeededByChooser(() => emptySystemStreamPartitionsBySystem.size)
   metrics.setUnprocessedMessages(() => totalUnprocessedMessages)
 
+  if (bufferMemoryBudget != null) {
+    metrics.setBufferedBytes(() => bufferMemoryBudget.getUsedBytes)
+
+    // Set before registration, so that consumers register their per-SSP
+    // buffered bytes gauges.
+    consumers
+      .values
+      .foreach {
+        case blockingEnvelopeMap: BlockingEnvelopeMap => blockingEnvelopeMap.setBufferMemoryBudget(bufferMemoryBudget)
+        case _ =>
+      }
+  }
+
   def start {
     debug("Starting consumers.")
 
@@ -154,6 +281,15 @@ class SystemConsumers(
       .keySet
       .foreach(metrics.registerSystem)
 
+    if (signallingIdleStrategy != null) {
+      consumers
+        .values
+        .foreach {
+          case blockingEnvelopeMap: BlockingEnvelopeMap => blockingEnvelopeMap.setIdleStrategy(signallingIdleStrategy)
+          case _ =>
+        }
+    }
+
     consumers
       .values
       .foreach(_.start)
@@ -168,6 +304,10 @@ class SystemConsumers(
 
     consumers.values.foreach(_.stop)
 
+    if (deserializationPool != null) {
+      deserializationPool.stop
+    }
+
     chooser.stop
   }
 
@@ -184,16 +324,63 @@ class SystemConsumers(
     }
   }
 
+  /**
+   * Hand out envelopes from the supplied SystemStreamPartition in batches of
+   * up to maxBatchSize envelopes. See getChosenBatch.
+   */
+  def enableBatching(systemStreamPartition: SystemStreamPartition) {
+    debug("Enabling batching for stream: %s" format systemStreamPartition)
+    batchedSystemStreamPartitions.add(systemStreamPartition)
+  }
+
+  /**
+   * Stops handing the chooser new envelopes from the supplied
+   * SystemStreamPartition until it is resumed. The chooser may still return
+   * the one envelope from it that it already holds.
+   */
+  def pause(systemStreamPartition: SystemStreamPartition) {
+    debug("Pausing stream: %s" format systemStreamPartition)
+    pausedSystemStreamPartitions.add(systemStreamPartition)
+  }
+
+  /**
+   * Undoes pause, and gives the chooser the next envelope from the supplied
+   * SystemStreamPartition if it was due to get one.
+   */
+  def resume(systemStreamPartition: SystemStreamPartition) {
+    debug("Resuming stream: %s" format systemStreamPartition)
+
+    if (pausedSystemStreamPartitions.remove(systemStreamPartition) && pausedUpdates.remove(systemStreamPartition)) {
+      tryUpdate(systemStreamPartition)
+    }
+  }
+
+  /**
+   * Returns all envelopes that were chosen by the last call to choose, in
+   * offset order, starting with the envelope that choose returned. Returns
+   * null if choose returned a single envelope, or null.
+   */
+  def getChosenBatch = chosenBatch
+
   def choose: IncomingMessageEnvelope = {
+    if (deserializationPool != null) {
+      collectDeserialized
+    }
+
     val envelopeFromChooser = chooser.choose
 
+    chosenBatch = null
+
     if (envelopeFromChooser == null) {
       trace("Chooser returned null.")
 
       metrics.choseNull.inc
 
-      // Sleep for a while so we don't poll in a tight loop.
-      timeout = noNewMessagesTimeout
+      // Sleep for a while so we don't poll in a tight loop. With an idle
+      // strategy, the strategy does the waiting instead.
+      if (idleStrategy == null) {
+        timeout = noNewMessagesTimeout
+      }
     } else {
       val systemStreamPartition = envelopeFromChooser.getSystemStreamPartition
 
@@ -202,13 +389,29 @@ class SystemConsumers(
       // Ok to give the chooser a new message from this stream.
       timeout = 0
       metrics.choseObject.inc
-      metrics.systemStreamMessagesChosen(envelopeFromChooser.getSystemStreamPartition).inc
+
+      if (maxBatchSize > 1 && batchedSystemStreamPartitions.contains(systemStreamPartition)) {
+        chosenBatch = drain(envelopeFromChooser)
+        metrics.systemStreamMessagesChosen(systemStreamPartition).inc(chosenBatch.size)
+      } else {
+        metrics.systemStreamMessagesChosen(systemStreamPartition).inc
+      }
 
       tryUpdate(systemStreamPartition)
+
+      if (idleStrategy != null) {
+        idleStrategy.reset
+      }
     }
 
-    if (envelopeFromChooser == null || lastPollMs < clock() - pollIntervalMs) {
-      refresh
+    if (envelopeFromChooser == null || lastPollMs < clock() - pollIntervalMs || messagesArrived.get) {
+      val newMessages = refresh
+
+      if (envelopeFromChooser == null && newMessages == 0 && idleStrategy != null) {
+        val startNs = System.nanoTime
+        idleStrategy.idle
+        metrics.idleNs.inc(System.nanoTime - startNs)
+      }
     }
 
     envelopeFromChooser
@@ -216,9 +419,9 @@ class SystemConsumers(
 
   /**
    * Poll all SystemStreamPartitions for which there are currently no new
-   * messages to process.
+   * messages to process. Returns the number of new messages received.
    */
-  private def poll(systemName: String) {
+  private def poll(systemName: String): Int = {
     trace("Polling system consumer: %s" format systemName)
 
     metrics.systemPolls(systemName).inc
@@ -226,6 +429,7 @@ class SystemConsumers(
     trace("Getting fetch map for system: %s" format systemName)
 
     val systemFetchSet = emptySystemStreamPartitionsBySystem.get(systemName)
+    var newMessages = 0
 
     // Poll when at least one SSP in this system needs more messages.
     if (systemFetchSet.size > 0) {
@@ -235,7 +439,17 @@ class SystemConsumers(
 
       metrics.systemStreamPartitionFetchesPerPoll(systemName).inc(systemFetchSet.size)
 
-      val systemStreamPartitionEnvelopes = consumer.poll(systemFetchSet, timeout)
+      // Don't block on consumers while deserialized envelopes may be about
+      // to come back from the deserialization pool.
+      val timeout = if (deserializationPool != null && deserializationPool.getBatchesInFlight > 0) 0 else this.timeout
+      val systemStreamPartitionEnvelopes = if (timeout > 0) {
+        val startNs = System.nanoTime
+        val envelopes = consumer.poll(systemFetchSet, timeout)
+        metrics.blockedNs.inc(System.nanoTime - startNs)
+        envelopes
+      } else {
+        consumer.poll(systemFetchSet, timeout)
+      }
 
       trace("Got incoming message envelopes: %s" format systemStreamPartitionEnvelopes)
 
@@ -246,12 +460,17 @@ class SystemConsumers(
       while (sspAndEnvelopeIterator.hasNext) {
         val sspAndEnvelope = sspAndEnvelopeIterator.next
         val systemStreamPartition = sspAndEnvelope.getKey
-        val envelopes = new ArrayDeque(sspAndEnvelope.getValue)
-        val numEnvelopes = envelopes.size
+        val numEnvelopes = sspAndEnvelope.getValue.size
         totalUnprocessedMessages += numEnvelopes
+        newMessages += numEnvelopes
 
-        if (numEnvelopes > 0) {
-          unprocessedMessagesBySSP.put(systemStreamPartition, envelopes)
+        if (numEnvelopes > 0 && deserializationPool != null) {
+          // The SSP is not polled again until the chooser needs a message
+          // for it after this batch, so batches for an SSP never overlap.
+          emptySystemStreamPartitionsBySystem.get(systemStreamPartition.getSystem).remove(systemStreamPartition)
+          deserializationPool.submit(systemStreamPartition, sspAndEnvelope.getValue)
+        } else if (numEnvelopes > 0) {
+          unprocessedMessagesBySSP.put(systemStreamPartition, new ArrayDeque(sspAndEnvelope.getValue))
 
           // Update the chooser if it needs a message for this SSP.
           if (emptySystemStreamPartitionsBySystem.get(systemStreamPartition.getSystem).remove(systemStreamPartition)) {
@@ -262,28 +481,71 @@ class SystemConsumers(
     } else {
       trace("Skipping polling for %s. Already have messages available for all registered SystemStreamPartitions." format (systemName))
     }
+
+    newMessages
+  }
+
+  /**
+   * Moves envelopes that have been deserialized by the deserialization pool
+   * into unprocessedMessagesBySSP, and updates the chooser with them.
+   */
+  private def collectDeserialized {
+    var batch = deserializationPool.poll
+
+    while (batch != null) {
+      val systemStreamPartition = batch.systemStreamPartition
+
+      if (batch.failure != null) {
+        batch.failure match {
+          case e: SystemConsumersException => throw e
+          case t: Throwable => throw new SystemConsumersException("Failed to deserialize incoming messages for %s" format systemStreamPartition, t)
+        }
+      }
+
+      // Envelopes that failed to deserialize were dropped.
+      totalUnprocessedMessages -= batch.rawEnvelopes - batch.envelopes.size
+      unprocessedMessagesBySSP.put(systemStreamPartition, batch.envelopes)
+      tryUpdate(systemStreamPartition)
+
+      batch = deserializationPool.poll
+    }
   }
 
   private def tryUpdate(ssp: SystemStreamPartition) {
-    var updated = false
-    try {
-      updated = update(ssp)
-    } finally {
-      if (!updated) {
-        // if failed to update the chooser, add the ssp back into the emptySystemStreamPartitionBySystem map to ensure that we will poll for the next message
-        emptySystemStreamPartitionsBySystem.get(ssp.getSystem).add(ssp)
+    if (pausedSystemStreamPartitions.contains(ssp)) {
+      // resume updates the chooser instead.
+      pausedUpdates.add(ssp)
+    } else {
+      var updated = false
+      try {
+        updated = update(ssp)
+      } finally {
+        if (!updated) {
+          // if failed to update the chooser, add the ssp back into the emptySystemStreamPartitionBySystem map to ensure that we will poll for the next message
+          emptySystemStreamPartitionsBySystem.get(ssp.getSystem).add(ssp)
+        }
       }
     }
   }
 
-  private def refresh {
+  /**
+   * Poll every system for new messages. Returns the number of new messages
+   * received.
+   */
+  private def refresh: Int = {
     trace("Refreshing chooser with new messages.")
 
     // Update last poll time so we don't poll too frequently.
     lastPollMs = clock()
 
+    // Clear the flag before polling, so that a signal that arrives during the
+    // poll causes another refresh.
+    if (messagesArrived.get) {
+      messagesArrived.set(false)
+    }
+
     // Poll every system for new messages.
-    consumers.keys.map(poll(_))
+    consumers.keys.foldLeft(0)(_ + poll(_))
   }
 
   /**
@@ -295,23 +557,10 @@ class SystemConsumers(
     val q = unprocessedMessagesBySSP.get(systemStreamPartition)
 
     while (q.size > 0 && !updated) {
-      val rawEnvelope = q.remove
-      val deserializedEnvelope = try {
-        Some(serdeManager.fromBytes(rawEnvelope))
-      } catch {
-        case e: Exception if !dropDeserializationError =>
-          throw new SystemConsumersException(
-            "Cannot deserialize an incoming message for %s"
-              .format(systemStreamPartition.getSystemStream.toString), e)
-        case ex: Exception =>
-          debug("Cannot deserialize an incoming message for %s. Dropping the error message."
-                .format(systemStreamPartition.getSystemStream.toString), ex)
-          metrics.deserializationError.inc
-          None
-      }
+      val deserializedEnvelope = if (deserializationPool == null) deserialize(systemStreamPartition, q.remove) else q.remove
 
-      if (deserializedEnvelope.isDefined) {
-        chooser.update(deserializedEnvelope.get)
+      if (deserializedEnvelope != null) {
+        chooser.update(deserializedEnvelope)
         updated = true
       }
 
@@ -320,6 +569,57 @@ class SystemConsumers(
 
     updated
   }
+
+  /**
+   * Builds a batch that starts with the supplied envelope, followed by up to
+   * maxBatchSize - 1 envelopes that are buffered for its
+   * SystemStreamPartition. The chooser holds at most one envelope per
+   * SystemStreamPartition, so the buffered envelopes are the ones that
+   * directly follow the chosen envelope.
+   */
+  private def drain(envelopeFromChooser: IncomingMessageEnvelope) = {
+    val systemStreamPartition = envelopeFromChooser.getSystemStreamPartition
+    val q = unprocessedMessagesBySSP.get(systemStreamPartition)
+    val batch = new ArrayList[IncomingMessageEnvelope](math.min(maxBatchSize, q.size + 1))
+
+    batch.add(envelopeFromChooser)
+
+    while (q.size > 0 && batch.size < maxBatchSize) {
+      val deserializedEnvelope = if (deserializationPool == null) deserialize(systemStreamPartition, q.remove) else q.remove
+
+      if (deserializedEnvelope != null) {
+        batch.add(deserializedEnvelope)
+      }
+
+      totalUnprocessedMessages -= 1
+    }
+
+    batch
+  }
+
+  /**
+   * Deserializes a raw envelope. Returns null if the envelope could not be
+   * deserialized, and deserialization errors are dropped.
+   */
+  private def deserialize(systemStreamPartition: SystemStreamPartition, rawEnvelope: IncomingMessageEnvelope) = {
+    try {
+      serdeManager.fromBytes(rawEnvelope)
+    } catch {
+      case e: Exception if !dropDeserializationError =>
+        throw new SystemConsumersException(
+          "Cannot deserialize an incoming message for %s"
+            .format(systemStreamPartition.getSystemStream.toString), e)
+      case ex: Exception =>
+        debug("Cannot deserialize an incoming message for %s. Dropping the error message."
+              .format(systemStreamPartition.getSystemStream.toString), ex)
+        metrics.deserializationError.inc
+        rawEnvelope match {
+          case zeroCopyEnvelope: ZeroCopyIncomingMessageEnvelope => zeroCopyEnvelope.release
+          case _ =>
+        }
+        null
+    }
+  }
 }
 
 /**
@@ -28,6 +28,9 @@ class SystemConsumersMetrics(val registry: MetricsRegistry = new MetricsRegistry
   val choseNull = newCounter("chose-null")
   val choseObject = newCounter("chose-object")
   val deserializationError = newCounter("deserialization error")
+  val idleNs = newCounter("idle-ns")
+  val blockedNs = newCounter("blocked-ns")
+  val deserializeNs = newTimer("deserialize-ns")
   val systemPolls = scala.collection.mutable.Map[String, Counter]()
   val systemStreamPartitionFetchesPerPoll = scala.collection.mutable.Map[String, Counter]()
   val systemMessagesPerPoll = scala.collection.mutable.Map[String, Counter]()
@@ -45,6 +48,14 @@ class SystemConsumersMetrics(val registry: MetricsRegistry = new MetricsRegistry
     newGauge("unprocessed-messages", getValue)
   }
 
+  def setDeserializationQueueDepth(getValue: () => Int) {
+    newGauge("deserialization-queue-depth", getValue)
+  }
+
+  def setBufferedBytes(getValue: () => Long) {
+    newGauge("buffered-bytes", getValue)
+  }
+
   def registerSystem(systemName: String) {
     if (!systemPolls.contains(systemName)) {
       systemPolls += systemName -> newCounter("%s-polls" format systemName)
@@ -34,10 +34,11 @@ import org.apache.samza.system.SystemAdmin
 import org.apache.samza.metrics.MetricsRegistry
 import org.apache.samza.metrics.MetricsRegistryMap
 import org.apache.samza.system.SystemStreamMetadata
+import org.apache.samza.system.HighWatermarkProvider
 import org.apache.samza.util.Logging
 
 object DefaultChooser extends Logging {
-  def apply(inputStreamMetadata: Map[SystemStream, SystemStreamMetadata], chooserFactory: MessageChooserFactory, config: Config, registry: MetricsRegistry) = {
+  def apply(inputStreamMetadata: Map[SystemStream, SystemStreamMetadata], chooserFactory: MessageChooserFactory, config: Config, registry: MetricsRegistry, highWatermarks: HighWatermarkProvider = null): MessageChooser = {
     val batchSize = config.getChooserBatchSize match {
       case Some(batchSize) => Some(batchSize.toInt)
       case _ => None
@@ -85,19 +86,42 @@ object DefaultChooser extends Logging {
 
     debug("Got fully prioritized stream list: %s" format priorities)
 
-    val prioritizedChoosers = priorities
-      .values
-      .toSet
-      .map((_: Int, chooserFactory.getChooser(config, registry)))
-      .toMap
+    if (config.getChooserIndexed) {
+      if (!chooserFactory.isInstanceOf[RoundRobinChooserFactory]) {
+        warn("Ignoring %s, since the indexed chooser always breaks ties between streams of the same priority round robin." format chooserFactory.getClass.getName)
+      }
 
-    new DefaultChooser(
-      chooserFactory.getChooser(config, registry),
-      batchSize,
-      priorities,
-      prioritizedChoosers,
-      bootstrapStreamMetadata,
-      registry)
+      new IndexedPriorityChooser(
+        priorities,
+        batchSize,
+        bootstrapStreamMetadata,
+        new IndexedPriorityChooserMetrics(registry))
+    } else {
+      def getChooser = {
+        val chooser = chooserFactory.getChooser(config, registry)
+
+        chooser match {
+          case lagAwareChooser: LagAwareChooser => lagAwareChooser.setHighWatermarkProvider(highWatermarks)
+          case _ =>
+        }
+
+        chooser
+      }
+
+      val prioritizedChoosers = priorities
+        .values
+        .toSet
+        .map((_: Int, getChooser))
+        .toMap
+
+      new DefaultChooser(
+        getChooser,
+        batchSize,
+        priorities,
+        prioritizedChoosers,
+        bootstrapStreamMetadata,
+        registry)
+    }
   }
 }
 
@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.chooser
+
+import java.util.HashMap
+
+import org.apache.samza.SamzaException
+import org.apache.samza.metrics.{MetricsHelper, MetricsRegistry, MetricsRegistryMap}
+import org.apache.samza.system.SystemStreamMetadata.OffsetType
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStream, SystemStreamMetadata, SystemStreamPartition}
+import org.apache.samza.util.Logging
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.LinkedHashSet
+
+/**
+ * IndexedPriorityChooser provides the prioritization, bootstrapping and
+ * batching behavior of DefaultChooser, with a round robin tie breaker, in a
+ * single MessageChooser whose update and choose calls take constant time and
+ * allocate nothing, regardless of the number of SystemStreamPartitions.
+ *
+ * When the chooser is started, every registered SystemStreamPartition is
+ * given an index. Indexes are handed out tier by tier, from the highest
+ * priority down to the lowest, so that each priority tier is a contiguous
+ * range of indexes. SystemStreamPartitions whose stream has no priority form
+ * the lowest tier. The envelope for each SystemStreamPartition is kept in an
+ * array, and a two-level bit set records which indexes have an envelope.
+ *
+ * choose picks the highest tier that has an envelope, and within it, the
+ * next index with an envelope after the one that was last chosen from the
+ * tier. This serves every SystemStreamPartition in a tier once per round,
+ * the same way RoundRobinChooser does.
+ *
+ * Bootstrapping follows the rules of BootstrappingChooser. While any
+ * bootstrap stream is lagging, choose only returns an envelope once it has an
+ * envelope from a lagging partition of every lagging bootstrap stream. This is
+ * tracked with per-stream counters, rather than by scanning the lagging
+ * partitions.
+ *
+ * Batching follows the rules of BatchingChooser. Once an envelope has been
+ * chosen for a SystemStreamPartition, that SystemStreamPartition's envelopes
+ * are chosen ahead of all others, as long as they are available, until
+ * batchSize envelopes have been chosen from it.
+ *
+ * Like RoundRobinChooser, this chooser relies on the MessageChooser contract
+ * of at most one envelope per SystemStreamPartition at a time.
+ */
+class IndexedPriorityChooser(
+  /**
+   * Defines a mapping from SystemStream to a priority tier. Envelopes from
+   * higher priority SystemStreams are processed before envelopes from lower
+   * priority SystemStreams.
+   */
+  priorities: Map[SystemStream, Int] = Map(),
+
+  /**
+   * If defined, enables batching, and defines the maximum number of
+   * envelopes that are chosen from a SystemStreamPartition in a row.
+   */
+  batchSize: Option[Int] = None,
+
+  /**
+   * Metadata for the bootstrap streams. See BootstrappingChooser.
+   */
+  bootstrapStreamMetadata: Map[SystemStream, SystemStreamMetadata] = Map(),
+
+  metrics: IndexedPriorityChooserMetrics = new IndexedPriorityChooserMetrics) extends MessageChooser with Logging {
+
+  /**
+   * SystemStreamPartitions in the order in which they were registered, and
+   * the newest offset of those that are lagging bootstrap partitions.
+   */
+  private val registered = new LinkedHashSet[SystemStreamPartition]
+  private val registeredNewestOffsets = new HashMap[SystemStreamPartition, String]
+
+  private val maxBatchSize = batchSize.getOrElse(0)
+
+  // Per index state, built by start.
+  private val indexes = new HashMap[SystemStreamPartition, Integer]
+  private var envelopes: Array[IncomingMessageEnvelope] = null
+  private var tierOfIndex: Array[Int] = null
+  private var newestOffsets: Array[String] = null
+  private var bootstrapStreamOfIndex: Array[Int] = null
+  private var ready: ReadyBitSet = null
+
+  // Per tier state. Tier 0 is the highest priority.
+  private var tierStart: Array[Int] = null
+  private var tierEnd: Array[Int] = null
+  private var tierCursor: Array[Int] = null
+  private var tierReady: Array[Int] = null
+
+  // Per bootstrap stream state.
+  private var bootstrapStreams: Array[SystemStream] = null
+  private var laggingPartitions: Array[Int] = null
+  private var bufferedLaggingEnvelopes: Array[Int] = null
+  private var laggingStreams = 0
+  private var laggingStreamsWithEnvelopes = 0
+
+  private var bufferedEnvelopes = 0
+  private var batchIndex = -1
+  private var batchCount = 0
+
+  def register(systemStreamPartition: SystemStreamPartition, offset: String) {
+    registered += systemStreamPartition
+
+    val partitionMetadata = bootstrapStreamMetadata
+      .get(systemStreamPartition.getSystemStream)
+      .map(_.getSystemStreamPartitionMetadata.get(systemStreamPartition.getPartition))
+      .orNull
+
+    // As in BootstrappingChooser, a partition that starts at its upcoming
+    // offset has already been fully read.
+    if (partitionMetadata != null && (offset == null || !offset.equals(partitionMetadata.getOffset(OffsetType.UPCOMING)))) {
+      registeredNewestOffsets.put(systemStreamPartition, partitionMetadata.getOffset(OffsetType.NEWEST))
+    } else {
+      registeredNewestOffsets.remove(systemStreamPartition)
+    }
+  }
+
+  def start {
+    val sortedPriorities = registered
+      .toList
+      .flatMap(ssp => priorities.get(ssp.getSystemStream))
+      .distinct
+      .sortWith(_ > _)
+    val tierOfPriority = sortedPriorities.zipWithIndex.toMap
+    val tierCount = sortedPriorities.size + 1
+    // Streams without a priority go into the last tier.
+    def tierOf(ssp: SystemStreamPartition) = priorities
+      .get(ssp.getSystemStream)
+      .map(tierOfPriority)
+      .getOrElse(tierCount - 1)
+    val ordered = registered.toList.sortBy(tierOf)
+    val size = ordered.size
+
+    envelopes = new Array[IncomingMessageEnvelope](size)
+    tierOfIndex = new Array[Int](size)
+    newestOffsets = new Array[String](size)
+    bootstrapStreamOfIndex = Array.fill(size)(-1)
+    ready = new ReadyBitSet(size)
+    tierStart = Array.fill(tierCount)(size)
+    tierEnd = Array.fill(tierCount)(size)
+    tierCursor = new Array[Int](tierCount)
+    tierReady = new Array[Int](tierCount)
+
+    bootstrapStreams = ordered
+      .filter(registeredNewestOffsets.containsKey(_))
+      .map(_.getSystemStream)
+      .distinct
+      .toArray
+    val bootstrapStreamIndexes = bootstrapStreams.zipWithIndex.toMap
+    laggingPartitions = new Array[Int](bootstrapStreams.size)
+    bufferedLaggingEnvelopes = new Array[Int](bootstrapStreams.size)
+    laggingStreams = bootstrapStreams.size
+
+    ordered.zipWithIndex.foreach {
+      case (ssp, index) =>
+        val tier = tierOf(ssp)
+        indexes.put(ssp, index)
+        tierOfIndex(index) = tier
+        tierStart(tier) = math.min(tierStart(tier), index)
+
+        if (registeredNewestOffsets.containsKey(ssp)) {
+          val bootstrapStream = bootstrapStreamIndexes(ssp.getSystemStream)
+          newestOffsets(index) = registeredNewestOffsets.get(ssp)
+          bootstrapStreamOfIndex(index) = bootstrapStream
+          laggingPartitions(bootstrapStream) += 1
+        }
+    }
+
+    // Each tier ends where the next one starts. Empty tiers are empty ranges.
+    for (tier <- tierCount - 2 to 0 by -1) {
+      tierStart(tier) = math.min(tierStart(tier), tierStart(tier + 1))
+      tierEnd(tier) = tierStart(tier + 1)
+      tierCursor(tier) = tierStart(tier)
+    }
+    tierCursor(tierCount - 1) = tierStart(tierCount - 1)
+
+    info("Starting indexed priority chooser with %s SystemStreamPartitions in %s priority tiers, and %s lagging bootstrap streams: %s" format (size, tierCount, laggingStreams, bootstrapStreams.toList))
+
+    metrics.setBufferedEnvelopes(() => bufferedEnvelopes)
+    metrics.setBatchedEnvelopes(() => batchCount)
+    metrics.setLaggingPartitions(() => laggingPartitions.sum)
+  }
+
+  def stop {}
+
+  def update(envelope: IncomingMessageEnvelope) {
+    val index = getIndex(envelope.getSystemStreamPartition)
+
+    if (envelopes(index) != null) {
+      throw new SamzaException("Got a second envelope for %s before the first one was chosen." format envelope.getSystemStreamPartition)
+    }
+
+    envelopes(index) = envelope
+    bufferedEnvelopes += 1
+    ready.set(index)
+    tierReady(tierOfIndex(index)) += 1
+
+    val bootstrapStream = bootstrapStreamOfIndex(index)
+
+    if (bootstrapStream >= 0) {
+      if (bufferedLaggingEnvelopes(bootstrapStream) == 0) {
+        laggingStreamsWithEnvelopes += 1
+      }
+
+      bufferedLaggingEnvelopes(bootstrapStream) += 1
+    }
+  }
+
+  def choose: IncomingMessageEnvelope = {
+    // Wait for an envelope from every lagging bootstrap stream.
+    if (laggingStreamsWithEnvelopes < laggingStreams) {
+      return null
+    }
+
+    var index = -1
+
+    if (batchIndex >= 0 && envelopes(batchIndex) != null) {
+      index = batchIndex
+      batchCount += 1
+    } else {
+      index = nextReadyIndex
+
+      if (index >= 0 && maxBatchSize > 0) {
+        batchIndex = index
+        batchCount = 1
+      }
+    }
+
+    // A batch that is full, including one that is full with its first
+    // envelope, gives the other SystemStreamPartitions a turn.
+    if (batchIndex >= 0 && batchCount >= maxBatchSize) {
+      metrics.batches.inc
+      batchIndex = -1
+      batchCount = 0
+    }
+
+    if (index >= 0) {
+      take(index)
+    } else {
+      null
+    }
+  }
+
+  private def getIndex(systemStreamPartition: SystemStreamPartition) = {
+    val index = indexes.get(systemStreamPartition)
+
+    if (index == null) {
+      throw new SamzaException("Got an envelope for %s, which was never registered." format systemStreamPartition)
+    }
+
+    index.intValue
+  }
+
+  /**
+   * Returns the index of the next envelope in the highest non-empty tier,
+   * or -1 if there are no envelopes.
+   */
+  private def nextReadyIndex: Int = {
+    var tier = 0
+
+    while (tier < tierReady.length) {
+      if (tierReady(tier) > 0) {
+        val index = ready.nextSetBit(tierCursor(tier), tierEnd(tier))
+
+        return if (index >= 0) index else ready.nextSetBit(tierStart(tier), tierEnd(tier))
+      }
+
+      tier += 1
+    }
+
+    -1
+  }
+
+  private def take(index: Int) = {
+    val envelope = envelopes(index)
+    val tier = tierOfIndex(index)
+
+    envelopes(index) = null
+    bufferedEnvelopes -= 1
+    ready.clear(index)
+    tierReady(tier) -= 1
+    tierCursor(tier) = index + 1
+
+    val bootstrapStream = bootstrapStreamOfIndex(index)
+
+    if (bootstrapStream >= 0) {
+      bufferedLaggingEnvelopes(bootstrapStream) -= 1
+
+      if (bufferedLaggingEnvelopes(bootstrapStream) == 0) {
+        laggingStreamsWithEnvelopes -= 1
+      }
+
+      // The partition has caught up once its newest message is chosen.
+      if (envelope.getOffset != null && envelope.getOffset.equals(newestOffsets(index))) {
+        catchUp(envelope.getSystemStreamPartition, index, bootstrapStream)
+      }
+    }
+
+    envelope
+  }
+
+  private def catchUp(systemStreamPartition: SystemStreamPartition, index: Int, bootstrapStream: Int) {
+    debug("Bootstrap stream partition is fully caught up: %s" format systemStreamPartition)
+
+    bootstrapStreamOfIndex(index) = -1
+    laggingPartitions(bootstrapStream) -= 1
+
+    if (laggingPartitions(bootstrapStream) == 0) {
+      info("Bootstrap stream is fully caught up: %s" format bootstrapStreams(bootstrapStream))
+
+      laggingStreams -= 1
+    }
+  }
+}
+
+/**
+ * A set of indexes, with a second level of bits that records which words of
+ * the first level are non-zero. Finding the next index in the set takes at
+ * most a few word operations for up to 4096 indexes per summary word.
+ */
+private[chooser] class ReadyBitSet(size: Int) {
+  private val words = new Array[Long](math.max(1, (size + 63) >>> 6))
+  private val summary = new Array[Long](math.max(1, (words.length + 63) >>> 6))
+
+  def set(index: Int) {
+    val word = index >>> 6
+    words(word) |= 1L << index
+    summary(word >>> 6) |= 1L << word
+  }
+
+  def clear(index: Int) {
+    val word = index >>> 6
+    words(word) &= ~(1L << index)
+
+    if (words(word) == 0) {
+      summary(word >>> 6) &= ~(1L << word)
+    }
+  }
+
+  def get(index: Int) = (words(index >>> 6) & (1L << index)) != 0
+
+  /**
+   * Returns the first index in [from, until) that is set, or -1 if there is
+   * none.
+   */
+  def nextSetBit(from: Int, until: Int): Int = {
+    if (from >= until) {
+      return -1
+    }
+
+    var word = from >>> 6
+    val bits = words(word) & (-1L << from)
+
+    if (bits != 0) {
+      return check((word << 6) + java.lang.Long.numberOfTrailingZeros(bits), until)
+    }
+
+    word += 1
+
+    while ((word << 6) < until) {
+      val summaryWord = word >>> 6
+      val summaryBits = summary(summaryWord) & (-1L << word)
+
+      if (summaryBits != 0) {
+        word = (summaryWord << 6) + java.lang.Long.numberOfTrailingZeros(summaryBits)
+        return check((word << 6) + java.lang.Long.numberOfTrailingZeros(words(word)), until)
+      }
+
+      word = (summaryWord + 1) << 6
+    }
+
+    -1
+  }
+
+  private def check(index: Int, until: Int) = if (index < until) index else -1
+}
+
+class IndexedPriorityChooserMetrics(val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
+  val batches = newCounter("batch-resets")
+
+  def setBufferedEnvelopes(getValue: () => Int) {
+    newGauge("buffered-messages", getValue)
+  }
+
+  def setBatchedEnvelopes(getValue: () => Int) {
+    newGauge("batched-envelopes", getValue)
+  }
+
+  def setLaggingPartitions(getValue: () => Int) {
+    newGauge("lagging-partitions", getValue)
+  }
+}
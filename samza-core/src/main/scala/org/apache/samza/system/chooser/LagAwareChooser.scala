@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.chooser
+
+import java.util.Comparator
+import java.util.PriorityQueue
+
+import org.apache.samza.SamzaException
+import org.apache.samza.config.Config
+import org.apache.samza.config.DefaultChooserConfig._
+import org.apache.samza.metrics.MetricsHelper
+import org.apache.samza.metrics.MetricsRegistry
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.system.HighWatermarkProvider
+import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.SystemConsumer
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.Logging
+
+/**
+ * A chooser that prefers the SystemStreamPartitions that are furthest behind
+ * the head of their stream, so that a container that is recovering from a
+ * backlog spends its time on the partitions that need it most, rather than
+ * giving an equal share to partitions that are already caught up.
+ *
+ * An envelope's lag is the partition's high watermark, as reported by the
+ * HighWatermarkProvider, minus the envelope's offset. It is computed when
+ * the envelope is given to the chooser. Partitions whose high watermark is
+ * not known, or whose offsets are not numeric, have a lag of 0. Envelopes
+ * with equal lag are chosen in the order they arrived, so without a
+ * HighWatermarkProvider this chooser behaves like the RoundRobinChooser.
+ *
+ * Two mechanisms keep caught up partitions from being starved:
+ *
+ * 1. The fairness floor is the fraction of choices that go to the envelope
+ *    that has waited longest, regardless of lag. With a floor of 0.1, every
+ *    tenth choice is made in arrival order.
+ * 2. The starvation threshold is the number of choices an envelope may wait.
+ *    Once the oldest envelope has waited that long, it is chosen next.
+ *
+ * Like the RoundRobinChooser, this chooser only holds one envelope per
+ * SystemStreamPartition at a time. Choosing by lag costs O(log n) in the
+ * number of buffered envelopes, and fairness or starvation choices cost O(n).
+ */
+class LagAwareChooser(
+  fairnessFloor: Double = LagAwareChooser.DEFAULT_FAIRNESS_FLOOR,
+  starvationThreshold: Int = LagAwareChooser.DEFAULT_STARVATION_THRESHOLD,
+  metrics: LagAwareChooserMetrics = new LagAwareChooserMetrics) extends BaseMessageChooser with Logging {
+
+  import LagAwareChooser._
+
+  if (fairnessFloor < 0 || fairnessFloor > 1) {
+    throw new SamzaException("Fairness floor must be between 0 and 1, but was %s." format fairnessFloor)
+  }
+
+  if (starvationThreshold <= 0) {
+    throw new SamzaException("Starvation threshold must be positive, but was %s." format starvationThreshold)
+  }
+
+  private val entries = new java.util.HashMap[SystemStreamPartition, Entry]
+
+  /**
+   * Buffered envelopes, most lagged first.
+   */
+  private val byLag = new PriorityQueue[Entry](11, LagComparator)
+
+  /**
+   * Buffered envelopes in the order they arrived, as a doubly linked list
+   * through the entries, so that any entry can be unlinked in O(1).
+   */
+  private var oldest: Entry = null
+  private var newest: Entry = null
+
+  private var highWatermarks: HighWatermarkProvider = null
+  private var updateCount = 0L
+  private var chooseCount = 0L
+  private var fairnessCredit = 0.0
+
+  /**
+   * Sets the source of high watermarks. Must be called before start. If it
+   * is never called, every envelope has a lag of 0.
+   */
+  def setHighWatermarkProvider(highWatermarkProvider: HighWatermarkProvider) {
+    highWatermarks = highWatermarkProvider
+  }
+
+  override def register(systemStreamPartition: SystemStreamPartition, offset: String) {
+    if (!entries.containsKey(systemStreamPartition)) {
+      val entry = new Entry(systemStreamPartition)
+      entries.put(systemStreamPartition, entry)
+      metrics.setLag(systemStreamPartition, () => entry.lag)
+    }
+  }
+
+  override def start {
+    metrics.setBufferedMessages(() => byLag.size)
+  }
+
+  def update(envelope: IncomingMessageEnvelope) {
+    val entry = entries.get(envelope.getSystemStreamPartition)
+
+    if (entry == null) {
+      throw new SamzaException("Got an envelope for unregistered SystemStreamPartition %s." format envelope.getSystemStreamPartition)
+    }
+
+    if (entry.envelope != null) {
+      throw new SamzaException("Got a second envelope for %s before the first one was chosen." format envelope.getSystemStreamPartition)
+    }
+
+    entry.envelope = envelope
+    entry.lag = getLag(entry, envelope)
+    entry.sequence = updateCount
+    entry.arrivedAtChoice = chooseCount
+    updateCount += 1
+    byLag.add(entry)
+    link(entry)
+  }
+
+  def choose: IncomingMessageEnvelope = {
+    if (oldest == null) {
+      null
+    } else {
+      val entry = if (chooseCount - oldest.arrivedAtChoice >= starvationThreshold) {
+        metrics.starvedChoices.inc
+        byLag.remove(oldest)
+        oldest
+      } else if (isFairnessTurn) {
+        metrics.fairnessChoices.inc
+        byLag.remove(oldest)
+        oldest
+      } else {
+        byLag.poll
+      }
+
+      unlink(entry)
+      chooseCount += 1
+
+      val envelope = entry.envelope
+      entry.envelope = null
+      envelope
+    }
+  }
+
+  /**
+   * Accrues the fairness floor on every choice, and spends it a whole
+   * choice at a time.
+   */
+  private def isFairnessTurn = {
+    fairnessCredit += fairnessFloor
+
+    if (fairnessCredit >= 1) {
+      fairnessCredit -= 1
+      true
+    } else {
+      false
+    }
+  }
+
+  private def getLag(entry: Entry, envelope: IncomingMessageEnvelope) = {
+    val highWatermark = if (highWatermarks != null && entry.hasNumericOffsets) {
+      highWatermarks.getHighWatermark(entry.systemStreamPartition)
+    } else {
+      -1L
+    }
+
+    if (highWatermark < 0) {
+      0L
+    } else {
+      try {
+        math.max(highWatermark - java.lang.Long.parseLong(envelope.getOffset), 0L)
+      } catch {
+        case e: NumberFormatException =>
+          warn("Offset %s of %s is not numeric, so its lag will always be 0." format (envelope.getOffset, entry.systemStreamPartition))
+          entry.hasNumericOffsets = false
+          0L
+      }
+    }
+  }
+
+  private def link(entry: Entry) {
+    entry.older = newest
+    entry.newer = null
+
+    if (newest == null) {
+      oldest = entry
+    } else {
+      newest.newer = entry
+    }
+
+    newest = entry
+  }
+
+  private def unlink(entry: Entry) {
+    if (entry.older == null) {
+      oldest = entry.newer
+    } else {
+      entry.older.newer = entry.newer
+    }
+
+    if (entry.newer == null) {
+      newest = entry.older
+    } else {
+      entry.newer.older = entry.older
+    }
+
+    entry.older = null
+    entry.newer = null
+  }
+}
+
+object LagAwareChooser {
+  val DEFAULT_FAIRNESS_FLOOR = 0.1
+  val DEFAULT_STARVATION_THRESHOLD = 1000
+
+  /**
+   * The state for one SystemStreamPartition. Entries are reused for every
+   * envelope from their partition, so update and choose don't allocate.
+   */
+  private class Entry(val systemStreamPartition: SystemStreamPartition) {
+    var envelope: IncomingMessageEnvelope = null
+    var lag = 0L
+    var sequence = 0L
+    var arrivedAtChoice = 0L
+    var hasNumericOffsets = true
+    var older: Entry = null
+    var newer: Entry = null
+  }
+
+  /**
+   * Most lagged first, and then first come, first served.
+   */
+  private object LagComparator extends Comparator[Entry] {
+    def compare(a: Entry, b: Entry) = {
+      if (a.lag != b.lag) {
+        java.lang.Long.compare(b.lag, a.lag)
+      } else {
+        java.lang.Long.compare(a.sequence, b.sequence)
+      }
+    }
+  }
+}
+
+class LagAwareChooserMetrics(val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
+  val starvedChoices = newCounter("starved-choices")
+  val fairnessChoices = newCounter("fairness-choices")
+
+  def setBufferedMessages(getValue: () => Int) {
+    newGauge("buffered-messages", getValue)
+  }
+
+  def setLag(systemStreamPartition: SystemStreamPartition, getValue: () => Long) {
+    newGauge("%s-%s-%s-messages-behind-high-watermark" format (systemStreamPartition.getSystem, systemStreamPartition.getStream, systemStreamPartition.getPartition.getPartitionId), getValue)
+  }
+}
+
+class LagAwareChooserFactory extends MessageChooserFactory {
+  def getChooser(config: Config, registry: MetricsRegistry) = new LagAwareChooser(
+    config.getChooserLagFairnessFloor,
+    config.getChooserLagStarvationThreshold,
+    new LagAwareChooserMetrics(registry))
+}
+
+/**
+ * Looks up high watermarks from the consumer of each SystemStreamPartition's
+ * system, for the consumers that provide them.
+ */
+class SystemConsumersHighWatermarkProvider(consumers: Map[String, SystemConsumer]) extends HighWatermarkProvider {
+  private val providers = new java.util.HashMap[String, HighWatermarkProvider]
+
+  consumers.foreach {
+    case (systemName, provider: HighWatermarkProvider) => providers.put(systemName, provider)
+    case _ =>
+  }
+
+  def getHighWatermark(systemStreamPartition: SystemStreamPartition) = {
+    val provider = providers.get(systemStreamPartition.getSystem)
+
+    if (provider == null) -1L else provider.getHighWatermark(systemStreamPartition)
+  }
+}
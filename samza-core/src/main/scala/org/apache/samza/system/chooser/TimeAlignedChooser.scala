@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.chooser
+
+import java.util.Comparator
+import java.util.PriorityQueue
+
+import org.apache.samza.SamzaException
+import org.apache.samza.config.Config
+import org.apache.samza.config.DefaultChooserConfig._
+import org.apache.samza.metrics.MetricsHelper
+import org.apache.samza.metrics.MetricsRegistry
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.Logging
+
+/**
+ * A chooser that processes messages in event time order across all of its
+ * SystemStreamPartitions, by always choosing the buffered envelope with the
+ * smallest timestamp. This keeps the inputs of a stream-stream join aligned,
+ * so that a fast input doesn't race ahead of a slow one, and the join's
+ * stores only need to hold the messages that fall inside the join window.
+ *
+ * The chooser can only know that an envelope is the earliest once it has an
+ * envelope from every SystemStreamPartition. When a partition has none
+ * buffered, the chooser waits for it, by returning null from choose, for up
+ * to maxWaitMs. After that, it chooses among the envelopes it has, and it
+ * doesn't wait again until every partition has an envelope buffered once
+ * more. So an input that has no new messages holds up the others for at
+ * most maxWaitMs at a time.
+ *
+ * Envelopes without a timestamp (see IncomingMessageEnvelope.getTimestamp)
+ * can't be ordered, so they are chosen as soon as possible, in the order
+ * they arrived.
+ */
+class TimeAlignedChooser(
+  maxWaitMs: Long = TimeAlignedChooser.DEFAULT_MAX_WAIT_MS,
+  metrics: TimeAlignedChooserMetrics = new TimeAlignedChooserMetrics,
+  clock: () => Long = { System.currentTimeMillis }) extends BaseMessageChooser with Logging {
+
+  import TimeAlignedChooser._
+
+  if (maxWaitMs < 0) {
+    throw new SamzaException("Max wait must not be negative, but was %s ms." format maxWaitMs)
+  }
+
+  private val entries = new java.util.HashMap[SystemStreamPartition, Entry]
+
+  /**
+   * Buffered envelopes, earliest first.
+   */
+  private val byTimestamp = new PriorityQueue[Entry](11, TimestampComparator)
+
+  /**
+   * The time at which choose first found a partition without an envelope,
+   * or -1 if every partition had one the last time choose was called.
+   */
+  private var waitStartMs = -1L
+  private var waitTimedOut = false
+  private var updateCount = 0L
+
+  /**
+   * The timestamp of the last chosen envelope that had one.
+   */
+  private var eventTime = IncomingMessageEnvelope.NO_TIMESTAMP
+
+  override def register(systemStreamPartition: SystemStreamPartition, offset: String) {
+    if (!entries.containsKey(systemStreamPartition)) {
+      entries.put(systemStreamPartition, new Entry)
+    }
+  }
+
+  override def start {
+    metrics.setBufferedMessages(() => byTimestamp.size)
+    metrics.setEmptyPartitions(() => entries.size - byTimestamp.size)
+    metrics.setEventTime(() => eventTime)
+  }
+
+  def update(envelope: IncomingMessageEnvelope) {
+    val entry = entries.get(envelope.getSystemStreamPartition)
+
+    if (entry == null) {
+      throw new SamzaException("Got an envelope for unregistered SystemStreamPartition %s." format envelope.getSystemStreamPartition)
+    }
+
+    if (entry.envelope != null) {
+      throw new SamzaException("Got a second envelope for %s before the first one was chosen." format envelope.getSystemStreamPartition)
+    }
+
+    entry.envelope = envelope
+    entry.sequence = updateCount
+    updateCount += 1
+    byTimestamp.add(entry)
+  }
+
+  def choose: IncomingMessageEnvelope = {
+    val earliest = byTimestamp.peek
+
+    if (earliest == null) {
+      null
+    } else if (earliest.envelope.getTimestamp == IncomingMessageEnvelope.NO_TIMESTAMP || !isWaiting) {
+      val envelope = earliest.envelope
+      byTimestamp.poll
+      earliest.envelope = null
+
+      if (envelope.getTimestamp != IncomingMessageEnvelope.NO_TIMESTAMP) {
+        eventTime = envelope.getTimestamp
+      }
+
+      envelope
+    } else {
+      null
+    }
+  }
+
+  /**
+   * Returns true if some partition has no envelope buffered, and the chooser
+   * hasn't yet waited maxWaitMs for it.
+   */
+  private def isWaiting = {
+    if (byTimestamp.size == entries.size) {
+      waitStartMs = -1L
+      waitTimedOut = false
+      false
+    } else if (waitTimedOut) {
+      // Don't wait again until every partition has an envelope.
+      false
+    } else {
+      val now = clock()
+
+      if (waitStartMs < 0) {
+        waitStartMs = now
+      }
+
+      if (now - waitStartMs >= maxWaitMs) {
+        debug("Waited %s ms for empty partitions. Choosing the earliest buffered envelope instead." format maxWaitMs)
+        metrics.waitTimeouts.inc
+        waitTimedOut = true
+        false
+      } else {
+        true
+      }
+    }
+  }
+}
+
+object TimeAlignedChooser {
+  val DEFAULT_MAX_WAIT_MS = 100L
+
+  private class Entry {
+    var envelope: IncomingMessageEnvelope = null
+    var sequence = 0L
+  }
+
+  /**
+   * Envelopes without a timestamp first, then earliest timestamp first, and
+   * then first come, first served.
+   */
+  private object TimestampComparator extends Comparator[Entry] {
+    def compare(a: Entry, b: Entry) = {
+      val aTimestamp = a.envelope.getTimestamp
+      val bTimestamp = b.envelope.getTimestamp
+
+      if (aTimestamp != bTimestamp) {
+        java.lang.Long.compare(aTimestamp, bTimestamp)
+      } else {
+        java.lang.Long.compare(a.sequence, b.sequence)
+      }
+    }
+  }
+}
+
+class TimeAlignedChooserMetrics(val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
+  val waitTimeouts = newCounter("wait-timeouts")
+
+  def setBufferedMessages(getValue: () => Int) {
+    newGauge("buffered-messages", getValue)
+  }
+
+  def setEmptyPartitions(getValue: () => Int) {
+    newGauge("empty-partitions", getValue)
+  }
+
+  def setEventTime(getValue: () => Long) {
+    newGauge("event-time", getValue)
+  }
+}
+
+class TimeAlignedChooserFactory extends MessageChooserFactory {
+  def getChooser(config: Config, registry: MetricsRegistry) = new TimeAlignedChooser(
+    config.getChooserTimeAlignedMaxWaitMs,
+    new TimeAlignedChooserMetrics(registry))
+}
@@ -21,12 +21,12 @@ package org.apache.samza.system.filereader
 
 import org.apache.samza.system.SystemConsumer
 import org.apache.samza.util.BlockingEnvelopeMap
+import org.apache.samza.util.SpscEnvelopeRingBuffer
 import org.apache.samza.metrics.MetricsRegistry
 import org.apache.samza.system.SystemStreamPartition
 import scala.collection.mutable.Map
 import java.io.RandomAccessFile
 import org.apache.samza.system.IncomingMessageEnvelope
-import java.util.concurrent.LinkedBlockingQueue
 import org.apache.samza.Partition
 import collection.JavaConversions._
 import scala.collection.mutable.HashMap
@@ -125,8 +125,12 @@ class FileReaderSystemConsumer(
               while (i < file.length) {
                 val cha = file.read.toChar
                 if (cha == '\n') {
+                  // back off while the container's buffer memory budget is used up
+                  while (!hasBufferBudget(ssp)) {
+                    Thread.sleep(pollingSleepMs)
+                  }
                   // put into the queue. offset is the beginning of this line
-                  put(ssp, new IncomingMessageEnvelope(ssp, offset.toString, null, line));
+                  put(ssp, new IncomingMessageEnvelope(ssp, offset.toString, null, line, (i - offset).toInt));
                   offset = i + 1 // the beginning of the newline
                   line = ""
                 } else {
@@ -159,13 +163,14 @@ class FileReaderSystemConsumer(
   }
 
   /**
-   * Constructs a new bounded BlockingQueue of IncomingMessageEnvelopes. The bound is determined
-   * by the <code>BOUNDED_QUEUE_THRESHOLD</code> constant.
+   * Constructs a new bounded queue of IncomingMessageEnvelopes. The bound is determined
+   * by the <code>BOUNDED_QUEUE_THRESHOLD</code> constant. Each file is read by a single thread,
+   * so the queue is a single-producer ring buffer.
    *
    * @return A bounded queue used for queueing IncomingMessageEnvelopes to be sent to their
    *         specified destinations.
    */
-  override def newBlockingQueue = {
-    new LinkedBlockingQueue[IncomingMessageEnvelope](queueSize);
+  override def newEnvelopeQueue = {
+    new SpscEnvelopeRingBuffer(queueSize)
   }
 }
\ No newline at end of file
@@ -32,6 +32,15 @@ class ReadableCoordinator(val taskName: TaskName) extends TaskCoordinator {
   override def commit(scope: RequestScope) { commitRequest = Some(scope) }
   override def shutdown(scope: RequestScope) { shutdownRequest = Some(scope) }
 
+  /**
+   * Clears any requests, so that the coordinator can be reused for the next
+   * call into the task.
+   */
+  def reset {
+    commitRequest = None
+    shutdownRequest = None
+  }
+
   def requestedCommitTask = commitRequest.isDefined && commitRequest.get == RequestScope.CURRENT_TASK
   def requestedCommitAll  = commitRequest.isDefined && commitRequest.get == RequestScope.ALL_TASKS_IN_CONTAINER
 
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.task
+
+import java.util
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
+import java.util.concurrent.{ConcurrentHashMap, Semaphore, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.apache.samza.container.TaskName
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStreamPartition}
+import org.apache.samza.util.Logging
+
+object TaskCallbackManager {
+  /**
+   * How often awaitCompletion logs that it is still waiting.
+   */
+  val AWAIT_LOG_INTERVAL_MS = 10000L
+
+  /**
+   * How long awaitCompletion waits by default before it gives up.
+   */
+  val DEFAULT_CALLBACK_TIMEOUT_MS = 60000L
+}
+
+/**
+ * Tracks the in-flight messages of a single {@link AsyncStreamTask}.
+ *
+ * <p>At most maxConcurrency messages may be in flight at once. A slot must be
+ * reserved with tryReserve before each message is dispatched; tryReserve
+ * never blocks, so that a full task doesn't hold up the thread that
+ * dispatches messages to other tasks. Offsets are handed to updateOffset strictly in
+ * the order the messages of each SystemStreamPartition were dispatched: a
+ * message that completes early is held back until every earlier message from
+ * the same SystemStreamPartition has completed as well.</p>
+ *
+ * <p>A failure that isHandled ignores completes the message, just like a
+ * success. Any other failure is kept and re-thrown from checkFailure. The
+ * offset of such a failed message is never handed on, so nothing at or after
+ * it is checkpointed.</p>
+ */
+class TaskCallbackManager(
+  taskName: TaskName,
+  val maxConcurrency: Int,
+  updateOffset: (SystemStreamPartition, String) => Unit,
+  isHandled: Throwable => Boolean = _ => false,
+  callbackTimeoutMs: Long = TaskCallbackManager.DEFAULT_CALLBACK_TIMEOUT_MS) extends Logging {
+
+  if (maxConcurrency <= 0) {
+    throw new SamzaException("Max concurrency must be positive, but was %s." format maxConcurrency)
+  }
+
+  if (callbackTimeoutMs <= 0) {
+    throw new SamzaException("Callback timeout must be positive, but was %s." format callbackTimeoutMs)
+  }
+
+  private val permits = new Semaphore(maxConcurrency)
+  private val pendingCallbacks = new ConcurrentHashMap[SystemStreamPartition, util.ArrayDeque[TaskCallbackImpl]]
+  private val failure = new AtomicReference[Throwable]
+
+  /**
+   * The number of messages whose callback has not been invoked yet,
+   * including messages that a slot has been reserved for.
+   */
+  def inFlight = maxConcurrency - permits.availablePermits
+
+  /**
+   * Reserves a slot for a message that is about to be dispatched. Returns
+   * false, without blocking, if maxConcurrency messages are already in
+   * flight.
+   */
+  def tryReserve = permits.tryAcquire
+
+  /**
+   * Gives back a slot that was reserved for a message that is not dispatched
+   * after all.
+   */
+  def cancelReservation {
+    permits.release
+  }
+
+  /**
+   * Creates the callback for a message that is about to be dispatched. The
+   * caller must have reserved a slot for it with tryReserve. onComplete is
+   * invoked after the callback has completed successfully, or has failed
+   * with an exception that isHandled ignores.
+   */
+  def newCallback(envelope: IncomingMessageEnvelope, onComplete: () => Unit = () => ()): TaskCallback = {
+    val callback = new TaskCallbackImpl(envelope, onComplete)
+    val ssp = envelope.getSystemStreamPartition
+    var callbacks = pendingCallbacks.get(ssp)
+
+    if (callbacks == null) {
+      pendingCallbacks.putIfAbsent(ssp, new util.ArrayDeque[TaskCallbackImpl])
+      callbacks = pendingCallbacks.get(ssp)
+    }
+
+    callbacks.synchronized {
+      callbacks.add(callback)
+    }
+
+    callback
+  }
+
+  /**
+   * Blocks until every in-flight message has either completed or failed.
+   * Throws if that takes longer than callbackTimeoutMs, since a callback
+   * that is never invoked would otherwise block the caller forever.
+   */
+  def awaitCompletion {
+    val deadlineNs = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(callbackTimeoutMs)
+    var remainingNs = deadlineNs - System.nanoTime
+
+    while (!permits.tryAcquire(maxConcurrency, math.min(remainingNs, TimeUnit.MILLISECONDS.toNanos(TaskCallbackManager.AWAIT_LOG_INTERVAL_MS)), TimeUnit.NANOSECONDS)) {
+      remainingNs = deadlineNs - System.nanoTime
+
+      if (remainingNs <= 0) {
+        throw new SamzaException("%s in-flight messages did not complete within %s ms for taskName: %s" format (inFlight, callbackTimeoutMs, taskName))
+      }
+
+      warn("Still waiting for %s in-flight messages to complete for taskName: %s" format (inFlight, taskName))
+    }
+
+    permits.release(maxConcurrency)
+  }
+
+  /**
+   * Re-throws the first failure that was reported through a callback, if any.
+   */
+  def checkFailure {
+    val t = failure.get
+
+    if (t != null) {
+      throw t
+    }
+  }
+
+  private class TaskCallbackImpl(val envelope: IncomingMessageEnvelope, onComplete: () => Unit) extends TaskCallback {
+    private val invoked = new AtomicBoolean(false)
+
+    // Guarded by the SystemStreamPartition's pending callback queue.
+    private var completed = false
+
+    def complete {
+      if (markInvoked) {
+        trace("Callback completed for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset))
+
+        completeInOrder
+        permits.release
+        onComplete()
+      }
+    }
+
+    def failure(t: Throwable) {
+      if (markInvoked) {
+        if (isHandled(t)) {
+          trace("Callback failed with an ignored exception for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset))
+
+          completeInOrder
+          permits.release
+          onComplete()
+        } else {
+          error("Callback failed for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset), t)
+
+          TaskCallbackManager.this.failure.compareAndSet(null, t)
+          permits.release
+        }
+      }
+    }
+
+    private def markInvoked = {
+      val firstInvocation = invoked.compareAndSet(false, true)
+
+      if (!firstInvocation) {
+        warn("Ignoring repeated callback invocation for taskName, SSP and offset: %s, %s, %s" format (taskName, envelope.getSystemStreamPartition, envelope.getOffset))
+      }
+
+      firstInvocation
+    }
+
+    /**
+     * Marks this message as completed, and hands on the offset of the last
+     * message in the longest completed prefix of its SystemStreamPartition.
+     */
+    private def completeInOrder {
+      val callbacks = pendingCallbacks.get(envelope.getSystemStreamPartition)
+
+      callbacks.synchronized {
+        completed = true
+
+        var lastCompleted: TaskCallbackImpl = null
+
+        while (!callbacks.isEmpty && callbacks.peek.completed) {
+          lastCompleted = callbacks.poll
+        }
+
+        if (lastCompleted != null) {
+          updateOffset(envelope.getSystemStreamPartition, lastCompleted.envelope.getOffset)
+        }
+      }
+    }
+  }
+}
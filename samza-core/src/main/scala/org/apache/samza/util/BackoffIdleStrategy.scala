@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util
+
+import java.util.concurrent.locks.LockSupport
+
+import org.apache.samza.config.Config
+import org.apache.samza.config.TaskConfig
+
+object BackoffIdleStrategy {
+  val DEFAULT_MAX_SPINS = 100
+  val DEFAULT_MAX_YIELDS = 10
+  val DEFAULT_MIN_PARK_NS = 1000L
+  val DEFAULT_MAX_PARK_NS = 1000000L
+}
+
+/**
+ * An {@link IdleStrategy} that backs off in three steps while the run loop
+ * stays idle: it first returns immediately (busy spinning) for maxSpins
+ * calls, then yields the thread for maxYields calls, and then parks the
+ * thread. The park time starts at minParkNs and doubles on every call, up to
+ * maxParkNs.
+ *
+ * <p>A call to signal wakes up a parked thread, and makes the next call to
+ * idle return immediately. The backoff itself is only restarted by reset.</p>
+ *
+ * @param maxSpins Number of idle calls that spin before yielding.
+ * @param maxYields Number of idle calls that yield before parking.
+ * @param minParkNs Time in nanoseconds to park on the first parking call.
+ * @param maxParkNs Cap up to which the park time is increased.
+ */
+class BackoffIdleStrategy(
+  maxSpins: Int = BackoffIdleStrategy.DEFAULT_MAX_SPINS,
+  maxYields: Int = BackoffIdleStrategy.DEFAULT_MAX_YIELDS,
+  minParkNs: Long = BackoffIdleStrategy.DEFAULT_MIN_PARK_NS,
+  maxParkNs: Long = BackoffIdleStrategy.DEFAULT_MAX_PARK_NS) extends IdleStrategy {
+
+  require(maxSpins >= 0, "maxSpins must not be negative")
+  require(maxYields >= 0, "maxYields must not be negative")
+  require(minParkNs > 0, "minParkNs must be positive")
+  require(maxParkNs >= minParkNs, "maxParkNs must be >= minParkNs")
+
+  @volatile private var signalled = false
+  @volatile private var parkedThread: Thread = null
+  private var spins = 0
+  private var yields = 0
+  private var parkNs = minParkNs
+
+  def idle {
+    if (signalled) {
+      signalled = false
+    } else if (spins < maxSpins) {
+      spins += 1
+    } else if (yields < maxYields) {
+      yields += 1
+      Thread.`yield`
+    } else {
+      parkedThread = Thread.currentThread
+
+      // A signal may have arrived before the thread was published.
+      if (!signalled) {
+        LockSupport.parkNanos(this, parkNs)
+      }
+
+      parkedThread = null
+      signalled = false
+      parkNs = math.min(parkNs * 2, maxParkNs)
+    }
+  }
+
+  def reset {
+    spins = 0
+    yields = 0
+    parkNs = minParkNs
+  }
+
+  def signal {
+    signalled = true
+
+    val thread = parkedThread
+
+    if (thread != null) {
+      LockSupport.unpark(thread)
+    }
+  }
+
+  /**
+   * The time that the next parking call will park for.
+   */
+  private[util] def getParkNs = parkNs
+}
+
+class BackoffIdleStrategyFactory extends IdleStrategyFactory {
+  def getIdleStrategy(config: Config) = new BackoffIdleStrategy(
+    config.getInt(TaskConfig.IDLE_MAX_SPINS, BackoffIdleStrategy.DEFAULT_MAX_SPINS),
+    config.getInt(TaskConfig.IDLE_MAX_YIELDS, BackoffIdleStrategy.DEFAULT_MAX_YIELDS),
+    config.getLong(TaskConfig.IDLE_MIN_PARK_NS, BackoffIdleStrategy.DEFAULT_MIN_PARK_NS),
+    config.getLong(TaskConfig.IDLE_MAX_PARK_NS, BackoffIdleStrategy.DEFAULT_MAX_PARK_NS))
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Limits the combined rate at which any number of threads may consume bytes.
+ * Each call to acquire reserves the next free slot of time for its bytes,
+ * and sleeps until that slot starts. Time that nobody used is not saved up,
+ * so the limiter never allows bursts above the configured rate.
+ *
+ * @param bytesPerSecond The maximum rate, shared by all callers.
+ * @param clock Returns the current time in nanoseconds.
+ * @param sleepNs Sleeps for the given number of nanoseconds.
+ */
+class ByteRateLimiter(
+  bytesPerSecond: Long,
+  clock: () => Long = () => System.nanoTime,
+  sleepNs: Long => Unit = ns => TimeUnit.NANOSECONDS.sleep(ns)) {
+
+  require(bytesPerSecond > 0, "bytesPerSecond must be positive")
+
+  private val nsPerByte = TimeUnit.SECONDS.toNanos(1).toDouble / bytesPerSecond
+  private var nextFreeNs = clock()
+
+  /**
+   * Blocks until the caller may consume the given number of bytes.
+   */
+  def acquire(bytes: Long) {
+    val waitNs = synchronized {
+      val now = clock()
+      val startNs = math.max(now, nextFreeNs)
+      nextFreeNs = startNs + (bytes * nsPerByte).toLong
+      startNs - now
+    }
+
+    if (waitNs > 0) {
+      sleepNs(waitNs)
+    }
+  }
+}
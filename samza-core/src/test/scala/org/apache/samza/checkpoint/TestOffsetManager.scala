@@ -20,8 +20,9 @@
 package org.apache.samza.checkpoint
 
 import java.util
+import java.util.concurrent.atomic.AtomicInteger
 
-import org.apache.samza.container.TaskName
+import org.apache.samza.container.{TaskName, TaskWorkerPool}
 import org.apache.samza.Partition
 import org.apache.samza.system.SystemStream
 import org.apache.samza.system.SystemStreamMetadata
@@ -112,6 +113,40 @@ class TestOffsetManager {
     assertEquals("48", offsetManager.offsetManagerMetrics.checkpointedOffsets.get(systemStreamPartition).getValue)
   }
 
+  @Test
+  def testBatchCheckpointsWritesOnce {
+    val taskName0 = new TaskName("c0")
+    val taskName1 = new TaskName("c1")
+    val systemStream = new SystemStream("test-system", "test-stream")
+    val partition0 = new Partition(0)
+    val partition1 = new Partition(1)
+    val ssp0 = new SystemStreamPartition(systemStream, partition0)
+    val ssp1 = new SystemStreamPartition(systemStream, partition1)
+    val testStreamMetadata = new SystemStreamMetadata(systemStream.getStream, Map(
+      partition0 -> new SystemStreamPartitionMetadata("0", "1", "2"),
+      partition1 -> new SystemStreamPartitionMetadata("0", "1", "2")))
+    val systemStreamMetadata = Map(systemStream -> testStreamMetadata)
+    val checkpointManager = getCheckpointManager(ssp0, taskName0)
+    val systemAdmins = Map("test-system" -> getSystemAdmin)
+    val offsetManager = OffsetManager(systemStreamMetadata, new MapConfig, checkpointManager, systemAdmins, new OffsetManagerMetrics)
+    offsetManager.register(taskName0, Set(ssp0))
+    offsetManager.register(taskName1, Set(ssp1))
+    offsetManager.start
+    offsetManager.update(taskName0, ssp0, "46")
+    offsetManager.update(taskName1, ssp1, "7")
+    offsetManager.batchCheckpoints {
+      offsetManager.checkpoint(taskName0)
+      offsetManager.checkpoint(taskName1)
+      // Nothing is written until the batch completes.
+      assertEquals(0, checkpointManager.batchesWritten)
+    }
+    assertEquals(1, checkpointManager.batchesWritten)
+    assertEquals(new Checkpoint(Map(ssp0 -> "46")), checkpointManager.readLastCheckpoint(taskName0))
+    assertEquals(new Checkpoint(Map(ssp1 -> "7")), checkpointManager.readLastCheckpoint(taskName1))
+    assertEquals(2, offsetManager.offsetManagerMetrics.checkpointBatchSize.getValue)
+    assertEquals("7", offsetManager.offsetManagerMetrics.checkpointedOffsets.get(ssp1).getValue)
+  }
+
   @Test
   def testShouldResetStreams {
     val taskName = new TaskName("c")
@@ -179,6 +214,89 @@ class TestOffsetManager {
     }
   }
 
+  @Test
+  def testConcurrentCommitsShouldWriteCheckpointsOneAtATime {
+    val systemStream = new SystemStream("test-system", "test-stream")
+    val taskNames = (0 until 4).map(partition => new TaskName("Partition " + partition)).toSet
+    val writers = new AtomicInteger
+    val maxWriters = new AtomicInteger
+    val written = new AtomicInteger
+    val checkpointManager = new CheckpointManager {
+      def start {}
+      def register(taskName: TaskName) {}
+      def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
+        val current = writers.incrementAndGet
+        maxWriters.set(math.max(maxWriters.get, current))
+        Thread.sleep(5)
+        written.incrementAndGet
+        writers.decrementAndGet
+      }
+      def writeCheckpoints(checkpoints: util.Map[TaskName, Checkpoint]) { checkpoints.foreach { case (taskName, checkpoint) => writeCheckpoint(taskName, checkpoint) } }
+      def readLastCheckpoint(taskName: TaskName) = null
+      def stop {}
+    }
+    val offsetManager = new OffsetManager(checkpointManager = checkpointManager)
+    taskNames.foreach(taskName => offsetManager.register(taskName, Set(new SystemStreamPartition(systemStream, new Partition(taskName.getTaskName.last - '0')))))
+
+    // Each task commits on its own pool thread, as in the run loop's pool mode.
+    val workerPool = new TaskWorkerPool(taskNames, taskNames.size)
+    (0 until 10).foreach(i => taskNames.foreach(taskName => workerPool.submit(taskName, () => offsetManager.checkpoint(taskName))))
+
+    assertTrue(workerPool.awaitIdle(10000))
+    workerPool.checkFailure
+    workerPool.stop(1000)
+    assertEquals(40, written.get)
+    assertEquals(1, maxWriters.get)
+  }
+
+  @Test
+  def testTaskOffsetsShouldBeUpdatedByIndex {
+    val taskName = new TaskName("c")
+    val systemStream = new SystemStream("test-system", "test-stream")
+    val ssp0 = new SystemStreamPartition(systemStream, new Partition(0))
+    val ssp1 = new SystemStreamPartition(systemStream, new Partition(1))
+    val unregisteredSsp = new SystemStreamPartition(systemStream, new Partition(2))
+    val offsetManager = new OffsetManager
+    offsetManager.register(taskName, Set(ssp0, ssp1))
+
+    val offsets = offsetManager.getTaskOffsets(taskName)
+    offsets.update(offsets.indexOf(ssp1), "5")
+    assertEquals(-1, offsets.indexOf(unregisteredSsp))
+    assertEquals(None, offsetManager.getLastProcessedOffset(taskName, ssp0))
+    assertEquals(Some("5"), offsetManager.getLastProcessedOffset(taskName, ssp1))
+
+    // Offsets of SystemStreamPartitions that weren't registered are tracked, but not checkpointed.
+    offsetManager.update(taskName, ssp0, "3")
+    offsetManager.update(taskName, unregisteredSsp, "7")
+    assertEquals(Some("7"), offsetManager.getLastProcessedOffset(taskName, unregisteredSsp))
+    assertEquals(new Checkpoint(Map(ssp0 -> "3", ssp1 -> "5")), offsetManager.getCheckpoint(taskName))
+
+    // The table grew in place, so updates through it are still checkpointed.
+    assertSame(offsets, offsetManager.getTaskOffsets(taskName))
+    offsets.update(offsets.indexOf(ssp1), "6")
+    assertEquals(new Checkpoint(Map(ssp0 -> "3", ssp1 -> "6")), offsetManager.getCheckpoint(taskName))
+  }
+
+  @Test
+  def testTaskOffsetsShouldKeepIndexesAndOffsetsAsTheyGrow {
+    val ssps = (0 until TaskOffsets.SEGMENT_SIZE * 2 + 1).map(partition => new SystemStreamPartition("test-system", "test-stream", new Partition(partition)))
+    val offsets = new TaskOffsets(ssps.take(1))
+    offsets.update(0, "0")
+
+    ssps.drop(1).foreach(ssp => {
+      offsets.add(Set(ssp))
+      offsets.update(offsets.indexOf(ssp), ssp.getPartition.getPartitionId.toString)
+    })
+
+    assertEquals(ssps.size, offsets.size)
+    assertEquals(ssps, offsets.getSystemStreamPartitions)
+    ssps.zipWithIndex.foreach { case (ssp, index) =>
+      assertEquals(index, offsets.indexOf(ssp))
+      assertEquals(index.toString, offsets.get(ssp))
+    }
+    assertEquals(ssps.map(ssp => ssp -> ssp.getPartition.getPartitionId.toString).toMap, offsets.snapshot().toMap)
+  }
+
   @Test
   def testDefaultSystemShouldFailWhenFailIsSpecified {
     val systemStream = new SystemStream("test-system", "test-stream")
@@ -247,10 +365,12 @@ class TestOffsetManager {
       var isStopped = false
       var registered = Set[TaskName]()
       var checkpoints: Map[TaskName, Checkpoint] = Map(taskName -> checkpoint)
+      var batchesWritten = 0
       var taskNameToPartitionMapping: util.Map[TaskName, java.lang.Integer] = new util.HashMap[TaskName, java.lang.Integer]()
       def start { isStarted = true }
       def register(taskName: TaskName) { registered += taskName }
       def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) { checkpoints += taskName -> checkpoint }
+      def writeCheckpoints(batch: util.Map[TaskName, Checkpoint]) { checkpoints ++= batch; batchesWritten += 1 }
       def readLastCheckpoint(taskName: TaskName) = checkpoints.getOrElse(taskName, null)
       def stop { isStopped = true }
 
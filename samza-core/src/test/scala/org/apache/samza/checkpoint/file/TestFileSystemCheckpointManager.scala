@@ -19,16 +19,18 @@
 
 package org.apache.samza.checkpoint.file
 
-import java.io.File
+import java.io.{File, FileOutputStream}
 import scala.collection.JavaConversions._
 import java.util.Random
+import java.util.concurrent.ConcurrentLinkedQueue
 import org.junit.Assert._
 import org.junit.{After, Before, Test}
 import org.apache.samza.SamzaException
 import org.apache.samza.Partition
-import org.apache.samza.checkpoint.Checkpoint
+import org.apache.samza.checkpoint.{Checkpoint, DeltaCheckpointMetrics}
 import org.apache.samza.system.SystemStreamPartition
 import org.apache.samza.container.TaskName
+import org.apache.samza.serializers.CheckpointSerde
 import org.junit.rules.TemporaryFolder
 
 class TestFileSystemCheckpointManager  {
@@ -72,6 +74,128 @@ class TestFileSystemCheckpointManager  {
     assertEquals(cp, readCp)
   }
 
+  @Test
+  def testWriteCheckpointsShouldMergeIntoOneFile {
+    val taskName2 = new TaskName("Staffordshire")
+    val taskName3 = new TaskName("Shropshire")
+    val cp1 = new Checkpoint(Map(new SystemStreamPartition("a", "b", new Partition(0)) -> "c"))
+    val cp2 = new Checkpoint(Map(new SystemStreamPartition("a", "b", new Partition(1)) -> "d"))
+    val cp3 = new Checkpoint(Map(new SystemStreamPartition("a", "b", new Partition(2)) -> "e"))
+    val cpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot)
+
+    cpm.start
+    cpm.writeCheckpoints(Map(taskName -> cp1, taskName2 -> cp2))
+    cpm.writeCheckpoints(Map(taskName3 -> cp3))
+    cpm.stop
+
+    assertEquals(List("some-job-name-checkpoints", "some-job-name-checkpoints.lock"), tempFolder.getRoot.list.sorted.toList)
+
+    // A new manager reads every task's checkpoint back from the file.
+    val readCpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot)
+    assertEquals(cp1, readCpm.readLastCheckpoint(taskName))
+    assertEquals(cp2, readCpm.readLastCheckpoint(taskName2))
+    assertEquals(cp3, readCpm.readLastCheckpoint(taskName3))
+  }
+
+  @Test
+  def testConcurrentWritersShouldNotLoseCheckpoints {
+    val ssp = new SystemStreamPartition("a", "b", new Partition(0))
+    val cpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot, fullInterval = 3)
+    val failures = new ConcurrentLinkedQueue[Throwable]
+    val writers = (0 until 4).map(writer => new Thread(new Runnable {
+      def run {
+        try {
+          (1 to 20).foreach(i => cpm.writeCheckpoint(new TaskName("Partition " + writer), new Checkpoint(Map(ssp -> i.toString))))
+        } catch {
+          case t: Throwable => failures.add(t)
+        }
+      }
+    }))
+
+    cpm.start
+    writers.foreach(_.start)
+    writers.foreach(_.join)
+    cpm.stop
+
+    assertTrue("Writers failed: " + failures, failures.isEmpty)
+    val readCpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot)
+    (0 until 4).foreach(writer => assertEquals(new Checkpoint(Map(ssp -> "20")), readCpm.readLastCheckpoint(new TaskName("Partition " + writer))))
+  }
+
+  @Test
+  def testDeltaCheckpointsShouldBeAppendedAndMergedOnRead {
+    val ssp0 = new SystemStreamPartition("a", "b", new Partition(0))
+    val ssp1 = new SystemStreamPartition("a", "b", new Partition(1))
+    val ssp2 = new SystemStreamPartition("a", "b", new Partition(2))
+    val cp1 = new Checkpoint(Map(ssp0 -> "1", ssp1 -> "1", ssp2 -> "1"))
+    val cp2 = new Checkpoint(Map(ssp0 -> "2", ssp1 -> "1", ssp2 -> "1"))
+    val cp3 = new Checkpoint(Map(ssp0 -> "2", ssp1 -> "3", ssp2 -> "1"))
+    val metrics = new DeltaCheckpointMetrics
+    val cpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot, fullInterval = 3, metrics = metrics)
+
+    cpm.start
+    cpm.writeCheckpoint(taskName, cp1)
+    cpm.writeCheckpoint(taskName, cp2)
+    cpm.writeCheckpoint(taskName, cp2)
+    cpm.writeCheckpoint(taskName, cp3)
+
+    // The first and fourth checkpoints are full, and the fourth one replaces the log.
+    assertEquals(2, metrics.fullCheckpoints.getCount)
+    assertEquals(2, metrics.deltaCheckpoints.getCount)
+    assertEquals(7, metrics.offsetsWritten.getCount)
+    assertEquals(5, metrics.offsetsSkipped.getCount)
+    assertFalse(cpm.getCheckpointsLogFile.exists)
+    assertEquals(cp3, new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot).readLastCheckpoint(taskName))
+
+    // A delta on top of the fourth checkpoint is only in the log, and a new manager merges it.
+    val cp4 = new Checkpoint(Map(ssp0 -> "2", ssp1 -> "3", ssp2 -> "4"))
+    cpm.writeCheckpoint(taskName, cp4)
+    cpm.stop
+
+    assertTrue(cpm.getCheckpointsLogFile.exists)
+    assertEquals(cp4, new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot).readLastCheckpoint(taskName))
+  }
+
+  @Test
+  def testDeltaLogFromAnotherGenerationShouldBeIgnored {
+    val ssp = new SystemStreamPartition("a", "b", new Partition(0))
+    val cpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot, fullInterval = 3)
+
+    cpm.start
+    cpm.writeCheckpoint(taskName, new Checkpoint(Map(ssp -> "1")))
+    cpm.writeCheckpoint(taskName, new Checkpoint(Map(ssp -> "2")))
+    cpm.stop
+
+    val staleLog = new File(tempFolder.getRoot, "stale-log")
+    assertTrue(cpm.getCheckpointsLogFile.renameTo(staleLog))
+
+    // A full checkpoint written with an interval of 1 starts a new generation.
+    val fullCpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot)
+    fullCpm.writeCheckpoint(taskName, new Checkpoint(Map(ssp -> "3")))
+    assertTrue(staleLog.renameTo(fullCpm.getCheckpointsLogFile))
+
+    assertEquals(new Checkpoint(Map(ssp -> "3")), fullCpm.readLastCheckpoint(taskName))
+  }
+
+  @Test
+  def testShouldReadAndReplacePerTaskCheckpointFile {
+    val legacyCp = new Checkpoint(Map(new SystemStreamPartition("a", "b", new Partition(0)) -> "c"))
+    val newCp = new Checkpoint(Map(new SystemStreamPartition("a", "b", new Partition(0)) -> "d"))
+    val cpm = new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot)
+    val legacyFile = cpm.getCheckpointFile(taskName)
+    val fos = new FileOutputStream(legacyFile)
+
+    fos.write(new CheckpointSerde().toBytes(legacyCp))
+    fos.close
+
+    assertEquals(legacyCp, cpm.readLastCheckpoint(taskName))
+
+    cpm.writeCheckpoint(taskName, newCp)
+
+    assertFalse(legacyFile.exists)
+    assertEquals(newCp, new FileSystemCheckpointManager("some-job-name", tempFolder.getRoot).readLastCheckpoint(taskName))
+  }
+
   @Test
   def testMissingRootDirectoryShouldFailOnManagerCreation {
     val cpm = new FileSystemCheckpointManager("some-job-name", new File(checkpointRoot + new Random().nextInt))
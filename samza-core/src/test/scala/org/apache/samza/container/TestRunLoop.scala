@@ -33,6 +33,7 @@ import org.scalatest.junit.AssertionsForJUnit
 import org.scalatest.{Matchers => ScalaTestMatchers}
 import org.scalatest.mock.MockitoSugar
 import org.apache.samza.Partition
+import org.apache.samza.checkpoint.{Checkpoint, CheckpointManager, OffsetManager}
 import org.apache.samza.system.{ IncomingMessageEnvelope, SystemConsumers, SystemStreamPartition }
 import org.apache.samza.task.ReadableCoordinator
 import org.apache.samza.task.TaskCoordinator.RequestScope
@@ -75,6 +76,32 @@ class TestRunLoop extends AssertionsForJUnit with MockitoSugar with ScalaTestMat
     runLoop.metrics.nullEnvelopes.getCount should equal(0L)
   }
 
+  @Test
+  def testBatchIsDispatchedWholeToBatchTasksOnly {
+    val batchTask = mock[TaskInstance]
+    when(batchTask.systemStreamPartitions).thenReturn(Set(ssp0))
+    when(batchTask.taskName).thenReturn(taskName0)
+    when(batchTask.isBatchTask).thenReturn(true)
+    when(batchTask.getBatchDeadlineNs).thenReturn(Long.MaxValue)
+
+    val streamTask = mock[TaskInstance]
+    when(streamTask.systemStreamPartitions).thenReturn(Set(ssp0))
+    when(streamTask.taskName).thenReturn(taskName1)
+
+    val consumers = mock[SystemConsumers]
+    val runLoop = new RunLoop(Map(taskName0 -> batchTask, taskName1 -> streamTask), consumers, new SamzaContainerMetrics, clock = () => 1000L)
+    val envelope2 = new IncomingMessageEnvelope(ssp0, "2", "key2", "value2")
+    val batch = java.util.Arrays.asList(envelope0, envelope2)
+
+    when(consumers.choose).thenReturn(envelope0).thenThrow(new StopRunLoop)
+    when(consumers.getChosenBatch).thenReturn(batch)
+    intercept[StopRunLoop] { runLoop.run }
+    verify(batchTask).processBatch(Matchers.eq(batch), Matchers.eq(1000L), anyObject)
+    verify(streamTask).process(Matchers.eq(envelope0), anyObject)
+    verify(streamTask).process(Matchers.eq(envelope2), anyObject)
+    runLoop.metrics.envelopes.getCount should equal(2L)
+  }
+
   @Test
   def testNullMessageFromChooser {
     val consumers = mock[SystemConsumers]
@@ -112,6 +139,35 @@ class TestRunLoop extends AssertionsForJUnit with MockitoSugar with ScalaTestMat
     verify(runLoop.taskInstances(taskName1), times(9)).commit
   }
 
+  @Test
+  def testStaggeredWindowAndCommitAreSpreadOverTheInterval {
+    var now = 1400000000000L
+    val consumers = mock[SystemConsumers]
+    when(consumers.choose).thenReturn(envelope0)
+
+    val runLoop = new RunLoop(
+      taskInstances = getMockTaskInstances,
+      consumerMultiplexer = consumers,
+      metrics = new SamzaContainerMetrics,
+      windowMs = 60000,
+      commitMs = 30000,
+      clock = () => {
+        now += 100000000L // clock advances by 100 ms every time we look at it
+        if (now == 1690000000000L) throw new StopRunLoop // stop after 4 minutes 50 seconds
+        now
+      },
+      staggered = true)
+
+    intercept[StopRunLoop] { runLoop.run }
+
+    // Task 0's deadlines are half an interval ahead of task 1's, so it fits
+    // one more window and commit into the same time.
+    verify(runLoop.taskInstances(taskName0), times(5)).window(anyObject)
+    verify(runLoop.taskInstances(taskName1), times(4)).window(anyObject)
+    verify(runLoop.taskInstances(taskName0), times(10)).commit
+    verify(runLoop.taskInstances(taskName1), times(9)).commit
+  }
+
   @Test
   def testCommitCurrentTaskManually {
     val taskInstances = getMockTaskInstances
@@ -140,6 +196,30 @@ class TestRunLoop extends AssertionsForJUnit with MockitoSugar with ScalaTestMat
     verify(taskInstances(taskName1), times(1)).commit
   }
 
+  @Test
+  def testCommitAllTasksManuallyBatchesCheckpoints {
+    val taskInstances = getMockTaskInstances
+    val consumers = mock[SystemConsumers]
+    val checkpointManager = mock[CheckpointManager]
+    val offsetManager = new OffsetManager(checkpointManager = checkpointManager)
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, windowMs = -1, commitMs = -1, offsetManager = offsetManager)
+
+    taskInstances.values.foreach(taskInstance => {
+      doAnswer(new Answer[Unit] {
+        override def answer(invocation: InvocationOnMock) {
+          offsetManager.writeCheckpoint(taskInstance.taskName, new Checkpoint(new java.util.HashMap[SystemStreamPartition, String]))
+        }
+      }).when(taskInstance).commit
+    })
+    when(consumers.choose).thenReturn(envelope0).thenThrow(new StopRunLoop)
+    stubProcess(taskInstances(taskName0), (envelope, coordinator) => coordinator.commit(RequestScope.ALL_TASKS_IN_CONTAINER))
+
+    intercept[StopRunLoop] { runLoop.run }
+    verify(checkpointManager, times(1)).writeCheckpoints(anyObject)
+    verify(checkpointManager, never).writeCheckpoint(anyObject, anyObject)
+    assertEquals(2, offsetManager.offsetManagerMetrics.checkpointBatchSize.getValue)
+  }
+
   @Test
   def testShutdownOnConsensus {
     val taskInstances = getMockTaskInstances
@@ -182,6 +262,181 @@ class TestRunLoop extends AssertionsForJUnit with MockitoSugar with ScalaTestMat
     })
   }
 
+  @Test
+  def testProcessMessageOnWorkerPool {
+    val taskInstances = getMockTaskInstances
+    val consumers = mock[SystemConsumers]
+    val metrics = new SamzaContainerMetrics
+    val workerPool = new TaskWorkerPool(taskInstances.keySet, 2, 10, metrics)
+    val runLoop = new RunLoop(taskInstances, consumers, metrics, workerPool = workerPool)
+
+    when(consumers.choose).thenReturn(envelope0).thenReturn(envelope1).thenThrow(new StopRunLoop)
+    intercept[StopRunLoop] { runLoop.run }
+    verify(taskInstances(taskName0)).process(Matchers.eq(envelope0), anyObject)
+    verify(taskInstances(taskName1)).process(Matchers.eq(envelope1), anyObject)
+    runLoop.metrics.envelopes.getCount should equal(2L)
+  }
+
+  @Test
+  def testCommitAllTasksManuallyOnWorkerPool {
+    val taskInstances = getMockTaskInstances
+    val consumers = mock[SystemConsumers]
+    val workerPool = new TaskWorkerPool(taskInstances.keySet, 2)
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, windowMs = -1, commitMs = -1, workerPool = workerPool)
+    val processed = new java.util.concurrent.CountDownLatch(1)
+
+    stubProcess(taskInstances(taskName0), (envelope, coordinator) => {
+      coordinator.commit(RequestScope.ALL_TASKS_IN_CONTAINER)
+      coordinator.shutdown(RequestScope.ALL_TASKS_IN_CONTAINER)
+      processed.countDown
+    })
+    when(consumers.choose).thenAnswer(new Answer[IncomingMessageEnvelope]() {
+      var chosen = false
+      override def answer(invocation: InvocationOnMock) = {
+        if (!chosen) {
+          chosen = true
+          envelope0
+        } else {
+          // Let the task finish so the run loop can pick up its requests.
+          processed.await
+          null
+        }
+      }
+    })
+
+    runLoop.run
+    verify(taskInstances(taskName0), times(1)).commit
+    verify(taskInstances(taskName1), times(1)).commit
+  }
+
+  @Test
+  def testTaskFailureOnWorkerPoolStopsRunLoop {
+    class TaskFailure extends RuntimeException
+
+    val taskInstances = getMockTaskInstances
+    val consumers = mock[SystemConsumers]
+    val workerPool = new TaskWorkerPool(taskInstances.keySet, 2)
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, workerPool = workerPool)
+
+    when(consumers.choose).thenReturn(envelope0).thenReturn(null)
+    stubProcess(taskInstances(taskName0), (envelope, coordinator) => throw new TaskFailure)
+
+    intercept[TaskFailure] { runLoop.run }
+  }
+
+  @Test
+  def testAsyncTaskCoordinatorRequestsApplyOnCompletion {
+    val taskInstances = getMockTaskInstances
+    val ti0 = taskInstances(taskName0)
+    val consumers = mock[SystemConsumers]
+    when(ti0.isAsyncTask).thenReturn(true)
+    when(ti0.tryReserveCallback).thenReturn(true)
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, windowMs = -1, commitMs = -1)
+    var callbackCompleted: () => Unit = null
+
+    when(ti0.processAsync(anyObject, anyObject, anyObject)).thenAnswer(new Answer[Unit]() {
+      override def answer(invocation: InvocationOnMock) {
+        val coordinator = invocation.getArguments()(1).asInstanceOf[ReadableCoordinator]
+        coordinator.commit(RequestScope.CURRENT_TASK)
+        coordinator.shutdown(RequestScope.ALL_TASKS_IN_CONTAINER)
+        callbackCompleted = invocation.getArguments()(2).asInstanceOf[() => Unit]
+      }
+    })
+    when(consumers.choose).thenAnswer(new Answer[IncomingMessageEnvelope]() {
+      var chosen = false
+      override def answer(invocation: InvocationOnMock) = {
+        if (!chosen) {
+          chosen = true
+          envelope0
+        } else {
+          // The requests must not take effect until the callback completes.
+          verify(ti0, never).commit
+          callbackCompleted()
+          null
+        }
+      }
+    })
+
+    runLoop.run
+    verify(ti0, never).process(anyObject, anyObject)
+    verify(ti0, times(1)).commit
+    verify(taskInstances(taskName1), never).commit
+  }
+
+  @Test
+  def testFullAsyncTaskDoesNotHoldUpOtherTasks {
+    val taskInstances = getMockTaskInstances
+    val ti0 = taskInstances(taskName0)
+    val ti1 = taskInstances(taskName1)
+    val consumers = mock[SystemConsumers]
+    val envelope2 = new IncomingMessageEnvelope(ssp0, "2", "key2", "value2")
+    var freeSlots = 1
+    when(ti0.isAsyncTask).thenReturn(true)
+    when(ti0.tryReserveCallback).thenAnswer(new Answer[Boolean]() {
+      override def answer(invocation: InvocationOnMock) = {
+        if (freeSlots > 0) {
+          freeSlots -= 1
+          true
+        } else {
+          false
+        }
+      }
+    })
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, windowMs = -1, commitMs = -1)
+
+    when(consumers.choose).thenAnswer(new Answer[IncomingMessageEnvelope]() {
+      var chooses = 0
+      override def answer(invocation: InvocationOnMock) = {
+        chooses += 1
+        chooses match {
+          case 1 => envelope0
+          // ti0 has no free slot for this one, so it's held back.
+          case 2 => envelope2
+          case 3 => envelope1
+          case 4 =>
+            verify(ti0, never).processAsync(Matchers.eq(envelope2), anyObject, anyObject)
+            verify(ti1).process(Matchers.eq(envelope1), anyObject)
+            verify(consumers).pause(ssp0)
+            verify(consumers, never).resume(ssp0)
+            // ti0's first message completes.
+            freeSlots += 1
+            null
+          case _ => throw new StopRunLoop
+        }
+      }
+    })
+
+    intercept[StopRunLoop] { runLoop.run }
+    verify(ti0).processAsync(Matchers.eq(envelope0), anyObject, anyObject)
+    verify(ti0).processAsync(Matchers.eq(envelope2), anyObject, anyObject)
+    verify(consumers).resume(ssp0)
+    verify(consumers, never).pause(ssp1)
+  }
+
+  @Test
+  def testReusedCoordinatorIsResetBetweenMessages {
+    val taskInstances = getMockTaskInstances
+    val consumers = mock[SystemConsumers]
+    val runLoop = new RunLoop(taskInstances, consumers, new SamzaContainerMetrics, windowMs = -1, commitMs = -1)
+    val coordinators = new scala.collection.mutable.ArrayBuffer[ReadableCoordinator]
+
+    stubProcess(taskInstances(taskName0), (envelope, coordinator) => {
+      coordinators += coordinator
+      if (coordinators.size == 1) {
+        coordinator.commit(RequestScope.CURRENT_TASK)
+      } else {
+        coordinator.shutdown(RequestScope.ALL_TASKS_IN_CONTAINER)
+      }
+    })
+    when(consumers.choose).thenReturn(envelope0).thenReturn(envelope0)
+
+    runLoop.run
+    // The same coordinator is handed to the task both times, but the commit
+    // requested on the first message is not seen again on the second.
+    coordinators.toSet.size should equal(1)
+    verify(taskInstances(taskName0), times(1)).commit
+  }
+
   @Test
   def testUpdateTimerCorrectly {
     var now = 0L
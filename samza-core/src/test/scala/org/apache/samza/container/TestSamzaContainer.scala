@@ -300,6 +300,8 @@ class MockCheckpointManager extends CheckpointManager {
   override def readLastCheckpoint(taskName: TaskName): Checkpoint = { new Checkpoint(Map[SystemStreamPartition, String]()) }
 
   override def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint): Unit = { }
+
+  override def writeCheckpoints(checkpoints: util.Map[TaskName, Checkpoint]): Unit = { }
 }
 
 class MockJobServlet(exceptionLimit: Int, jobModelRef: AtomicReference[JobModel]) extends JobServlet(jobModelRef) {
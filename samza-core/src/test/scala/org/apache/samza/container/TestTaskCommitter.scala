@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.apache.samza.SamzaException
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class TestTaskCommitter extends AssertionsForJUnit {
+  val taskName0 = new TaskName("Partition 0")
+  val taskName1 = new TaskName("Partition 1")
+
+  @Test
+  def testAtMostOneCommitPerTaskIsInProgress {
+    val metrics = new SamzaContainerMetrics
+    val committer = new TaskCommitter(metrics)
+    val started = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    var committed1 = false
+
+    committer.submit(taskName0, () => {
+      started.countDown
+      release.await
+    })
+    assertTrue(started.await(10, TimeUnit.SECONDS))
+    assertTrue(committer.isCommitting(taskName0))
+    assertFalse(committer.isCommitting(taskName1))
+    intercept[SamzaException] { committer.submit(taskName0, () => ()) }
+
+    // Other tasks queue up behind the commit in progress.
+    committer.submit(taskName1, () => committed1 = true)
+    assertTrue(committer.isCommitting(taskName1))
+
+    release.countDown
+    assertTrue(committer.stop(10000))
+    assertFalse(committer.isCommitting(taskName0))
+    assertFalse(committer.isCommitting(taskName1))
+    assertTrue(committed1)
+    assertTrue(metrics.asyncCommitNs.getSnapshot.getSize > 0)
+  }
+
+  @Test
+  def testFailureIsRethrown {
+    class CommitFailure extends RuntimeException
+
+    val committer = new TaskCommitter
+    var committed = false
+
+    committer.submit(taskName0, () => throw new CommitFailure)
+    committer.submit(taskName1, () => committed = true)
+
+    assertTrue(committer.stop(10000))
+    assertFalse(committed)
+    intercept[CommitFailure] { committer.checkFailure }
+    intercept[CommitFailure] { committer.submit(taskName0, () => ()) }
+  }
+}
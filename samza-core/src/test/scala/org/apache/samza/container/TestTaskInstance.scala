@@ -19,17 +19,21 @@
 
 package org.apache.samza.container
 
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
 import org.apache.samza.SamzaException
 import org.apache.samza.Partition
-import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.checkpoint.{Checkpoint, CheckpointManager, OffsetManager}
 import org.apache.samza.config.Config
 import org.apache.samza.config.MapConfig
 import org.apache.samza.metrics.Counter
 import org.apache.samza.metrics.Metric
 import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.serializers.Serde
 import org.apache.samza.serializers.SerdeManager
+import org.apache.samza.serializers.StringSerde
 import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.LazyIncomingMessageEnvelope
+import org.apache.samza.system.OutgoingMessageEnvelope
 import org.apache.samza.system.SystemConsumer
 import org.apache.samza.system.SystemConsumers
 import org.apache.samza.system.SystemProducer
@@ -38,8 +42,10 @@ import org.apache.samza.system.SystemStream
 import org.apache.samza.system.SystemStreamMetadata
 import org.apache.samza.system.SystemStreamMetadata.SystemStreamPartitionMetadata
 import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
 import org.apache.samza.system.chooser.RoundRobinChooser
 import org.apache.samza.task._
+import org.apache.samza.util.ReferenceCounted
 import org.junit.Assert._
 import org.junit.Test
 import org.scalatest.Assertions.intercept
@@ -91,6 +97,256 @@ class TestTaskInstance {
     assertEquals("2", lastProcessedOffset.get)
   }
 
+  @Test
+  def testZeroCopyEnvelopesAreReleasedOnceProcessed {
+    val buffer = new ReferenceCounted {
+      def deallocate {}
+    }
+    var referencesWhileProcessing = 0
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {
+        referencesWhileProcessing = buffer.getReferenceCount
+      }
+    }
+    val config = new MapConfig
+    val partition = new Partition(0)
+    val consumerMultiplexer = new SystemConsumers(
+      new RoundRobinChooser,
+      Map[String, SystemConsumer]())
+    val producerMultiplexer = new SystemProducers(
+      Map[String, SystemProducer](),
+      new SerdeManager)
+    val systemStream = new SystemStream("test-system", "test-stream")
+    val systemStreamPartition = new SystemStreamPartition(systemStream, partition)
+    val testSystemStreamMetadata = new SystemStreamMetadata(systemStream.getStream, Map(partition -> new SystemStreamPartitionMetadata("0", "1", "2")))
+    val offsetManager = OffsetManager(Map(systemStream -> testSystemStreamMetadata), config)
+    val taskName = new TaskName("taskName")
+    val taskInstance: TaskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      new TaskInstanceMetrics,
+      null,
+      consumerMultiplexer,
+      new TaskInstanceCollector(producerMultiplexer),
+      new SamzaContainerContext(0, config, Set[TaskName](taskName)),
+      offsetManager,
+      systemStreamPartitions = Set(systemStreamPartition))
+
+    taskInstance.process(
+      new ZeroCopyIncomingMessageEnvelope(systemStreamPartition, "2", null, null, 0, IncomingMessageEnvelope.NO_TIMESTAMP, buffer),
+      new ReadableCoordinator(taskName))
+
+    assertEquals(1, referencesWhileProcessing)
+    assertEquals(0, buffer.getReferenceCount)
+  }
+
+  @Test
+  def testAsyncTaskOffsetsAreUpdatedInOrderAndCommitWaits {
+    val callbacks = new ListBuffer[TaskCallback]
+    val task = new AsyncStreamTask {
+      def processAsync(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator, callback: TaskCallback) {
+        callbacks += callback
+      }
+    }
+    val config = new MapConfig(Map("task.max.concurrency" -> "2"))
+    val consumerMultiplexer = new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]())
+    val producerMultiplexer = new SystemProducers(Map[String, SystemProducer](), new SerdeManager)
+    val systemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val offsetManager = new OffsetManager()
+    val taskName = new TaskName("taskName")
+    offsetManager.startingOffsets += taskName -> Map(systemStreamPartition -> "0")
+    val collector = new TaskInstanceCollector(producerMultiplexer)
+    val containerContext = new SamzaContainerContext(0, config, Set[TaskName](taskName))
+    val taskInstance: TaskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      new TaskInstanceMetrics,
+      null,
+      consumerMultiplexer,
+      collector,
+      containerContext,
+      offsetManager,
+      systemStreamPartitions = Set(systemStreamPartition))
+    taskInstance.registerOffsets
+
+    var completed = 0
+    assertTrue(taskInstance.tryReserveCallback)
+    taskInstance.processAsync(new IncomingMessageEnvelope(systemStreamPartition, "0", null, null), new ReadableCoordinator(taskName), () => completed += 1)
+    assertTrue(taskInstance.tryReserveCallback)
+    taskInstance.processAsync(new IncomingMessageEnvelope(systemStreamPartition, "1", null, null), new ReadableCoordinator(taskName), () => completed += 1)
+    assertEquals(2, callbacks.size)
+    // Both slots are taken, so the run loop would hold back further messages.
+    assertFalse(taskInstance.tryReserveCallback)
+    assertEquals(None, offsetManager.getLastProcessedOffset(taskName, systemStreamPartition))
+
+    // The second message is done, but the first is not, so no offset may be
+    // checkpointed yet.
+    callbacks(1).complete
+    assertEquals(None, offsetManager.getLastProcessedOffset(taskName, systemStreamPartition))
+
+    val committer = new Thread() {
+      override def run = taskInstance.commit
+    }
+    committer.start
+    committer.join(100)
+    assertTrue(committer.isAlive)
+
+    callbacks(0).complete
+    committer.join(10000)
+    assertFalse(committer.isAlive)
+    assertEquals(Some("1"), offsetManager.getLastProcessedOffset(taskName, systemStreamPartition))
+    assertEquals(2, completed)
+  }
+
+  @Test
+  def testAsyncCommitIsSkippedWhileInProgress {
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {
+      }
+    }
+    val release = new CountDownLatch(1)
+    val checkpoints = new ConcurrentLinkedQueue[Checkpoint]
+    val checkpointManager = new CheckpointManager {
+      def start {}
+      def register(taskName: TaskName) {}
+      def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
+        checkpoints.add(checkpoint)
+        release.await
+      }
+      def writeCheckpoints(batch: java.util.Map[TaskName, Checkpoint]) {
+        batch.foreach { case (taskName, checkpoint) => writeCheckpoint(taskName, checkpoint) }
+      }
+      def readLastCheckpoint(taskName: TaskName) = null
+      def stop {}
+    }
+    val config = new MapConfig
+    val consumerMultiplexer = new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]())
+    val producerMultiplexer = new SystemProducers(Map[String, SystemProducer](), new SerdeManager)
+    val systemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val offsetManager = new OffsetManager(checkpointManager = checkpointManager)
+    val taskName = new TaskName("taskName")
+    offsetManager.startingOffsets += taskName -> Map(systemStreamPartition -> "0")
+    val collector = new TaskInstanceCollector(producerMultiplexer)
+    val containerContext = new SamzaContainerContext(0, config, Set[TaskName](taskName))
+    val metrics = new TaskInstanceMetrics
+    val committer = new TaskCommitter
+    val taskInstance: TaskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      metrics,
+      null,
+      consumerMultiplexer,
+      collector,
+      containerContext,
+      offsetManager,
+      systemStreamPartitions = Set(systemStreamPartition),
+      committer = committer)
+    taskInstance.registerOffsets
+    taskInstance.registerProducers
+
+    taskInstance.process(new IncomingMessageEnvelope(systemStreamPartition, "2", null, null), new ReadableCoordinator(taskName))
+    taskInstance.commit
+    assertTrue(committer.isCommitting(taskName))
+
+    // The checkpoint from the first commit is still being written, so the
+    // second commit is skipped.
+    taskInstance.process(new IncomingMessageEnvelope(systemStreamPartition, "3", null, null), new ReadableCoordinator(taskName))
+    taskInstance.commit
+    assertEquals(1, metrics.asyncCommitsSkipped.getCount)
+
+    release.countDown
+    assertTrue(committer.stop(10000))
+    assertFalse(committer.isCommitting(taskName))
+    assertEquals(1, checkpoints.size)
+    assertEquals(Map(systemStreamPartition -> "2"), checkpoints.peek.getOffsets.toMap)
+  }
+
+  @Test
+  def testAsyncCommitFlushesProducersOnTaskThread {
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {
+      }
+    }
+    val events = new ConcurrentLinkedQueue[String]
+    val flushThreads = new ConcurrentLinkedQueue[Thread]
+    val producer = new SystemProducer {
+      def start {}
+      def stop {}
+      def register(source: String) {}
+      def send(source: String, envelope: OutgoingMessageEnvelope) {}
+      def flush(source: String) {
+        flushThreads.add(Thread.currentThread)
+        events.add("flush")
+      }
+    }
+    val checkpointManager = new CheckpointManager {
+      def start {}
+      def register(taskName: TaskName) {}
+      def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
+        events.add("checkpoint")
+      }
+      def writeCheckpoints(batch: java.util.Map[TaskName, Checkpoint]) {
+        batch.foreach { case (taskName, checkpoint) => writeCheckpoint(taskName, checkpoint) }
+      }
+      def readLastCheckpoint(taskName: TaskName) = null
+      def stop {}
+    }
+    val config = new MapConfig
+    val consumerMultiplexer = new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]())
+    val producerMultiplexer = new SystemProducers(Map("test-system" -> producer), new SerdeManager)
+    val systemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val offsetManager = new OffsetManager(checkpointManager = checkpointManager)
+    val taskName = new TaskName("taskName")
+    offsetManager.startingOffsets += taskName -> Map(systemStreamPartition -> "0")
+    val collector = new TaskInstanceCollector(producerMultiplexer)
+    val containerContext = new SamzaContainerContext(0, config, Set[TaskName](taskName))
+    val committer = new TaskCommitter
+    val taskInstance: TaskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      new TaskInstanceMetrics,
+      null,
+      consumerMultiplexer,
+      collector,
+      containerContext,
+      offsetManager,
+      systemStreamPartitions = Set(systemStreamPartition),
+      committer = committer)
+    taskInstance.registerOffsets
+    taskInstance.registerProducers
+
+    taskInstance.process(new IncomingMessageEnvelope(systemStreamPartition, "2", null, null), new ReadableCoordinator(taskName))
+    taskInstance.commit
+    assertTrue(committer.stop(10000))
+
+    // Producers are flushed by the thread that runs the task, before the
+    // checkpoint is written on the committer thread.
+    assertEquals(List(Thread.currentThread), flushThreads.toList)
+    assertEquals(List("flush", "checkpoint"), events.toList)
+  }
+
+  @Test
+  def testTaskMustBeStreamTaskOrAsyncStreamTask {
+    val config = new MapConfig
+    val taskName = new TaskName("taskName")
+
+    intercept[SamzaException] {
+      new TaskInstance(
+        new Object,
+        taskName,
+        config,
+        new TaskInstanceMetrics,
+        null,
+        new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]()),
+        new TaskInstanceCollector(new SystemProducers(Map[String, SystemProducer](), new SerdeManager)),
+        new SamzaContainerContext(0, config, Set[TaskName](taskName)))
+    }
+  }
+
   /**
    * Mock exception used to test exception counts metrics.
    */
@@ -354,6 +610,169 @@ class TestTaskInstance {
     val expected = List(envelope1, envelope2, envelope4)
     assertEquals(expected, result.toList)
   }
+
+  @Test
+  def testLazyMessagesThatAreNeverDecodedAreCounted {
+    val partition0 = new SystemStreamPartition("system", "stream", new Partition(0))
+    val config = new MapConfig()
+    val consumers = new SystemConsumers(new RoundRobinChooser, consumers = Map.empty)
+    val producers = new SystemProducers(Map.empty, new SerdeManager())
+    val metrics = new TaskInstanceMetrics()
+    val taskName = new TaskName("testing")
+    val collector = new TaskInstanceCollector(producers)
+    val containerContext = new SamzaContainerContext(0, config, Set[TaskName](taskName))
+    val offsetManager = new OffsetManager()
+    offsetManager.startingOffsets += taskName -> Map(partition0 -> "0")
+    val serde = new StringSerde("UTF-8").asInstanceOf[Serde[Object]]
+
+    // Only looks at messages with key "keep".
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {
+        if (envelope.getKey.equals("keep")) {
+          envelope.getMessage
+        }
+      }
+    }
+
+    val taskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      metrics,
+      Map("system" -> new MockSystemAdmin),
+      consumers,
+      collector,
+      containerContext,
+      offsetManager,
+      systemStreamPartitions = Set(partition0))
+
+    def envelope(offset: String, key: String) =
+      new LazyIncomingMessageEnvelope(partition0, offset, key.getBytes("UTF-8"), "message".getBytes("UTF-8"), 0, serde, serde)
+
+    val coordinator = new ReadableCoordinator(taskName)
+    taskInstance.process(envelope("0", "keep"), coordinator)
+    taskInstance.process(envelope("1", "skip"), coordinator)
+    taskInstance.process(envelope("2", "skip"), coordinator)
+
+    assertEquals(2L, metrics.messagesNotDecoded.getCount)
+  }
+
+  @Test
+  def testBatchesAreProcessedWhenFullOrExpired {
+    val partition0 = new SystemStreamPartition("system", "stream", new Partition(0))
+    val config = new MapConfig(Map(
+      "task.process.batch.size" -> "3",
+      "task.process.batch.linger.ms" -> "60000"))
+    val consumers = new SystemConsumers(new RoundRobinChooser, consumers = Map.empty)
+    val producers = new SystemProducers(Map.empty, new SerdeManager())
+    val metrics = new TaskInstanceMetrics()
+    val taskName = new TaskName("testing")
+    val collector = new TaskInstanceCollector(producers)
+    val containerContext = new SamzaContainerContext(0, config, Set[TaskName](taskName))
+    val offsetManager = new OffsetManager()
+    offsetManager.startingOffsets += taskName -> Map(partition0 -> "0")
+    val batches = new ListBuffer[List[String]]
+
+    val task = new BatchStreamTask {
+      def processBatch(envelopes: java.util.List[IncomingMessageEnvelope], collector: MessageCollector, coordinator: TaskCoordinator) {
+        batches += envelopes.map(_.getOffset).toList
+      }
+    }
+
+    val taskInstance = new TaskInstance(
+      task,
+      taskName,
+      config,
+      metrics,
+      Map("system" -> new MockSystemAdmin),
+      consumers,
+      collector,
+      containerContext,
+      offsetManager,
+      systemStreamPartitions = Set(partition0))
+
+    def envelopes(offsets: String*) = offsets.map(new IncomingMessageEnvelope(partition0, _, null, null)).toList
+
+    taskInstance.registerOffsets
+    val coordinator = new ReadableCoordinator(taskName)
+
+    // A full batch is processed right away, and the rest lingers.
+    taskInstance.processBatch(envelopes("0", "1", "2", "3"), 1000L, coordinator)
+    assertEquals(List(List("0", "1", "2")), batches.toList)
+    assertEquals(Some("2"), offsetManager.getLastProcessedOffset(taskName, partition0))
+    assertEquals(1000L + TimeUnit.MILLISECONDS.toNanos(60000), taskInstance.getBatchDeadlineNs)
+
+    // Lingering messages are completed into the next batch.
+    taskInstance.processBatch(envelopes("4", "5"), 1000L, coordinator)
+    assertEquals(List(List("0", "1", "2"), List("3", "4", "5")), batches.toList)
+    assertEquals(Some("5"), offsetManager.getLastProcessedOffset(taskName, partition0))
+
+    // A partial batch is only processed once it has expired.
+    taskInstance.processBatch(envelopes("6"), 1000L, coordinator)
+    taskInstance.flushBatches(taskInstance.getBatchDeadlineNs - 1, coordinator)
+    assertEquals(2, batches.size)
+    taskInstance.flushBatches(taskInstance.getBatchDeadlineNs, coordinator)
+    assertEquals(List("6"), batches.last)
+    assertEquals(Some("6"), offsetManager.getLastProcessedOffset(taskName, partition0))
+    assertEquals(Long.MaxValue, taskInstance.getBatchDeadlineNs)
+    assertEquals(3L, metrics.batches.getCount)
+    assertEquals(7L, metrics.messagesActuallyProcessed.getCount)
+  }
+
+  @Test
+  def testOffsetsAreCheckpointedAfterOffsetTableGrows {
+    val systemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val otherSystemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(1))
+    val taskName = new TaskName("taskName")
+    val offsetManager = new OffsetManager()
+    offsetManager.startingOffsets += taskName -> Map(systemStreamPartition -> "0")
+    val taskInstance = getTaskInstanceWithConsumer(taskName, systemStreamPartition, offsetManager)
+
+    taskInstance.registerOffsets
+    taskInstance.registerConsumers
+
+    // Offsets of unregistered partitions grow the table that the task instance uses.
+    offsetManager.update(taskName, otherSystemStreamPartition, "9")
+    taskInstance.process(new IncomingMessageEnvelope(systemStreamPartition, "3", null, null), new ReadableCoordinator(taskName))
+
+    assertEquals(new Checkpoint(Map(systemStreamPartition -> "3")), offsetManager.getCheckpoint(taskName))
+  }
+
+  @Test
+  def testRegisterConsumersFailsForUnregisteredOffsets {
+    val systemStreamPartition = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val taskName = new TaskName("taskName")
+    val taskInstance = getTaskInstanceWithConsumer(taskName, systemStreamPartition, new OffsetManager())
+
+    intercept[SamzaException] {
+      taskInstance.registerConsumers
+    }
+  }
+
+  private def getTaskInstanceWithConsumer(taskName: TaskName, systemStreamPartition: SystemStreamPartition, offsetManager: OffsetManager) = {
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {}
+    }
+    val consumer = new SystemConsumer {
+      def start {}
+      def stop {}
+      def register(systemStreamPartition: SystemStreamPartition, offset: String) {}
+      def poll(systemStreamPartitions: java.util.Set[SystemStreamPartition], timeout: Long) =
+        new java.util.HashMap[SystemStreamPartition, java.util.List[IncomingMessageEnvelope]]()
+    }
+    val config = new MapConfig
+    new TaskInstance(
+      task,
+      taskName,
+      config,
+      new TaskInstanceMetrics,
+      null,
+      new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]("test-system" -> consumer)),
+      new TaskInstanceCollector(new SystemProducers(Map[String, SystemProducer](), new SerdeManager)),
+      new SamzaContainerContext(0, config, Set[TaskName](taskName)),
+      offsetManager,
+      systemStreamPartitions = Set(systemStreamPartition))
+  }
 }
 
 class MockSystemAdmin extends SystemAdmin {
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+class TestTaskSchedule {
+  val taskNames = (0 until 4).map(i => new TaskName("Partition " + i))
+
+  @Test
+  def testFirstDeadlinesAreSpreadAcrossTheInterval {
+    val ran = new ArrayBuffer[TaskName]
+    val schedule = new TaskSchedule(taskNames.reverse, 100, 0, ran += _)
+
+    assertEquals(0, schedule.runDue(25))
+    assertEquals(1, schedule.runDue(26))
+    assertEquals(List(taskNames(0)), ran.toList)
+    assertEquals(1, schedule.runDue(51))
+    assertEquals(2, schedule.runDue(101))
+    assertEquals(taskNames.toList, ran.toList)
+    assertEquals(125, schedule.getNextDeadlineNs)
+  }
+
+  @Test
+  def testMissedDeadlinesAreSkipped {
+    val ran = new ArrayBuffer[TaskName]
+    val schedule = new TaskSchedule(taskNames.take(1), 100, 0, ran += _)
+
+    assertEquals(1, schedule.runDue(350))
+    assertEquals(1, ran.size)
+    assertEquals(400, schedule.getNextDeadlineNs)
+  }
+
+  @Test
+  def testRescheduleStartsANewInterval {
+    val schedule = new TaskSchedule(taskNames.take(1), 100, 0, _ => ())
+
+    schedule.reschedule(taskNames(0), 10)
+    assertEquals(110, schedule.getNextDeadlineNs)
+    assertEquals(0, schedule.runDue(101))
+    assertEquals(1, schedule.runDue(111))
+  }
+
+  @Test
+  def testZeroIntervalRunsOncePerCall {
+    val ran = new ArrayBuffer[TaskName]
+    val schedule = new TaskSchedule(taskNames.take(2), 0, 0, ran += _)
+
+    assertEquals(2, schedule.runDue(1))
+    assertEquals(2, schedule.runDue(2))
+    assertEquals(4, ran.size)
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.container
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable.ArrayBuffer
+
+class TestTaskWorkerPool extends AssertionsForJUnit {
+  val taskName0 = new TaskName("Partition 0")
+  val taskName1 = new TaskName("Partition 1")
+
+  @Test
+  def testWorkForATaskRunsInOrder {
+    val pool = new TaskWorkerPool(Set(taskName0, taskName1), 4, 10)
+    val processed0 = new ArrayBuffer[Int]
+    val processed1 = new ArrayBuffer[Int]
+
+    (0 until 1000).foreach(i => {
+      pool.submit(taskName0, () => processed0 += i)
+      pool.submit(taskName1, () => processed1 += i)
+    })
+
+    assertTrue(pool.awaitIdle(10000))
+    assertEquals((0 until 1000).toList, processed0.toList)
+    assertEquals((0 until 1000).toList, processed1.toList)
+    pool.stop(0)
+  }
+
+  @Test
+  def testSubmitBlocksWhenTaskQueueIsFull {
+    val metrics = new SamzaContainerMetrics
+    val pool = new TaskWorkerPool(Set(taskName0), 1, 2, metrics)
+    val started = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+
+    // Occupy the only pool thread, then fill the task's queue. The running
+    // work counts against the queue size until it completes.
+    pool.submit(taskName0, () => {
+      started.countDown
+      release.await
+    })
+    assertTrue(started.await(10, TimeUnit.SECONDS))
+    pool.submit(taskName0, () => ())
+
+    val submitter = new Thread() {
+      override def run = pool.submit(taskName0, () => ())
+    }
+    submitter.start
+    submitter.join(100)
+
+    assertTrue(submitter.isAlive)
+    assertEquals(1L, metrics.taskQueueFull.getCount)
+
+    release.countDown
+    submitter.join(10000)
+
+    assertFalse(submitter.isAlive)
+    assertTrue(pool.awaitIdle(10000))
+    pool.stop(0)
+  }
+
+  @Test
+  def testFailureIsRethrown {
+    class TaskFailure extends RuntimeException
+
+    val pool = new TaskWorkerPool(Set(taskName0), 2)
+
+    pool.submit(taskName0, () => throw new TaskFailure)
+
+    assertTrue(pool.awaitIdle(10000))
+    intercept[TaskFailure] { pool.checkFailure }
+    intercept[TaskFailure] { pool.submit(taskName0, () => ()) }
+    pool.stop(0)
+  }
+}
@@ -37,5 +37,8 @@ class TestByteBufferSerde {
     assertArrayEquals(serde.toBytes(testBytes), bytes)
     testBytes.reset()
     assertEquals(serde.fromBytes(bytes), testBytes)
+
+    val readOnly = testBytes.asReadOnlyBuffer
+    assertSame(readOnly, serde.fromByteBuffer(readOnly))
   }
 }
\ No newline at end of file
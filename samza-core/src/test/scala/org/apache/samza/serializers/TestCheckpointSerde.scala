@@ -21,7 +21,7 @@ package org.apache.samza.serializers
 
 import java.util
 
-import org.apache.samza.Partition
+import org.apache.samza.{Partition, SamzaException}
 import org.apache.samza.checkpoint.Checkpoint
 import org.apache.samza.container.TaskName
 import org.apache.samza.system.SystemStreamPartition
@@ -42,6 +42,54 @@ class TestCheckpointSerde {
     assertEquals(1, deserializedOffsets.getOffsets.size)
   }
 
+  @Test
+  def testBinaryRoundTrip {
+    val serde = new CheckpointSerde(CheckpointSerde.BINARY_FORMAT)
+    val offsets = Map(
+      new SystemStreamPartition("kafka", "stream-a", new Partition(0)) -> "0",
+      new SystemStreamPartition("kafka", "stream-a", new Partition(1)) -> "123456789012",
+      new SystemStreamPartition("kafka", "stream-b", new Partition(300)) -> "007",
+      new SystemStreamPartition("kafka", "stream-b", new Partition(301)) -> "9223372036854775807",
+      new SystemStreamPartition("other", "stream-b", new Partition(2)) -> "file-1:\u00e9:42",
+      new SystemStreamPartition("other", "stream-b", new Partition(3)) -> "")
+    val bytes = serde.toBytes(new Checkpoint(offsets))
+
+    assertEquals(CheckpointSerde.BINARY_FORMAT_VERSION, bytes(0))
+    assertEquals(new Checkpoint(offsets), serde.fromBytes(bytes))
+  }
+
+  @Test
+  def testBinaryIsSmallerThanJson {
+    val offsets = (0 until 100).map(i => new SystemStreamPartition("kafka", "page-view-events", new Partition(i)) -> (1000000L + i).toString).toMap
+    val jsonBytes = new CheckpointSerde().toBytes(new Checkpoint(offsets))
+    val binaryBytes = new CheckpointSerde(CheckpointSerde.BINARY_FORMAT).toBytes(new Checkpoint(offsets))
+
+    assertTrue(binaryBytes.length * 10 < jsonBytes.length)
+  }
+
+  @Test
+  def testEitherFormatReadsBoth {
+    val checkpoint = new Checkpoint(Map(new SystemStreamPartition("test-system", "test-stream", new Partition(7)) -> "42"))
+    val jsonSerde = new CheckpointSerde(CheckpointSerde.JSON_FORMAT)
+    val binarySerde = new CheckpointSerde(CheckpointSerde.BINARY_FORMAT)
+
+    assertEquals(checkpoint, binarySerde.fromBytes(jsonSerde.toBytes(checkpoint)))
+    assertEquals(checkpoint, jsonSerde.fromBytes(binarySerde.toBytes(checkpoint)))
+  }
+
+  @Test
+  def testTruncatedBinaryCheckpointIsNull {
+    val serde = new CheckpointSerde(CheckpointSerde.BINARY_FORMAT)
+    val bytes = serde.toBytes(new Checkpoint(Map(new SystemStreamPartition("test-system", "test-stream", new Partition(7)) -> "42")))
+
+    assertNull(serde.fromBytes(util.Arrays.copyOf(bytes, bytes.length - 1)))
+  }
+
+  @Test(expected = classOf[SamzaException])
+  def testUnknownFormatShouldFail {
+    new CheckpointSerde("xml")
+  }
+
   @Test
   def testChangelogPartitionMappingRoundTrip {
     val mapping = new util.HashMap[TaskName, java.lang.Integer]()
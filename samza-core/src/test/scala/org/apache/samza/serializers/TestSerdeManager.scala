@@ -19,13 +19,19 @@
 
 package org.apache.samza.serializers
 
+import java.nio.ByteBuffer
+
 import org.junit.Assert._
 import org.junit.Test
 import org.apache.samza.system.OutgoingMessageEnvelope
 import org.apache.samza.system.SystemStream
 import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.LazyIncomingMessageEnvelope
 import org.apache.samza.system.SystemStreamPartition
-import org.apache.samza.Partition
+import org.apache.samza.system.TimestampExtractor
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
+import org.apache.samza.util.ReferenceCounted
+import org.apache.samza.{Partition, SamzaException}
 
 class TestSerdeManager {
   @Test
@@ -42,4 +48,118 @@ class TestSerdeManager {
     val deserialized = new SerdeManager().fromBytes(original)
     assertSame(original, deserialized)
   }
-}
\ No newline at end of file
+
+  @Test
+  def testLazyDeserializationDecodesOnFirstAccess {
+    var decodes = 0
+    val countingSerde = new StringSerde("UTF-8") {
+      override def fromBytes(bytes: Array[Byte]) = {
+        decodes += 1
+        super.fromBytes(bytes)
+      }
+    }.asInstanceOf[Serde[Object]]
+    val ssp = new SystemStreamPartition("my-system", "my-stream", new Partition(0))
+    val serdeManager = new SerdeManager(
+      systemKeySerdes = Map("my-system" -> countingSerde),
+      systemMessageSerdes = Map("my-system" -> countingSerde),
+      lazySystemStreams = Set(ssp.getSystemStream))
+    val original = new IncomingMessageEnvelope(ssp, "123", "key".getBytes("UTF-8"), "message".getBytes("UTF-8"), 10)
+    val deserialized = serdeManager.fromBytes(original).asInstanceOf[LazyIncomingMessageEnvelope]
+
+    assertEquals(0, decodes)
+    assertEquals(10, deserialized.getSize)
+    assertEquals("key", deserialized.getKey)
+    assertEquals("key", deserialized.getKey)
+    assertEquals(1, decodes)
+    assertFalse(deserialized.isMessageDecoded)
+    assertEquals("message", deserialized.getMessage)
+    assertTrue(deserialized.isMessageDecoded)
+    assertEquals(2, decodes)
+  }
+
+  @Test
+  def testLazyEnvelopeEqualityAndToStringDoNotDecode {
+    val failingSerde = new Serde[Object] {
+      def fromBytes(bytes: Array[Byte]): Object = throw new SamzaException("should not decode")
+      def toBytes(obj: Object): Array[Byte] = throw new SamzaException("should not encode")
+    }
+    val ssp = new SystemStreamPartition("my-system", "my-stream", new Partition(0))
+    val serdeManager = new SerdeManager(
+      systemKeySerdes = Map("my-system" -> failingSerde),
+      systemMessageSerdes = Map("my-system" -> failingSerde),
+      lazySystemStreams = Set(ssp.getSystemStream))
+    val envelope1 = serdeManager.fromBytes(new IncomingMessageEnvelope(ssp, "123", "key".getBytes("UTF-8"), "message".getBytes("UTF-8")))
+    val envelope2 = serdeManager.fromBytes(new IncomingMessageEnvelope(ssp, "123", "key".getBytes("UTF-8"), "message".getBytes("UTF-8")))
+    val envelope3 = serdeManager.fromBytes(new IncomingMessageEnvelope(ssp, "123", "key".getBytes("UTF-8"), "other".getBytes("UTF-8")))
+
+    assertEquals(envelope1, envelope2)
+    assertEquals(envelope1.hashCode, envelope2.hashCode)
+    assertFalse(envelope1.equals(envelope3))
+    assertFalse(envelope1.equals(new IncomingMessageEnvelope(ssp, "123", "key".getBytes("UTF-8"), "message".getBytes("UTF-8"))))
+    assertTrue(envelope1.toString.contains("message=byte[7]"))
+    assertFalse(envelope1.asInstanceOf[LazyIncomingMessageEnvelope].isKeyDecoded)
+    assertFalse(envelope1.asInstanceOf[LazyIncomingMessageEnvelope].isMessageDecoded)
+  }
+
+  @Test
+  def testTimestampExtractorSetsTimestamp {
+    val ssp = new SystemStreamPartition("my-system", "my-stream", new Partition(0))
+    val serdeManager = new SerdeManager(
+      systemMessageSerdes = Map("my-system" -> new StringSerde("UTF-8").asInstanceOf[Serde[Object]]),
+      lazySystemStreams = Set(ssp.getSystemStream),
+      timestampExtractors = Map(ssp.getSystemStream -> new TimestampExtractor {
+        def getTimestamp(envelope: IncomingMessageEnvelope) = envelope.getMessage.asInstanceOf[String].toLong
+      }))
+    val deserialized = serdeManager.fromBytes(new IncomingMessageEnvelope(ssp, "123", null, "1234".getBytes("UTF-8"), 10))
+
+    assertFalse(deserialized.isInstanceOf[LazyIncomingMessageEnvelope])
+    assertEquals("1234", deserialized.getMessage)
+    assertEquals(10, deserialized.getSize)
+    assertEquals(1234L, deserialized.getTimestamp)
+
+    // Timestamps that the consumer supplied are kept.
+    val timestamped = new IncomingMessageEnvelope(ssp, "124", null, "1234".getBytes("UTF-8"), 10, 99L)
+    assertEquals(99L, serdeManager.fromBytes(timestamped).getTimestamp)
+  }
+
+  @Test
+  def testZeroCopyEnvelopesAreOnlyCopiedForSerdesThatNeedBytes {
+    class Buffer extends ReferenceCounted {
+      var deallocated = false
+      def deallocate = deallocated = true
+    }
+
+    val ssp = new SystemStreamPartition("my-system", "my-stream", new Partition(0))
+    val fetched = ByteBuffer.wrap("xkeymessage".getBytes("UTF-8"))
+    fetched.position(1)
+    val key = fetched.slice.asReadOnlyBuffer
+    key.limit(3)
+    fetched.position(4)
+    val message = fetched.slice.asReadOnlyBuffer
+
+    // The byte buffer serde takes the message as it is, so the new envelope
+    // keeps the buffer.
+    val byteBufferBuffer = new Buffer
+    val byteBufferSerdeManager = new SerdeManager(
+      systemMessageSerdes = Map("my-system" -> new ByteBufferSerde().asInstanceOf[Serde[Object]]),
+      lazySystemStreams = Set(ssp.getSystemStream))
+    val passedThrough = byteBufferSerdeManager.fromBytes(new ZeroCopyIncomingMessageEnvelope(ssp, "123", key, message, 10, 5L, byteBufferBuffer))
+
+    assertSame(message, passedThrough.getMessage)
+    assertEquals(5L, passedThrough.getTimestamp)
+    passedThrough.asInstanceOf[ZeroCopyIncomingMessageEnvelope].release
+    assertTrue(byteBufferBuffer.deallocated)
+
+    // The string serde is given a copy, so the buffer is released right away.
+    val stringBuffer = new Buffer
+    val stringSerde = new StringSerde("UTF-8").asInstanceOf[Serde[Object]]
+    val stringSerdeManager = new SerdeManager(systemKeySerdes = Map("my-system" -> stringSerde), systemMessageSerdes = Map("my-system" -> stringSerde))
+    val copied = stringSerdeManager.fromBytes(new ZeroCopyIncomingMessageEnvelope(ssp, "123", key, message, 10, 5L, stringBuffer))
+
+    assertFalse(copied.isInstanceOf[ZeroCopyIncomingMessageEnvelope])
+    assertEquals("key", copied.getKey)
+    assertEquals("message", copied.getMessage)
+    assertEquals(0, key.position)
+    assertTrue(stringBuffer.deallocated)
+  }
+}
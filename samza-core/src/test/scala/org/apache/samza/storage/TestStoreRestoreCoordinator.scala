@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.samza.storage
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import org.apache.samza.Partition
+import org.apache.samza.container.TaskName
+import org.apache.samza.util.ByteRateLimiter
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConversions._
+
+class TestStoreRestoreCoordinator extends AssertionsForJUnit {
+  val taskName0 = new TaskName("Partition 0")
+  val taskName1 = new TaskName("Partition 1")
+
+  class MockTaskStorageManager(taskName: TaskName, storeNames: Seq[String], restore: String => Unit) extends TaskStorageManager(
+    taskName = taskName,
+    changeLogStreamPartitions = 1,
+    streamMetadataCache = null,
+    partition = new Partition(0),
+    systemAdmins = Map()) {
+
+    val started = new AtomicInteger
+    val restored = new ConcurrentLinkedQueue[String]
+    val stopped = new AtomicInteger
+
+    override def startRestore { started.incrementAndGet }
+    override def getStoresToRestore = storeNames
+    override def restoreStore(storeName: String, rateLimiter: ByteRateLimiter) {
+      restore(storeName)
+      restored.add(storeName)
+    }
+    override def stopRestore { stopped.incrementAndGet }
+  }
+
+  @Test
+  def testAllStoresAreRestoredConcurrently {
+    // Every restore waits for the others to start, so this only completes if
+    // all four run at the same time.
+    val started = new CountDownLatch(4)
+    val restore = (storeName: String) => {
+      started.countDown
+      assertTrue(started.await(10, TimeUnit.SECONDS))
+    }
+    val storageManager0 = new MockTaskStorageManager(taskName0, Seq("store0", "store1"), restore)
+    val storageManager1 = new MockTaskStorageManager(taskName1, Seq("store0", "store1"), restore)
+    val restoreTimes = new ConcurrentHashMap[TaskName, Long]
+    val coordinator = new StoreRestoreCoordinator(
+      Map(taskName0 -> storageManager0, taskName1 -> storageManager1),
+      4,
+      onTaskRestored = (taskName, timeToRestore) => restoreTimes.put(taskName, timeToRestore))
+
+    coordinator.restore
+
+    Seq(storageManager0, storageManager1).foreach(storageManager => {
+      assertEquals(1, storageManager.started.get)
+      assertEquals(Set("store0", "store1"), storageManager.restored.toSet)
+      assertEquals(1, storageManager.stopped.get)
+    })
+    assertEquals(2, restoreTimes.size)
+  }
+
+  @Test
+  def testTaskWithoutStoresToRestoreIsStopped {
+    val storageManager = new MockTaskStorageManager(taskName0, Seq(), _ => ())
+    var restored = false
+    val coordinator = new StoreRestoreCoordinator(Map(taskName0 -> storageManager), onTaskRestored = (_, _) => restored = true)
+
+    coordinator.restore
+
+    assertEquals(1, storageManager.stopped.get)
+    assertTrue(restored)
+  }
+
+  @Test
+  def testRestoreFailureIsRethrown {
+    class RestoreFailure extends RuntimeException
+
+    val storageManager = new MockTaskStorageManager(taskName0, Seq("store0"), _ => throw new RestoreFailure)
+    val coordinator = new StoreRestoreCoordinator(Map(taskName0 -> storageManager), 2)
+
+    intercept[RestoreFailure] { coordinator.restore }
+    assertEquals(1, storageManager.stopped.get)
+  }
+
+  @Test
+  def testStartedRestoresAreStoppedWhenAnotherFailsToStart {
+    class StartFailure extends RuntimeException
+
+    val storageManager0 = new MockTaskStorageManager(taskName0, Seq("store0"), _ => ())
+    val storageManager1 = new MockTaskStorageManager(taskName1, Seq("store0"), _ => ()) {
+      override def startRestore { throw new StartFailure }
+    }
+    val coordinator = new StoreRestoreCoordinator(Map(taskName0 -> storageManager0, taskName1 -> storageManager1), 2)
+
+    intercept[StartFailure] { coordinator.restore }
+    assertEquals(1, storageManager0.started.get)
+    assertEquals(0, storageManager0.restored.size)
+    assertEquals(1, storageManager0.stopped.get)
+    assertEquals(0, storageManager1.stopped.get)
+  }
+}
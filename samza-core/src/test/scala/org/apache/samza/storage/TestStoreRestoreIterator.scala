@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.samza.storage
+
+import org.apache.samza.Partition
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStreamPartition}
+import org.apache.samza.util.ByteRateLimiter
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+class TestStoreRestoreIterator {
+  val ssp = new SystemStreamPartition("system", "changelog", new Partition(0))
+
+  def envelopes(offsets: Range) = offsets
+    .map(offset => new IncomingMessageEnvelope(ssp, offset.toString, new Array[Byte](24), new Array[Byte](1000)))
+    .iterator
+
+  @Test
+  def testProgressIsTrackedFromNumericOffsets {
+    var now = 0L
+    val iterator = new StoreRestoreIterator(envelopes(0 until 10), "10", clock = () => now)
+
+    assertEquals(-1L, iterator.getRemainingLag)
+    assertEquals(-1L, iterator.getEtaMs)
+
+    (0 until 4).foreach(_ => iterator.next)
+    now = 4000000000L
+
+    // 4 messages took 4 seconds, and 6 are left.
+    assertEquals(6L, iterator.getRemainingLag)
+    assertEquals(6000L, iterator.getEtaMs)
+    assertEquals(4096L, iterator.getRestoredBytes)
+
+    while (iterator.hasNext) {
+      iterator.next
+    }
+
+    assertEquals(0L, iterator.getRemainingLag)
+    assertEquals(0L, iterator.getEtaMs)
+  }
+
+  @Test
+  def testProgressIsUnknownForNonNumericOffsets {
+    val iterator = new StoreRestoreIterator(envelopes(0 until 10), "end")
+
+    iterator.next
+
+    assertEquals(-1L, iterator.getRemainingLag)
+    assertEquals(-1L, iterator.getEtaMs)
+  }
+
+  @Test
+  def testRateLimiterIsCalledPerChunk {
+    val sleeps = new ArrayBuffer[Long]
+    val limiter = new ByteRateLimiter(1024 * 1024, () => 0L, ns => sleeps += ns)
+    val iterator = new StoreRestoreIterator(envelopes(0 until 200), null, limiter)
+
+    while (iterator.hasNext) {
+      iterator.next
+    }
+
+    // 200 messages of 1024 bytes are three full 64 KB chunks. The first chunk
+    // doesn't wait.
+    assertEquals(2, sleeps.size)
+  }
+}
@@ -22,11 +22,14 @@ package org.apache.samza.system
 import org.junit.Assert._
 import org.junit.Test
 import org.apache.samza.Partition
+import org.apache.samza.metrics.{Gauge, MetricsRegistryMap}
 import org.apache.samza.serializers._
 import org.apache.samza.system.chooser.MessageChooser
 import org.apache.samza.system.chooser.DefaultChooser
 import org.apache.samza.system.chooser.MockMessageChooser
 import org.apache.samza.util.BlockingEnvelopeMap
+import org.apache.samza.util.BufferMemoryBudget
+import org.apache.samza.util.IdleStrategy
 
 import scala.collection.JavaConversions._
 
@@ -277,6 +280,230 @@ class TestSystemConsumers {
 
   }
 
+  @Test
+  def testIdleStrategyIsUsedWhenThereAreNoMessages {
+    val system = "test-system"
+    val consumer = new SerializingConsumer
+    val idleStrategy = new CountingIdleStrategy
+    val metrics = new SystemConsumersMetrics
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer), metrics = metrics, idleStrategy = idleStrategy)
+
+    consumers.register(consumer.systemStreamPartition, "0")
+    consumers.start
+
+    // Nothing to process, so the run loop goes idle without blocking in poll.
+    assertNull(consumers.choose)
+    assertEquals(1, idleStrategy.idles)
+    assertEquals(0, consumers.timeout)
+    assertEquals(0L, metrics.blockedNs.getCount)
+
+    // A new message signals the strategy, and is picked up by the next
+    // refresh, so the run loop does not go idle.
+    consumer.putStringMessage
+    assertEquals(1, idleStrategy.signals)
+    assertNull(consumers.choose)
+    assertEquals(1, idleStrategy.idles)
+
+    assertNotNull(consumers.choose)
+    assertEquals(1, idleStrategy.resets)
+
+    assertNull(consumers.choose)
+    assertEquals(2, idleStrategy.idles)
+    consumers.stop
+  }
+
+  @Test
+  def testBufferMemoryBudgetIsSharedWithConsumers {
+    val system = "test-system"
+    val consumer = new SerializingConsumer
+    val budget = new BufferMemoryBudget(100)
+    val registry = new MetricsRegistryMap
+    val metrics = new SystemConsumersMetrics(registry)
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer), metrics = metrics, bufferMemoryBudget = budget)
+    val bufferedBytes = registry.getGroup(metrics.group).get("buffered-bytes").asInstanceOf[Gauge[Long]]
+
+    consumers.register(consumer.systemStreamPartition, "0")
+
+    consumer.putSizedMessage(60)
+    consumer.putSizedMessage(60)
+    assertEquals(120L, bufferedBytes.getValue)
+    assertEquals(120L, consumer.getMessagesSizeInQueue(consumer.systemStreamPartition))
+    assertTrue(budget.isExhausted)
+
+    // Polling the consumer releases the bytes of both messages.
+    consumers.start
+    assertNotNull(consumers.choose)
+    assertEquals(0L, bufferedBytes.getValue)
+    assertFalse(budget.isExhausted)
+    consumers.stop
+  }
+
+  @Test
+  def testBatchedSystemStreamPartitionsAreDrainedInBatches {
+    val system = "test-system"
+    val systemStreamPartition0 = new SystemStreamPartition(system, "some-stream", new Partition(0))
+    val systemStreamPartition1 = new SystemStreamPartition(system, "some-stream", new Partition(1))
+    def envelopes(ssp: SystemStreamPartition) = (0 until 5).map(i => new IncomingMessageEnvelope(ssp, i.toString, null, "v")).toList
+    val consumer = new OneShotSystemConsumer(Map(
+      systemStreamPartition0 -> envelopes(systemStreamPartition0),
+      systemStreamPartition1 -> envelopes(systemStreamPartition1)))
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer), maxBatchSize = 3)
+
+    consumers.register(systemStreamPartition0, "0")
+    consumers.register(systemStreamPartition1, "0")
+    consumers.enableBatching(systemStreamPartition0)
+    consumers.start
+
+    val batches0 = new java.util.ArrayList[String]
+    val offsets1 = new java.util.ArrayList[String]
+    var envelope = consumers.choose
+
+    while (envelope != null) {
+      if (envelope.getSystemStreamPartition.equals(systemStreamPartition0)) {
+        assertEquals(envelope, consumers.getChosenBatch.get(0))
+        batches0.add(consumers.getChosenBatch.map(_.getOffset).mkString(","))
+      } else {
+        assertNull(consumers.getChosenBatch)
+        offsets1.add(envelope.getOffset)
+      }
+
+      envelope = consumers.choose
+    }
+
+    assertEquals(List("0,1,2", "3,4"), batches0.toList)
+    assertEquals((0 until 5).map(_.toString).toList, offsets1.toList)
+    assertEquals(0, consumers.totalUnprocessedMessages)
+  }
+
+  @Test
+  def testPausedSystemStreamPartitionsAreNotChosenUntilResumed {
+    val system = "test-system"
+    val systemStreamPartition0 = new SystemStreamPartition(system, "some-stream", new Partition(0))
+    val systemStreamPartition1 = new SystemStreamPartition(system, "some-stream", new Partition(1))
+    def envelopes(ssp: SystemStreamPartition) = (0 until 3).map(i => new IncomingMessageEnvelope(ssp, i.toString, null, "v")).toList
+    val consumer = new OneShotSystemConsumer(Map(
+      systemStreamPartition0 -> envelopes(systemStreamPartition0),
+      systemStreamPartition1 -> envelopes(systemStreamPartition1)))
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer))
+
+    consumers.register(systemStreamPartition0, "0")
+    consumers.register(systemStreamPartition1, "0")
+    consumers.pause(systemStreamPartition0)
+    consumers.start
+
+    def chooseAll = {
+      val chosen = new java.util.ArrayList[IncomingMessageEnvelope]
+      var envelope = consumers.choose
+      while (envelope != null) {
+        chosen.add(envelope)
+        envelope = consumers.choose
+      }
+      chosen.toList
+    }
+
+    assertEquals(envelopes(systemStreamPartition1), chooseAll)
+
+    consumers.resume(systemStreamPartition0)
+    assertEquals(envelopes(systemStreamPartition0), chooseAll)
+    assertEquals(0, consumers.totalUnprocessedMessages)
+  }
+
+  @Test
+  def testOffThreadDeserializationKeepsOrderAndDropsErrors {
+    val system = "test-system"
+    val systemStreamPartition0 = new SystemStreamPartition(system, "some-stream", new Partition(0))
+    val systemStreamPartition1 = new SystemStreamPartition(system, "some-stream", new Partition(1))
+    val serdeManager = new SerdeManager(systemMessageSerdes = Map(system -> new StringSerde("UTF-8").asInstanceOf[Serde[Object]]))
+    val metrics = new SystemConsumersMetrics
+    val consumer = new OneShotSystemConsumer(Map(
+      systemStreamPartition0 -> serializedEnvelopes(systemStreamPartition0, 100, badOffset = 50),
+      systemStreamPartition1 -> serializedEnvelopes(systemStreamPartition1, 100)))
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer), serdeManager, metrics,
+      dropDeserializationError = true, deserializationThreads = 2)
+
+    consumers.register(systemStreamPartition0, "0")
+    consumers.register(systemStreamPartition1, "0")
+    consumers.start
+
+    val chosen = Map(systemStreamPartition0 -> new java.util.ArrayList[String], systemStreamPartition1 -> new java.util.ArrayList[String])
+    val deadline = System.currentTimeMillis + 10000
+
+    while (chosen.values.map(_.size).sum < 199 && System.currentTimeMillis < deadline) {
+      val envelope = consumers.choose
+
+      if (envelope != null) {
+        assertEquals(envelope.getOffset, envelope.getMessage)
+        chosen(envelope.getSystemStreamPartition).add(envelope.getOffset)
+      }
+    }
+
+    assertEquals((0 until 100).filter(_ != 50).map(_.toString).toList, chosen(systemStreamPartition0).toList)
+    assertEquals((0 until 100).map(_.toString).toList, chosen(systemStreamPartition1).toList)
+    assertEquals(1L, metrics.deserializationError.getCount)
+    assertEquals(0, consumers.totalUnprocessedMessages)
+    consumers.stop
+  }
+
+  @Test
+  def testOffThreadDeserializationErrorFailsChoose {
+    val system = "test-system"
+    val systemStreamPartition = new SystemStreamPartition(system, "some-stream", new Partition(0))
+    val serdeManager = new SerdeManager(systemMessageSerdes = Map(system -> new StringSerde("UTF-8").asInstanceOf[Serde[Object]]))
+    val consumer = new OneShotSystemConsumer(Map(systemStreamPartition -> serializedEnvelopes(systemStreamPartition, 10, badOffset = 5)))
+    val consumers = new SystemConsumers(new DefaultChooser, Map(system -> consumer), serdeManager,
+      dropDeserializationError = false, deserializationThreads = 1)
+
+    consumers.register(systemStreamPartition, "0")
+    consumers.start
+
+    val deadline = System.currentTimeMillis + 10000
+    var caughtRightException = false
+
+    while (!caughtRightException && System.currentTimeMillis < deadline) {
+      try {
+        consumers.choose
+      } catch {
+        case e: SystemConsumersException => caughtRightException = true
+      }
+    }
+
+    assertTrue("suppose to throw SystemConsumersException", caughtRightException)
+    consumers.stop
+  }
+
+  private def serializedEnvelopes(systemStreamPartition: SystemStreamPartition, count: Int, badOffset: Int = -1) = {
+    (0 until count).map(i => {
+      // StringSerde can't deserialize a String, so badOffset fails.
+      val message = if (i == badOffset) i.toString else i.toString.getBytes("UTF-8")
+      new IncomingMessageEnvelope(systemStreamPartition, i.toString, null, message)
+    }).toList
+  }
+
+  /**
+   * A consumer that returns the supplied envelopes from its first poll, and
+   * nothing after that.
+   */
+  private class OneShotSystemConsumer(response: Map[SystemStreamPartition, List[IncomingMessageEnvelope]]) extends SystemConsumer {
+    var pollResponse: java.util.Map[SystemStreamPartition, java.util.List[IncomingMessageEnvelope]] = response.mapValues(seqAsJavaList(_))
+    def start {}
+    def stop {}
+    def register(systemStreamPartition: SystemStreamPartition, offset: String) {}
+    def poll(systemStreamPartitions: java.util.Set[SystemStreamPartition], timeout: Long) = {
+      val response = pollResponse
+      pollResponse = new java.util.HashMap[SystemStreamPartition, java.util.List[IncomingMessageEnvelope]]
+      response
+    }
+  }
+
+  private class CountingIdleStrategy extends IdleStrategy {
+    var idles = 0
+    var resets = 0
+    var signals = 0
+    def idle { idles += 1 }
+    def reset { resets += 1 }
+    def signal { signals += 1 }
+  }
+
   /**
    * A simple MockSystemConsumer that keeps track of what was polled, and lets
    * you define how many envelopes to return in the poll response. You can
@@ -314,6 +541,9 @@ class TestSystemConsumers {
     def putStringMessage {
       put(systemStreamPartition, new IncomingMessageEnvelope(systemStreamPartition, "0", "1", "test"))
     }
+    def putSizedMessage(size: Int) {
+      put(systemStreamPartition, new IncomingMessageEnvelope(systemStreamPartition, "0", "1", "test", size))
+    }
     def start {}
     def stop {}
     def register { super.register(systemStreamPartition, "0") }
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.chooser
+
+import org.apache.samza.{Partition, SamzaException}
+import org.apache.samza.config.MapConfig
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStream, SystemStreamMetadata, SystemStreamPartition}
+import org.apache.samza.system.SystemStreamMetadata.SystemStreamPartitionMetadata
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConversions._
+
+class TestIndexedPriorityChooser extends AssertionsForJUnit {
+  val envelope1 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream", new Partition(0)), null, null, 1);
+  val envelope2 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream1", new Partition(1)), null, null, 2);
+  val envelope3 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream2", new Partition(0)), null, null, 3);
+  val envelope4 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream", new Partition(0)), "123", null, 4);
+  val envelope5 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream", new Partition(1)), null, null, 5);
+  val envelope6 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream", new Partition(1)), "321", null, 6);
+  val envelope7 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream1", new Partition(0)), null, null, 7);
+  val envelope8 = new IncomingMessageEnvelope(new SystemStreamPartition("kafka", "stream3", new Partition(0)), "654", null, 8);
+
+  /**
+   * The same scenario as TestDefaultChooser, which the indexed chooser must
+   * handle the same way.
+   */
+  @Test
+  def testChooserWithBatchingPrioritizationAndBootstrapping {
+    val env1Metadata = new SystemStreamPartitionMetadata(null, "123", null)
+    val env5Metadata = new SystemStreamPartitionMetadata(null, "321", null)
+    val env8Metadata = new SystemStreamPartitionMetadata("0", "456", "654")
+    val streamMetadata = new SystemStreamMetadata("stream", Map(
+      envelope1.getSystemStreamPartition().getPartition() -> env1Metadata,
+      envelope5.getSystemStreamPartition().getPartition() -> env5Metadata))
+    val stream3Metadata = new SystemStreamMetadata("stream3", Map(
+      envelope8.getSystemStreamPartition().getPartition() -> env8Metadata))
+    val chooser = new IndexedPriorityChooser(
+      Map(
+        envelope1.getSystemStreamPartition().getSystemStream -> Int.MaxValue,
+        envelope8.getSystemStreamPartition().getSystemStream -> Int.MaxValue,
+        envelope2.getSystemStreamPartition().getSystemStream -> 1),
+      Some(2),
+      Map(
+        envelope1.getSystemStreamPartition.getSystemStream -> streamMetadata,
+        envelope8.getSystemStreamPartition.getSystemStream -> stream3Metadata))
+
+    chooser.register(envelope1.getSystemStreamPartition, null)
+    chooser.register(envelope2.getSystemStreamPartition, null)
+    chooser.register(envelope3.getSystemStreamPartition, null)
+    chooser.register(envelope5.getSystemStreamPartition, null)
+    chooser.register(envelope7.getSystemStreamPartition, null)
+    // A bootstrap stream that's already caught up shouldn't interfere.
+    chooser.register(envelope8.getSystemStreamPartition, "654")
+    chooser.start
+    assertNull(chooser.choose)
+
+    // Blocked until there is an envelope from the bootstrap stream.
+    chooser.update(envelope3)
+    assertNull(chooser.choose)
+    chooser.update(envelope1)
+    assertEquals(envelope1, chooser.choose)
+    assertNull(chooser.choose)
+    chooser.update(envelope2)
+    assertNull(chooser.choose)
+
+    // envelope1's partition is being batched, so it is preferred over envelope5.
+    chooser.update(envelope5)
+    chooser.update(envelope1)
+    assertEquals(envelope1, chooser.choose)
+
+    // The batch is full, so envelope5 goes first.
+    chooser.update(envelope1)
+    assertEquals(envelope5, chooser.choose)
+    assertEquals(envelope1, chooser.choose)
+    assertNull(chooser.choose)
+
+    // Catch up both bootstrap partitions.
+    chooser.update(envelope4)
+    assertEquals(envelope4, chooser.choose)
+    assertNull(chooser.choose)
+    chooser.update(envelope6)
+    assertEquals(envelope6, chooser.choose)
+
+    // No streams are bootstrapping. Priority 1 beats the stream without a priority.
+    assertEquals(envelope2, chooser.choose)
+    chooser.update(envelope7)
+    chooser.update(envelope2)
+    assertEquals(envelope2, chooser.choose)
+    chooser.update(envelope2)
+    assertEquals(envelope7, chooser.choose)
+    assertEquals(envelope2, chooser.choose)
+    assertEquals(envelope3, chooser.choose)
+    assertNull(chooser.choose)
+  }
+
+  @Test
+  def testSystemStreamPartitionsOfATierAreChosenRoundRobin {
+    val ssps = (0 until 200).map(p => new SystemStreamPartition("kafka", "stream", new Partition(p)))
+    val chooser = new IndexedPriorityChooser
+
+    ssps.foreach(chooser.register(_, "0"))
+    chooser.start
+
+    // Keep refilling every partition. Each partition must be chosen once
+    // per round, in index order.
+    ssps.foreach(ssp => chooser.update(new IncomingMessageEnvelope(ssp, "0", null, null)))
+
+    val chosen = (0 until 600).map(i => {
+      val envelope = chooser.choose
+      chooser.update(envelope)
+      envelope.getSystemStreamPartition
+    })
+
+    assertEquals(ssps ++ ssps ++ ssps, chosen)
+  }
+
+  @Test
+  def testBatchSizeOfOneDoesNotChooseTheSamePartitionTwice {
+    val metrics = new IndexedPriorityChooserMetrics
+    val chooser = new IndexedPriorityChooser(batchSize = Some(1), metrics = metrics)
+
+    chooser.register(envelope1.getSystemStreamPartition, null)
+    chooser.register(envelope2.getSystemStreamPartition, null)
+    chooser.start
+
+    chooser.update(envelope1)
+    chooser.update(envelope2)
+    assertEquals(envelope1, chooser.choose)
+    chooser.update(envelope4)
+    assertEquals(envelope2, chooser.choose)
+    assertEquals(envelope4, chooser.choose)
+    assertNull(chooser.choose)
+    assertEquals(3, metrics.batches.getCount)
+  }
+
+  @Test
+  def testSecondEnvelopeAndUnregisteredSystemStreamPartitionFail {
+    val chooser = new IndexedPriorityChooser
+
+    chooser.register(envelope1.getSystemStreamPartition, null)
+    chooser.start
+    chooser.update(envelope1)
+
+    intercept[SamzaException] { chooser.update(envelope4) }
+    intercept[SamzaException] { chooser.update(envelope2) }
+  }
+
+  @Test
+  def testReadyBitSet {
+    val bits = new ReadyBitSet(10000)
+
+    assertEquals(-1, bits.nextSetBit(0, 10000))
+    bits.set(3)
+    bits.set(64)
+    bits.set(4095)
+    bits.set(4096)
+    bits.set(9999)
+
+    assertEquals(3, bits.nextSetBit(0, 10000))
+    assertEquals(64, bits.nextSetBit(4, 10000))
+    assertEquals(-1, bits.nextSetBit(4, 64))
+    assertEquals(4095, bits.nextSetBit(65, 10000))
+    assertEquals(4096, bits.nextSetBit(4096, 10000))
+    assertEquals(9999, bits.nextSetBit(4097, 10000))
+    assertEquals(-1, bits.nextSetBit(4097, 9999))
+
+    bits.clear(4095)
+    bits.clear(4096)
+    assertFalse(bits.get(4096))
+    assertEquals(9999, bits.nextSetBit(65, 10000))
+  }
+
+  @Test
+  def testDefaultChooserFactoryMethodUsesIndexedChooserWhenEnabled {
+    val config = new MapConfig(Map(
+      "task.inputs" -> "kafka.stream",
+      "task.chooser.indexed" -> "true"))
+    val chooser = DefaultChooser(Map[SystemStream, SystemStreamMetadata](), new RoundRobinChooserFactory, config, new MetricsRegistryMap)
+
+    assertTrue(chooser.isInstanceOf[IndexedPriorityChooser])
+  }
+}
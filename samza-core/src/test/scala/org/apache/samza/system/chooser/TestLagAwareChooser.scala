@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.chooser
+
+import org.apache.samza.Partition
+import org.apache.samza.SamzaException
+import org.apache.samza.config.MapConfig
+import org.apache.samza.metrics.Gauge
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.system.HighWatermarkProvider
+import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.BlockingEnvelopeMap
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConversions._
+
+class TestLagAwareChooser extends AssertionsForJUnit {
+  val ssp0 = new SystemStreamPartition("kafka", "stream", new Partition(0))
+  val ssp1 = new SystemStreamPartition("kafka", "stream", new Partition(1))
+  val ssp2 = new SystemStreamPartition("kafka", "stream", new Partition(2))
+
+  class MockHighWatermarks(var highWatermarks: Map[SystemStreamPartition, Long]) extends HighWatermarkProvider {
+    def getHighWatermark(systemStreamPartition: SystemStreamPartition) = highWatermarks.getOrElse(systemStreamPartition, -1L)
+  }
+
+  def envelope(ssp: SystemStreamPartition, offset: Long) = new IncomingMessageEnvelope(ssp, offset.toString, null, null)
+
+  def getChooser(highWatermarks: Map[SystemStreamPartition, Long], fairnessFloor: Double = 0, starvationThreshold: Int = 1000, metrics: LagAwareChooserMetrics = new LagAwareChooserMetrics) = {
+    val chooser = new LagAwareChooser(fairnessFloor, starvationThreshold, metrics)
+    chooser.setHighWatermarkProvider(new MockHighWatermarks(highWatermarks))
+    List(ssp0, ssp1, ssp2).foreach(chooser.register(_, "0"))
+    chooser.start
+    chooser
+  }
+
+  @Test
+  def testChoosesMostLaggedPartitionFirst {
+    val chooser = getChooser(Map(ssp0 -> 100L, ssp1 -> 1000L, ssp2 -> 10L))
+    val envelope0 = envelope(ssp0, 0)
+    val envelope1 = envelope(ssp1, 0)
+    val envelope2 = envelope(ssp2, 0)
+
+    assertNull(chooser.choose)
+    chooser.update(envelope2)
+    chooser.update(envelope0)
+    chooser.update(envelope1)
+    assertEquals(envelope1, chooser.choose)
+    assertEquals(envelope0, chooser.choose)
+    assertEquals(envelope2, chooser.choose)
+    assertNull(chooser.choose)
+
+    // Lag is measured from each envelope's own offset.
+    val nearlyCaughtUp = envelope(ssp1, 999)
+    chooser.update(nearlyCaughtUp)
+    chooser.update(envelope0)
+    assertEquals(envelope0, chooser.choose)
+    assertEquals(nearlyCaughtUp, chooser.choose)
+  }
+
+  @Test
+  def testUnknownLagIsChosenInArrivalOrder {
+    val chooser = getChooser(Map())
+    val envelopes = List(envelope(ssp2, 5), envelope(ssp0, 7), envelope(ssp1, 1))
+
+    envelopes.foreach(chooser.update)
+    assertEquals(envelopes, envelopes.map(_ => chooser.choose))
+
+    // Non-numeric offsets have no lag either.
+    val nonNumeric = new IncomingMessageEnvelope(ssp0, "abc", null, null)
+    chooser.update(nonNumeric)
+    assertEquals(nonNumeric, chooser.choose)
+  }
+
+  @Test
+  def testStarvationThreshold {
+    val metrics = new LagAwareChooserMetrics
+    val chooser = getChooser(Map(ssp0 -> 10L, ssp1 -> 1000L), starvationThreshold = 3, metrics = metrics)
+    val caughtUp = envelope(ssp0, 9)
+
+    chooser.update(caughtUp)
+    chooser.update(envelope(ssp1, 0))
+
+    // ssp1 always has more lag, so it's chosen until ssp0 has waited for 3
+    // choices.
+    (1 until 4).foreach(i => {
+      assertEquals(ssp1, chooser.choose.getSystemStreamPartition)
+      chooser.update(envelope(ssp1, i))
+    })
+    assertEquals(caughtUp, chooser.choose)
+    assertEquals(1, metrics.starvedChoices.getCount)
+    assertEquals(0, metrics.fairnessChoices.getCount)
+  }
+
+  @Test
+  def testFairnessFloor {
+    val metrics = new LagAwareChooserMetrics
+    val chooser = getChooser(Map(ssp0 -> 10L, ssp1 -> 1000L, ssp2 -> 1000L), fairnessFloor = 0.25, metrics = metrics)
+
+    chooser.update(envelope(ssp0, 9))
+    chooser.update(envelope(ssp1, 0))
+    chooser.update(envelope(ssp2, 0))
+
+    // Every fourth choice goes to the envelope that has waited longest.
+    val chosen = (1 to 8).map(i => {
+      val chosenEnvelope = chooser.choose
+      val ssp = chosenEnvelope.getSystemStreamPartition
+      chooser.update(envelope(ssp, chosenEnvelope.getOffset.toLong + 1))
+      ssp
+    })
+
+    assertEquals(List(ssp1, ssp2, ssp1, ssp0, ssp2, ssp1, ssp2, ssp0), chosen.toList)
+    assertEquals(2, metrics.fairnessChoices.getCount)
+  }
+
+  @Test
+  def testLagGauge {
+    val registry = new MetricsRegistryMap
+    val metrics = new LagAwareChooserMetrics(registry)
+    val chooser = getChooser(Map(ssp0 -> 100L), metrics = metrics)
+    val gauge = registry.getGroup(metrics.group).get("kafka-stream-0-messages-behind-high-watermark").asInstanceOf[Gauge[Long]]
+
+    assertEquals(0L, gauge.getValue)
+    chooser.update(envelope(ssp0, 40))
+    assertEquals(60L, gauge.getValue)
+  }
+
+  @Test
+  def testSecondEnvelopeShouldFail {
+    val chooser = getChooser(Map())
+
+    chooser.update(envelope(ssp0, 0))
+    intercept[SamzaException] { chooser.update(envelope(ssp0, 1)) }
+  }
+
+  @Test
+  def testDefaultChooserGivesHighWatermarksToLagAwareChoosers {
+    val highWatermarks = new MockHighWatermarks(Map(ssp0 -> 100L, ssp1 -> 1000L))
+    val config = new MapConfig(Map("task.inputs" -> "kafka.stream", "systems.kafka.streams.stream.samza.priority" -> "1"))
+    val chooser = DefaultChooser(Map(), new LagAwareChooserFactory, config, new MetricsRegistryMap, highWatermarks)
+    val envelope0 = envelope(ssp0, 0)
+    val envelope1 = envelope(ssp1, 0)
+
+    chooser.register(ssp0, "0")
+    chooser.register(ssp1, "0")
+    chooser.start
+    chooser.update(envelope0)
+    chooser.update(envelope1)
+    assertEquals(envelope1, chooser.choose)
+    assertEquals(envelope0, chooser.choose)
+  }
+
+  @Test
+  def testSystemConsumersHighWatermarkProvider {
+    val consumer = new BlockingEnvelopeMap with HighWatermarkProvider {
+      def start {}
+      def stop {}
+      def getHighWatermark(systemStreamPartition: SystemStreamPartition) = 42L
+    }
+    val provider = new SystemConsumersHighWatermarkProvider(Map("kafka" -> consumer))
+
+    assertEquals(42L, provider.getHighWatermark(ssp0))
+    assertEquals(-1L, provider.getHighWatermark(new SystemStreamPartition("other", "stream", new Partition(0))))
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.chooser
+
+import org.apache.samza.Partition
+import org.apache.samza.SamzaException
+import org.apache.samza.system.IncomingMessageEnvelope
+import org.apache.samza.system.SystemStreamPartition
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class TestTimeAlignedChooser extends AssertionsForJUnit {
+  val fast = new SystemStreamPartition("kafka", "fast", new Partition(0))
+  val slow = new SystemStreamPartition("kafka", "slow", new Partition(0))
+
+  var now = 0L
+
+  def envelope(ssp: SystemStreamPartition, timestamp: Long) = new IncomingMessageEnvelope(ssp, "0", null, null, 0, timestamp)
+
+  def getChooser(metrics: TimeAlignedChooserMetrics = new TimeAlignedChooserMetrics) = {
+    val chooser = new TimeAlignedChooser(100, metrics, () => now)
+    chooser.register(fast, "0")
+    chooser.register(slow, "0")
+    chooser.start
+    chooser
+  }
+
+  @Test
+  def testChoosesEarliestTimestamp {
+    val chooser = getChooser()
+    val fast5 = envelope(fast, 5)
+    val slow3 = envelope(slow, 3)
+    val slow7 = envelope(slow, 7)
+
+    chooser.update(fast5)
+    chooser.update(slow3)
+    assertEquals(slow3, chooser.choose)
+    chooser.update(slow7)
+    assertEquals(fast5, chooser.choose)
+  }
+
+  @Test
+  def testWaitsForEmptyPartitionsUpToMaxWait {
+    val metrics = new TimeAlignedChooserMetrics
+    val chooser = getChooser(metrics)
+    val fast1 = envelope(fast, 1)
+    val fast2 = envelope(fast, 2)
+
+    chooser.update(fast1)
+    assertNull(chooser.choose)
+    now = 99
+    assertNull(chooser.choose)
+    now = 100
+    assertEquals(fast1, chooser.choose)
+    assertEquals(1, metrics.waitTimeouts.getCount)
+
+    // Once timed out, the chooser doesn't wait again until the slow
+    // partition has caught up.
+    chooser.update(fast2)
+    assertEquals(fast2, chooser.choose)
+
+    val slow3 = envelope(slow, 3)
+    val fast4 = envelope(fast, 4)
+    chooser.update(slow3)
+    chooser.update(fast4)
+    assertEquals(slow3, chooser.choose)
+    now = 150
+    assertNull(chooser.choose)
+    now = 250
+    assertEquals(fast4, chooser.choose)
+    assertEquals(2, metrics.waitTimeouts.getCount)
+  }
+
+  @Test
+  def testEnvelopesWithoutTimestampsAreNotHeldBack {
+    val chooser = getChooser()
+    val untimed = envelope(fast, IncomingMessageEnvelope.NO_TIMESTAMP)
+
+    chooser.update(untimed)
+    assertEquals(untimed, chooser.choose)
+    assertNull(chooser.choose)
+  }
+
+  @Test
+  def testSecondEnvelopeShouldFail {
+    val chooser = getChooser()
+
+    chooser.update(envelope(fast, 1))
+    intercept[SamzaException] { chooser.update(envelope(fast, 2)) }
+    intercept[SamzaException] { chooser.update(envelope(new SystemStreamPartition("kafka", "other", new Partition(0)), 2)) }
+  }
+}
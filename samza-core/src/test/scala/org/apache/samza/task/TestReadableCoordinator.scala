@@ -66,4 +66,16 @@ class TestReadableCoordinator {
     assertTrue(coord.requestedShutdownOnConsensus)
     assertFalse(coord.requestedShutdownNow)
   }
+
+  @Test
+  def testReset {
+    val coord = new ReadableCoordinator(taskName)
+    coord.commit(RequestScope.CURRENT_TASK)
+    coord.shutdown(RequestScope.ALL_TASKS_IN_CONTAINER)
+    coord.reset
+    assertFalse(coord.requestedCommitTask)
+    assertFalse(coord.requestedCommitAll)
+    assertFalse(coord.requestedShutdownOnConsensus)
+    assertFalse(coord.requestedShutdownNow)
+  }
 }
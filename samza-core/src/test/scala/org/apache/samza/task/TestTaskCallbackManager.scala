@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.task
+
+import org.apache.samza.{Partition, SamzaException}
+import org.apache.samza.container.TaskName
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStreamPartition}
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.Assertions.intercept
+
+import scala.collection.mutable.ArrayBuffer
+
+class TestTaskCallbackManager {
+  val taskName = new TaskName("P0")
+  val ssp0 = new SystemStreamPartition("system", "stream", new Partition(0))
+  val ssp1 = new SystemStreamPartition("system", "stream", new Partition(1))
+
+  def newCallback(manager: TaskCallbackManager, envelope: IncomingMessageEnvelope, onComplete: () => Unit = () => ()) = {
+    assertTrue(manager.tryReserve)
+    manager.newCallback(envelope, onComplete)
+  }
+
+  @Test
+  def testOffsetsAreUpdatedInOrder {
+    val updates = new ArrayBuffer[(SystemStreamPartition, String)]
+    val manager = new TaskCallbackManager(taskName, 4, (ssp, offset) => updates += ssp -> offset)
+
+    val callback0 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null))
+    val callback1 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "1", null, null))
+    val callback2 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "2", null, null))
+    val callback3 = newCallback(manager, new IncomingMessageEnvelope(ssp1, "0", null, null))
+    assertEquals(4, manager.inFlight)
+
+    // Later messages from ssp0 are held back until the first one completes,
+    // but ssp1 is not held back by ssp0.
+    callback2.complete
+    callback1.complete
+    callback3.complete
+    assertEquals(List(ssp1 -> "0"), updates.toList)
+
+    callback0.complete
+    assertEquals(List(ssp1 -> "0", ssp0 -> "2"), updates.toList)
+    assertEquals(0, manager.inFlight)
+  }
+
+  @Test
+  def testTryReserveFailsAtMaxConcurrency {
+    val manager = new TaskCallbackManager(taskName, 1, (ssp, offset) => ())
+    val callback0 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null))
+
+    assertFalse(manager.tryReserve)
+
+    callback0.complete
+    assertTrue(manager.tryReserve)
+    assertEquals(1, manager.inFlight)
+
+    manager.cancelReservation
+    assertEquals(0, manager.inFlight)
+  }
+
+  @Test
+  def testFailureIsRethrownAndHoldsBackOffsets {
+    class CallbackFailure extends RuntimeException
+
+    val updates = new ArrayBuffer[(SystemStreamPartition, String)]
+    val manager = new TaskCallbackManager(taskName, 2, (ssp, offset) => updates += ssp -> offset)
+    val callback0 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null))
+    val callback1 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "1", null, null))
+
+    callback0.failure(new CallbackFailure)
+    callback1.complete
+    manager.awaitCompletion
+
+    assertTrue(updates.isEmpty)
+    intercept[CallbackFailure] { manager.checkFailure }
+  }
+
+  @Test
+  def testIgnoredFailureCompletesMessage {
+    val updates = new ArrayBuffer[(SystemStreamPartition, String)]
+    val manager = new TaskCallbackManager(taskName, 2, (ssp, offset) => updates += ssp -> offset, _ => true)
+    var completions = 0
+    val callback0 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null), () => completions += 1)
+
+    callback0.failure(new RuntimeException)
+
+    assertEquals(List(ssp0 -> "0"), updates.toList)
+    assertEquals(1, completions)
+    assertEquals(0, manager.inFlight)
+    manager.checkFailure
+  }
+
+  @Test
+  def testAwaitCompletionFailsAfterTimeout {
+    val manager = new TaskCallbackManager(taskName, 2, (ssp, offset) => (), callbackTimeoutMs = 50)
+    newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null))
+
+    intercept[SamzaException] { manager.awaitCompletion }
+    assertEquals(1, manager.inFlight)
+  }
+
+  @Test
+  def testRepeatedInvocationIsIgnored {
+    var completions = 0
+    val manager = new TaskCallbackManager(taskName, 2, (ssp, offset) => ())
+    val callback0 = newCallback(manager, new IncomingMessageEnvelope(ssp0, "0", null, null), () => completions += 1)
+
+    callback0.complete
+    callback0.complete
+    callback0.failure(new RuntimeException)
+
+    assertEquals(1, completions)
+    assertEquals(0, manager.inFlight)
+    manager.checkFailure
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.util
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.samza.config.MapConfig
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConversions._
+
+class TestBackoffIdleStrategy {
+
+  @Test def testBacksOffFromSpinningToParking {
+    val strategy = new BackoffIdleStrategy(2, 1, 1000, 4000)
+
+    // Two spins and one yield don't change the park time.
+    (0 until 3).foreach(_ => strategy.idle)
+    assertEquals(1000, strategy.getParkNs)
+
+    strategy.idle
+    assertEquals(2000, strategy.getParkNs)
+    strategy.idle
+    assertEquals(4000, strategy.getParkNs)
+    strategy.idle
+    assertEquals(4000, strategy.getParkNs)
+
+    strategy.reset
+    assertEquals(1000, strategy.getParkNs)
+  }
+
+  @Test def testSignalBeforeIdleReturnsImmediately {
+    val parkNs = TimeUnit.SECONDS.toNanos(60)
+    val strategy = new BackoffIdleStrategy(0, 0, parkNs, parkNs)
+    val startNs = System.nanoTime
+
+    strategy.signal
+    strategy.idle
+
+    assertTrue(System.nanoTime - startNs < parkNs)
+  }
+
+  @Test def testSignalWakesUpParkedThread {
+    val parkNs = TimeUnit.SECONDS.toNanos(60)
+    val strategy = new BackoffIdleStrategy(0, 0, parkNs, parkNs)
+    val idler = new Thread() {
+      override def run = strategy.idle
+    }
+
+    idler.start
+    while (idler.getState != Thread.State.TIMED_WAITING && idler.isAlive) {
+      Thread.sleep(1)
+    }
+    strategy.signal
+    idler.join(10000)
+
+    assertFalse(idler.isAlive)
+  }
+
+  @Test def testFactoryUsesConfig {
+    val config = new MapConfig(Map(
+      "task.idle.spins" -> "0",
+      "task.idle.yields" -> "0",
+      "task.idle.park.min.ns" -> "10",
+      "task.idle.park.max.ns" -> "20"))
+    val strategy = new BackoffIdleStrategyFactory().getIdleStrategy(config)
+
+    strategy.idle
+    assertEquals(20, strategy.getParkNs)
+  }
+}
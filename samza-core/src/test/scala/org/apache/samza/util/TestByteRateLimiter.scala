@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.samza.util
+
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+class TestByteRateLimiter {
+  @Test
+  def testCallersWaitForTheirShareOfTheRate {
+    var now = 0L
+    val sleeps = new ArrayBuffer[Long]
+    val limiter = new ByteRateLimiter(1000, () => now, ns => sleeps += ns)
+
+    // 1000 bytes per second is 1 ms per byte.
+    limiter.acquire(500)
+    limiter.acquire(500)
+    limiter.acquire(100)
+    assertEquals(List(500000000L, 1000000000L), sleeps.toList)
+
+    // Unused time is not saved up.
+    sleeps.clear
+    now = 5000000000L
+    limiter.acquire(100)
+    limiter.acquire(100)
+    assertEquals(List(100000000L), sleeps.toList)
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.checkpoint.kafka
+
+import java.io.{DataInputStream, DataOutputStream, File, FileInputStream, FileOutputStream}
+import java.util
+
+import org.apache.samza.SamzaException
+import org.apache.samza.checkpoint.Checkpoint
+import org.apache.samza.container.TaskName
+import org.apache.samza.serializers.CheckpointSerde
+import org.apache.samza.util.Logging
+
+object KafkaCheckpointIndex {
+  val INDEX_FILE_VERSION = 1
+
+  /**
+   * What a KafkaCheckpointManager has read from a checkpoint topic: the
+   * newest checkpoint for each taskName and the newest changelog partition
+   * mapping, if any, in the messages before nextOffset.
+   */
+  case class Contents(
+    nextOffset: Long,
+    checkpoints: Map[TaskName, Checkpoint],
+    changelogPartitionMapping: util.Map[TaskName, java.lang.Integer])
+}
+
+/**
+ * A local file that saves what has been read from a checkpoint topic, so
+ * that a restarted container only needs to read the messages that were
+ * written to the topic after the index was saved.
+ *
+ * <p>The index is only a cache. If it is missing or can't be read, the
+ * topic is read from the earliest offset, as it would be without an
+ * index.</p>
+ */
+class KafkaCheckpointIndex(
+  val file: File,
+  checkpointTopic: String,
+  serde: CheckpointSerde = new CheckpointSerde) extends Logging {
+  import KafkaCheckpointIndex._
+
+  /**
+   * Returns the saved contents, or None if there is no usable index.
+   */
+  def read: Option[Contents] = {
+    if (!file.exists) {
+      return None
+    }
+
+    try {
+      val in = new DataInputStream(new FileInputStream(file))
+
+      try {
+        val version = in.readInt
+
+        if (version != INDEX_FILE_VERSION) {
+          throw new SamzaException("Unsupported version %s." format version)
+        }
+
+        val topic = in.readUTF
+
+        if (topic != checkpointTopic) {
+          throw new SamzaException("The index is for topic %s." format topic)
+        }
+
+        val nextOffset = in.readLong
+        val checkpoints = (0 until in.readInt).map(i => {
+          val taskName = new TaskName(in.readUTF)
+          val checkpoint = serde.fromBytes(readBytes(in))
+
+          if (checkpoint == null) {
+            throw new SamzaException("Unable to read the checkpoint for taskName %s." format taskName)
+          }
+
+          taskName -> checkpoint
+        }).toMap
+        val changelogPartitionMapping = if (in.readBoolean) {
+          serde.changelogPartitionMappingFromBytes(readBytes(in))
+        } else {
+          null
+        }
+
+        info("Read checkpoint index %s with %s checkpoints, up to offset %s." format (file, checkpoints.size, nextOffset))
+
+        Some(Contents(nextOffset, checkpoints, changelogPartitionMapping))
+      } finally {
+        in.close
+      }
+    } catch {
+      case e: Exception =>
+        warn("Ignoring checkpoint index %s, which could not be read: %s" format (file, e))
+        debug("Exception detail:", e)
+        None
+    }
+  }
+
+  /**
+   * Replaces the index with the given contents. The new index is written to
+   * a temporary file first, so a reader never sees a partial index.
+   */
+  def write(contents: Contents) {
+    try {
+      file.getParentFile.mkdirs
+
+      val tmp = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+      val out = new DataOutputStream(new FileOutputStream(tmp))
+
+      try {
+        out.writeInt(INDEX_FILE_VERSION)
+        out.writeUTF(checkpointTopic)
+        out.writeLong(contents.nextOffset)
+        out.writeInt(contents.checkpoints.size)
+        contents.checkpoints.foreach {
+          case (taskName, checkpoint) =>
+            out.writeUTF(taskName.getTaskName)
+            writeBytes(out, serde.toBytes(checkpoint))
+        }
+        out.writeBoolean(contents.changelogPartitionMapping != null)
+        if (contents.changelogPartitionMapping != null) {
+          writeBytes(out, serde.changelogPartitionMappingToBytes(contents.changelogPartitionMapping))
+        }
+      } finally {
+        out.close
+      }
+
+      if (!tmp.renameTo(file)) {
+        tmp.delete
+        throw new SamzaException("Unable to move %s to %s." format (tmp, file))
+      }
+
+      debug("Wrote checkpoint index %s up to offset %s." format (file, contents.nextOffset))
+    } catch {
+      case e: Exception =>
+        // The index only saves work at the next start, so a job can run without it.
+        warn("Unable to write checkpoint index %s: %s" format (file, e))
+        debug("Exception detail:", e)
+    }
+  }
+
+  private def readBytes(in: DataInputStream) = {
+    val bytes = new Array[Byte](in.readInt)
+    in.readFully(bytes)
+    bytes
+  }
+
+  private def writeBytes(out: DataOutputStream, bytes: Array[Byte]) {
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+}
@@ -57,6 +57,14 @@ class KafkaCheckpointLogKey private (val map: Map[String, String]) {
    */
   def isCheckpointKey = getKey.equals(CHECKPOINT_KEY_TYPE)
 
+  /**
+   * Is this key for a delta checkpoint entry, which only has the offsets
+   * that changed since the last full checkpoint of its TaskName?
+   *
+   * @return true iff this key's entry is for a delta checkpoint
+   */
+  def isCheckpointDeltaKey = getKey.equals(CHECKPOINT_DELTA_KEY_TYPE)
+
   /**
    * Is this key for a changelog partition mapping?
    *
@@ -93,10 +101,11 @@ class KafkaCheckpointLogKey private (val map: Map[String, String]) {
 object KafkaCheckpointLogKey {
   /**
    *  Messages in the checkpoint log have keys associated with them. These keys are maps that describe the message's
-   *  type, either a checkpoint or a changelog-partition-mapping.
+   *  type, either a checkpoint, a checkpoint-delta or a changelog-partition-mapping.
    */
   val CHECKPOINT_KEY_KEY = "type"
   val CHECKPOINT_KEY_TYPE = "checkpoint"
+  val CHECKPOINT_DELTA_KEY_TYPE = "checkpoint-delta"
 
   @Deprecated
   val CHANGELOG_PARTITION_KEY_TYPE = "changelog-partition-mapping"
@@ -137,8 +146,21 @@ object KafkaCheckpointLogKey {
    *
    * @return Key for checkpoint log entry
    */
-  def getCheckpointKey(taskName:TaskName) = {
-    val map = Map(CHECKPOINT_KEY_KEY -> CHECKPOINT_KEY_TYPE,
+  def getCheckpointKey(taskName:TaskName) = getTaskKey(CHECKPOINT_KEY_TYPE, taskName)
+
+  /**
+   * Build a key for a delta checkpoint log entry for a particular TaskName.
+   * Log compaction keeps the latest delta and the latest full checkpoint of
+   * each TaskName, so each delta holds every offset that changed since the
+   * last full checkpoint.
+   * @param taskName TaskName to build for this delta checkpoint entry
+   *
+   * @return Key for delta checkpoint log entry
+   */
+  def getCheckpointDeltaKey(taskName:TaskName) = getTaskKey(CHECKPOINT_DELTA_KEY_TYPE, taskName)
+
+  private def getTaskKey(keyType: String, taskName:TaskName) = {
+    val map = Map(CHECKPOINT_KEY_KEY -> keyType,
       CHECKPOINT_TASKNAME_KEY -> taskName.getTaskName,
       SYSTEMSTREAMPARTITION_GROUPER_FACTORY_KEY -> getSystemStreamPartitionGrouperFactoryString)
 
@@ -166,8 +188,8 @@ object KafkaCheckpointLogKey {
         throw new SamzaException("No type entry in checkpoint key: " + jmap)
       }
 
-      // Only checkpoint keys have ssp grouper factory keys
-      if(jmap.get(CHECKPOINT_KEY_KEY).equals(CHECKPOINT_KEY_TYPE)) {
+      // Only checkpoint and checkpoint delta keys have ssp grouper factory keys
+      if(jmap.get(CHECKPOINT_KEY_KEY).equals(CHECKPOINT_KEY_TYPE) || jmap.get(CHECKPOINT_KEY_KEY).equals(CHECKPOINT_DELTA_KEY_TYPE)) {
         val sspGrouperFactory = jmap.get(SYSTEMSTREAMPARTITION_GROUPER_FACTORY_KEY)
 
         if (sspGrouperFactory == null) {
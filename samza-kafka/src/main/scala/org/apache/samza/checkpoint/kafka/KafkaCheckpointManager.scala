@@ -21,7 +21,7 @@ package org.apache.samza.checkpoint.kafka
 
 import java.nio.ByteBuffer
 import java.util
-import java.util.Properties
+import java.util.{Collections, Properties}
 
 import kafka.api._
 import kafka.common.{ErrorMapping, InvalidMessageSizeException, TopicAndPartition, UnknownTopicOrPartitionException}
@@ -31,12 +31,14 @@ import kafka.utils.Utils
 import org.I0Itec.zkclient.ZkClient
 import org.apache.kafka.clients.producer.{Producer, ProducerRecord}
 import org.apache.samza.SamzaException
-import org.apache.samza.checkpoint.{Checkpoint, CheckpointManager}
+import org.apache.samza.checkpoint.{Checkpoint, CheckpointManager, DeltaCheckpointMetrics, DeltaCheckpoints}
 import org.apache.samza.container.TaskName
 import org.apache.samza.serializers.CheckpointSerde
+import org.apache.samza.system.SystemStreamPartition
 import org.apache.samza.system.kafka.TopicMetadataCache
 import org.apache.samza.util._
 
+import scala.collection.JavaConversions._
 import scala.collection.mutable
 
 /**
@@ -45,6 +47,12 @@ import scala.collection.mutable
  * keyed to that taskName. If there is no such message, no checkpoint data
  * exists.  The underlying log has a single partition into which all
  * checkpoints and TaskName to changelog partition mappings are written.
+ *
+ * <p>The log is read once, for all taskNames and entry types. Later reads
+ * only fetch the messages written since the previous read. If an index is
+ * configured, what has been read is also saved to a local file, so that a
+ * restarted container only reads the messages written since the file was
+ * saved.</p>
  */
 class KafkaCheckpointManager(
                               clientId: String,
@@ -61,16 +69,47 @@ class KafkaCheckpointManager(
                               failOnCheckpointValidation: Boolean,
                               val retryBackoff: ExponentialSleepStrategy = new ExponentialSleepStrategy,
                               serde: CheckpointSerde = new CheckpointSerde,
-                              checkpointTopicProperties: Properties = new Properties) extends CheckpointManager with Logging {
+                              checkpointTopicProperties: Properties = new Properties,
+                              index: KafkaCheckpointIndex = null,
+                              metrics: KafkaCheckpointManagerMetrics = new KafkaCheckpointManagerMetrics,
+                              fullInterval: Int = 1,
+                              deltaMetrics: DeltaCheckpointMetrics = new DeltaCheckpointMetrics) extends CheckpointManager with Logging {
   import org.apache.samza.checkpoint.kafka.KafkaCheckpointManager._
 
+  if (fullInterval < 1) {
+    throw new SamzaException("Full checkpoint interval must be positive, but was %s." format fullInterval)
+  }
+
   var taskNames = Set[TaskName]()
   var producer: Producer[Array[Byte], Array[Byte]] = null
-  var taskNamesToOffsets: Map[TaskName, Checkpoint] = null
+  var taskNamesToOffsets: Map[TaskName, Checkpoint] = Map()
+  var changelogPartitionMapping: util.Map[TaskName, java.lang.Integer] = null
 
-  var startingOffset: Option[Long] = None // Where to start reading for each subsequent call of readCheckpoint
+  var startingOffset: Option[Long] = None // Where to start reading for each subsequent read of the log
+  private var startingOffsetFromIndex = false // Whether startingOffset still needs to be checked against the topic
   val kafkaUtil: KafkaUtil = new KafkaUtil(retryBackoff, connectZk)
 
+  /**
+   * The last full checkpoint that this manager wrote for each taskName, the
+   * number of deltas written since, and the latest of those deltas. Right
+   * after a full checkpoint, the latest delta is empty, since no earlier
+   * delta needs to be superseded.
+   */
+  private val fullCheckpoints = mutable.Map[TaskName, Checkpoint]()
+  private val deltasSinceFull = mutable.Map[TaskName, Int]()
+  private val lastDeltas = mutable.Map[TaskName, util.Map[SystemStreamPartition, String]]()
+
+  /**
+   * A checkpoint as it's going to be written: in full, or as the offsets that
+   * changed since the last full checkpoint. The record is null if the delta
+   * is the same as the last one, so there's nothing new to write.
+   */
+  private case class CheckpointWrite(
+    taskName: TaskName,
+    checkpoint: Checkpoint,
+    delta: util.Map[SystemStreamPartition, String],
+    record: ProducerRecord[Array[Byte], Array[Byte]])
+
   KafkaCheckpointLogKey.setSystemStreamPartitionGrouperFactoryString(systemStreamPartitionGrouperFactoryString)
 
   info("Creating KafkaCheckpointManager with: clientId=%s, checkpointTopic=%s, systemName=%s" format(clientId, checkpointTopic, systemName))
@@ -82,21 +121,38 @@ class KafkaCheckpointManager(
    * @param checkpoint Reference to a Checkpoint object to store offset data in.
    **/
   override def writeCheckpoint(taskName: TaskName, checkpoint: Checkpoint) {
-    val key = KafkaCheckpointLogKey.getCheckpointKey(taskName)
-    val keyBytes = key.toBytes()
-    val msgBytes = serde.toBytes(checkpoint)
+    writeCheckpoints(Collections.singletonMap(taskName, checkpoint))
+  }
+
+  /**
+   * Write Checkpoints for several taskNames to log. Every checkpoint is sent
+   * before waiting for any of them to be acknowledged, so the whole batch
+   * takes about one round trip to the broker rather than one per taskName.
+   *
+   * <p>If fullInterval is greater than one, only every fullInterval-th
+   * checkpoint of a taskName is written in full. The others are written as
+   * deltas, with only the offsets that changed since the last full one.</p>
+   *
+   * @param checkpoints The checkpoint to write for each taskName.
+   **/
+  override def writeCheckpoints(checkpoints: util.Map[TaskName, Checkpoint]) {
+    val writes = checkpoints.map { case (taskName, checkpoint) => getCheckpointWrite(taskName, checkpoint) }.toList
+    val records = writes.map(_.record).filter(_ != null)
+
     retryBackoff.run(
       loop => {
         if (producer == null) {
           producer = connectProducer()
         }
 
-        producer.send(new ProducerRecord(checkpointTopic, 0, keyBytes, msgBytes)).get()
+        records
+          .map(producer.send(_))
+          .foreach(_.get())
         loop.done
       },
 
       (exception, loop) => {
-        warn("Failed to write %s partition entry %s: %s. Retrying." format(CHECKPOINT_LOG4J_ENTRY, key, exception))
+        warn("Failed to write %s partition entries for %s: %s. Retrying." format(CHECKPOINT_LOG4J_ENTRY, checkpoints.keySet, exception))
         debug("Exception detail:", exception)
         if (producer != null) {
           producer.close
@@ -104,8 +160,42 @@ class KafkaCheckpointManager(
         producer = null
       }
     )
+
+    writes.foreach(write => {
+      val total = write.checkpoint.getOffsets.size
+
+      if (write.delta == null) {
+        fullCheckpoints.put(write.taskName, write.checkpoint)
+        deltasSinceFull.put(write.taskName, 0)
+        lastDeltas.put(write.taskName, Collections.emptyMap[SystemStreamPartition, String])
+        deltaMetrics.update(total, total, true)
+      } else {
+        deltasSinceFull.put(write.taskName, deltasSinceFull.getOrElse(write.taskName, 0) + 1)
+        lastDeltas.put(write.taskName, write.delta)
+        deltaMetrics.update(total, if (write.record == null) 0 else write.delta.size, false)
+      }
+    })
+  }
+
+  private def getCheckpointWrite(taskName: TaskName, checkpoint: Checkpoint) = {
+    val delta = if (deltasSinceFull.getOrElse(taskName, 0) + 1 < fullInterval) {
+      DeltaCheckpoints.changedOffsets(fullCheckpoints.getOrElse(taskName, null), checkpoint)
+    } else {
+      null
+    }
+
+    if (delta == null) {
+      CheckpointWrite(taskName, checkpoint, null, getRecord(KafkaCheckpointLogKey.getCheckpointKey(taskName), checkpoint))
+    } else if (delta == lastDeltas.getOrElse(taskName, null)) {
+      CheckpointWrite(taskName, checkpoint, delta, null)
+    } else {
+      CheckpointWrite(taskName, checkpoint, delta, getRecord(KafkaCheckpointLogKey.getCheckpointDeltaKey(taskName), new Checkpoint(delta)))
+    }
   }
 
+  private def getRecord(key: KafkaCheckpointLogKey, checkpoint: Checkpoint) =
+    new ProducerRecord(checkpointTopic, 0, key.toBytes(), serde.toBytes(checkpoint))
+
   private def getConsumer(): SimpleConsumer = {
     val metadataMap = TopicMetadataCache.getTopicMetadata(Set(checkpointTopic), systemName, (topics: Set[String]) => metadataStore.getTopicInfo(topics))
     val metadata = metadataMap(checkpointTopic)
@@ -152,13 +242,7 @@ class KafkaCheckpointManager(
 
     info("Reading checkpoint for taskName " + taskName)
 
-    if (taskNamesToOffsets == null) {
-      info("No TaskName to checkpoint mapping provided.  Reading for first time.")
-      taskNamesToOffsets = readCheckpointsFromLog()
-    } else {
-      info("Already existing checkpoint mapping.  Merging new offsets")
-      taskNamesToOffsets ++= readCheckpointsFromLog()
-    }
+    readLogTail(CHECKPOINT_LOG4J_ENTRY)
 
     val checkpoint = taskNamesToOffsets.get(taskName).getOrElse(null)
 
@@ -168,24 +252,65 @@ class KafkaCheckpointManager(
   }
 
   /**
-   * Read through entire log, discarding changelog mapping, and building map of TaskNames to Checkpoints
+   * Read any new messages in the log, and return the latest checkpoint of every TaskName
    */
   def readCheckpointsFromLog(): Map[TaskName, Checkpoint] = {
-    val checkpoints = mutable.Map[TaskName, Checkpoint]()
+    readLogTail(CHECKPOINT_LOG4J_ENTRY)
+    taskNamesToOffsets
+  }
 
-    def shouldHandleEntry(key: KafkaCheckpointLogKey) = key.isCheckpointKey
+  /**
+   * Reads the messages that were written to the log since the last read,
+   * and applies both checkpoints and changelog partition mappings from them.
+   * The first read starts from the local index, if there is one, or else
+   * from the earliest offset.
+   */
+  private def readLogTail(entryType: String) {
+    if (startingOffset.isEmpty && index != null) {
+      index.read.foreach(contents => {
+        info("Reading %s from offset %s, where checkpoint index %s stopped." format (entryType, contents.nextOffset, index.file))
+        metrics.indexLoads.inc
+        startingOffset = Some(contents.nextOffset)
+        startingOffsetFromIndex = true
+        taskNamesToOffsets = contents.checkpoints
+        changelogPartitionMapping = contents.changelogPartitionMapping
+      })
+    }
 
-    def handleCheckpoint(payload: ByteBuffer, checkpointKey:KafkaCheckpointLogKey): Unit = {
-      val taskName = checkpointKey.getCheckpointTaskName
-      val checkpoint = serde.fromBytes(Utils.readBytes(payload))
-      debug("Adding checkpoint " + checkpoint + " for taskName " + taskName)
-      checkpoints.put(taskName, checkpoint) // replacing any existing, older checkpoints as we go
+    val checkpoints = mutable.Map[TaskName, Checkpoint]()
+    val previousOffset = startingOffset
+
+    def handleEntry(payload: ByteBuffer, key: KafkaCheckpointLogKey) {
+      if (key.isCheckpointKey) {
+        val taskName = key.getCheckpointTaskName
+        val checkpoint = serde.fromBytes(Utils.readBytes(payload))
+        debug("Adding checkpoint " + checkpoint + " for taskName " + taskName)
+        checkpoints.put(taskName, checkpoint) // replacing any existing, older checkpoints as we go
+      } else if (key.isCheckpointDeltaKey) {
+        val taskName = key.getCheckpointTaskName
+        val delta = serde.fromBytes(Utils.readBytes(payload))
+        debug("Applying delta checkpoint " + delta + " for taskName " + taskName)
+        // Deltas are applied in log order, so one that was written before the
+        // latest full checkpoint is overwritten by it.
+        checkpoints.put(taskName, DeltaCheckpoints.merge(checkpoints.getOrElse(taskName, taskNamesToOffsets.getOrElse(taskName, null)), delta))
+      } else if (key.isChangelogPartitionMapping) {
+        changelogPartitionMapping = serde.changelogPartitionMappingFromBytes(Utils.readBytes(payload))
+        debug("Adding changelog partition mapping" + changelogPartitionMapping)
+      } else {
+        debug("Skipping " + entryType + " entry with key " + key)
+      }
     }
 
-    readLog(CHECKPOINT_LOG4J_ENTRY, shouldHandleEntry, handleCheckpoint)
-    checkpoints.toMap /* of the immutable kind */
-  }
+    try {
+      readLog(entryType, handleEntry)
+    } finally {
+      taskNamesToOffsets ++= checkpoints
+    }
 
+    if (index != null && startingOffset.isDefined && startingOffset != previousOffset) {
+      index.write(KafkaCheckpointIndex.Contents(startingOffset.get, taskNamesToOffsets, changelogPartitionMapping))
+    }
+  }
 
   /**
    * Common code for reading both changelog partition mapping and change log
@@ -193,8 +318,19 @@ class KafkaCheckpointManager(
    * @param entryType What type of entry to look for within the log key's
    * @param handleEntry Code to handle an entry in the log once it's found
    */
-  private def readLog(entryType:String, shouldHandleEntry: (KafkaCheckpointLogKey) => Boolean,
-                      handleEntry: (ByteBuffer, KafkaCheckpointLogKey) => Unit): Unit = {
+  private def readLog(entryType:String, handleEntry: (ByteBuffer, KafkaCheckpointLogKey) => Unit): Unit = {
+    val startNs = System.nanoTime
+
+    metrics.scans.inc
+
+    try {
+      readLogWithRetries(entryType, handleEntry)
+    } finally {
+      metrics.scanNs.update(System.nanoTime - startNs)
+    }
+  }
+
+  private def readLogWithRetries(entryType:String, handleEntry: (ByteBuffer, KafkaCheckpointLogKey) => Unit): Unit = {
     retryBackoff.run[Unit](
       loop => {
         val consumer = getConsumer()
@@ -202,6 +338,10 @@ class KafkaCheckpointManager(
         val topicAndPartition = new TopicAndPartition(checkpointTopic, 0)
 
         try {
+          if (startingOffsetFromIndex) {
+            verifyIndexOffset(consumer, topicAndPartition, entryType)
+          }
+
           var offset = startingOffset.getOrElse(getEarliestOffset(consumer, topicAndPartition))
 
           info("Got offset %s for topic %s and partition 0. Attempting to fetch messages for %s." format(offset, checkpointTopic, entryType))
@@ -237,6 +377,8 @@ class KafkaCheckpointManager(
             for (response <- fetchResponse.messageSet(checkpointTopic, 0)) {
               offset = response.nextOffset
               startingOffset = Some(offset) // For next time we call
+              metrics.messagesRead.inc
+              metrics.bytesRead.inc(response.message.size)
 
               if (!response.message.hasKey) {
                 throw new KafkaUtilException("Encountered message without key.")
@@ -244,11 +386,7 @@ class KafkaCheckpointManager(
 
               val checkpointKey = KafkaCheckpointLogKey.fromBytes(Utils.readBytes(response.message.key))
 
-              if (!shouldHandleEntry(checkpointKey)) {
-                debug("Skipping " + entryType + " entry with key " + checkpointKey)
-              } else {
-                handleEntry(response.message.payload, checkpointKey)
-              }
+              handleEntry(response.message.payload, checkpointKey)
             }
           }
         } finally {
@@ -274,6 +412,26 @@ class KafkaCheckpointManager(
 
   }
 
+  /**
+   * Checks that the offset saved in the index is still in the topic. If it
+   * isn't, e.g. because the topic was re-created, the messages that the
+   * index was built from may be gone, so the log is read from the earliest
+   * offset instead.
+   */
+  private def verifyIndexOffset(consumer: SimpleConsumer, topicAndPartition: TopicAndPartition, entryType: String) {
+    val earliestOffset = getEarliestOffset(consumer, topicAndPartition)
+    val latestOffset = getOffset(consumer, topicAndPartition, OffsetRequest.LatestTime)
+
+    if (startingOffset.get < earliestOffset || startingOffset.get > latestOffset) {
+      warn("Offset %s from checkpoint index is outside of the offsets %s to %s in topic %s. Reading %s from the earliest offset." format (startingOffset.get, earliestOffset, latestOffset, checkpointTopic, entryType))
+      startingOffset = None
+      taskNamesToOffsets = Map()
+      changelogPartitionMapping = null
+    }
+
+    startingOffsetFromIndex = false
+  }
+
   def start {
     kafkaUtil.createTopic(checkpointTopic, 1, replicationFactor, checkpointTopicProperties)
     kafkaUtil.validateTopicPartitionCount(checkpointTopic, systemName, metadataStore, 1, failOnCheckpointValidation)
@@ -297,19 +455,13 @@ class KafkaCheckpointManager(
    */
   @Deprecated
   def readChangeLogPartitionMapping(): util.Map[TaskName, java.lang.Integer] = {
-    var changelogPartitionMapping: util.Map[TaskName, java.lang.Integer] = new util.HashMap[TaskName, java.lang.Integer]()
-
-    def shouldHandleEntry(key: KafkaCheckpointLogKey) = key.isChangelogPartitionMapping
-
-    def handleCheckpoint(payload: ByteBuffer, checkpointKey:KafkaCheckpointLogKey): Unit = {
-      changelogPartitionMapping = serde.changelogPartitionMappingFromBytes(Utils.readBytes(payload))
+    readLogTail(CHANGELOG_PARTITION_MAPPING_LOG4j)
 
-      debug("Adding changelog partition mapping" + changelogPartitionMapping)
+    if (changelogPartitionMapping == null) {
+      new util.HashMap[TaskName, java.lang.Integer]()
+    } else {
+      changelogPartitionMapping
     }
-
-    readLog(CHANGELOG_PARTITION_MAPPING_LOG4j, shouldHandleEntry, handleCheckpoint)
-
-    changelogPartitionMapping
   }
 
   override def toString = "KafkaCheckpointManager [systemName=%s, checkpointTopic=%s]" format(systemName, checkpointTopic)
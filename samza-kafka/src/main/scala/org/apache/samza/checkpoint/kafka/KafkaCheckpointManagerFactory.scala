@@ -19,17 +19,20 @@
 
 package org.apache.samza.checkpoint.kafka
 
+import java.io.File
 import java.util.Properties
 
 import kafka.utils.ZKStringSerializer
 import org.I0Itec.zkclient.ZkClient
 import org.apache.kafka.clients.producer.KafkaProducer
 import org.apache.samza.SamzaException
-import org.apache.samza.checkpoint.{CheckpointManager, CheckpointManagerFactory}
+import org.apache.samza.checkpoint.{CheckpointManager, CheckpointManagerFactory, DeltaCheckpointMetrics}
 import org.apache.samza.config.JobConfig.Config2Job
 import org.apache.samza.config.KafkaConfig.Config2Kafka
+import org.apache.samza.config.TaskConfig.Config2Task
 import org.apache.samza.config.{Config, KafkaConfig}
 import org.apache.samza.metrics.MetricsRegistry
+import org.apache.samza.serializers.CheckpointSerde
 import org.apache.samza.util.{ClientUtilTopicMetadataStore, KafkaUtil, Logging}
 
 object KafkaCheckpointManagerFactory {
@@ -82,11 +85,16 @@ class KafkaCheckpointManagerFactory extends CheckpointManagerFactory with Loggin
       new ZkClient(zkConnect, 6000, 6000, ZKStringSerializer)
     }
     val socketTimeout = consumerConfig.socketTimeoutMs
-
+    val checkpointTopic = KafkaUtil.getCheckpointTopic(jobName, jobId)
+    val serde = new CheckpointSerde(config.getCheckpointFormat)
+    val index = config
+      .getCheckpointIndexDir
+      .map(dir => new KafkaCheckpointIndex(new File(dir, checkpointTopic + ".index"), checkpointTopic, serde))
+      .orNull
 
     new KafkaCheckpointManager(
       clientId,
-      KafkaUtil.getCheckpointTopic(jobName, jobId),
+      checkpointTopic,
       systemName,
       config.getCheckpointReplicationFactor.getOrElse("3").toInt,
       socketTimeout,
@@ -97,6 +105,11 @@ class KafkaCheckpointManagerFactory extends CheckpointManagerFactory with Loggin
       connectZk,
       config.getSystemStreamPartitionGrouperFactory,      // To find out the SSPGrouperFactory class so it can be included/verified in the key
       config.failOnCheckpointValidation,
-      checkpointTopicProperties = getCheckpointTopicProperties(config))
+      serde = serde,
+      checkpointTopicProperties = getCheckpointTopicProperties(config),
+      index = index,
+      metrics = new KafkaCheckpointManagerMetrics(registry),
+      fullInterval = config.getCheckpointFullInterval,
+      deltaMetrics = new DeltaCheckpointMetrics(registry))
   }
 }
\ No newline at end of file
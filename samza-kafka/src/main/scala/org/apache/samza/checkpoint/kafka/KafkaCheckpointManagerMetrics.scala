@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.checkpoint.kafka
+
+import org.apache.samza.metrics.{MetricsHelper, MetricsRegistry, MetricsRegistryMap}
+
+class KafkaCheckpointManagerMetrics(val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
+  /* Tracks the number of times the checkpoint topic was read, from the earliest offset or from where the last read stopped */
+  val scans = newCounter("checkpoint-log-scans")
+  /* Tracks how long each read of the checkpoint topic takes */
+  val scanNs = newTimer("checkpoint-log-scan-ns")
+  /* Tracks the number of message bytes read from the checkpoint topic */
+  val bytesRead = newCounter("checkpoint-log-bytes-read")
+  /* Tracks the number of messages read from the checkpoint topic */
+  val messagesRead = newCounter("checkpoint-log-messages-read")
+  /* Tracks the number of times reading started from the local checkpoint index, rather than the earliest offset */
+  val indexLoads = newCounter("checkpoint-index-loads")
+}
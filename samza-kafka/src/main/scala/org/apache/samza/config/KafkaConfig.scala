@@ -44,6 +44,13 @@ object KafkaConfig {
   val CHECKPOINT_REPLICATION_FACTOR = "task.checkpoint.replication.factor"
   val CHECKPOINT_SEGMENT_BYTES = "task.checkpoint.segment.bytes"
 
+  /**
+   * A local directory in which the Kafka checkpoint manager saves what it has
+   * read from the checkpoint topic, so that a restarted container only reads
+   * the messages written since. Not set by default.
+   */
+  val CHECKPOINT_INDEX_DIR = "task.checkpoint.index.dir"
+
   val CHANGELOG_STREAM_REPLICATION_FACTOR = "stores.%s.changelog.replication.factor"
   val CHANGELOG_STREAM_KAFKA_SETTINGS = "stores.%s.changelog.kafka."
   // The default segment size to use for changelog topics
@@ -69,6 +76,43 @@ object KafkaConfig {
    */
   val CONSUMER_FETCH_THRESHOLD_BYTES = SystemConfig.SYSTEM_PREFIX + "samza.fetch.threshold.bytes"
 
+  /**
+   * The number of threads per broker that decode and enqueue fetched
+   * messages, while the next fetch request is in flight. If 0, the broker's
+   * fetch thread decodes each response before it sends the next request.
+   */
+  val CONSUMER_FETCH_DECODE_THREADS = SystemConfig.SYSTEM_PREFIX + "samza.fetch.decode.threads"
+
+  /**
+   * If true, each partition's fetch size, and its share of the fetch
+   * threshold, are tuned from what the partition actually fetches.
+   */
+  val CONSUMER_FETCH_ADAPTIVE = SystemConfig.SYSTEM_PREFIX + "samza.fetch.adaptive"
+
+  /**
+   * The bounds, in bytes, that adaptive fetch sizes are kept within.
+   */
+  val CONSUMER_FETCH_ADAPTIVE_MIN_BYTES = SystemConfig.SYSTEM_PREFIX + "samza.fetch.adaptive.min.bytes"
+  val CONSUMER_FETCH_ADAPTIVE_MAX_BYTES = SystemConfig.SYSTEM_PREFIX + "samza.fetch.adaptive.max.bytes"
+
+  /**
+   * How long a flush of the Kafka system producer waits for outstanding
+   * sends to complete before it fails. If 0, it waits indefinitely.
+   */
+  val PRODUCER_FLUSH_TIMEOUT_MS = SystemConfig.SYSTEM_PREFIX + "samza.flush.timeout.ms"
+
+  /**
+   * The KafkaPartitionerFactory that builds the partitioner, which chooses
+   * the partition of each message that the Kafka system producer sends.
+   */
+  val PRODUCER_PARTITIONER_FACTORY = SystemConfig.SYSTEM_PREFIX + "samza.partitioner.factory"
+
+  /**
+   * How many messages without a partition key the StickyPartitioner sends to
+   * a partition before it moves on to the next one.
+   */
+  val PRODUCER_PARTITIONER_STICKY_MESSAGES = SystemConfig.SYSTEM_PREFIX + "samza.partitioner.sticky.messages"
+
   implicit def Config2Kafka(config: Config) = new KafkaConfig(config)
 }
 
@@ -77,9 +121,18 @@ class KafkaConfig(config: Config) extends ScalaMapConfig(config) {
   def getCheckpointSystem = getOption(KafkaConfig.CHECKPOINT_SYSTEM)
   def getCheckpointReplicationFactor() = getOption(KafkaConfig.CHECKPOINT_REPLICATION_FACTOR)
   def getCheckpointSegmentBytes() = getInt(KafkaConfig.CHECKPOINT_SEGMENT_BYTES, KafkaConfig.DEFAULT_CHECKPOINT_SEGMENT_BYTES)
+  def getCheckpointIndexDir = getOption(KafkaConfig.CHECKPOINT_INDEX_DIR)
   // custom consumer config
   def getConsumerFetchThreshold(name: String) = getOption(KafkaConfig.CONSUMER_FETCH_THRESHOLD format name)
   def getConsumerFetchThresholdBytes(name: String) = getOption(KafkaConfig.CONSUMER_FETCH_THRESHOLD_BYTES format name)
+  def getConsumerFetchDecodeThreads(name: String) = getOption(KafkaConfig.CONSUMER_FETCH_DECODE_THREADS format name)
+  def isConsumerFetchAdaptive(name: String) = getBoolean(KafkaConfig.CONSUMER_FETCH_ADAPTIVE format name, false)
+  def getConsumerFetchAdaptiveMinBytes(name: String) = getOption(KafkaConfig.CONSUMER_FETCH_ADAPTIVE_MIN_BYTES format name)
+  def getConsumerFetchAdaptiveMaxBytes(name: String) = getOption(KafkaConfig.CONSUMER_FETCH_ADAPTIVE_MAX_BYTES format name)
+  // custom producer config
+  def getProducerFlushTimeoutMs(name: String) = getOption(KafkaConfig.PRODUCER_FLUSH_TIMEOUT_MS format name)
+  def getPartitionerFactory(name: String) = getOption(KafkaConfig.PRODUCER_PARTITIONER_FACTORY format name)
+  def getPartitionerStickyMessages(name: String) = getOption(KafkaConfig.PRODUCER_PARTITIONER_STICKY_MESSAGES format name)
   def isConsumerFetchThresholdBytesEnabled(name: String): Boolean = getConsumerFetchThresholdBytes(name).getOrElse("-1").toLong > 0
 
 
@@ -97,6 +150,19 @@ class KafkaConfig(config: Config) extends ScalaMapConfig(config) {
       }.toMap
   }
 
+  /**
+   * Returns the topics that are configured to be consumed as zero-copy
+   * envelopes, with samza.zero.copy=true.
+   */
+  def getZeroCopyTopics(systemName: String) = {
+    val subConf = config.subset("systems.%s.streams." format systemName, true)
+    subConf
+      .filter { case (k, v) => k.endsWith(".samza.zero.copy") && v.toBoolean }
+      .keys
+      .map(_.replace(".samza.zero.copy", ""))
+      .toSet
+  }
+
   /**
    * Returns a map of topic -> auto.offset.reset value for all streams that
    * are defined with this property in the config.
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.kafka
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import kafka.common.TopicAndPartition
+import org.apache.samza.SamzaException
+import org.apache.samza.util.Logging
+
+import scala.collection.JavaConversions._
+
+object AdaptiveFetchController {
+  val DEFAULT_MIN_FETCH_SIZE = 65536
+
+  val DEFAULT_MAX_FETCH_SIZE = 8388608
+
+  /**
+   * How often the per-partition fetch thresholds are rebalanced.
+   */
+  val ADJUST_INTERVAL_MS = 5000L
+
+  /**
+   * The weight of the latest interval in each partition's smoothed fetch
+   * rate.
+   */
+  val RATE_SMOOTHING = 0.5
+
+  /**
+   * No partition's fetch threshold drops below this fraction of an even
+   * share, so that an idle partition can still catch up quickly.
+   */
+  val MIN_THRESHOLD_SHARE = 0.5
+
+  /**
+   * A fetch that returns at least this fraction of the fetch size left data
+   * behind, so the fetch size is doubled.
+   */
+  val FULL_FETCH_RATIO = 0.9
+
+  /**
+   * After this many fetches in a row that return less than a quarter of the
+   * fetch size, the fetch size is halved.
+   */
+  val SHRINK_AFTER_FETCHES = 8
+}
+
+/**
+ * Tunes the fetch size of each TopicAndPartition, and the threshold below
+ * which its buffered messages trigger another fetch, from what is actually
+ * fetched.
+ *
+ * <p>A fetch that returns only part of a message, which is too large for
+ * the fetch size, doubles the partition's fetch size. So does a fetch that
+ * fills the fetch size, since the partition has more data waiting. A fetch
+ * size that keeps being mostly unused is halved, but never below twice the
+ * largest message seen. Fetch sizes stay between minFetchSize and
+ * maxFetchSize.</p>
+ *
+ * <p>The consumer's total fetch threshold, in messages or bytes, is split
+ * among partitions in proportion to how much each of them has recently
+ * fetched, so that busy partitions buffer more, and are fetched in larger
+ * batches, than idle ones. Every partition keeps at least half an even
+ * share.</p>
+ *
+ * <p>A partition's fetch size is changed by the BrokerProxy thread that
+ * fetches it. A partition moves to another BrokerProxy when its leader
+ * changes, so its state is volatile, for the new thread to see what the old
+ * one recorded. Thresholds are rebalanced by whichever thread records a
+ * fetch once the adjustment interval has passed.</p>
+ */
+class AdaptiveFetchController(
+  initialFetchSizes: StreamFetchSizes,
+  minFetchSize: Int = AdaptiveFetchController.DEFAULT_MIN_FETCH_SIZE,
+  maxFetchSize: Int = AdaptiveFetchController.DEFAULT_MAX_FETCH_SIZE,
+
+  /**
+   * If true, thresholds are in bytes, and partitions' shares follow the
+   * bytes they fetch. Otherwise, they are in messages.
+   */
+  thresholdInBytes: Boolean = false,
+  metrics: KafkaSystemConsumerMetrics = new KafkaSystemConsumerMetrics,
+  clock: () => Long = { System.currentTimeMillis }) extends Logging {
+
+  if (minFetchSize <= 0 || maxFetchSize < minFetchSize) {
+    throw new SamzaException("Invalid adaptive fetch size bounds: %s to %s." format (minFetchSize, maxFetchSize))
+  }
+
+  private class PartitionState(initialFetchSize: Int) {
+    @volatile var fetchSize = initialFetchSize
+    @volatile var threshold = 0L
+    @volatile var largestMessage = 0
+    @volatile var underfilledFetches = 0
+    @volatile var warnedOversized = false
+    @volatile var rate = 0.0
+    val fetchedSinceAdjust = new AtomicLong
+  }
+
+  private val partitions = new ConcurrentHashMap[TopicAndPartition, PartitionState]
+  @volatile private var totalThreshold = 0L
+  @volatile private var nextAdjustMs = clock() + AdaptiveFetchController.ADJUST_INTERVAL_MS
+
+  def register(tp: TopicAndPartition) {
+    val configured = initialFetchSizes.streamValue.getOrElse(tp.topic, initialFetchSizes.defaultValue)
+    val state = new PartitionState(math.min(math.max(configured, minFetchSize), maxFetchSize))
+
+    if (partitions.putIfAbsent(tp, state) == null) {
+      metrics.registerAdaptiveFetch(tp, () => state.fetchSize, () => state.threshold)
+    }
+  }
+
+  /**
+   * Sets the threshold that is split among all registered partitions, and
+   * gives each of them an even share of it to start with.
+   */
+  def setTotalThreshold(threshold: Long) {
+    totalThreshold = threshold
+
+    if (partitions.size > 0) {
+      partitions.values.foreach(_.threshold = threshold / partitions.size)
+    }
+  }
+
+  def getFetchSize(tp: TopicAndPartition) = {
+    val state = partitions.get(tp)
+
+    if (state == null) initialFetchSizes.streamValue.getOrElse(tp.topic, initialFetchSizes.defaultValue) else state.fetchSize
+  }
+
+  def getThreshold(tp: TopicAndPartition) = {
+    val state = partitions.get(tp)
+
+    if (state == null) 0L else state.threshold
+  }
+
+  /**
+   * Records the result of fetching a partition.
+   *
+   * @param fetchedBytes The size of the partition's message set, including
+   *                     any partial message at its end.
+   * @param messages The number of complete messages in the message set.
+   * @param messageBytes The size of the complete messages.
+   * @param largestMessage The size of the largest complete message.
+   */
+  def recordFetch(tp: TopicAndPartition, fetchedBytes: Int, messages: Int, messageBytes: Long, largestMessage: Int) {
+    val state = partitions.get(tp)
+
+    if (state != null) {
+      state.largestMessage = math.max(state.largestMessage, largestMessage)
+      state.fetchedSinceAdjust.addAndGet(if (thresholdInBytes) messageBytes else messages)
+
+      if (messages == 0 && fetchedBytes > 0) {
+        // The next message doesn't fit in the fetch size.
+        if (state.fetchSize < maxFetchSize) {
+          state.fetchSize = grow(state.fetchSize)
+          state.underfilledFetches = 0
+          debug("Increased fetch size of %s to %s bytes, to fit a large message." format (tp, state.fetchSize))
+        } else if (!state.warnedOversized) {
+          state.warnedOversized = true
+          warn("The next message of %s is larger than the maximum fetch size of %s bytes." format (tp, maxFetchSize))
+        }
+        metrics.oversizedFetches.inc
+      } else if (fetchedBytes >= state.fetchSize * AdaptiveFetchController.FULL_FETCH_RATIO) {
+        state.fetchSize = grow(state.fetchSize)
+        state.underfilledFetches = 0
+      } else if (fetchedBytes < state.fetchSize / 4) {
+        state.underfilledFetches += 1
+
+        if (state.underfilledFetches >= AdaptiveFetchController.SHRINK_AFTER_FETCHES) {
+          state.fetchSize = math.max(math.max(state.fetchSize / 2, minFetchSize), math.min(state.largestMessage * 2, maxFetchSize))
+          state.underfilledFetches = 0
+        }
+      } else {
+        state.underfilledFetches = 0
+      }
+    }
+
+    val now = clock()
+
+    if (now >= nextAdjustMs) {
+      adjustThresholds(now)
+    }
+  }
+
+  private def grow(fetchSize: Int) = {
+    math.min(math.max(fetchSize.toLong * 2, minFetchSize), maxFetchSize).toInt
+  }
+
+  private def adjustThresholds(now: Long) = synchronized {
+    if (now >= nextAdjustMs) {
+      nextAdjustMs = now + AdaptiveFetchController.ADJUST_INTERVAL_MS
+
+      val states = partitions.values.toList
+
+      if (states.size > 0) {
+        states.foreach(state => {
+          val fetched = state.fetchedSinceAdjust.getAndSet(0)
+          state.rate = AdaptiveFetchController.RATE_SMOOTHING * fetched + (1 - AdaptiveFetchController.RATE_SMOOTHING) * state.rate
+        })
+
+        val evenShare = totalThreshold / states.size
+        val totalRate = states.foldLeft(0.0)(_ + _.rate)
+
+        if (totalRate > 0) {
+          val floor = (evenShare * AdaptiveFetchController.MIN_THRESHOLD_SHARE).toLong
+          val spread = totalThreshold - floor * states.size
+
+          states.foreach(state => state.threshold = floor + (spread * (state.rate / totalRate)).toLong)
+        } else {
+          states.foreach(_.threshold = evenShare)
+        }
+      }
+    }
+  }
+}
@@ -27,7 +27,7 @@ import java.util.concurrent.{ConcurrentHashMap, CountDownLatch}
 import kafka.api._
 import kafka.common.{NotLeaderForPartitionException, UnknownTopicOrPartitionException, ErrorMapping, TopicAndPartition}
 import kafka.consumer.ConsumerConfig
-import kafka.message.MessageSet
+import kafka.message.{ByteBufferMessageSet, MessageAndOffset, MessageSet}
 import org.apache.samza.SamzaException
 import org.apache.samza.util.ExponentialSleepStrategy
 import org.apache.samza.util.Logging
@@ -60,7 +60,24 @@ class BrokerProxy(
   val fetchSize: StreamFetchSizes = new StreamFetchSizes,
   val consumerMinSize:Int = ConsumerConfig.MinFetchBytes,
   val consumerMaxWait:Int = ConsumerConfig.MaxFetchWaitMs,
-  offsetGetter: GetOffset = new GetOffset("fail")) extends Toss with Logging {
+  offsetGetter: GetOffset = new GetOffset("fail"),
+
+  /**
+   * If positive, fetch responses are decoded and enqueued on this many
+   * FetchResponseDecoder threads, so that the next fetch request is sent
+   * while the previous response is being decoded. Partitions are sharded
+   * across the threads, so each partition's messages stay in order. Since
+   * the next fetch is chosen before the previous response has been
+   * enqueued, a partition can be fetched once more than its fetch threshold
+   * alone would allow. If 0, responses are decoded on the fetch thread.
+   */
+  decodeThreads: Int = 0,
+
+  /**
+   * If set, chooses each partition's fetch size in place of fetchSize, and
+   * is told what every fetch returned.
+   */
+  fetchController: AdaptiveFetchController = null) extends Toss with Logging {
 
   /**
    * How long should the fetcher thread sleep before checking if any TopicPartitions has been added to its purview
@@ -81,11 +98,22 @@ class BrokerProxy(
 
   metrics.registerBrokerProxy(host, port)
 
+  val decoder = if (decodeThreads > 0) {
+    new FetchResponseDecoder(
+      "%s%s-%s-DECODER" format (BrokerProxy.BROKER_PROXY_THREAD_NAME_PREFIX, host, port),
+      decodeThreads,
+      messageSink,
+      moveMessageToItsQueue,
+      metrics.brokerDecodeNs(host, port))
+  } else {
+    null
+  }
+
   def createSimpleConsumer() = {
     val hostString = "%s:%d" format (host, port)
     info("Creating new SimpleConsumer for host %s for system %s" format (hostString, system))
 
-    val sc = new DefaultFetchSimpleConsumer(host, port, timeout, bufferSize, clientID, fetchSize, consumerMinSize, consumerMaxWait)
+    val sc = new DefaultFetchSimpleConsumer(host, port, timeout, bufferSize, clientID, fetchSize, consumerMinSize, consumerMaxWait, fetchController)
     sc
   }
 
@@ -157,7 +185,17 @@ class BrokerProxy(
           (exception, loop) => {
             warn("Restarting consumer due to %s. Releasing ownership of all partitions, and restarting consumer. Turn on debugging to get a full stack trace." format exception)
             debug("Exception detail:", exception)
-            abdicateAll
+
+            if (decoder != null) {
+              // Partitions can only be released once the messages that were
+              // already fetched for them have been enqueued.
+              decoder.awaitIdle
+              abdicateAll
+              decoder.reset
+            } else {
+              abdicateAll
+            }
+
             reconnect = true
           })
       } catch {
@@ -176,16 +214,32 @@ class BrokerProxy(
 
     if (topicAndPartitionsToFetch.size > 0) {
       metrics.brokerReads(host, port).inc
+      val fetchStartNs = System.nanoTime
       val response: FetchResponse = simpleConsumer.defaultFetch(topicAndPartitionsToFetch: _*)
+      metrics.brokerFetchNs(host, port).update(System.nanoTime - fetchStartNs)
       firstCall = false
       firstCallBarrier.countDown()
 
+      if (decoder != null) {
+        // The previous response was decoded while this one was fetched. It
+        // must be fully enqueued before any partition can be released.
+        val decodeWaitStartNs = System.nanoTime
+        decoder.awaitIdle
+        metrics.brokerDecodeWaitNs(host, port).update(System.nanoTime - decodeWaitStartNs)
+        decoder.checkFailure
+      }
+
       // Split response into errors and non errors, processing the errors first
       val (nonErrorResponses, errorResponses) = response.data.entrySet().partition(_.getValue.error == ErrorMapping.NoError)
 
       handleErrors(errorResponses, response)
 
+      val decodeStartNs = System.nanoTime
       nonErrorResponses.foreach { nonError => moveMessagesToTheirQueue(nonError.getKey, nonError.getValue) }
+
+      if (decoder == null) {
+        metrics.brokerDecodeNs(host, port).update(System.nanoTime - decodeStartNs)
+      }
     } else {
       refreshLatencyMetrics
 
@@ -203,7 +257,9 @@ class BrokerProxy(
    * TopicAndPartition.
    */
   def abdicate(tp: TopicAndPartition) = removeTopicPartition(tp) match {
-    // Need to be mindful of a tp that was removed by another thread
+    // Need to be mindful of a tp that was removed by another thread. If
+    // decoding failed, resume from the first message that wasn't enqueued.
+    case Some(offset) if decoder != null => messageSink.abdicate(tp, decoder.getRewindOffset(tp).getOrElse(offset))
     case Some(offset) => messageSink.abdicate(tp, offset)
     case None => warn("Tried to abdicate for topic partition not in map. Removed in interim?")
   }
@@ -262,19 +318,61 @@ class BrokerProxy(
   def moveMessagesToTheirQueue(tp: TopicAndPartition, data: FetchResponsePartitionData) = {
     val messageSet: MessageSet = data.messages
     var nextOffset = nextOffsets(tp)
+    val isAtHighWatermark = data.hw == 0 || data.hw == nextOffset
+
+    // What the fetch returned, for the fetch controller.
+    var messageCount = 0
+    var messageBytes = 0L
+    var largestMessage = 0
 
-    messageSink.setIsAtHighWatermark(tp, data.hw == 0 || data.hw == nextOffset)
     require(messageSet != null)
-    for (message <- messageSet.iterator) {
-      messageSink.addMessage(tp, message, data.hw) // TODO: Verify this is correct
+    if (decoder == null) {
+      messageSink.setIsAtHighWatermark(tp, isAtHighWatermark)
+      messageSink.startMessageSet(tp, messageSet.sizeInBytes)
+      try {
+        for (message <- messageSet.iterator) {
+          moveMessageToItsQueue(tp, message, data.hw)
 
-      nextOffset = message.nextOffset
+          nextOffset = message.nextOffset
 
-      val bytesSize = message.message.payloadSize + message.message.keySize
-      metrics.reads(tp).inc
-      metrics.bytesRead(tp).inc(bytesSize)
-      metrics.brokerBytesRead(host, port).inc(bytesSize)
-      metrics.offsets(tp).set(nextOffset)
+          if (fetchController != null) {
+            val entrySize = MessageSet.entrySize(message.message)
+            messageCount += 1
+            messageBytes += entrySize
+            largestMessage = math.max(largestMessage, entrySize)
+          }
+        }
+      } finally {
+        messageSink.endMessageSet(tp)
+      }
+    } else {
+      val fetchOffset = nextOffset
+
+      // Only walk the message set's outer entries here, to find the offset to
+      // fetch next. A compressed entry's offset is that of its last message,
+      // so nothing needs to be decompressed. Decompressing, deserializing and
+      // enqueueing happen on the decoder threads.
+      val entries = messageSet match {
+        case messageSet: ByteBufferMessageSet => messageSet.shallowIterator
+        case messageSet => messageSet.iterator
+      }
+
+      for (message <- entries) {
+        nextOffset = message.nextOffset
+
+        if (fetchController != null) {
+          val entrySize = MessageSet.entrySize(message.message)
+          messageCount += 1
+          messageBytes += entrySize
+          largestMessage = math.max(largestMessage, entrySize)
+        }
+      }
+
+      decoder.submit(tp, messageSet, fetchOffset, data.hw, isAtHighWatermark)
+    }
+
+    if (fetchController != null) {
+      fetchController.recordFetch(tp, messageSet.sizeInBytes, messageCount, messageBytes, largestMessage)
     }
 
     nextOffsets.replace(tp, nextOffset) // use replace rather than put in case this tp was removed while we were fetching.
@@ -288,6 +386,16 @@ class BrokerProxy(
       debug("Got a high water mark less than 0 (%d) for %s, so skipping." format (hw, tp))
     }
   }
+  private def moveMessageToItsQueue(tp: TopicAndPartition, message: MessageAndOffset, highWatermark: Long) {
+    messageSink.addMessage(tp, message, highWatermark) // TODO: Verify this is correct
+
+    val bytesSize = message.message.payloadSize + message.message.keySize
+    metrics.reads(tp).inc
+    metrics.bytesRead(tp).inc(bytesSize)
+    metrics.brokerBytesRead(host, port).inc(bytesSize)
+    metrics.offsets(tp).set(message.nextOffset)
+  }
+
   override def toString() = "BrokerProxy for %s:%d" format (host, port)
 
   def start {
@@ -311,6 +419,10 @@ class BrokerProxy(
 
     thread.interrupt
     thread.join
+
+    if (decoder != null) {
+      decoder.stop
+    }
   }
 
   private def refreshLatencyMetrics {
@@ -28,7 +28,8 @@ import kafka.consumer.ConsumerConfig
 
 class DefaultFetchSimpleConsumer(host: scala.Predef.String, port: scala.Int, soTimeout: scala.Int, bufferSize: scala.Int,
   clientId: scala.Predef.String, fetchSize: StreamFetchSizes = new StreamFetchSizes,
-  minBytes: Int = ConsumerConfig.MinFetchBytes, maxWait: Int = ConsumerConfig.MaxFetchWaitMs)
+  minBytes: Int = ConsumerConfig.MinFetchBytes, maxWait: Int = ConsumerConfig.MaxFetchWaitMs,
+  fetchController: AdaptiveFetchController = null)
   extends SimpleConsumer(host, port, soTimeout, bufferSize, clientId) {
 
   def defaultFetch(fetches: (TopicAndPartition, Long)*) = {
@@ -36,7 +37,11 @@ class DefaultFetchSimpleConsumer(host: scala.Predef.String, port: scala.Int, soT
       .minBytes(minBytes)
       .clientId(clientId)
 
-    fetches.foreach(f => fbr.addFetch(f._1.topic, f._1.partition, f._2, fetchSize.streamValue.getOrElse(f._1.topic, fetchSize.defaultValue)))
+    if (fetchController != null) {
+      fetches.foreach(f => fbr.addFetch(f._1.topic, f._1.partition, f._2, fetchController.getFetchSize(f._1)))
+    } else {
+      fetches.foreach(f => fbr.addFetch(f._1.topic, f._1.partition, f._2, fetchSize.streamValue.getOrElse(f._1.topic, fetchSize.defaultValue)))
+    }
 
     this.fetch(fbr.build())
   }
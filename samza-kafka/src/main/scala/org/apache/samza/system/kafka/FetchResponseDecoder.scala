@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.kafka
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
+import java.util.concurrent.{ConcurrentHashMap, ExecutorService, Executors}
+
+import kafka.common.TopicAndPartition
+import kafka.message.{MessageAndOffset, MessageSet}
+import org.apache.samza.SamzaException
+import org.apache.samza.metrics.Timer
+import org.apache.samza.util.{DaemonThreadFactory, Logging}
+
+/**
+ * Decodes and enqueues the messages of a BrokerProxy's fetch responses on
+ * a set of background threads, so that the BrokerProxy can send its next
+ * fetch request while the previous response is being decoded. Message sets
+ * are iterated, and so decompressed, on these threads too.
+ *
+ * <p>Each TopicAndPartition is always decoded by the same thread, so its
+ * messages are given to the MessageSink in offset order, by a single
+ * thread.</p>
+ *
+ * <p>If decoding fails, all outstanding work is dropped, and the failure is
+ * re-thrown from the next call to checkFailure. For each TopicAndPartition
+ * with dropped messages, getRewindOffset returns the offset of the first
+ * message that was not given to the sink, so that the BrokerProxy can
+ * release the partition at that offset instead of at its fetch offset.</p>
+ */
+class FetchResponseDecoder(
+  name: String,
+  threads: Int,
+  messageSink: MessageSink,
+  moveMessageToItsQueue: (TopicAndPartition, MessageAndOffset, Long) => Unit,
+  decodeNs: Timer) extends Logging {
+
+  if (threads <= 0) {
+    throw new SamzaException("Decode thread count must be positive, but was %s." format threads)
+  }
+
+  private val executors: Array[ExecutorService] = (0 until threads)
+    .map(i => Executors.newSingleThreadExecutor(new DaemonThreadFactory("%s-%s" format (name, i))))
+    .toArray
+  private val pending = new AtomicInteger
+  private val failure = new AtomicReference[Throwable]
+  private val rewindOffsets = new ConcurrentHashMap[TopicAndPartition, java.lang.Long]
+  private val lock = new Object
+
+  /**
+   * Queues the message set of one partition of a fetch response, which was
+   * fetched from fetchOffset, for decoding.
+   */
+  def submit(tp: TopicAndPartition, messageSet: MessageSet, fetchOffset: Long, highWatermark: Long, isAtHighWatermark: Boolean) {
+    pending.incrementAndGet
+    executors((tp.hashCode & Int.MaxValue) % threads).execute(new Runnable {
+      def run {
+        val startNs = System.nanoTime
+        var started = false
+        var done = false
+        // The offset of the first message that was not given to the sink.
+        var nextOffset = fetchOffset
+
+        try {
+          if (failure.get == null) {
+            messageSink.setIsAtHighWatermark(tp, isAtHighWatermark)
+            messageSink.startMessageSet(tp, messageSet.sizeInBytes)
+            started = true
+
+            for (message <- messageSet.iterator) {
+              moveMessageToItsQueue(tp, message, highWatermark)
+              nextOffset = message.nextOffset
+            }
+
+            done = true
+          }
+        } catch {
+          case t: Throwable =>
+            error("Failed to decode the message at offset %s of %s." format (nextOffset, tp), t)
+            failure.compareAndSet(null, t)
+        } finally {
+          if (started) {
+            messageSink.endMessageSet(tp)
+          }
+
+          decodeNs.update(System.nanoTime - startNs)
+
+          if (!done && messageSet.sizeInBytes > 0) {
+            rewindOffsets.putIfAbsent(tp, nextOffset)
+          }
+
+          if (pending.decrementAndGet == 0) {
+            lock.synchronized {
+              lock.notifyAll
+            }
+          }
+        }
+      }
+    })
+  }
+
+  /**
+   * Blocks until all submitted work has been decoded or dropped.
+   */
+  def awaitIdle {
+    lock.synchronized {
+      while (pending.get > 0) {
+        lock.wait
+      }
+    }
+  }
+
+  /**
+   * Re-throws the exception that made decoding fail, if any.
+   */
+  def checkFailure {
+    val t = failure.get
+
+    if (t != null) {
+      throw t
+    }
+  }
+
+  /**
+   * Returns the offset of the first message of the partition that was
+   * dropped after a failure, or None if none were.
+   */
+  def getRewindOffset(tp: TopicAndPartition) = Option(rewindOffsets.get(tp)).map(_.longValue)
+
+  /**
+   * Clears a failure and its rewind offsets, once all partitions have been
+   * released.
+   */
+  def reset {
+    rewindOffsets.clear
+    failure.set(null)
+  }
+
+  def stop {
+    executors.foreach(_.shutdownNow)
+  }
+}
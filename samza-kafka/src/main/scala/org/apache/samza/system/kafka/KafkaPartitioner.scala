@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.kafka
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.kafka.common.utils.Utils
+import org.apache.samza.config.Config
+import org.apache.samza.config.KafkaConfig.Config2Kafka
+import org.apache.samza.system.OutgoingMessageEnvelope
+import org.apache.samza.util.KafkaUtil
+
+/**
+ * Chooses the partition of a topic that the KafkaSystemProducer sends a
+ * message to. Partitioners are called for every message, from every thread
+ * that sends to the producer, so they must be thread-safe and cheap.
+ */
+trait KafkaPartitioner {
+  /**
+   * Returns the partition, in [0, numPartitions), that the envelope should be
+   * sent to, or -1 to let the Kafka producer choose. numPartitions is 0 if the
+   * producer doesn't have metadata for the topic yet.
+   */
+  def partition(topic: String, envelope: OutgoingMessageEnvelope, numPartitions: Int): Int
+}
+
+/**
+ * Builds the KafkaPartitioner of a Kafka system. The factory class is set
+ * with systems.%s.samza.partitioner.factory.
+ */
+trait KafkaPartitionerFactory {
+  def getPartitioner(systemName: String, config: Config): KafkaPartitioner
+}
+
+/**
+ * Sends a message with a partition key to abs(partitionKey.hashCode) %
+ * numPartitions, and leaves messages without one to the Kafka producer. This
+ * is how the KafkaSystemProducer has always partitioned messages.
+ */
+class HashCodePartitioner extends KafkaPartitioner {
+  def partition(topic: String, envelope: OutgoingMessageEnvelope, numPartitions: Int) = {
+    if (numPartitions <= 0) {
+      -1
+    } else if (envelope.getPartitionKey != null) {
+      KafkaUtil.getIntegerPartitionKey(envelope, numPartitions)
+    } else {
+      partitionWithoutKey(topic, numPartitions)
+    }
+  }
+
+  protected def partitionWithoutKey(topic: String, numPartitions: Int) = -1
+}
+
+/**
+ * Partitions keyed messages the way Kafka's own producer does: by the
+ * murmur2 hash of the key's bytes. A byte array partition key is hashed
+ * as-is, and a string partition key is hashed as UTF-8, so other Kafka
+ * clients that produce the same keys put them in the same partitions. Any
+ * other partition key falls back to its hashCode. Messages without a
+ * partition key are left to the Kafka producer, which spreads them
+ * round-robin.
+ */
+class Murmur2Partitioner extends KafkaPartitioner {
+  def partition(topic: String, envelope: OutgoingMessageEnvelope, numPartitions: Int) = {
+    if (numPartitions <= 0) {
+      -1
+    } else {
+      envelope.getPartitionKey match {
+        case null => -1
+        case bytes: Array[Byte] => Utils.abs(Utils.murmur2(bytes)) % numPartitions
+        case string: String => Utils.abs(Utils.murmur2(string.getBytes("UTF-8"))) % numPartitions
+        case _ => KafkaUtil.getIntegerPartitionKey(envelope, numPartitions)
+      }
+    }
+  }
+}
+
+/**
+ * Partitions keyed messages like the HashCodePartitioner, and sends
+ * messages without a partition key to each of a topic's partitions in turn,
+ * messagesPerPartition messages at a time. Each topic starts at a random
+ * partition, so that many producers don't all start on the same one.
+ */
+class RoundRobinPartitioner(messagesPerPartition: Int = 1) extends HashCodePartitioner {
+  require(messagesPerPartition > 0, "messagesPerPartition must be positive")
+
+  private val counters = new ConcurrentHashMap[String, AtomicLong]
+
+  override protected def partitionWithoutKey(topic: String, numPartitions: Int) = {
+    ((getCounter(topic).getAndIncrement / messagesPerPartition) % numPartitions).toInt
+  }
+
+  private def getCounter(topic: String) = {
+    val counter = counters.get(topic)
+
+    if (counter != null) {
+      counter
+    } else {
+      val start = ThreadLocalRandom.current.nextInt(Int.MaxValue).toLong * messagesPerPartition
+      val newCounter = new AtomicLong(start)
+      val existing = counters.putIfAbsent(topic, newCounter)
+
+      if (existing != null) existing else newCounter
+    }
+  }
+}
+
+/**
+ * Sends messages without a partition key to the same partition of a topic
+ * until messagesPerPartition of them have been sent, and then moves on to
+ * the next partition. Sticking to a partition fills the Kafka producer's
+ * batches faster than spreading every message, at the cost of spreading load
+ * over partitions more coarsely.
+ */
+class StickyPartitioner(messagesPerPartition: Int = StickyPartitioner.DEFAULT_MESSAGES_PER_PARTITION)
+  extends RoundRobinPartitioner(messagesPerPartition)
+
+object StickyPartitioner {
+  val DEFAULT_MESSAGES_PER_PARTITION = 100
+}
+
+class HashCodePartitionerFactory extends KafkaPartitionerFactory {
+  def getPartitioner(systemName: String, config: Config) = new HashCodePartitioner
+}
+
+class Murmur2PartitionerFactory extends KafkaPartitionerFactory {
+  def getPartitioner(systemName: String, config: Config) = new Murmur2Partitioner
+}
+
+class RoundRobinPartitionerFactory extends KafkaPartitionerFactory {
+  def getPartitioner(systemName: String, config: Config) = new RoundRobinPartitioner
+}
+
+class StickyPartitionerFactory extends KafkaPartitionerFactory {
+  def getPartitioner(systemName: String, config: Config) = {
+    new StickyPartitioner(config
+      .getPartitionerStickyMessages(systemName)
+      .getOrElse(StickyPartitioner.DEFAULT_MESSAGES_PER_PARTITION.toString)
+      .toInt)
+  }
+}
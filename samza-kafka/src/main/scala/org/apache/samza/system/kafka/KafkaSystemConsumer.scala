@@ -30,6 +30,7 @@ import java.util.UUID
 import kafka.serializer.DefaultDecoder
 import kafka.serializer.Decoder
 import org.apache.samza.util.BlockingEnvelopeMap
+import org.apache.samza.util.SpscEnvelopeRingBuffer
 import org.apache.samza.system.SystemStreamPartition
 import org.apache.samza.system.IncomingMessageEnvelope
 import kafka.consumer.ConsumerConfig
@@ -37,8 +38,13 @@ import org.apache.samza.util.TopicMetadataStore
 import kafka.api.TopicMetadata
 import org.apache.samza.util.ExponentialSleepStrategy
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import scala.collection.JavaConversions._
 import org.apache.samza.system.SystemAdmin
+import org.apache.samza.system.HighWatermarkProvider
+import org.apache.samza.metrics.Gauge
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
+import org.apache.samza.util.ReferenceCounted
 
 object KafkaSystemConsumer {
 
@@ -120,6 +126,28 @@ private[kafka] class KafkaSystemConsumer(
    */
   fetchLimitByBytesEnabled: Boolean = false,
   offsetGetter: GetOffset = new GetOffset("fail"),
+
+  /**
+   * The number of threads that each BrokerProxy decodes fetch responses on,
+   * while its next fetch is in flight. If 0, responses are decoded on the
+   * BrokerProxy's fetch thread, before the next fetch is sent.
+   */
+  fetchDecodeThreads: Int = 0,
+
+  /**
+   * Topics whose messages are handed out as ZeroCopyIncomingMessageEnvelopes.
+   * Their keys and messages are read-only ByteBuffer slices of the fetch
+   * response, rather than copies of it, and the deserializer and
+   * keyDeserializer are not used for them.
+   */
+  zeroCopyTopics: Set[String] = Set(),
+
+  /**
+   * If set, tunes each partition's fetch size, and splits fetchThreshold or
+   * fetchThresholdBytes among partitions by how much each of them fetches,
+   * instead of evenly.
+   */
+  fetchController: AdaptiveFetchController = null,
   deserializer: Decoder[Object] = new DefaultDecoder().asInstanceOf[Decoder[Object]],
   keyDeserializer: Decoder[Object] = new DefaultDecoder().asInstanceOf[Decoder[Object]],
   retryBackoff: ExponentialSleepStrategy = new ExponentialSleepStrategy,
@@ -129,7 +157,7 @@ private[kafka] class KafkaSystemConsumer(
       def currentTimeMillis = clock()
     },
     classOf[KafkaSystemConsumerMetrics].getName,
-    fetchLimitByBytesEnabled) with Toss with Logging {
+    fetchLimitByBytesEnabled) with HighWatermarkProvider with Toss with Logging {
 
   type HostPort = (String, Int)
   val brokerProxies = scala.collection.mutable.Map[HostPort, BrokerProxy]()
@@ -137,6 +165,18 @@ private[kafka] class KafkaSystemConsumer(
   var perPartitionFetchThreshold = fetchThreshold
   var perPartitionFetchThresholdBytes = 0L
 
+  /**
+   * The high watermark gauges that the BrokerProxies update, keyed by
+   * SystemStreamPartition so that getHighWatermark doesn't allocate.
+   */
+  val highWatermarks = new ConcurrentHashMap[SystemStreamPartition, Gauge[Long]]
+
+  /**
+   * The message set that each zero-copy partition's messages are currently
+   * being added from.
+   */
+  val fetchBuffers = new ConcurrentHashMap[TopicAndPartition, FetchBuffer]
+
   def start() {
     if (topicPartitionsAndOffsets.size > 0) {
       perPartitionFetchThreshold = fetchThreshold / topicPartitionsAndOffsets.size
@@ -144,6 +184,10 @@ private[kafka] class KafkaSystemConsumer(
       if(fetchLimitByBytesEnabled) {
         perPartitionFetchThresholdBytes = (fetchThresholdBytes / 2) / topicPartitionsAndOffsets.size
       }
+
+      if (fetchController != null) {
+        fetchController.setTotalThreshold(if (fetchLimitByBytesEnabled) fetchThresholdBytes / 2 else fetchThreshold)
+      }
     }
 
     refreshBrokers
@@ -160,14 +204,31 @@ private[kafka] class KafkaSystemConsumer(
     }
 
     metrics.registerTopicAndPartition(KafkaSystemConsumer.toTopicAndPartition(systemStreamPartition))
+    if (fetchController != null) {
+      fetchController.register(topicAndPartition)
+    }
+    highWatermarks.put(systemStreamPartition, metrics.highWatermark.get(topicAndPartition))
+  }
+
+  def getHighWatermark(systemStreamPartition: SystemStreamPartition) = {
+    val highWatermark = highWatermarks.get(systemStreamPartition)
+
+    if (highWatermark == null) -1L else highWatermark.getValue
   }
 
   def stop() {
     brokerProxies.values.foreach(_.stop)
   }
 
+  /**
+   * A partition's messages are only ever put by the BrokerProxy thread that
+   * currently fetches it, or by that BrokerProxy's one decoder thread for the
+   * partition, so its queue is a single-producer ring buffer.
+   */
+  override protected def newEnvelopeQueue = new SpscEnvelopeRingBuffer
+
   protected def createBrokerProxy(host: String, port: Int): BrokerProxy = {
-    new BrokerProxy(host, port, systemName, clientId, metrics, sink, timeout, bufferSize, fetchSize, consumerMinSize, consumerMaxWait, offsetGetter)
+    new BrokerProxy(host, port, systemName, clientId, metrics, sink, timeout, bufferSize, fetchSize, consumerMinSize, consumerMaxWait, offsetGetter, fetchDecodeThreads, fetchController)
   }
 
   protected def getHostPort(topicMetadata: TopicMetadata, partition: Int): Option[(String, Int)] = {
@@ -250,7 +311,14 @@ private[kafka] class KafkaSystemConsumer(
     }
 
     def needsMoreMessages(tp: TopicAndPartition) = {
-      if(fetchLimitByBytesEnabled) {
+      if (isBufferMemoryBudgetEnabled) {
+        // The container-wide budget replaces the per-partition thresholds.
+        hasBufferBudget(toSystemStreamPartition(tp))
+      } else if (fetchController != null && fetchLimitByBytesEnabled) {
+        getMessagesSizeInQueue(toSystemStreamPartition(tp)) < fetchController.getThreshold(tp)
+      } else if (fetchController != null) {
+        getNumMessagesInQueue(toSystemStreamPartition(tp)) < fetchController.getThreshold(tp)
+      } else if(fetchLimitByBytesEnabled) {
         getMessagesSizeInQueue(toSystemStreamPartition(tp)) < perPartitionFetchThresholdBytes
       } else {
         getNumMessagesInQueue(toSystemStreamPartition(tp)) < perPartitionFetchThreshold
@@ -261,12 +329,49 @@ private[kafka] class KafkaSystemConsumer(
       message.size + KafkaSystemConsumer.MESSAGE_SIZE_OVERHEAD
     }
 
+    override def startMessageSet(tp: TopicAndPartition, sizeInBytes: Int) {
+      if (zeroCopyTopics.contains(tp.topic)) {
+        fetchBuffers.put(tp, new FetchBuffer(sizeInBytes, metrics.retainedFetchBytes))
+      }
+    }
+
+    override def endMessageSet(tp: TopicAndPartition) {
+      val fetchBuffer = fetchBuffers.remove(tp)
+
+      // Drop the message set's own reference. It is released once all of
+      // its envelopes have been.
+      if (fetchBuffer != null) {
+        fetchBuffer.release
+      }
+    }
+
     def addMessage(tp: TopicAndPartition, msg: MessageAndOffset, highWatermark: Long) = {
       trace("Incoming message %s: %s." format (tp, msg))
 
       val systemStreamPartition = toSystemStreamPartition(tp)
       val isAtHead = highWatermark == msg.offset
       val offset = msg.offset.toString
+      val fetchBuffer = if (zeroCopyTopics.isEmpty) null else fetchBuffers.get(tp)
+
+      if (fetchBuffer != null) {
+        addZeroCopyMessage(systemStreamPartition, offset, msg, fetchBuffer)
+      } else {
+        addCopiedMessage(systemStreamPartition, offset, msg)
+      }
+
+      setIsAtHead(systemStreamPartition, isAtHead)
+    }
+
+    private def addZeroCopyMessage(systemStreamPartition: SystemStreamPartition, offset: String, msg: MessageAndOffset, fetchBuffer: FetchBuffer) {
+      val key = if (msg.message.key != null) msg.message.key.asReadOnlyBuffer else null
+      val message = if (!msg.message.isNull) msg.message.payload.asReadOnlyBuffer else null
+      val size = if (isBufferSizeTracked) getMessageSize(msg.message).intValue else 0
+
+      fetchBuffer.retain
+      put(systemStreamPartition, new ZeroCopyIncomingMessageEnvelope(systemStreamPartition, offset, key, message, size, IncomingMessageEnvelope.NO_TIMESTAMP, fetchBuffer))
+    }
+
+    private def addCopiedMessage(systemStreamPartition: SystemStreamPartition, offset: String, msg: MessageAndOffset) {
       val key = if (msg.message.key != null) {
         keyDeserializer.fromBytes(Utils.readBytes(msg.message.key))
       } else {
@@ -278,13 +383,11 @@ private[kafka] class KafkaSystemConsumer(
         null
       }
 
-      if(fetchLimitByBytesEnabled ) {
+      if(isBufferSizeTracked) {
         put(systemStreamPartition, new IncomingMessageEnvelope(systemStreamPartition, offset, key, message, getMessageSize(msg.message)))
       } else {
         put(systemStreamPartition, new IncomingMessageEnvelope(systemStreamPartition, offset, key, message))
       }
-
-      setIsAtHead(systemStreamPartition, isAtHead)
     }
 
     def abdicate(tp: TopicAndPartition, nextOffset: Long) {
@@ -298,3 +401,16 @@ private[kafka] class KafkaSystemConsumer(
     }
   }
 }
+
+/**
+ * A message set from a fetch response, which the zero-copy envelopes that
+ * were sliced from it hold references to. Its size counts towards the
+ * retained-fetch-bytes gauge until all of them have been released.
+ */
+private[kafka] class FetchBuffer(sizeInBytes: Int, retainedFetchBytes: AtomicLong) extends ReferenceCounted {
+  retainedFetchBytes.addAndGet(sizeInBytes)
+
+  protected def deallocate {
+    retainedFetchBytes.addAndGet(-sizeInBytes)
+  }
+}
@@ -23,9 +23,11 @@ import org.apache.samza.metrics.MetricsHelper
 import org.apache.samza.metrics.MetricsRegistryMap
 import org.apache.samza.metrics.MetricsRegistry
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kafka.common.TopicAndPartition
 import org.apache.samza.metrics.Counter
 import org.apache.samza.metrics.Gauge
+import org.apache.samza.metrics.Timer
 
 class KafkaSystemConsumerMetrics(val systemName: String = "unknown", val registry: MetricsRegistry = new MetricsRegistryMap) extends MetricsHelper {
   val offsets = new ConcurrentHashMap[TopicAndPartition, Counter]
@@ -43,6 +45,22 @@ class KafkaSystemConsumerMetrics(val systemName: String = "unknown", val registr
   val brokerReads = new ConcurrentHashMap[(String, Int), Counter]
   val brokerSkippedFetchRequests = new ConcurrentHashMap[(String, Int), Counter]
   val topicPartitions = new ConcurrentHashMap[(String, Int), Gauge[Int]]
+  val brokerFetchNs = new ConcurrentHashMap[(String, Int), Timer]
+  val brokerDecodeNs = new ConcurrentHashMap[(String, Int), Timer]
+  val brokerDecodeWaitNs = new ConcurrentHashMap[(String, Int), Timer]
+
+  /*
+   * The size of the fetched message sets that zero-copy envelopes, which
+   * have not been processed yet, still refer to.
+   */
+  val retainedFetchBytes = new AtomicLong
+  val retainedFetchBytesGauge = newGauge("retained-fetch-bytes", () => retainedFetchBytes.get)
+
+  /*
+   * Fetches that returned no complete message, because the next message was
+   * larger than the partition's fetch size.
+   */
+  val oversizedFetches = newCounter("oversized-message-fetches")
 
   def registerTopicAndPartition(tp: TopicAndPartition) = {
     if (!offsets.contains(tp)) {
@@ -54,12 +72,20 @@ class KafkaSystemConsumerMetrics(val systemName: String = "unknown", val registr
     }
   }
 
+  def registerAdaptiveFetch(tp: TopicAndPartition, fetchSize: () => Int, fetchThreshold: () => Long) {
+    newGauge("%s-%s-fetch-size" format (tp.topic, tp.partition), fetchSize)
+    newGauge("%s-%s-fetch-threshold" format (tp.topic, tp.partition), fetchThreshold)
+  }
+
   def registerBrokerProxy(host: String, port: Int) {
     reconnects.put((host, port), newCounter("%s-%s-reconnects" format (host, port)))
     brokerBytesRead.put((host, port), newCounter("%s-%s-bytes-read" format (host, port)))
     brokerReads.put((host, port), newCounter("%s-%s-messages-read" format (host, port)))
     brokerSkippedFetchRequests.put((host, port), newCounter("%s-%s-skipped-fetch-requests" format (host, port)))
     topicPartitions.put((host, port), newGauge("%s-%s-topic-partitions" format (host, port), 0))
+    brokerFetchNs.put((host, port), newTimer("%s-%s-fetch-ns" format (host, port)))
+    brokerDecodeNs.put((host, port), newTimer("%s-%s-decode-ns" format (host, port)))
+    brokerDecodeWaitNs.put((host, port), newTimer("%s-%s-decode-wait-ns" format (host, port)))
   }
 
   override def getPrefix = systemName + "-"
@@ -21,7 +21,7 @@ package org.apache.samza.system.kafka
 
 import java.util.Properties
 import org.apache.samza.SamzaException
-import org.apache.samza.util.{Logging, KafkaUtil, ExponentialSleepStrategy, ClientUtilTopicMetadataStore}
+import org.apache.samza.util.{Logging, KafkaUtil, ExponentialSleepStrategy, ClientUtilTopicMetadataStore, Util}
 import org.apache.samza.config.Config
 import org.apache.samza.metrics.MetricsRegistry
 import org.apache.samza.config.KafkaConfig.Config2Kafka
@@ -63,6 +63,17 @@ class KafkaSystemFactory extends SystemFactory with Logging {
     val autoOffsetResetTopics = config.getAutoOffsetResetTopics(systemName)
     val fetchThreshold = config.getConsumerFetchThreshold(systemName).getOrElse("50000").toInt
     val fetchThresholdBytes = config.getConsumerFetchThresholdBytes(systemName).getOrElse("-1").toLong
+    val fetchDecodeThreads = config.getConsumerFetchDecodeThreads(systemName).getOrElse("0").toInt
+    val fetchController = if (config.isConsumerFetchAdaptive(systemName)) {
+      new AdaptiveFetchController(
+        fetchSize,
+        config.getConsumerFetchAdaptiveMinBytes(systemName).getOrElse(AdaptiveFetchController.DEFAULT_MIN_FETCH_SIZE.toString).toInt,
+        config.getConsumerFetchAdaptiveMaxBytes(systemName).getOrElse(AdaptiveFetchController.DEFAULT_MAX_FETCH_SIZE.toString).toInt,
+        config.isConsumerFetchThresholdBytesEnabled(systemName),
+        metrics)
+    } else {
+      null
+    }
     val offsetGetter = new GetOffset(autoOffsetResetDefault, autoOffsetResetTopics)
     val metadataStore = new ClientUtilTopicMetadataStore(bootstrapServers, clientId, timeout)
 
@@ -80,7 +91,10 @@ class KafkaSystemFactory extends SystemFactory with Logging {
       fetchThreshold = fetchThreshold,
       fetchThresholdBytes = fetchThresholdBytes,
       fetchLimitByBytesEnabled = config.isConsumerFetchThresholdBytesEnabled(systemName),
-      offsetGetter = offsetGetter)
+      offsetGetter = offsetGetter,
+      fetchDecodeThreads = fetchDecodeThreads,
+      zeroCopyTopics = config.getZeroCopyTopics(systemName),
+      fetchController = fetchController)
   }
 
   def getProducer(systemName: String, config: Config, registry: MetricsRegistry): SystemProducer = {
@@ -89,6 +103,9 @@ class KafkaSystemFactory extends SystemFactory with Logging {
     val producerConfig = config.getKafkaSystemProducerConfig(systemName, clientId, injectedProps)
     val getProducer = () => { new KafkaProducer[Array[Byte], Array[Byte]](producerConfig.getProducerProperties) }
     val metrics = new KafkaSystemProducerMetrics(systemName, registry)
+    val partitionerFactory = Util.getObj[KafkaPartitionerFactory](config
+      .getPartitionerFactory(systemName)
+      .getOrElse(classOf[HashCodePartitionerFactory].getName))
 
     // Unlike consumer, no need to use encoders here, since they come for free 
     // inside the producer configs. Kafka's producer will handle all of this 
@@ -98,7 +115,9 @@ class KafkaSystemFactory extends SystemFactory with Logging {
       systemName,
       new ExponentialSleepStrategy(initialDelayMs = producerConfig.reconnectIntervalMs),
       getProducer,
-      metrics)
+      metrics,
+      flushTimeoutMs = config.getProducerFlushTimeoutMs(systemName).getOrElse("0").toLong,
+      partitioner = partitionerFactory.getPartitioner(systemName, config))
   }
 
   def getAdmin(systemName: String, config: Config): SystemAdmin = {
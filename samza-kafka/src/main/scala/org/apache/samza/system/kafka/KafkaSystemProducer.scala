@@ -25,53 +25,164 @@ import org.apache.samza.system.SystemProducer
 import org.apache.samza.system.OutgoingMessageEnvelope
 import org.apache.samza.util.ExponentialSleepStrategy
 import org.apache.samza.util.TimerUtils
-import org.apache.samza.util.KafkaUtil
-import java.util.concurrent.atomic.{AtomicReference, AtomicBoolean}
-import java.util.{Map => javaMap}
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference, AtomicBoolean}
 import org.apache.samza.SamzaException
 import org.apache.kafka.common.errors.RetriableException
-import org.apache.kafka.common.PartitionInfo
-import java.util
-import java.util.concurrent.Future
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 import scala.collection.JavaConversions._
 
+object KafkaSystemProducer {
+  /**
+   * How long the producer uses a topic's partition count before it asks the
+   * Kafka producer for the topic's partitions again.
+   */
+  val DEFAULT_PARTITION_METADATA_TTL_MS = 10000L
+
+  /**
+   * How many sends to a topic use its cached partition count before the
+   * producer reads the clock to see if the count has expired. Reading the
+   * clock costs more than the rest of a cached lookup.
+   */
+  val PARTITION_METADATA_CHECK_SENDS = 100
+}
 
 class KafkaSystemProducer(systemName: String,
                           retryBackoff: ExponentialSleepStrategy = new ExponentialSleepStrategy,
                           getProducer: () => Producer[Array[Byte], Array[Byte]],
                           metrics: KafkaSystemProducerMetrics,
-                          val clock: () => Long = () => System.nanoTime) extends SystemProducer with Logging with TimerUtils
+                          val clock: () => Long = () => System.nanoTime,
+
+                          /**
+                           * How long flush waits for a source's sends to complete before it
+                           * throws. If 0, flush waits for as long as it takes.
+                           */
+                          flushTimeoutMs: Long = 0,
+
+                          /**
+                           * Chooses the partition that each message is sent to.
+                           */
+                          partitioner: KafkaPartitioner = new HashCodePartitioner,
+                          partitionMetadataTtlMs: Long = KafkaSystemProducer.DEFAULT_PARTITION_METADATA_TTL_MS) extends SystemProducer with Logging with TimerUtils
 {
-  var producer: Producer[Array[Byte], Array[Byte]] = null
-  val latestFuture: javaMap[String, Future[RecordMetadata]] = new util.HashMap[String, Future[RecordMetadata]]()
+  // Tasks may send from several threads when the container uses a thread pool.
+  @volatile var producer: Producer[Array[Byte], Array[Byte]] = null
+  val sources = new ConcurrentHashMap[String, SourceSends]
   val sendFailed: AtomicBoolean = new AtomicBoolean(false)
   var exceptionThrown: AtomicReference[Exception] = new AtomicReference[Exception]()
   val StreamNameNullOrEmptyErrorMsg = "Stream Name should be specified in the stream configuration file.";
 
+  /**
+   * Flushes wait on this lock, and are woken when a source's last
+   * outstanding send completes, or when any send fails.
+   */
+  private val flushLock = new Object
+
+  /**
+   * The partition count of each topic that has been sent to, so that a send
+   * doesn't have to look up the topic's partitions in the Kafka producer's
+   * metadata. Entries expire after about partitionMetadataTtlMs, and are dropped
+   * when a send fails with a retriable error, or the producer is re-created.
+   */
+  private val partitionCounts = new ConcurrentHashMap[String, PartitionCount]
+  private val partitionMetadataTtlNs = TimeUnit.MILLISECONDS.toNanos(partitionMetadataTtlMs)
+
+  private class PartitionCount(val count: Int, expiresNs: Long) {
+    // Sends from several threads may race to update this, which only delays
+    // the next expiry check a little.
+    private var sendsUntilCheck = KafkaSystemProducer.PARTITION_METADATA_CHECK_SENDS
+
+    def isExpired = {
+      sendsUntilCheck -= 1
+
+      if (sendsUntilCheck > 0) {
+        false
+      } else {
+        sendsUntilCheck = KafkaSystemProducer.PARTITION_METADATA_CHECK_SENDS
+        clock() - expiresNs >= 0
+      }
+    }
+  }
+
+  metrics.setOutstandingSends(() => sources.values.foldLeft(0L)(_ + _.outstanding.get))
+
+  /**
+   * Counts the sends from a source that the Kafka producer hasn't completed
+   * yet. It is also the callback of every send from the source, so sending
+   * doesn't allocate a callback per message.
+   */
+  class SourceSends extends Callback {
+    val outstanding = new AtomicLong
+
+    def onCompletion(metadata: RecordMetadata, exception: Exception): Unit = {
+      if (exception == null) {
+        //send was successful. Don't retry
+        metrics.sendSuccess.inc
+      }
+      else {
+        //If there is an exception in the callback, it means that the Kafka producer has exhausted the max-retries
+        //Hence, fail container!
+        exceptionThrown.compareAndSet(null, exception)
+        sendFailed.set(true)
+      }
+
+      if (outstanding.decrementAndGet == 0 || exception != null) {
+        flushLock.synchronized {
+          flushLock.notifyAll
+        }
+      }
+    }
+  }
+
   def start() {
   }
 
   def stop() {
     if (producer != null) {
-      latestFuture.keys.foreach(flush(_))
+      sources.keys.foreach(flush(_))
       producer.close
       producer = null
     }
   }
 
   def register(source: String) {
-    if(latestFuture.containsKey(source)) {
+    if(sources.containsKey(source)) {
       throw new SamzaException("%s is already registered with the %s system producer" format (source, systemName))
     }
-    latestFuture.put(source, null)
+    getSourceSends(source)
+  }
+
+  private def getSourceSends(source: String) = {
+    val sourceSends = sources.get(source)
+
+    if (sourceSends != null) {
+      sourceSends
+    } else {
+      val newSourceSends = new SourceSends
+      val existing = sources.putIfAbsent(source, newSourceSends)
+
+      if (existing != null) {
+        existing
+      } else {
+        metrics.registerSource(source, () => newSourceSends.outstanding.get)
+        newSourceSends
+      }
+    }
   }
 
   def send(source: String, envelope: OutgoingMessageEnvelope) {
-    trace("Enqueueing message: %s, %s." format (source, envelope))
+    // Avoid building the by-name trace message for every send.
+    if (logger.isTraceEnabled) {
+      trace("Enqueueing message: %s, %s." format (source, envelope))
+    }
     if(producer == null) {
-      info("Creating a new producer for system %s." format systemName)
-      producer = getProducer()
-      debug("Created a new producer for system %s." format systemName)
+      synchronized {
+        if(producer == null) {
+          info("Creating a new producer for system %s." format systemName)
+          partitionCounts.clear
+          producer = getProducer()
+          debug("Created a new producer for system %s." format systemName)
+        }
+      }
     }
     // Java-based Kafka producer API requires an "Integer" type partitionKey and does not allow custom overriding of Partitioners
     // Any kind of custom partitioning has to be done on the client-side
@@ -79,67 +190,126 @@ class KafkaSystemProducer(systemName: String,
     if (topicName == null || topicName == "") {
       throw new IllegalArgumentException(StreamNameNullOrEmptyErrorMsg)
     }
-    val partitions: java.util.List[PartitionInfo]  = producer.partitionsFor(topicName)
-    val partitionKey = if(envelope.getPartitionKey != null) KafkaUtil.getIntegerPartitionKey(envelope, partitions) else null
-    val record = new ProducerRecord(envelope.getSystemStream.getStream,
-                                    partitionKey,
+    val partition = partitioner.partition(topicName, envelope, getPartitionCount(topicName))
+    val record = new ProducerRecord(topicName,
+                                    if (partition >= 0) Integer.valueOf(partition) else null,
                                     envelope.getKey.asInstanceOf[Array[Byte]],
                                     envelope.getMessage.asInstanceOf[Array[Byte]])
 
+    val sourceSends = getSourceSends(source)
+
     sendFailed.set(false)
 
-    retryBackoff.run(
-      loop => {
-        if(sendFailed.get()) {
-          throw exceptionThrown.get()
-        }
-        val futureRef: Future[RecordMetadata] =
-          producer.send(record, new Callback {
-            def onCompletion(metadata: RecordMetadata, exception: Exception): Unit = {
-              if (exception == null) {
-                //send was successful. Don't retry
-                metrics.sendSuccess.inc
-              }
-              else {
-                //If there is an exception in the callback, it means that the Kafka producer has exhausted the max-retries
-                //Hence, fail container!
-                exceptionThrown.compareAndSet(null, exception)
-                sendFailed.set(true)
-              }
-            }
-          })
-        latestFuture.put(source, futureRef)
-        metrics.sends.inc
-        if(!sendFailed.get())
-          loop.done
-      },
-      (exception, loop) => {
-        if(exception != null && !exception.isInstanceOf[RetriableException]) {   // Exception is thrown & not retriable
-          debug("Exception detail : ", exception)
-          //Close producer
-          stop()
-          producer = null
-          //Mark loop as done as we are not going to retry
-          loop.done
-          metrics.sendFailed.inc
-          throw new SamzaException("Failed to send message. Exception:\n %s".format(exception))
-        } else {
-          warn("Retrying send messsage due to RetriableException - %s. Turn on debugging to get a full stack trace".format(exception))
-          debug("Exception detail:", exception)
-          metrics.retries.inc
-        }
+    // Almost every send succeeds at the first attempt, so try it directly,
+    // and only set up a retry loop once it fails.
+    val sent = try {
+      sendRecord(record, sourceSends)
+      !sendFailed.get()
+    } catch {
+      case e: Exception =>
+        handleSendException(topicName, e)
+        false
+    }
+
+    if (!sent) {
+      // The direct attempt is the loop's first attempt, so the loop backs off
+      // before it sends again.
+      var attempted = true
+      retryBackoff.run(
+        loop => {
+          if(sendFailed.get()) {
+            throw exceptionThrown.get()
+          }
+          if (attempted) {
+            attempted = false
+          } else {
+            sendRecord(record, sourceSends)
+            if(!sendFailed.get())
+              loop.done
+          }
+        },
+        (exception, loop) => handleSendException(topicName, exception)
+      )
+    }
+  }
+
+  private def sendRecord(record: ProducerRecord[Array[Byte], Array[Byte]], sourceSends: SourceSends) {
+    // Count the send before handing it over, since the producer may
+    // complete it before send returns.
+    sourceSends.outstanding.incrementAndGet
+    try {
+      producer.send(record, sourceSends)
+    } catch {
+      case e: Exception =>
+        sourceSends.outstanding.decrementAndGet
+        throw e
+    }
+    metrics.sends.inc
+  }
+
+  /**
+   * Fails the producer if a send failed with an exception that isn't
+   * retriable. Otherwise, the send is retried.
+   */
+  private def handleSendException(topicName: String, exception: Exception) {
+    if(exception != null && !exception.isInstanceOf[RetriableException]) {   // Exception is thrown & not retriable
+      debug("Exception detail : ", exception)
+      //Close producer
+      stop()
+      producer = null
+      metrics.sendFailed.inc
+      throw new SamzaException("Failed to send message. Exception:\n %s".format(exception))
+    } else {
+      warn("Retrying send messsage due to RetriableException - %s. Turn on debugging to get a full stack trace".format(exception))
+      debug("Exception detail:", exception)
+      metrics.retries.inc
+      // The topic's partitions may have moved or changed.
+      partitionCounts.remove(topicName)
+    }
+  }
+
+  /**
+   * Returns the number of partitions of a topic, or 0 if the Kafka producer
+   * doesn't know the topic yet.
+   */
+  private def getPartitionCount(topicName: String) = {
+    val cached = partitionCounts.get(topicName)
+
+    if (cached != null && !cached.isExpired) {
+      cached.count
+    } else {
+      metrics.partitionMetadataRefreshes.inc
+      val partitions = producer.partitionsFor(topicName)
+      val count = if (partitions == null) 0 else partitions.size
+
+      if (cached != null && cached.count != count) {
+        info("Topic %s in system %s now has %s partitions, instead of %s." format (topicName, systemName, count, cached.count))
       }
-    )
+
+      // Don't cache topics that the producer has no metadata for yet.
+      if (count > 0) {
+        partitionCounts.put(topicName, new PartitionCount(count, clock() + partitionMetadataTtlNs))
+      } else {
+        partitionCounts.remove(topicName)
+      }
+
+      count
+    }
   }
 
   def flush(source: String) {
+    val startNs = clock()
+
     updateTimer(metrics.flushNs) {
       metrics.flushes.inc
-      //if latestFuture is null, it probably means that there has been no calls to "send" messages
+      val sourceSends = sources.get(source)
+      //if nothing is outstanding, and no send has failed, every message has been sent since the last flush
       //Hence, nothing to do in flush
-      if(latestFuture.get(source) != null) {
-        while (!latestFuture.get(source).isDone && !sendFailed.get()) {
-          //do nothing
+      if(sourceSends != null && (sourceSends.outstanding.get > 0 || sendFailed.get())) {
+        if (!awaitSends(sourceSends)) {
+          metrics.flushTimeouts.inc
+          throw new SamzaException("Timed out after %s ms flushing %s sends from %s to system %s."
+            format (flushTimeoutMs, sourceSends.outstanding.get, source, systemName))
         }
         if (sendFailed.get()) {
           logger.error("Unable to send message from %s to system %s" format(source, systemName))
@@ -155,5 +325,35 @@ class KafkaSystemProducer(systemName: String,
         }
       }
     }
+
+    metrics.lastFlushNs.set(clock() - startNs)
+  }
+
+  /**
+   * Blocks until all of a source's sends have completed, or any send has
+   * failed. Returns false if flushTimeoutMs elapsed first.
+   */
+  private def awaitSends(sourceSends: SourceSends) = {
+    val deadlineNs = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(flushTimeoutMs)
+
+    flushLock.synchronized {
+      var timedOut = false
+
+      while (sourceSends.outstanding.get > 0 && !sendFailed.get && !timedOut) {
+        if (flushTimeoutMs <= 0) {
+          flushLock.wait
+        } else {
+          val remainingNs = deadlineNs - System.nanoTime
+
+          if (remainingNs > 0) {
+            TimeUnit.NANOSECONDS.timedWait(flushLock, remainingNs)
+          } else {
+            timedOut = true
+          }
+        }
+      }
+
+      !timedOut
+    }
   }
 }
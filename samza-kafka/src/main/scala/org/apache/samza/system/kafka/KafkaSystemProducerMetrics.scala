@@ -28,6 +28,10 @@ class KafkaSystemProducerMetrics(val systemName: String = "unknown", val registr
   val flushes = newCounter("flushes")
   /* Tracks how long the flush call takes to complete */
   val flushNs = newTimer("flush-ns")
+  /* How long the latest flush call took to complete */
+  val lastFlushNs = newGauge("last-flush-ns", 0L)
+  /* Tracks the number of flush calls that timed out waiting for sends to complete */
+  val flushTimeouts = newCounter("flush-timeouts")
   /* Tracks the number of times the system producer retries a send request (due to RetriableException) */
   val retries = newCounter("producer-retries")
   /* Tracks the number of times flush operation failed */
@@ -36,6 +40,18 @@ class KafkaSystemProducerMetrics(val systemName: String = "unknown", val registr
   val sendFailed = newCounter("producer-send-failed")
   /* Tracks the number of send requests that was successfully completed by the KafkaProducer */
   val sendSuccess = newCounter("producer-send-success")
+  /* Tracks the number of times the producer looked up the partitions of a topic, because its cached partition count was missing or expired */
+  val partitionMetadataRefreshes = newCounter("partition-metadata-refreshes")
+
+  /* Tracks the number of sends that the KafkaProducer has not completed yet, for all sources */
+  def setOutstandingSends(getValue: () => Long) {
+    newGauge("producer-outstanding-sends", getValue)
+  }
+
+  /* Tracks the number of sends from a single source that the KafkaProducer has not completed yet */
+  def registerSource(source: String, getOutstandingSends: () => Long) {
+    newGauge("%s-outstanding-sends" format source, getOutstandingSends)
+  }
 
   override def getPrefix = systemName + "-"
 }
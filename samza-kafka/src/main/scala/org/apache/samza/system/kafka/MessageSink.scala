@@ -32,4 +32,16 @@ private[kafka] trait MessageSink {
   def refreshDropped(): Unit
 
   def needsMoreMessages(tp: TopicAndPartition): Boolean
+
+  /**
+   * Called before the messages of one partition's message set, from a single
+   * fetch response, are added.
+   */
+  def startMessageSet(tp: TopicAndPartition, sizeInBytes: Int) {}
+
+  /**
+   * Called once all messages of the partition's message set have been added,
+   * or once adding them has failed.
+   */
+  def endMessageSet(tp: TopicAndPartition) {}
 }
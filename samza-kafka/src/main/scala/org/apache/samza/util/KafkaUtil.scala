@@ -55,7 +55,10 @@ object KafkaUtil extends Logging {
   private def abs(n: Int) = if (n == Integer.MIN_VALUE) 0 else math.abs(n)
 
   def getIntegerPartitionKey(envelope: OutgoingMessageEnvelope, partitions: java.util.List[PartitionInfo]): Integer = {
-    val numPartitions = partitions.size
+    getIntegerPartitionKey(envelope, partitions.size)
+  }
+
+  def getIntegerPartitionKey(envelope: OutgoingMessageEnvelope, numPartitions: Int): Int = {
     abs(envelope.getPartitionKey.hashCode()) % numPartitions
   }
 
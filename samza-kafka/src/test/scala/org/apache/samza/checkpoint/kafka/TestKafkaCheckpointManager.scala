@@ -19,6 +19,11 @@
 
 package org.apache.samza.checkpoint.kafka
 
+import java.io.File
+import java.nio.file.Files
+import java.util
+import java.util.concurrent.atomic.AtomicInteger
+
 import kafka.admin.AdminUtils
 import kafka.common.{InvalidMessageSizeException, UnknownTopicOrPartitionException}
 import kafka.message.InvalidMessageException
@@ -27,7 +32,7 @@ import kafka.utils.{TestUtils, TestZKUtils, Utils, ZKStringSerializer}
 import kafka.zk.EmbeddedZookeeper
 import org.I0Itec.zkclient.ZkClient
 import org.apache.kafka.clients.producer.{KafkaProducer, Producer, ProducerConfig, ProducerRecord}
-import org.apache.samza.checkpoint.Checkpoint
+import org.apache.samza.checkpoint.{Checkpoint, DeltaCheckpointMetrics}
 import org.apache.samza.config.{JobConfig, KafkaProducerConfig, MapConfig}
 import org.apache.samza.container.TaskName
 import org.apache.samza.container.grouper.stream.GroupByPartitionFactory
@@ -126,6 +131,21 @@ class TestKafkaCheckpointManager {
   }
 
 
+  private def writeChangeLogPartitionMapping(mapping: util.Map[TaskName, Integer], cpTopic: String) = {
+    val producer: Producer[Array[Byte], Array[Byte]] = new KafkaProducer(producerConfig.getProducerProperties)
+    val record = new ProducerRecord(
+      cpTopic,
+      0,
+      KafkaCheckpointLogKey.getChangelogPartitionMappingKey().toBytes(),
+      new CheckpointSerde().changelogPartitionMappingToBytes(mapping)
+    )
+    try {
+      producer.send(record).get()
+    } finally {
+      producer.close()
+    }
+  }
+
   private def createCheckpointTopic(cpTopic: String = checkpointTopic, partNum: Int = 1) = {
     val zkClient = new ZkClient(zkConnect, 6000, 6000, ZKStringSerializer)
     try {
@@ -182,6 +202,161 @@ class TestKafkaCheckpointManager {
     kcm.stop
   }
 
+  @Test
+  def testWriteCheckpointsShouldWriteEveryTask {
+    val batchCheckpointTopic = checkpointTopic + "-batch"
+    val kcm = getKafkaCheckpointManagerWithParam(batchCheckpointTopic)
+    val taskName0 = new TaskName("Partition 0")
+    val taskName1 = new TaskName("Partition 1")
+    kcm.register(taskName0)
+    kcm.register(taskName1)
+    createCheckpointTopic(batchCheckpointTopic)
+    kcm.kafkaUtil.validateTopicPartitionCount(batchCheckpointTopic, "kafka", metadataStore, 1)
+
+    kcm.writeCheckpoints(Map(taskName0 -> cp1, taskName1 -> cp2))
+    assertEquals(cp1, kcm.readLastCheckpoint(taskName0))
+    assertEquals(cp2, kcm.readLastCheckpoint(taskName1))
+
+    kcm.writeCheckpoints(Map(taskName0 -> cp2))
+    assertEquals(cp2, kcm.readLastCheckpoint(taskName0))
+    assertEquals(cp2, kcm.readLastCheckpoint(taskName1))
+    kcm.stop
+  }
+
+  @Test
+  def testDeltaCheckpointsShouldBeMergedOnRead {
+    val taskName = new TaskName(partition.toString)
+    val deltaCheckpointTopic = checkpointTopic + "-delta"
+    val deltaMetrics = new DeltaCheckpointMetrics
+    val kcm = getKafkaCheckpointManagerWithParam(deltaCheckpointTopic, fullInterval = 3, deltaMetrics = deltaMetrics)
+    val ssp0 = new SystemStreamPartition("kafka", "topic", new Partition(0))
+    val ssp1 = new SystemStreamPartition("kafka", "topic", new Partition(1))
+    val fullCp = new Checkpoint(Map(ssp0 -> "1", ssp1 -> "1"))
+    val deltaCp = new Checkpoint(Map(ssp0 -> "2", ssp1 -> "1"))
+    kcm.register(taskName)
+    createCheckpointTopic(deltaCheckpointTopic)
+    kcm.kafkaUtil.validateTopicPartitionCount(deltaCheckpointTopic, "kafka", metadataStore, 1)
+
+    kcm.writeCheckpoint(taskName, fullCp)
+    kcm.writeCheckpoint(taskName, deltaCp)
+    kcm.writeCheckpoint(taskName, deltaCp)
+    kcm.stop
+
+    assertEquals(1, deltaMetrics.fullCheckpoints.getCount)
+    assertEquals(2, deltaMetrics.deltaCheckpoints.getCount)
+    assertEquals(3, deltaMetrics.offsetsWritten.getCount)
+    assertEquals(3, deltaMetrics.offsetsSkipped.getCount)
+
+    // A new manager merges the delta onto the full checkpoint that precedes it.
+    val readKcm = getKafkaCheckpointManagerWithParam(deltaCheckpointTopic)
+    readKcm.register(taskName)
+    assertEquals(deltaCp, readKcm.readLastCheckpoint(taskName))
+    readKcm.stop
+  }
+
+  @Test
+  def testUnchangedCheckpointAfterFullCheckpointShouldNotBeSent {
+    val taskName = new TaskName(partition.toString)
+    val deltaCheckpointTopic = checkpointTopic + "-unchanged"
+    val sent = new AtomicInteger
+    val kcm = getKafkaCheckpointManagerWithParam(deltaCheckpointTopic, fullInterval = 2, connectProducer = () =>
+      new KafkaProducer[Array[Byte], Array[Byte]](producerConfig.getProducerProperties) {
+        override def send(record: ProducerRecord[Array[Byte], Array[Byte]]) = {
+          sent.incrementAndGet
+          super.send(record)
+        }
+      })
+    val ssp0 = new SystemStreamPartition("kafka", "topic", new Partition(0))
+    val cp = new Checkpoint(Map(ssp0 -> "1"))
+    kcm.register(taskName)
+    createCheckpointTopic(deltaCheckpointTopic)
+    kcm.kafkaUtil.validateTopicPartitionCount(deltaCheckpointTopic, "kafka", metadataStore, 1)
+
+    // Full, unchanged, full, unchanged: only the full checkpoints are sent.
+    (0 until 4).foreach(_ => kcm.writeCheckpoint(taskName, cp))
+    kcm.stop
+
+    assertEquals(2, sent.get)
+
+    val readKcm = getKafkaCheckpointManagerWithParam(deltaCheckpointTopic)
+    readKcm.register(taskName)
+    assertEquals(cp, readKcm.readLastCheckpoint(taskName))
+    readKcm.stop
+  }
+
+  @Test
+  def testOneScanShouldServeCheckpointsAndChangelogMapping {
+    val sharedCheckpointTopic = checkpointTopic + "-shared"
+    val metrics = new KafkaCheckpointManagerMetrics
+    val kcm = getKafkaCheckpointManagerWithParam(sharedCheckpointTopic, metrics = metrics)
+    val taskName = new TaskName(partition.toString)
+    val mapping = new util.HashMap[TaskName, Integer]()
+    mapping.put(taskName, 3)
+    kcm.register(taskName)
+    createCheckpointTopic(sharedCheckpointTopic)
+    kcm.kafkaUtil.validateTopicPartitionCount(sharedCheckpointTopic, "kafka", metadataStore, 1)
+    writeCheckpoint(taskName, cp1, sharedCheckpointTopic)
+    writeChangeLogPartitionMapping(mapping, sharedCheckpointTopic)
+
+    // Reading the mapping first must not skip the checkpoint that comes before it.
+    assertEquals(mapping, kcm.readChangeLogPartitionMapping())
+    assertEquals(cp1, kcm.readLastCheckpoint(taskName))
+    assertEquals(2L, metrics.messagesRead.getCount)
+    assertEquals(2L, metrics.scans.getCount)
+    assertTrue(metrics.bytesRead.getCount > 0)
+
+    writeCheckpoint(taskName, cp2, sharedCheckpointTopic)
+    assertEquals(cp2, kcm.readLastCheckpoint(taskName))
+    assertEquals(mapping, kcm.readChangeLogPartitionMapping())
+    assertEquals(3L, metrics.messagesRead.getCount)
+    kcm.stop
+  }
+
+  @Test
+  def testIndexShouldLimitReadToTheTail {
+    val indexedCheckpointTopic = checkpointTopic + "-indexed"
+    val indexDir = Files.createTempDirectory("checkpoint-index").toFile
+    val taskName0 = new TaskName("Partition 0")
+    val taskName1 = new TaskName("Partition 1")
+    def getIndex = new KafkaCheckpointIndex(new File(indexDir, indexedCheckpointTopic + ".index"), indexedCheckpointTopic)
+
+    try {
+      createCheckpointTopic(indexedCheckpointTopic)
+      writeCheckpoint(taskName0, cp1, indexedCheckpointTopic)
+      writeCheckpoint(taskName0, cp2, indexedCheckpointTopic)
+
+      val kcm1 = getKafkaCheckpointManagerWithParam(indexedCheckpointTopic, getIndex)
+      kcm1.register(taskName0)
+      kcm1.kafkaUtil.validateTopicPartitionCount(indexedCheckpointTopic, "kafka", metadataStore, 1)
+      assertEquals(cp2, kcm1.readLastCheckpoint(taskName0))
+      kcm1.stop
+
+      writeCheckpoint(taskName1, cp1, indexedCheckpointTopic)
+
+      // A restarted manager only reads the message written since the index was saved.
+      val metrics = new KafkaCheckpointManagerMetrics
+      val kcm2 = getKafkaCheckpointManagerWithParam(indexedCheckpointTopic, getIndex, metrics)
+      kcm2.register(taskName0)
+      kcm2.register(taskName1)
+      assertEquals(cp2, kcm2.readLastCheckpoint(taskName0))
+      assertEquals(cp1, kcm2.readLastCheckpoint(taskName1))
+      assertEquals(1L, metrics.indexLoads.getCount)
+      assertEquals(1L, metrics.messagesRead.getCount)
+      kcm2.stop
+
+      // An index that is ahead of the topic is ignored, and the whole topic is read.
+      getIndex.write(KafkaCheckpointIndex.Contents(1000L, immutable.Map(taskName0 -> cp1), null))
+      val resetMetrics = new KafkaCheckpointManagerMetrics
+      val kcm3 = getKafkaCheckpointManagerWithParam(indexedCheckpointTopic, getIndex, resetMetrics)
+      kcm3.register(taskName0)
+      assertEquals(cp2, kcm3.readLastCheckpoint(taskName0))
+      assertEquals(3L, resetMetrics.messagesRead.getCount)
+      kcm3.stop
+    } finally {
+      Utils.rm(indexDir)
+    }
+  }
+
   @Test
   def testUnrecoverableKafkaErrorShouldThrowKafkaCheckpointManagerException {
     val exceptions = List("InvalidMessageException", "InvalidMessageSizeException", "UnknownTopicOrPartitionException")
@@ -232,7 +407,13 @@ class TestKafkaCheckpointManager {
     kcm1.stop
   }
 
-  private def getKafkaCheckpointManagerWithParam(cpTopic: String) = new KafkaCheckpointManager(
+  private def getKafkaCheckpointManagerWithParam(
+    cpTopic: String,
+    index: KafkaCheckpointIndex = null,
+    metrics: KafkaCheckpointManagerMetrics = new KafkaCheckpointManagerMetrics,
+    fullInterval: Int = 1,
+    deltaMetrics: DeltaCheckpointMetrics = new DeltaCheckpointMetrics,
+    connectProducer: () => Producer[Array[Byte], Array[Byte]] = () => new KafkaProducer(producerConfig.getProducerProperties)) = new KafkaCheckpointManager(
     clientId = "some-client-id",
     checkpointTopic = cpTopic,
     systemName = "kafka",
@@ -241,11 +422,15 @@ class TestKafkaCheckpointManager {
     bufferSize = 64 * 1024,
     fetchSize = 300 * 1024,
     metadataStore = metadataStore,
-    connectProducer = () => new KafkaProducer(producerConfig.getProducerProperties),
+    connectProducer = connectProducer,
     connectZk = () => new ZkClient(zkConnect, 60000, 60000, ZKStringSerializer),
     systemStreamPartitionGrouperFactoryString = systemStreamPartitionGrouperFactoryString,
     failOnCheckpointValidation = failOnTopicValidation,
-    checkpointTopicProperties = KafkaCheckpointManagerFactory.getCheckpointTopicProperties(new MapConfig(Map[String, String]())))
+    checkpointTopicProperties = KafkaCheckpointManagerFactory.getCheckpointTopicProperties(new MapConfig(Map[String, String]())),
+    index = index,
+    metrics = metrics,
+    fullInterval = fullInterval,
+    deltaMetrics = deltaMetrics)
 
   // CheckpointManager with a specific checkpoint topic
   private def getKafkaCheckpointManager = getKafkaCheckpointManagerWithParam(checkpointTopic)
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.kafka
+
+import kafka.common.TopicAndPartition
+import org.apache.samza.metrics.Gauge
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.junit.Assert._
+import org.junit.Test
+
+class TestAdaptiveFetchController {
+  val tp0 = new TopicAndPartition("test-stream", 0)
+  val tp1 = new TopicAndPartition("test-stream", 1)
+
+  @Test
+  def testFetchSizeGrowsToFitLargeMessages {
+    val registry = new MetricsRegistryMap
+    val metrics = new KafkaSystemConsumerMetrics("test-system", registry)
+    val controller = new AdaptiveFetchController(new StreamFetchSizes(1000), 500, 3000, metrics = metrics)
+
+    controller.register(tp0)
+    assertEquals(1000, controller.getFetchSize(tp0))
+
+    controller.recordFetch(tp0, 1000, 0, 0, 0)
+    assertEquals(2000, controller.getFetchSize(tp0))
+    controller.recordFetch(tp0, 2000, 0, 0, 0)
+    assertEquals(3000, controller.getFetchSize(tp0))
+    controller.recordFetch(tp0, 3000, 0, 0, 0)
+    assertEquals(3000, controller.getFetchSize(tp0))
+    assertEquals(3L, metrics.oversizedFetches.getCount)
+    val fetchSizeGauge = registry.getGroup(metrics.group).get("test-system-test-stream-0-fetch-size").asInstanceOf[Gauge[Int]]
+    assertEquals(3000, fetchSizeGauge.getValue)
+  }
+
+  @Test
+  def testFetchSizeFollowsHowMuchIsFetched {
+    val controller = new AdaptiveFetchController(new StreamFetchSizes(1000, Map("test-stream" -> 4000)), 500, 8000)
+
+    controller.register(tp0)
+    assertEquals(4000, controller.getFetchSize(tp0))
+
+    // A full fetch left data behind.
+    controller.recordFetch(tp0, 3900, 10, 3900, 390)
+    assertEquals(8000, controller.getFetchSize(tp0))
+
+    // Mostly unused fetches shrink it, but not below twice the largest message.
+    (0 until AdaptiveFetchController.SHRINK_AFTER_FETCHES).foreach(i => controller.recordFetch(tp0, 100, 1, 100, 100))
+    assertEquals(4000, controller.getFetchSize(tp0))
+    (0 until AdaptiveFetchController.SHRINK_AFTER_FETCHES * 4).foreach(i => controller.recordFetch(tp0, 100, 1, 100, 100))
+    assertEquals(780, controller.getFetchSize(tp0))
+  }
+
+  @Test
+  def testThresholdsFollowFetchRates {
+    var now = 0L
+    val controller = new AdaptiveFetchController(new StreamFetchSizes(1000), 500, 8000, clock = () => now)
+
+    controller.register(tp0)
+    controller.register(tp1)
+    controller.setTotalThreshold(1000)
+    assertEquals(500L, controller.getThreshold(tp0))
+    assertEquals(500L, controller.getThreshold(tp1))
+
+    controller.recordFetch(tp0, 900, 900, 900, 1)
+    controller.recordFetch(tp1, 900, 100, 900, 9)
+    assertEquals(500L, controller.getThreshold(tp0))
+
+    now += AdaptiveFetchController.ADJUST_INTERVAL_MS
+    controller.recordFetch(tp1, 0, 0, 0, 0)
+
+    // Each keeps half an even share, and the rest is split 9:1.
+    assertEquals(700L, controller.getThreshold(tp0))
+    assertEquals(300L, controller.getThreshold(tp1))
+  }
+}
@@ -56,6 +56,23 @@ class TestBrokerProxy extends Logging {
     assertEquals(84, sink.receivedMessages.get(1)._2.offset)
   }
 
+  @Test def brokerProxyDecodesOnDecoderThreadsWhenPipelined() = {
+    val (bp, tp, sink) = getMockBrokerProxy(2)
+
+    bp.start
+    bp.addTopicPartition(tp, Option("0"))
+    bp.addTopicPartition(tp2, Option("0"))
+    Thread.sleep(1000)
+    assertEquals(2, sink.receivedMessages.size)
+    assertEquals(42, sink.receivedMessages.get(0)._2.offset)
+    assertEquals(84, sink.receivedMessages.get(1)._2.offset)
+    assertEquals(85L, bp.nextOffsets(tp))
+    assertTrue(bp.metrics.brokerFetchNs(bp.host, bp.port).getSnapshot.getSize > 0)
+    assertTrue(bp.metrics.brokerDecodeNs(bp.host, bp.port).getSnapshot.getSize > 0)
+    assertTrue(bp.metrics.brokerDecodeWaitNs(bp.host, bp.port).getSnapshot.getSize > 0)
+    bp.stop
+  }
+
   @Test def brokerProxySkipsFetchForEmptyRequests() = {
     val (bp, tp, sink) = getMockBrokerProxy()
 
@@ -82,7 +99,7 @@ class TestBrokerProxy extends Logging {
     }
   }
 
-  def getMockBrokerProxy() = {
+  def getMockBrokerProxy(decodeThreads: Int = 0) = {
     val sink = new MessageSink {
       val receivedMessages = new scala.collection.mutable.ListBuffer[(TopicAndPartition, MessageAndOffset, Boolean)]()
 
@@ -118,7 +135,8 @@ class TestBrokerProxy extends Logging {
       "daClientId",
       metrics,
       sink,
-      offsetGetter = new GetOffset("fail", Map("Redbird" -> "largest"))) {
+      offsetGetter = new GetOffset("fail", Map("Redbird" -> "largest")),
+      decodeThreads = decodeThreads) {
 
       override val sleepMSWhileNoTopicPartitions = 100
       // Speed up for test
@@ -161,6 +179,7 @@ class TestBrokerProxy extends Logging {
               when(messageSet.sizeInBytes).thenReturn(43)
               when(messageSet.size).thenReturn(44)
               when(messageSet.iterator).thenReturn(messages.iterator)
+              when(messageSet.shallowIterator).thenReturn(messages.iterator)
               when(messageSet.head).thenReturn(messages.head)
               messageSet
             }
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.samza.system.kafka
+
+import java.util.concurrent.atomic.AtomicLong
+
+import kafka.common.TopicAndPartition
+import kafka.message.{ByteBufferMessageSet, Message, MessageAndOffset, CompressionCodec, NoCompressionCodec, SnappyCompressionCodec}
+import org.apache.samza.metrics.Timer
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConversions._
+
+class TestFetchResponseDecoder extends AssertionsForJUnit {
+  val tp0 = new TopicAndPartition("topic", 0)
+  val tp1 = new TopicAndPartition("topic", 1)
+
+  class DecodeFailure extends RuntimeException
+
+  class RecordingSink extends MessageSink {
+    val messages = new java.util.concurrent.ConcurrentHashMap[TopicAndPartition, java.util.Vector[Long]]
+    val atHighWatermark = new java.util.concurrent.ConcurrentHashMap[TopicAndPartition, Boolean]
+
+    def setIsAtHighWatermark(tp: TopicAndPartition, isAtHighWatermark: Boolean) {
+      atHighWatermark.put(tp, isAtHighWatermark)
+    }
+
+    def addMessage(tp: TopicAndPartition, msg: MessageAndOffset, highWatermark: Long) {
+      messages.putIfAbsent(tp, new java.util.Vector[Long])
+      messages.get(tp).add(msg.offset)
+    }
+
+    def needsMoreMessages(tp: TopicAndPartition) = true
+    def abdicate(tp: TopicAndPartition, nextOffset: Long) {}
+    def refreshDropped {}
+  }
+
+  def messages(offsets: Range, codec: CompressionCodec = NoCompressionCodec) =
+    new ByteBufferMessageSet(codec, new AtomicLong(offsets.start), offsets.map(_ => new Message(Array[Byte](0))): _*)
+
+  @Test
+  def testEachPartitionIsDecodedInOrder {
+    val sink = new RecordingSink
+    val decoder = new FetchResponseDecoder("test", 3, sink, sink.addMessage, new Timer("decode-ns"))
+
+    (0 until 100).foreach(i => {
+      decoder.submit(tp0, messages(i * 10 until (i + 1) * 10), i * 10, 1000, false)
+      decoder.submit(tp1, messages(i * 5 until (i + 1) * 5, SnappyCompressionCodec), i * 5, 500, false)
+    })
+    decoder.submit(tp1, messages(500 until 500), 500, 500, true)
+    decoder.awaitIdle
+    decoder.checkFailure
+
+    assertEquals((0 until 1000).map(_.toLong).toList, sink.messages.get(tp0).toList)
+    assertEquals((0 until 500).map(_.toLong).toList, sink.messages.get(tp1).toList)
+    assertEquals(false, sink.atHighWatermark.get(tp0))
+    assertEquals(true, sink.atHighWatermark.get(tp1))
+    decoder.stop
+  }
+
+  @Test
+  def testFailureDropsWorkAndRecordsRewindOffsets {
+    val sink = new RecordingSink
+    val decoder = new FetchResponseDecoder("test", 1, sink, (tp: TopicAndPartition, msg: MessageAndOffset, highWatermark: Long) => {
+      if (tp == tp0 && msg.offset == 3) {
+        throw new DecodeFailure
+      }
+      sink.addMessage(tp, msg, highWatermark)
+    }, new Timer("decode-ns"))
+
+    decoder.submit(tp0, messages(0 until 5), 0, 100, false)
+    decoder.submit(tp0, messages(5 until 10), 5, 100, false)
+    decoder.submit(tp1, messages(20 until 25), 20, 100, false)
+    decoder.awaitIdle
+
+    intercept[DecodeFailure] { decoder.checkFailure }
+    assertEquals(List(0L, 1L, 2L), sink.messages.get(tp0).toList)
+    assertNull(sink.messages.get(tp1))
+    assertEquals(Some(3L), decoder.getRewindOffset(tp0))
+    assertEquals(Some(20L), decoder.getRewindOffset(tp1))
+
+    decoder.reset
+    decoder.checkFailure
+    assertEquals(None, decoder.getRewindOffset(tp0))
+    decoder.stop
+  }
+}
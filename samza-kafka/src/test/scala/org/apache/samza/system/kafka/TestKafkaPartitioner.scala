@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.system.kafka
+
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.clients.producer.internals.Partitioner
+import org.apache.samza.config.MapConfig
+import org.apache.samza.system.{OutgoingMessageEnvelope, SystemStream}
+import org.apache.samza.utils.TestUtils
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConversions._
+
+class TestKafkaPartitioner {
+  val systemStream = new SystemStream("kafka", "topic")
+  val keylessMessage = new OutgoingMessageEnvelope(systemStream, "message".getBytes)
+
+  def keyedMessage(key: Any) = new OutgoingMessageEnvelope(systemStream, key, "key".getBytes, "message".getBytes)
+
+  @Test
+  def testHashCodePartitionerMatchesThePreviousPartitioning {
+    val partitioner = new HashCodePartitioner
+
+    (0 until 100).foreach(i => {
+      val key = "key-" + i
+      assertEquals(Math.abs(key.hashCode) % 7, partitioner.partition("topic", keyedMessage(key), 7))
+    })
+    assertEquals(0, partitioner.partition("topic", keyedMessage(new Object { override def hashCode = Int.MinValue }), 7))
+    assertEquals(-1, partitioner.partition("topic", keylessMessage, 7))
+    assertEquals(-1, partitioner.partition("topic", keyedMessage("key"), 0))
+  }
+
+  @Test
+  def testMurmur2PartitionerMatchesKafka {
+    val cluster = TestUtils.clusterWith(1, "topic", 7)
+    val kafkaPartitioner = new Partitioner
+    val partitioner = new Murmur2Partitioner
+
+    (0 until 100).foreach(i => {
+      val key = "key-" + i
+      val record = new ProducerRecord[Array[Byte], Array[Byte]]("topic", key.getBytes("UTF-8"), "message".getBytes)
+      val expected = kafkaPartitioner.partition(record, cluster)
+
+      assertEquals(expected, partitioner.partition("topic", keyedMessage(key), 7))
+      assertEquals(expected, partitioner.partition("topic", keyedMessage(key.getBytes("UTF-8")), 7))
+    })
+    assertEquals(Math.abs(42.hashCode) % 7, partitioner.partition("topic", keyedMessage(42), 7))
+    assertEquals(-1, partitioner.partition("topic", keylessMessage, 7))
+  }
+
+  @Test
+  def testRoundRobinPartitionerCyclesThroughPartitions {
+    val partitioner = new RoundRobinPartitioner
+    val first = partitioner.partition("topic", keylessMessage, 3)
+    val partitions = (1 until 9).map(i => partitioner.partition("topic", keylessMessage, 3))
+
+    assertEquals((1 until 9).map(i => (first + i) % 3).toList, partitions.toList)
+    assertEquals(Math.abs("key".hashCode) % 3, partitioner.partition("topic", keyedMessage("key"), 3))
+  }
+
+  @Test
+  def testStickyPartitionerSticksToAPartition {
+    val partitioner = new StickyPartitionerFactory()
+      .getPartitioner("kafka", new MapConfig(Map("systems.kafka.samza.partitioner.sticky.messages" -> "5")))
+    val partitions = (0 until 20).map(i => partitioner.partition("topic", keylessMessage, 3))
+
+    assertEquals(4, partitions.grouped(5).size)
+    partitions.grouped(5).sliding(2).foreach(pair => {
+      assertEquals(1, pair(0).distinct.size)
+      assertEquals((pair(0)(0) + 1) % 3, pair(1)(0))
+    })
+  }
+}
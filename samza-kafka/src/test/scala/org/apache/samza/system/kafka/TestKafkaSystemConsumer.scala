@@ -19,6 +19,8 @@
 
 package org.apache.samza.system.kafka
 
+import java.nio.ByteBuffer
+
 import kafka.api.TopicMetadata
 import kafka.api.PartitionMetadata
 import kafka.cluster.Broker
@@ -28,7 +30,9 @@ import kafka.message.MessageAndOffset
 
 import org.apache.samza.system.IncomingMessageEnvelope
 import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.system.ZeroCopyIncomingMessageEnvelope
 import org.apache.samza.Partition
+import org.apache.samza.util.BufferMemoryBudget
 import org.apache.samza.util.TopicMetadataStore
 import org.junit.Test
 import org.junit.Assert._
@@ -165,6 +169,84 @@ class TestKafkaSystemConsumer {
   }
 
 
+  @Test
+  def testBufferMemoryBudgetReplacesPerPartitionThresholds {
+    val metadataStore = new MockMetadataStore
+    val consumer = new KafkaSystemConsumer("test-system", systemAdmin, new KafkaSystemConsumerMetrics, metadataStore, fetchThreshold = 10) {
+      override def refreshBrokers {
+      }
+    }
+    val budget = new BufferMemoryBudget(200)
+    val tp0 = new TopicAndPartition("test-stream", 0)
+    val tp1 = new TopicAndPartition("test-stream", 1)
+
+    consumer.setBufferMemoryBudget(budget)
+    consumer.register(new SystemStreamPartition("test-system", "test-stream", new Partition(0)), "0")
+    consumer.register(new SystemStreamPartition("test-system", "test-stream", new Partition(1)), "0")
+    consumer.start
+
+    // Partition 0 may buffer more than its share of fetchThreshold, until
+    // the budget is used up. 98 bytes per message, as in testFetchThresholdBytes.
+    val msgAndOffset = MessageAndOffset(new Message(Array[Byte](5, 112, 9, 126)), 887654)
+    (0 until 3).foreach(i => {
+      assertTrue(consumer.sink.needsMoreMessages(tp0))
+      consumer.sink.addMessage(tp0, msgAndOffset, 887354)
+    })
+
+    assertEquals(294, budget.getUsedBytes)
+    assertFalse(consumer.sink.needsMoreMessages(tp0))
+    assertTrue(consumer.sink.needsMoreMessages(tp1))
+  }
+
+  @Test
+  def testHighWatermarkComesFromTheBrokerProxyGauge {
+    val metrics = new KafkaSystemConsumerMetrics
+    val consumer = new KafkaSystemConsumer("test-system", systemAdmin, metrics, new MockMetadataStore)
+    val ssp = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+
+    assertEquals(-1L, consumer.getHighWatermark(ssp))
+    consumer.register(ssp, "0")
+    assertEquals(-1L, consumer.getHighWatermark(ssp))
+    metrics.highWatermark.get(new TopicAndPartition("test-stream", 0)).set(1234L)
+    assertEquals(1234L, consumer.getHighWatermark(ssp))
+  }
+
+  @Test
+  def testZeroCopyMessagesHoldTheFetchedMessageSet {
+    val metrics = new KafkaSystemConsumerMetrics
+    val consumer = new KafkaSystemConsumer("test-system", systemAdmin, metrics, new MockMetadataStore, zeroCopyTopics = Set("test-stream")) {
+      override def refreshBrokers {
+      }
+    }
+    val ssp = new SystemStreamPartition("test-system", "test-stream", new Partition(0))
+    val tp = new TopicAndPartition("test-stream", 0)
+
+    consumer.register(ssp, "0")
+    consumer.start
+    consumer.sink.startMessageSet(tp, 100)
+    consumer.sink.addMessage(tp, MessageAndOffset(new Message("message".getBytes("UTF-8"), "key".getBytes("UTF-8")), 0), 10)
+    consumer.sink.addMessage(tp, MessageAndOffset(new Message(null: Array[Byte]), 1), 10)
+    consumer.sink.endMessageSet(tp)
+
+    assertEquals(100L, metrics.retainedFetchBytes.get)
+
+    val envelopes = consumer.poll(java.util.Collections.singleton(ssp), 0).get(ssp)
+    val first = envelopes.get(0).asInstanceOf[ZeroCopyIncomingMessageEnvelope]
+    val second = envelopes.get(1).asInstanceOf[ZeroCopyIncomingMessageEnvelope]
+    val message = first.getMessage.asInstanceOf[ByteBuffer]
+
+    assertTrue(message.isReadOnly)
+    assertEquals(ByteBuffer.wrap("message".getBytes("UTF-8")), message)
+    assertEquals(ByteBuffer.wrap("key".getBytes("UTF-8")), first.getKey)
+    assertNull(second.getMessage)
+
+    first.release
+    first.release
+    assertEquals(100L, metrics.retainedFetchBytes.get)
+    second.release
+    assertEquals(0L, metrics.retainedFetchBytes.get)
+  }
+
   @Test
   def testFetchThresholdBytesDisabled {
     val metadataStore = new MockMetadataStore
@@ -26,8 +26,13 @@ import org.apache.kafka.clients.producer._
 import java.util
 import org.junit.Assert._
 import org.scalatest.Assertions.intercept
-import org.apache.kafka.common.errors.RecordTooLargeException
+import org.apache.kafka.common.errors.{NetworkException, RecordTooLargeException}
 import org.apache.samza.SamzaException
+import org.apache.samza.metrics.Gauge
+import org.apache.samza.metrics.MetricsRegistryMap
+import org.apache.samza.util.ExponentialSleepStrategy
+import org.apache.samza.utils.TestUtils
+import scala.collection.JavaConversions._
 
 
 class TestKafkaSystemProducer {
@@ -169,6 +174,38 @@ class TestKafkaSystemProducer {
     producer.stop()
   }
 
+  @Test
+  def testRetryBacksOffAfterFailedSend {
+    val retryBackoff = new ExponentialSleepStrategy.Mock(10) {
+      var sleeps = 0
+      override def startLoop = new MockRetryLoop {
+        override def sleep { sleeps += 1; super.sleep }
+      }
+    }
+    // The number of backoff sleeps before each send attempt.
+    val sleepsBeforeSends = new util.ArrayList[Int]
+    val mockProducer = new MockProducer(true) {
+      override def send(record: ProducerRecord[Array[Byte], Array[Byte]], callback: Callback) = {
+        sleepsBeforeSends.add(retryBackoff.sleeps)
+        if (sleepsBeforeSends.size == 1) {
+          throw new NetworkException("test")
+        }
+        super.send(record, callback)
+      }
+    }
+    val producer = new KafkaSystemProducer(systemName = "test",
+                                           retryBackoff = retryBackoff,
+                                           getProducer = () => mockProducer,
+                                           metrics = new KafkaSystemProducerMetrics)
+    producer.register("test")
+    producer.start()
+    producer.send("test", someMessage)
+
+    assertEquals(List(0, 1), sleepsBeforeSends.toList)
+    assertEquals(1, mockProducer.history().size())
+    producer.stop()
+  }
+
   @Test
   def testKafkaProducerFlushMsgsWhenStop {
     val msg1 = new OutgoingMessageEnvelope(new SystemStream("test", "test"), "a".getBytes)
@@ -219,4 +256,85 @@ class TestKafkaSystemProducer {
     assertTrue(thrownNull.getMessage() == StreamNameNullOrEmptyErrorMsg)
     assertTrue(thrownEmpty.getMessage() == StreamNameNullOrEmptyErrorMsg)
   }
+
+  @Test
+  def testKafkaProducerFlushTimesOut {
+    val registry = new MetricsRegistryMap
+    val metrics = new KafkaSystemProducerMetrics("test", registry)
+    val mockProducer = new MockKafkaProducer(1, "test", 1)
+    val systemProducer = new KafkaSystemProducer(systemName = "test",
+                                                 getProducer = () => mockProducer,
+                                                 metrics = metrics,
+                                                 flushTimeoutMs = 100)
+    val outstandingSends = registry.getGroup(metrics.group).get("test-producer-outstanding-sends").asInstanceOf[Gauge[Long]]
+
+    systemProducer.register("test")
+    systemProducer.start()
+    mockProducer.setShouldBuffer(true)
+    systemProducer.send("test", someMessage)
+    systemProducer.send("test", someMessage)
+    assertEquals(2L, outstandingSends.getValue)
+
+    intercept[SamzaException] {
+      systemProducer.flush("test")
+    }
+    assertEquals(1L, metrics.flushTimeouts.getCount)
+
+    mockProducer.startDelayedSendThread(0).join
+    assertEquals(0L, outstandingSends.getValue)
+    systemProducer.flush("test")
+    assertEquals(2, mockProducer.getMsgsSent)
+    systemProducer.stop()
+  }
+
+  @Test
+  def testPartitionCountIsCached {
+    var now = 0L
+    var partitionsForCalls = 0
+    val mockProducer = new MockProducer(TestUtils.clusterWith(1, "test", 4), true) {
+      override def partitionsFor(topic: String) = {
+        partitionsForCalls += 1
+        super.partitionsFor(topic)
+      }
+    }
+    val metrics = new KafkaSystemProducerMetrics
+    val systemProducer = new KafkaSystemProducer(systemName = "test",
+                                                 getProducer = () => mockProducer,
+                                                 metrics = metrics,
+                                                 clock = () => now,
+                                                 partitionMetadataTtlMs = 1000)
+    val keyedMessage = new OutgoingMessageEnvelope(new SystemStream("test", "test"), "key", "key".getBytes, "test".getBytes)
+
+    systemProducer.register("test")
+    systemProducer.start()
+    (0 until 10).foreach(i => systemProducer.send("test", keyedMessage))
+    assertEquals(1, partitionsForCalls)
+
+    // The clock is only checked every so often.
+    now += 1000000000L
+    (0 until KafkaSystemProducer.PARTITION_METADATA_CHECK_SENDS).foreach(i => systemProducer.send("test", keyedMessage))
+    assertEquals(2, partitionsForCalls)
+    assertEquals(2L, metrics.partitionMetadataRefreshes.getCount)
+
+    val expectedPartition = Math.abs("key".hashCode) % 4
+    assertTrue(mockProducer.history.forall(_.partition == expectedPartition))
+    systemProducer.stop()
+  }
+
+  @Test
+  def testPartitionerChoosesPartition {
+    val mockProducer = new MockProducer(TestUtils.clusterWith(1, "test", 4), true)
+    val systemProducer = new KafkaSystemProducer(systemName = "test",
+                                                 getProducer = () => mockProducer,
+                                                 metrics = new KafkaSystemProducerMetrics,
+                                                 partitioner = new RoundRobinPartitioner)
+
+    systemProducer.register("test")
+    systemProducer.start()
+    (0 until 8).foreach(i => systemProducer.send("test", someMessage))
+
+    val partitions = mockProducer.history.map(_.partition.intValue)
+    assertEquals((0 until 8).map(i => (partitions(0) + i) % 4).toList, partitions.toList)
+    systemProducer.stop()
+  }
 }
@@ -20,7 +20,7 @@
 package org.apache.samza.storage.kv
 
 import org.apache.samza.util.Logging
-import org.apache.samza.storage.StorageEngine
+import org.apache.samza.storage.{StorageEngine, StoreRestoreIterator}
 import org.apache.samza.system.IncomingMessageEnvelope
 
 import scala.collection.JavaConversions._
@@ -89,6 +89,13 @@ class KeyValueStorageEngine[K, V](
    * batching updates to underlying raw store to skip wrapping functions for efficiency.
    */
   def restore(envelopes: java.util.Iterator[IncomingMessageEnvelope]) {
+    envelopes match {
+      case progress: StoreRestoreIterator =>
+        metrics.setRestoreRemainingLag(() => progress.getRemainingLag)
+        metrics.setRestoreEtaMs(() => progress.getEtaMs)
+      case _ =>
+    }
+
     val batch = new java.util.ArrayList[Entry[Array[Byte], Array[Byte]]](batchSize)
 
     for (envelope <- envelopes) {
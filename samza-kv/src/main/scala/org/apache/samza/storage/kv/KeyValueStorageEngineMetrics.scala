@@ -38,5 +38,13 @@ class KeyValueStorageEngineMetrics(
   val restoredMessages = newCounter("messages-restored")
   val restoredBytes = newCounter("messages-bytes")
 
+  def setRestoreRemainingLag(getValue: () => Long) {
+    newGauge("restore-remaining-lag", getValue)
+  }
+
+  def setRestoreEtaMs(getValue: () => Long) {
+    newGauge("restore-eta-ms", getValue)
+  }
+
   override def getPrefix = storeName + "-"
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import org.apache.samza.Partition
+import org.apache.samza.checkpoint.Checkpoint
+import org.apache.samza.config.Config
+import org.apache.samza.serializers.CheckpointSerde
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.{CommandLine, Logging}
+import org.apache.samza.SamzaException
+
+import scala.collection.JavaConversions._
+
+/**
+ * A simple CLI-based tool for comparing the size and speed of the checkpoint
+ * formats that CheckpointSerde supports. Like {@link TestRunLoopPerformance},
+ * the tests to run are listed in 'test.methods', and each test reads its
+ * parameters from "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestCheckpointSerdePerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "serde" -> runTestSerde)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestSerde(config: Config) {
+    val formats = config.get("formats", "json,binary").split(",")
+    val streamCount = config.getInt("stream.count", 4)
+    val partitionCount = config.getInt("partition.count", 64)
+    val iterations = config.getInt("iterations", 20000)
+
+    for (format <- formats) {
+      info("Using (format, stream count, partition count, iterations) => (%s, %s, %s, %s)" format (format, streamCount, partitionCount, iterations))
+      new TestCheckpointSerdePerformance().testSerde(format, streamCount, partitionCount, iterations)
+    }
+  }
+}
+
+class TestCheckpointSerdePerformance extends Logging {
+  /**
+   * Serializes and deserializes a checkpoint with streamCount *
+   * partitionCount SystemStreamPartitions iterations times, and reports the
+   * size of the checkpoint, and the time and memory that each call takes.
+   */
+  def testSerde(
+    format: String,
+    streamCount: Int = 4,
+    partitionCount: Int = 64,
+    iterations: Int = 20000) {
+
+    val serde = new CheckpointSerde(format)
+    val offsets = for (
+      stream <- 0 until streamCount;
+      partition <- 0 until partitionCount
+    ) yield new SystemStreamPartition("kafka", "stream-" + stream, new Partition(partition)) -> (1000000000L + stream * partitionCount + partition).toString
+    val checkpoint = new Checkpoint(offsets.toMap[SystemStreamPartition, String])
+    val bytes = serde.toBytes(checkpoint)
+
+    if (serde.fromBytes(bytes) != checkpoint) {
+      throw new SamzaException("The %s format did not read back the checkpoint that it wrote." format format)
+    }
+
+    // Warm up, so that the JIT has compiled both paths before they're measured.
+    (0 until iterations / 10).foreach(i => serde.fromBytes(serde.toBytes(checkpoint)))
+
+    var startBytes = ThreadAllocation.allocatedBytes
+    var startNs = System.nanoTime
+    var i = 0
+    while (i < iterations) {
+      serde.toBytes(checkpoint)
+      i += 1
+    }
+    val writeNs = System.nanoTime - startNs
+    val writeBytes = ThreadAllocation.allocatedBytes - startBytes
+
+    startBytes = ThreadAllocation.allocatedBytes
+    startNs = System.nanoTime
+    i = 0
+    while (i < iterations) {
+      serde.fromBytes(bytes)
+      i += 1
+    }
+    val readNs = System.nanoTime - startNs
+    val readBytes = ThreadAllocation.allocatedBytes - startBytes
+
+    info("A checkpoint of %s partitions is %s bytes in the %s format." format (offsets.size, bytes.length, format))
+    info("toBytes took %.1f us and allocated %.1f KB per call." format (writeNs / 1000.0 / iterations, writeBytes / 1024.0 / iterations))
+    info("fromBytes took %.1f us and allocated %.1f KB per call." format (readNs / 1000.0 / iterations, readBytes / 1024.0 / iterations))
+  }
+}
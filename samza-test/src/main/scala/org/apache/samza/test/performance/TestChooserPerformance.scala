@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import org.apache.samza.config.Config
+import org.apache.samza.system.chooser.{DefaultChooser, IndexedPriorityChooser, MessageChooser, RoundRobinChooser}
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStream, SystemStreamPartition}
+import org.apache.samza.util.{CommandLine, Logging}
+import org.apache.samza.{Partition, SamzaException}
+
+/**
+ * A simple CLI-based tool for comparing MessageChooser implementations. Like
+ * {@link TestRunLoopPerformance}, the tests to run are listed in
+ * 'test.methods', and each test reads its parameters from
+ * "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestChooserPerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "choose" -> runTestChoose)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestChoose(config: Config) {
+    val choosers = config.get("choosers", "default,indexed").split(",")
+    val partitionCounts = config.get("partition.counts", "10,100,1000,10000").split(",").map(_.toInt)
+    val batchSize = config.getInt("batch.size", 0)
+    val warmupMessageCount = config.getInt("warmup.message.count", 1000000)
+    val messageCount = config.getInt("message.count", 10000000)
+
+    for (partitionCount <- partitionCounts; chooser <- choosers) {
+      info("Using (chooser, partition count, batch size, message count) => (%s, %s, %s, %s)" format (chooser, partitionCount, batchSize, messageCount))
+      new TestChooserPerformance().testChoose(chooser, partitionCount, batchSize, warmupMessageCount, messageCount)
+    }
+  }
+}
+
+class TestChooserPerformance extends Logging {
+  /**
+   * Registers partitionCount partitions, split between a high and a low
+   * priority stream, and gives the chooser an envelope for each of them.
+   * Then, the same way SystemConsumers does, repeatedly chooses an envelope
+   * and updates the chooser with the next envelope for its partition.
+   * Reports the time and bytes allocated per choose and update.
+   *
+   * The default chooser is a DefaultChooser with RoundRobinChoosers, which
+   * wraps them in a TieredPriorityChooser and, if batchSize is positive, a
+   * BatchingChooser. The indexed chooser is an IndexedPriorityChooser with
+   * the same priorities and batch size.
+   */
+  def testChoose(
+    chooserName: String,
+    partitionCount: Int = 1000,
+    batchSize: Int = 0,
+    warmupMessageCount: Int = 1000000,
+    messageCount: Int = 10000000) {
+
+    val highPriorityStream = new SystemStream("system", "high")
+    val lowPriorityStream = new SystemStream("system", "low")
+    val priorities = Map(highPriorityStream -> 1, lowPriorityStream -> 0)
+    val batch = if (batchSize > 0) Some(batchSize) else None
+    val chooser: MessageChooser = chooserName match {
+      case "default" => new DefaultChooser(new RoundRobinChooser, batch, priorities, Map(1 -> new RoundRobinChooser, 0 -> new RoundRobinChooser))
+      case "indexed" => new IndexedPriorityChooser(priorities, batch)
+      case _ => throw new SamzaException("Unknown chooser: %s. Valid choosers are: default, indexed" format chooserName)
+    }
+
+    // The high priority stream only gets every tenth partition, so that
+    // most choices come from the lower tier.
+    val envelopes = (0 until partitionCount)
+      .map(p => new SystemStreamPartition(if (p % 10 == 0) highPriorityStream else lowPriorityStream, new Partition(p)))
+      .map(ssp => new IncomingMessageEnvelope(ssp, "0", null, null))
+
+    envelopes.foreach(envelope => chooser.register(envelope.getSystemStreamPartition, "0"))
+    chooser.start
+    envelopes.foreach(chooser.update)
+
+    def choose(count: Int) {
+      var i = 0
+      while (i < count) {
+        chooser.update(chooser.choose)
+        i += 1
+      }
+    }
+
+    choose(warmupMessageCount)
+
+    val startBytes = ThreadAllocation.allocatedBytes
+    val startNs = System.nanoTime
+    choose(messageCount)
+    val elapsedNs = System.nanoTime - startNs
+    val bytesPerMessage = (ThreadAllocation.allocatedBytes - startBytes).toDouble / messageCount
+
+    info("Chose %s messages from %s partitions with the %s chooser in %sms (%.1f ns per message), allocating %.3f bytes per message." format (
+      messageCount, partitionCount, chooserName, elapsedNs / 1000000, elapsedNs.toDouble / messageCount, bytesPerMessage))
+
+    chooser.stop
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import java.util
+import java.util.ArrayList
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.samza.config.Config
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemStreamPartition}
+import org.apache.samza.util.{CommandLine, EnvelopeQueue, Logging, SpscEnvelopeRingBuffer}
+import org.apache.samza.{Partition, SamzaException}
+
+/**
+ * A simple CLI-based tool for comparing the queues that BlockingEnvelopeMap
+ * can buffer messages in. Like {@link TestRunLoopPerformance}, the tests to
+ * run are listed in 'test.methods', and each test reads its parameters from
+ * "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestEnvelopeQueuePerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "handoff" -> runTestHandoff)
+
+  val queueFactories: Map[String, Int => EnvelopeQueue] = Map(
+    "linked" -> (capacity => new LinkedEnvelopeQueue(capacity)),
+    "ring" -> (capacity => new SpscEnvelopeRingBuffer(capacity)))
+
+  /**
+   * A LinkedBlockingQueue, the way BlockingEnvelopeMap uses it by default.
+   */
+  class LinkedEnvelopeQueue(capacity: Int) extends EnvelopeQueue {
+    private val queue = new LinkedBlockingQueue[IncomingMessageEnvelope](capacity)
+
+    def put(envelope: IncomingMessageEnvelope) = queue.put(envelope)
+    def poll(timeout: Long, unit: TimeUnit) = queue.poll(timeout, unit)
+    def drainTo(collection: util.Collection[_ >: IncomingMessageEnvelope]) = queue.drainTo(collection)
+    def size = queue.size
+  }
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestHandoff(config: Config) {
+    val queues = config.get("queues", "linked,ring").split(",")
+    val capacity = config.getInt("queue.capacity", 10000)
+    val warmupMessageCount = config.getInt("warmup.message.count", 1000000)
+    val messageCount = config.getInt("message.count", 10000000)
+
+    queues.foreach { queue =>
+      val factory = queueFactories.getOrElse(queue, throw new SamzaException("Unknown queue: %s. Valid queues are: %s" format (queue, queueFactories.keys)))
+
+      info("Using (queue, capacity, message count) => (%s, %s, %s)" format (queue, capacity, messageCount))
+      new TestEnvelopeQueuePerformance().testHandoff(queue, factory(capacity), warmupMessageCount, messageCount)
+    }
+  }
+}
+
+class TestEnvelopeQueuePerformance extends Logging {
+  /**
+   * Puts messages into a queue from one thread, and drains them in batches
+   * from another, the way a fetcher thread and the run loop share a
+   * BlockingEnvelopeMap queue. Reports the throughput, and the number of
+   * bytes that each side allocates per message.
+   */
+  def testHandoff(
+    name: String,
+    queue: EnvelopeQueue,
+    warmupMessageCount: Int = 1000000,
+    messageCount: Int = 10000000) {
+
+    val ssp = new SystemStreamPartition("system", "stream", new Partition(0))
+    val envelopes = (0 until 1024).map(i => new IncomingMessageEnvelope(ssp, i.toString, null, null, 100)).toArray
+    val producerBytes = new AtomicLong
+    val batch = new ArrayList[IncomingMessageEnvelope]
+
+    def handoff(count: Int) = {
+      val producer = new Thread(new Runnable {
+        def run {
+          val startBytes = ThreadAllocation.allocatedBytes
+          var i = 0
+          while (i < count) {
+            queue.put(envelopes(i & (envelopes.length - 1)))
+            i += 1
+          }
+          producerBytes.set(ThreadAllocation.allocatedBytes - startBytes)
+        }
+      }, "envelope-queue-producer")
+
+      producer.start
+
+      val startBytes = ThreadAllocation.allocatedBytes
+      var received = 0
+      while (received < count) {
+        if (queue.drainTo(batch) == 0) {
+          val envelope = queue.poll(1, TimeUnit.SECONDS)
+          if (envelope != null) {
+            batch.add(envelope)
+          }
+        }
+        received += batch.size
+        batch.clear
+      }
+      val consumerBytes = ThreadAllocation.allocatedBytes - startBytes
+
+      producer.join
+      consumerBytes
+    }
+
+    handoff(warmupMessageCount)
+
+    val startNs = System.nanoTime
+    val consumerBytes = handoff(messageCount)
+    val elapsedNs = System.nanoTime - startNs
+
+    info("Handed %s messages through %s in %sms (%.0f msgs/sec), allocating %.3f bytes per message in the producer and %.3f in the consumer." format (
+      messageCount, name, elapsedNs / 1000000, messageCount * 1e9 / elapsedNs,
+      producerBytes.get.toDouble / messageCount, consumerBytes.toDouble / messageCount))
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import org.apache.samza.Partition
+import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.config.Config
+import org.apache.samza.container.TaskName
+import org.apache.samza.system.SystemStreamPartition
+import org.apache.samza.util.{CommandLine, Logging}
+import org.apache.samza.SamzaException
+
+/**
+ * A simple CLI-based tool for measuring how quickly OffsetManager records
+ * the offset of each processed message. Like {@link TestRunLoopPerformance},
+ * the tests to run are listed in 'test.methods', and each test reads its
+ * parameters from "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestOffsetManagerPerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "update" -> runTestUpdate)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestUpdate(config: Config) {
+    val modes = config.get("modes", "manager,table").split(",")
+    val taskCount = config.getInt("task.count", 8)
+    val partitionCount = config.getInt("partition.count", 16)
+    val iterations = config.getInt("iterations", 20000000)
+
+    for (mode <- modes) {
+      info("Using (mode, task count, partition count, iterations) => (%s, %s, %s, %s)" format (mode, taskCount, partitionCount, iterations))
+      new TestOffsetManagerPerformance().testUpdate(mode, taskCount, partitionCount, iterations)
+    }
+  }
+}
+
+class TestOffsetManagerPerformance extends Logging {
+  /**
+   * Records iterations offsets, spread round-robin over taskCount tasks of
+   * partitionCount SystemStreamPartitions each, and then checkpoints every
+   * task. In the "manager" mode, offsets are recorded with
+   * OffsetManager.update, by TaskName and SystemStreamPartition. In the
+   * "table" mode, they're stored by index into each task's TaskOffsets, as a
+   * started TaskInstance does.
+   */
+  def testUpdate(
+    mode: String,
+    taskCount: Int = 8,
+    partitionCount: Int = 16,
+    iterations: Int = 20000000) {
+
+    val useTable = mode match {
+      case "manager" => false
+      case "table" => true
+      case _ => throw new SamzaException("Unknown mode: %s" format mode)
+    }
+
+    val offsetManager = new OffsetManager
+    val taskNames = (0 until taskCount).map(task => new TaskName("Partition " + task)).toArray
+    val ssps = (0 until taskCount).map(task =>
+      (0 until partitionCount).map(partition => new SystemStreamPartition("kafka", "stream-" + partition, new Partition(task))).toArray).toArray
+    val offsets = (0 until 1024).map(offset => (1000000000L + offset).toString).toArray
+
+    (0 until taskCount).foreach(task => offsetManager.register(taskNames(task), ssps(task).toSet))
+
+    val tables = if (useTable) taskNames.map(offsetManager.getTaskOffsets(_)) else null
+    val indexes = if (useTable) (0 until taskCount).map(task => ssps(task).map(tables(task).indexOf(_))).toArray else null
+
+    def run(count: Int) {
+      var i = 0
+      while (i < count) {
+        val task = i % taskCount
+        val partition = (i / taskCount) % partitionCount
+        if (useTable) {
+          tables(task).update(indexes(task)(partition), offsets(i & 1023))
+        } else {
+          offsetManager.update(taskNames(task), ssps(task)(partition), offsets(i & 1023))
+        }
+        i += 1
+      }
+    }
+
+    // Warm up, so that the JIT has compiled the path before it's measured.
+    run(iterations / 10)
+
+    var startBytes = ThreadAllocation.allocatedBytes
+    var startNs = System.nanoTime
+    run(iterations)
+    val updateNs = System.nanoTime - startNs
+    val updateBytes = ThreadAllocation.allocatedBytes - startBytes
+
+    startBytes = ThreadAllocation.allocatedBytes
+    startNs = System.nanoTime
+    taskNames.foreach(offsetManager.getCheckpoint(_))
+    val checkpointNs = System.nanoTime - startNs
+    val checkpointBytes = ThreadAllocation.allocatedBytes - startBytes
+
+    info("Recorded %.1f million offsets per second, allocating %.1f bytes per update." format (iterations * 1000.0 / updateNs, updateBytes.toDouble / iterations))
+    info("Checkpointing %s tasks took %.1f us and allocated %.1f KB." format (taskCount, checkpointNs / 1000.0, checkpointBytes / 1024.0))
+  }
+}
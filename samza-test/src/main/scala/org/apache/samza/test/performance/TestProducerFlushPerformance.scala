@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import java.lang.management.ManagementFactory
+import java.util
+import java.util.concurrent.{Executors, Future, FutureTask, TimeUnit}
+
+import org.apache.kafka.clients.producer.{Callback, Producer, ProducerRecord, RecordMetadata}
+import org.apache.kafka.common.{Metric, MetricName, PartitionInfo, TopicPartition}
+import org.apache.samza.config.Config
+import org.apache.samza.system.kafka.{KafkaSystemProducer, KafkaSystemProducerMetrics}
+import org.apache.samza.system.{OutgoingMessageEnvelope, SystemStream}
+import org.apache.samza.util.{CommandLine, DaemonThreadFactory, Logging}
+import org.apache.samza.SamzaException
+
+/**
+ * A simple CLI-based tool for measuring how much CPU the flushing thread
+ * uses while KafkaSystemProducer waits for sends to complete. Like
+ * {@link TestRunLoopPerformance}, the tests to run are listed in
+ * 'test.methods', and each test reads its parameters from
+ * "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestProducerFlushPerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "flush" -> runTestFlush)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestFlush(config: Config) {
+    val modes = config.get("modes", "spin,blocking").split(",")
+    val messagesPerFlush = config.getInt("messages.per.flush", 1000)
+    val flushCount = config.getInt("flush.count", 20)
+    val sendLatencyMs = config.getInt("send.latency.ms", 100)
+
+    for (mode <- modes) {
+      info("Using (mode, messages per flush, flush count, send latency ms) => (%s, %s, %s, %s)" format (mode, messagesPerFlush, flushCount, sendLatencyMs))
+      new TestProducerFlushPerformance().testFlush(mode, messagesPerFlush, flushCount, sendLatencyMs)
+    }
+  }
+}
+
+class TestProducerFlushPerformance extends Logging {
+  /**
+   * Sends messagesPerFlush messages and flushes them, flushCount times, to a
+   * producer that completes each send sendLatencyMs after it was made, like
+   * a slow broker would. Reports how long each flush takes, and how much of
+   * that time the flushing thread spent on the CPU.
+   *
+   * The blocking mode flushes a KafkaSystemProducer. The spin mode is a
+   * baseline that waits for the latest send's future in a busy loop, as
+   * KafkaSystemProducer.flush used to.
+   */
+  def testFlush(
+    mode: String,
+    messagesPerFlush: Int = 1000,
+    flushCount: Int = 20,
+    sendLatencyMs: Int = 100) {
+
+    val producer = new DelayedProducer(sendLatencyMs)
+    val systemProducer = new KafkaSystemProducer("perf", getProducer = () => producer, metrics = new KafkaSystemProducerMetrics)
+    val envelope = new OutgoingMessageEnvelope(new SystemStream("perf", "perf"), new Array[Byte](100))
+    val record = new ProducerRecord[Array[Byte], Array[Byte]]("perf", new Array[Byte](100))
+    val flush: () => Unit = mode match {
+      case "blocking" =>
+        systemProducer.register("perf")
+        systemProducer.start
+
+        () => {
+          (0 until messagesPerFlush).foreach(i => systemProducer.send("perf", envelope))
+          systemProducer.flush("perf")
+        }
+      case "spin" =>
+        () => {
+          var latestFuture: Future[RecordMetadata] = null
+          (0 until messagesPerFlush).foreach(i => latestFuture = producer.send(record, null))
+          while (!latestFuture.isDone) {
+            // Busy wait.
+          }
+        }
+      case _ => throw new SamzaException("Unknown mode: %s. Valid modes are: spin, blocking" format mode)
+    }
+
+    val threads = ManagementFactory.getThreadMXBean
+    val startCpuNs = threads.getCurrentThreadCpuTime
+    val startNs = System.nanoTime
+    (0 until flushCount).foreach(i => flush())
+    val elapsedNs = System.nanoTime - startNs
+    val cpuNs = threads.getCurrentThreadCpuTime - startCpuNs
+
+    info("Sent and flushed %s messages %s times in %s mode in %sms (%.1f ms per flush), using %.1f ms of CPU per flush (%.1f%% of a core)." format (
+      messagesPerFlush, flushCount, mode, elapsedNs / 1000000, elapsedNs / 1e6 / flushCount, cpuNs / 1e6 / flushCount, 100.0 * cpuNs / elapsedNs))
+
+    if (mode == "blocking") {
+      systemProducer.stop
+    }
+    producer.close
+  }
+
+  /**
+   * Completes each send, in order, sendLatencyMs after it was made.
+   */
+  class DelayedProducer(sendLatencyMs: Int) extends Producer[Array[Byte], Array[Byte]] {
+    val executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("delayed-producer"))
+    val metadata = new RecordMetadata(new TopicPartition("perf", 0), 0, 0)
+
+    def send(record: ProducerRecord[Array[Byte], Array[Byte]]) = send(record, null)
+
+    def send(record: ProducerRecord[Array[Byte], Array[Byte]], callback: Callback) = {
+      val future = new FutureTask[RecordMetadata](new Runnable {
+        def run = if (callback != null) callback.onCompletion(metadata, null)
+      }, metadata)
+      executor.schedule(future, sendLatencyMs, TimeUnit.MILLISECONDS)
+      future
+    }
+
+    def partitionsFor(topic: String) = new util.ArrayList[PartitionInfo]
+
+    def metrics = new util.HashMap[MetricName, Metric]
+
+    def close {
+      executor.shutdownNow
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import java.util
+import java.util.concurrent.FutureTask
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+import org.apache.kafka.clients.producer.{Callback, Producer, ProducerRecord, RecordMetadata}
+import org.apache.kafka.clients.producer.internals.Metadata
+import org.apache.kafka.common.{Cluster, Metric, MetricName, Node, PartitionInfo, TopicPartition}
+import org.apache.samza.config.Config
+import org.apache.samza.system.kafka._
+import org.apache.samza.system.{OutgoingMessageEnvelope, SystemStream}
+import org.apache.samza.util.{CommandLine, ExponentialSleepStrategy, KafkaUtil, Logging}
+import org.apache.samza.SamzaException
+
+import scala.collection.JavaConversions._
+
+/**
+ * A simple CLI-based tool for measuring the cost of KafkaSystemProducer.send,
+ * without a broker. Like {@link TestRunLoopPerformance}, the tests to run are
+ * listed in 'test.methods', and each test reads its parameters from
+ * "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestProducerSendPerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "send" -> runTestSend)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestSend(config: Config) {
+    val modes = config.get("modes", "legacy,hash,murmur2,round-robin,sticky").split(",")
+    val keyed = config.getBoolean("keyed", true)
+    val partitionCount = config.getInt("partition.count", 32)
+    val messageCount = config.getInt("message.count", 5000000)
+
+    for (mode <- modes) {
+      info("Using (mode, keyed, partition count, message count) => (%s, %s, %s, %s)" format (mode, keyed, partitionCount, messageCount))
+      new TestProducerSendPerformance().testSend(mode, keyed, partitionCount, messageCount)
+    }
+  }
+}
+
+class TestProducerSendPerformance extends Logging {
+  /**
+   * Sends messageCount messages to a producer that completes every send as
+   * soon as it's made, and reports the time and memory that each send takes.
+   *
+   * The legacy mode is a baseline that sends the way KafkaSystemProducer.send
+   * used to: it looks up the topic's partitions and builds a retry loop for
+   * every message, with the same metrics and bookkeeping as the producer. The other modes send through a KafkaSystemProducer that
+   * uses the partitioner of the same name.
+   */
+  def testSend(
+    mode: String,
+    keyed: Boolean = true,
+    partitionCount: Int = 32,
+    messageCount: Int = 5000000) {
+
+    val producer = new ImmediateProducer(partitionCount)
+    val systemStream = new SystemStream("perf", "perf")
+    val message = new Array[Byte](100)
+    val envelopes = (0 until 1024).map(i =>
+      if (keyed) {
+        new OutgoingMessageEnvelope(systemStream, "key-" + i, ("key-" + i).getBytes, message)
+      } else {
+        new OutgoingMessageEnvelope(systemStream, message)
+      }).toArray
+    val send: OutgoingMessageEnvelope => Unit = mode match {
+      case "legacy" =>
+        val retryBackoff = new ExponentialSleepStrategy
+        val metrics = new KafkaSystemProducerMetrics
+        val sendFailed = new AtomicBoolean(false)
+        val outstanding = new AtomicLong
+        val callback = new Callback {
+          def onCompletion(metadata: RecordMetadata, exception: Exception) {
+            metrics.sendSuccess.inc
+            outstanding.decrementAndGet
+          }
+        }
+
+        envelope => {
+          trace("Enqueueing message: %s, %s." format ("perf", envelope))
+          val partitions = producer.partitionsFor(envelope.getSystemStream.getStream)
+          val partitionKey = if (envelope.getPartitionKey != null) KafkaUtil.getIntegerPartitionKey(envelope, partitions) else null
+          val record = new ProducerRecord(envelope.getSystemStream.getStream,
+                                          partitionKey,
+                                          envelope.getKey.asInstanceOf[Array[Byte]],
+                                          envelope.getMessage.asInstanceOf[Array[Byte]])
+          sendFailed.set(false)
+          retryBackoff.run(
+            loop => {
+              outstanding.incrementAndGet
+              producer.send(record, callback)
+              metrics.sends.inc
+              if (!sendFailed.get) loop.done
+            },
+            (exception, loop) => throw exception)
+        }
+      case _ =>
+        val partitioner = mode match {
+          case "hash" => new HashCodePartitioner
+          case "murmur2" => new Murmur2Partitioner
+          case "round-robin" => new RoundRobinPartitioner
+          case "sticky" => new StickyPartitioner
+          case _ => throw new SamzaException("Unknown mode: %s. Valid modes are: legacy, hash, murmur2, round-robin, sticky" format mode)
+        }
+        val systemProducer = new KafkaSystemProducer("perf",
+                                                     getProducer = () => producer,
+                                                     metrics = new KafkaSystemProducerMetrics,
+                                                     partitioner = partitioner)
+        systemProducer.register("perf")
+        systemProducer.start
+
+        envelope => systemProducer.send("perf", envelope)
+    }
+
+    // Warm up, so that the JIT has compiled the send path before it's measured.
+    (0 until messageCount / 10).foreach(i => send(envelopes(i & 1023)))
+
+    val startBytes = ThreadAllocation.allocatedBytes
+    val startNs = System.nanoTime
+    var i = 0
+    while (i < messageCount) {
+      send(envelopes(i & 1023))
+      i += 1
+    }
+    val elapsedNs = System.nanoTime - startNs
+    val allocatedBytes = ThreadAllocation.allocatedBytes - startBytes
+
+    info("Sent %s %s messages to %s partitions in %s mode in %sms (%.1f ns and %.1f bytes allocated per send)." format (
+      messageCount, if (keyed) "keyed" else "keyless", partitionCount, mode, elapsedNs / 1000000,
+      elapsedNs.toDouble / messageCount, allocatedBytes.toDouble / messageCount))
+    info("Partitions for topic perf were looked up %s times." format producer.partitionsForCalls)
+  }
+
+  /**
+   * Completes every send immediately. Topic partitions are looked up in the
+   * same kind of metadata, and in the same way, as the Kafka producer does.
+   */
+  class ImmediateProducer(partitionCount: Int) extends Producer[Array[Byte], Array[Byte]] {
+    val recordMetadata = new RecordMetadata(new TopicPartition("perf", 0), 0, 0)
+    val future = new FutureTask[RecordMetadata](new Runnable { def run {} }, recordMetadata)
+    val metadata = new Metadata
+    var partitionsForCalls = 0L
+
+    future.run
+    metadata.update(cluster, System.currentTimeMillis)
+
+    private def cluster = {
+      val node = new Node(0, "localhost", 9092)
+      val partitions = (0 until partitionCount).map(i => new PartitionInfo("perf", i, node, Array(node), Array(node)))
+      new Cluster(util.Arrays.asList(node), partitions)
+    }
+
+    def send(record: ProducerRecord[Array[Byte], Array[Byte]]) = send(record, null)
+
+    def send(record: ProducerRecord[Array[Byte], Array[Byte]], callback: Callback) = {
+      if (callback != null) {
+        callback.onCompletion(recordMetadata, null)
+      }
+      future
+    }
+
+    def partitionsFor(topic: String) = {
+      partitionsForCalls += 1
+      // KafkaProducer first waits until it has metadata for the topic.
+      if (metadata.fetch.partitionsForTopic(topic) == null) {
+        throw new SamzaException("No metadata for topic %s." format topic)
+      }
+      metadata.fetch.partitionsForTopic(topic)
+    }
+
+    def metrics = new util.HashMap[MetricName, Metric]
+
+    def close {}
+  }
+}
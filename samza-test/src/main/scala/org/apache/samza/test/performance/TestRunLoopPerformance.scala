@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import org.apache.samza.checkpoint.OffsetManager
+import org.apache.samza.config.{Config, MapConfig}
+import org.apache.samza.container._
+import org.apache.samza.serializers.SerdeManager
+import org.apache.samza.system.chooser.RoundRobinChooser
+import org.apache.samza.system.{IncomingMessageEnvelope, SystemConsumer, SystemConsumers, SystemProducer, SystemProducers, SystemStreamPartition}
+import org.apache.samza.task.{MessageCollector, StreamTask, TaskCoordinator, TaskInstanceCollector}
+import org.apache.samza.util.{CommandLine, Logging}
+import org.apache.samza.{Partition, SamzaException}
+
+import scala.collection.JavaConversions._
+
+/**
+ * A simple CLI-based tool for running RunLoop performance tests. Like
+ * {@link TestKeyValuePerformance}, the tests to run are listed in
+ * 'test.methods', and each test reads its parameters from
+ * "test.<test-name>.<config-string>=<config-value>".
+ */
+object TestRunLoopPerformance extends Logging {
+  val testMethods: Map[String, Config => Unit] = Map(
+    "dispatch" -> runTestDispatch)
+
+  def main(args: Array[String]) {
+    val cmdline = new CommandLine
+    val options = cmdline.parser.parse(args: _*)
+    val config = cmdline.loadConfig(options)
+    val tests = config.get("test.methods").split(",")
+
+    tests.foreach { test =>
+      info("Running test: %s" format test)
+      if (testMethods.contains(test)) {
+        testMethods(test)(config.subset("test." + test + ".", true))
+      } else {
+        error("Invalid test method. valid methods are: %s" format testMethods.keys)
+        throw new SamzaException("Unknown test method: %s" format test)
+      }
+    }
+  }
+
+  def runTestDispatch(config: Config) {
+    val taskCount = config.getInt("task.count", 8)
+    val partitionsPerTask = config.getInt("partitions.per.task", 4)
+    val warmupMessageCount = config.getInt("warmup.message.count", 1000000)
+    val messageCount = config.getInt("message.count", 10000000)
+    val maxBytesPerMessage = config.getInt("max.allocated.bytes.per.message", 0)
+
+    info("Using (task count, partitions per task, message count) => (%s, %s, %s)" format (taskCount, partitionsPerTask, messageCount))
+    new TestRunLoopPerformance().testDispatch(taskCount, partitionsPerTask, warmupMessageCount, messageCount, maxBytesPerMessage)
+  }
+}
+
+class TestRunLoopPerformance extends Logging {
+  /**
+   * Dispatches messages through RunLoop to TaskInstances with a no-op
+   * StreamTask, and reports the throughput and the number of bytes allocated
+   * per message. Choosing messages is left out, so that only routing,
+   * TaskInstance.process and the offset update are measured. Fails if more
+   * than maxBytesPerMessage bytes are allocated per message once the JIT has
+   * warmed up.
+   */
+  def testDispatch(
+    taskCount: Int = 8,
+    partitionsPerTask: Int = 4,
+    warmupMessageCount: Int = 1000000,
+    messageCount: Int = 10000000,
+    maxBytesPerMessage: Int = 0) {
+
+    val config = new MapConfig
+    val consumerMultiplexer = new SystemConsumers(new RoundRobinChooser, Map[String, SystemConsumer]())
+    val producerMultiplexer = new SystemProducers(Map[String, SystemProducer](), new SerdeManager)
+    val offsetManager = new OffsetManager
+    val task = new StreamTask {
+      def process(envelope: IncomingMessageEnvelope, collector: MessageCollector, coordinator: TaskCoordinator) {}
+    }
+
+    val taskNames = (0 until taskCount).map(t => new TaskName("Task %s" format t)).toSet
+    val containerContext = new SamzaContainerContext(0, config, taskNames)
+    val taskInstances = taskNames.zipWithIndex.map {
+      case (taskName, t) =>
+        val ssps = (0 until partitionsPerTask)
+          .map(p => new SystemStreamPartition("system", "stream", new Partition(t * partitionsPerTask + p)))
+          .toSet
+        offsetManager.startingOffsets += taskName -> ssps.map(_ -> "0").toMap
+        val taskInstance = new TaskInstance(
+          task,
+          taskName,
+          config,
+          new TaskInstanceMetrics,
+          null,
+          consumerMultiplexer,
+          new TaskInstanceCollector(producerMultiplexer),
+          containerContext,
+          offsetManager,
+          systemStreamPartitions = ssps)
+        taskInstance.registerOffsets
+        taskName -> taskInstance
+    }.toMap
+
+    val runLoop = new RunLoop(taskInstances, consumerMultiplexer, new SamzaContainerMetrics)
+    val envelopes = taskInstances
+      .values
+      .flatMap(_.systemStreamPartitions)
+      .map(ssp => new IncomingMessageEnvelope(ssp, "1", null, null))
+      .toArray
+
+    def dispatch(count: Int) {
+      var i = 0
+      while (i < count) {
+        runLoop.dispatch(envelopes(i % envelopes.length))
+        i += 1
+      }
+    }
+
+    dispatch(warmupMessageCount)
+
+    val startBytes = ThreadAllocation.allocatedBytes
+    val startNs = System.nanoTime
+    dispatch(messageCount)
+    val elapsedNs = System.nanoTime - startNs
+    val bytesPerMessage = (ThreadAllocation.allocatedBytes - startBytes).toDouble / messageCount
+
+    info("Dispatched %s messages in %sms (%.0f msgs/sec), allocating %.3f bytes per message." format (
+      messageCount, elapsedNs / 1000000, messageCount * 1e9 / elapsedNs, bytesPerMessage))
+
+    if (bytesPerMessage > maxBytesPerMessage) {
+      throw new SamzaException("Dispatch allocated %.3f bytes per message, but at most %s are allowed." format (bytesPerMessage, maxBytesPerMessage))
+    }
+  }
+}
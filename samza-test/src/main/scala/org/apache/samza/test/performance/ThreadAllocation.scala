@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.samza.test.performance
+
+import java.lang.management.ManagementFactory
+
+import org.apache.samza.SamzaException
+
+/**
+ * Reads the number of bytes that the current thread has allocated on the
+ * heap so far. Performance tests use the difference between two readings to
+ * report how much a code path allocates per operation.
+ *
+ * This relies on the com.sun.management extension of ThreadMXBean, which is
+ * available on HotSpot-based JVMs.
+ */
+object ThreadAllocation {
+  private val threadMXBean = ManagementFactory.getThreadMXBean match {
+    case bean: com.sun.management.ThreadMXBean if bean.isThreadAllocatedMemorySupported =>
+      bean.setThreadAllocatedMemoryEnabled(true)
+      bean
+    case _ => throw new SamzaException("This JVM does not support measuring per-thread allocation.")
+  }
+
+  def allocatedBytes = threadMXBean.getThreadAllocatedBytes(Thread.currentThread.getId)
+}